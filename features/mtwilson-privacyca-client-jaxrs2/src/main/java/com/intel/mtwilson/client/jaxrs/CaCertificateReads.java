@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.client.jaxrs;
+
+import com.intel.mtwilson.privacyca.v2.model.CaCertificateFilterCriteria;
+import java.io.Closeable;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.concurrent.Callable;
+import javax.ws.rs.ProcessingException;
+
+/**
+ * The read-only CaCertificates calls, sent to several Privacy CA endpoints
+ * through a {@link HedgedClient}. Concurrent lookups of the same
+ * certificate are coalesced by a {@link SingleFlight}; with a single
+ * endpoint this only coalesces lookups and applies the circuit breaker.
+ *
+ * <pre>
+ *  CaCertificateReads reads = new CaCertificateReads(new HedgedClient&lt;&gt;(Arrays.asList(
+ *      new CaCertificates(propertiesForCa1), new CaCertificates(propertiesForCa2))));
+ *  X509Certificate privacy = reads.retrieveCaCertificate("privacy");
+ * </pre>
+ */
+public class CaCertificateReads implements Closeable {
+    private final HedgedClient<CaCertificates> client;
+    private final SingleFlight<String,X509Certificate> lookups = new SingleFlight<>();
+
+    public CaCertificateReads(HedgedClient<CaCertificates> client) {
+        this.client = client;
+    }
+
+    public CaCertificateReads(List<CaCertificates> endpoints) {
+        this(new HedgedClient<>(endpoints));
+    }
+
+    /**
+     * Concurrent requests for the same certificate id share one call.
+     *
+     * @see CaCertificates#retrieveCaCertificate(java.lang.String)
+     */
+    public X509Certificate retrieveCaCertificate(final String certificateId) {
+        try {
+            return lookups.execute(certificateId, new Callable<X509Certificate>() {
+                @Override
+                public X509Certificate call() {
+                    return client.call(new HedgedClient.Call<CaCertificates,X509Certificate>() {
+                        @Override
+                        public X509Certificate call(CaCertificates endpoint) {
+                            return endpoint.retrieveCaCertificate(certificateId);
+                        }
+                    });
+                }
+            });
+        }
+        catch(RuntimeException e) {
+            throw e;
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessingException(e);
+        }
+        catch(Exception e) {
+            throw new ProcessingException(e);
+        }
+    }
+
+    /**
+     * @see CaCertificates#searchCaCertificatesPem(com.intel.mtwilson.privacyca.v2.model.CaCertificateFilterCriteria)
+     */
+    public String searchCaCertificatesPem(final CaCertificateFilterCriteria criteria) {
+        return client.call(new HedgedClient.Call<CaCertificates,String>() {
+            @Override
+            public String call(CaCertificates endpoint) {
+                return endpoint.searchCaCertificatesPem(criteria);
+            }
+        });
+    }
+
+    public SingleFlight<String,X509Certificate> getLookups() {
+        return lookups;
+    }
+
+    public HedgedClient<CaCertificates> getHedgedClient() {
+        return client;
+    }
+
+    @Override
+    public void close() {
+        client.close();
+    }
+}
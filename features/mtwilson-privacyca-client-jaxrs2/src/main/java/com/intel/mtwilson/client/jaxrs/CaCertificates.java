@@ -4,6 +4,7 @@
  */
 package com.intel.mtwilson.client.jaxrs;
 
+import com.intel.mtwilson.jaxrs2.client.JaxrsClient;
 import com.intel.mtwilson.jaxrs2.client.MtWilsonClient;
 import com.intel.mtwilson.jaxrs2.mediatype.CryptoMediaType;
 import java.net.URL;
@@ -38,6 +39,14 @@ public class CaCertificates extends MtWilsonClient {
     public CaCertificates(Properties properties, TlsConnection tlsConnection) throws Exception {
         super(properties, tlsConnection);
     }
+
+    /**
+     * Uses the connection pool of an existing client, such as one made by
+     * PrivacyCaClientFactory.
+     */
+    public CaCertificates(JaxrsClient jaxrsClient) {
+        super(jaxrsClient);
+    }
         
     /**
      * Retrieves the details of the specified certificate from the system.
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.client.jaxrs;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.ws.rs.ProcessingException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops sending requests to a Privacy CA endpoint after consecutive
+ * failures, so callers fail fast instead of waiting for timeouts.
+ *
+ * After the failure threshold the breaker opens and rejects requests for
+ * the open time. Then it lets one trial request through; if the trial
+ * succeeds the breaker closes, and if it fails the breaker opens again.
+ * If a trial neither succeeds nor fails, for example because it was
+ * cancelled, another trial is allowed after the open time.
+ */
+public class CircuitBreaker {
+    private static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public static enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Thrown instead of making a request when every endpoint's breaker is open.
+     */
+    public static class OpenException extends ProcessingException {
+        private static final long serialVersionUID = 0;
+
+        public OpenException(String message) {
+            super(message);
+        }
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openNanos;
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long changedAt = 0;
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     *
+     * @param name the endpoint, for log messages
+     * @param failureThreshold consecutive failures that open the breaker
+     * @param openTime how long the breaker stays open before a trial request
+     * @param unit unit of the open time
+     */
+    public CircuitBreaker(String name, int failureThreshold, long openTime, TimeUnit unit) {
+        if( failureThreshold <= 0 || openTime <= 0 ) {
+            throw new IllegalArgumentException("Failure threshold and open time must be positive");
+        }
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = unit.toNanos(openTime);
+    }
+
+    /**
+     *
+     * @return true if a request may be sent now
+     */
+    public synchronized boolean allowRequest() {
+        if( state == State.CLOSED ) {
+            return true;
+        }
+        long now = System.nanoTime();
+        if( now - changedAt >= openNanos ) {
+            state = State.HALF_OPEN;
+            changedAt = now;
+            return true;
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    public synchronized void recordSuccess() {
+        if( state != State.CLOSED ) {
+            log.info("Circuit breaker for {} closed", name);
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        if( state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold) ) {
+            log.warn("Circuit breaker for {} opened after {} consecutive failures", name, consecutiveFailures);
+            state = State.OPEN;
+            changedAt = System.nanoTime();
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     *
+     * @return number of requests rejected while the breaker was open
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.client.jaxrs;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends idempotent requests to one of several equivalent Privacy CA
+ * endpoints, with a hedged second request and a circuit breaker per
+ * endpoint.
+ *
+ * Each call goes to the next endpoint in turn whose circuit breaker is
+ * closed. If it has not answered after the hedge delay, the same call is
+ * sent to the next endpoint as well, and the first answer wins; the other
+ * request is cancelled. The hedge delay is the configured percentile of
+ * recent successful call latencies, so only the slowest calls are hedged.
+ * If a request fails with a connection error or a 5xx status, the call
+ * moves to the next endpoint at once. A 4xx status is the answer and is
+ * thrown to the caller without trying other endpoints.
+ *
+ * Requests run on at most the configured number of threads, and at most
+ * as many more wait for one. When both are in use a call fails at once
+ * and no hedge or failover request is sent.
+ *
+ * Only use this for calls that are safe to send twice, such as GET.
+ * The endpoints may be any objects, so it can be tried against local
+ * stand-in servers; {@link CaCertificateReads} and
+ * {@link TpmEndorsementReads} wrap the read-only client calls.
+ *
+ * @param <C> the client type, one instance per endpoint
+ */
+public class HedgedClient<C> implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(HedgedClient.class);
+    public static final double DEFAULT_HEDGE_PERCENTILE = 0.95;
+    public static final long DEFAULT_MIN_HEDGE_DELAY_MILLIS = 20;
+    public static final long DEFAULT_INITIAL_HEDGE_DELAY_MILLIS = 200;
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_MILLIS = 30000;
+    public static final int DEFAULT_MAX_THREADS = 32;
+    private static final int LATENCY_SAMPLES = 128;
+    /** the percentile is used once this many latencies were recorded */
+    private static final int MIN_LATENCY_SAMPLES = 16;
+
+    /**
+     * One request to an endpoint.
+     *
+     * @param <C> the client type
+     * @param <T> the result type
+     */
+    public static interface Call<C,T> {
+        T call(C client) throws Exception;
+    }
+
+    private final List<C> endpoints;
+    private final List<CircuitBreaker> breakers;
+    private final double hedgePercentile;
+    private final long minHedgeDelayMillis;
+    private final long initialHedgeDelayMillis;
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger next = new AtomicInteger();
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    /** where the next latency is written in the ring */
+    private int latencyIndex = 0;
+    /** number of latencies in the ring, at most LATENCY_SAMPLES */
+    private int latencyCount = 0;
+    private int latenciesSinceUpdate = 0;
+    private volatile long hedgeDelayMillis;
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong hedged = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    public HedgedClient(List<C> endpoints) {
+        this(endpoints, DEFAULT_HEDGE_PERCENTILE, DEFAULT_MIN_HEDGE_DELAY_MILLIS, DEFAULT_INITIAL_HEDGE_DELAY_MILLIS, DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS);
+    }
+
+    public HedgedClient(List<C> endpoints, double hedgePercentile, long minHedgeDelayMillis, long initialHedgeDelayMillis, int failureThreshold, long openMillis) {
+        this(endpoints, hedgePercentile, minHedgeDelayMillis, initialHedgeDelayMillis, failureThreshold, openMillis, DEFAULT_MAX_THREADS);
+    }
+
+    /**
+     *
+     * @param endpoints one client per Privacy CA endpoint
+     * @param hedgePercentile latency percentile after which a second request is sent, between 0 and 1
+     * @param minHedgeDelayMillis lower bound of the hedge delay
+     * @param initialHedgeDelayMillis hedge delay until enough latencies were recorded
+     * @param failureThreshold consecutive failures that open an endpoint's circuit breaker
+     * @param openMillis how long an open circuit breaker rejects requests
+     * @param maxThreads maximum number of requests in progress at once, which is also the number that may wait
+     */
+    public HedgedClient(List<C> endpoints, double hedgePercentile, long minHedgeDelayMillis, long initialHedgeDelayMillis, int failureThreshold, long openMillis, int maxThreads) {
+        if( endpoints == null || endpoints.isEmpty() ) {
+            throw new IllegalArgumentException("At least one endpoint is required");
+        }
+        if( hedgePercentile <= 0 || hedgePercentile >= 1 || minHedgeDelayMillis < 0 || initialHedgeDelayMillis < minHedgeDelayMillis ) {
+            throw new IllegalArgumentException("Hedge percentile must be between 0 and 1 and the initial delay at least the minimum delay");
+        }
+        if( maxThreads <= 0 ) {
+            throw new IllegalArgumentException("Maximum threads must be positive");
+        }
+        this.endpoints = Collections.unmodifiableList(new ArrayList<>(endpoints));
+        ArrayList<CircuitBreaker> list = new ArrayList<>(endpoints.size());
+        for(int i = 0; i < endpoints.size(); i++) {
+            list.add(new CircuitBreaker(String.valueOf(endpoints.get(i)), failureThreshold, openMillis, TimeUnit.MILLISECONDS));
+        }
+        this.breakers = Collections.unmodifiableList(list);
+        this.hedgePercentile = hedgePercentile;
+        this.minHedgeDelayMillis = minHedgeDelayMillis;
+        this.initialHedgeDelayMillis = initialHedgeDelayMillis;
+        this.hedgeDelayMillis = initialHedgeDelayMillis;
+        // idle threads exit after a minute; requests beyond the queue are rejected instead of adding threads
+        this.executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(maxThreads), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "privacyca-hedge-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     *
+     * @param call the request, which must be safe to send to more than one endpoint
+     * @return the first successful result
+     * @throws CircuitBreaker.OpenException if every endpoint's circuit breaker is open
+     * @throws ProcessingException if every thread and queue slot is in use
+     * @throws WebApplicationException the 4xx response of an endpoint, or the last 5xx response if every endpoint failed
+     * @throws ProcessingException the last connection error if every endpoint failed
+     */
+    public <T> T call(Call<C,T> call) {
+        calls.incrementAndGet();
+        int count = endpoints.size();
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % count;
+        CompletionService<T> completion = new ExecutorCompletionService<>(executor);
+        ArrayList<Future<T>> attempts = new ArrayList<>(2);
+        AtomicBoolean finished = new AtomicBoolean(false);
+        Future<T> first = null;
+        int position = 0; // endpoints considered so far, starting at start
+        int running = 0;
+        boolean hedgeSent = false;
+        Throwable failure = null;
+        try {
+            position = launch(call, completion, attempts, finished, start, position);
+            if( attempts.isEmpty() ) {
+                throw new CircuitBreaker.OpenException("Every Privacy CA endpoint is unavailable");
+            }
+            first = attempts.get(0);
+            running++;
+            while( running > 0 ) {
+                Future<T> done;
+                if( hedgeSent || position >= count ) {
+                    done = completion.take();
+                }
+                else {
+                    done = completion.poll(hedgeDelayMillis, TimeUnit.MILLISECONDS);
+                    if( done == null ) {
+                        hedgeSent = true;
+                        int before = attempts.size();
+                        position = launch(call, completion, attempts, finished, start, position);
+                        if( attempts.size() > before ) {
+                            hedged.incrementAndGet();
+                            running++;
+                        }
+                        continue;
+                    }
+                }
+                running--;
+                try {
+                    T result = done.get();
+                    if( done != first ) {
+                        hedgeWins.incrementAndGet();
+                    }
+                    return result;
+                }
+                catch(ExecutionException e) {
+                    failure = e.getCause();
+                    if( !isEndpointFailure(failure) ) {
+                        break;
+                    }
+                    if( running == 0 ) {
+                        int before = attempts.size();
+                        position = launch(call, completion, attempts, finished, start, position);
+                        if( attempts.size() > before ) {
+                            running++;
+                        }
+                    }
+                }
+            }
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessingException("Interrupted while waiting for the Privacy CA", e);
+        }
+        finally {
+            finished.set(true);
+            for(Future<T> attempt : attempts) {
+                attempt.cancel(true);
+            }
+        }
+        if( failure instanceof RuntimeException ) {
+            throw (RuntimeException)failure;
+        }
+        throw new ProcessingException(failure);
+    }
+
+    /**
+     * Submits the call to the next endpoint, in turn from start, whose
+     * circuit breaker allows a request.
+     *
+     * @return the new position; equal to the number of endpoints if none is left
+     */
+    private <T> int launch(Call<C,T> call, CompletionService<T> completion, List<Future<T>> attempts, AtomicBoolean finished, int start, int position) {
+        int count = endpoints.size();
+        while( position < count ) {
+            int index = (start + position) % count;
+            position++;
+            if( breakers.get(index).allowRequest() ) {
+                try {
+                    attempts.add(completion.submit(attempt(index, call, finished)));
+                }
+                catch(RejectedExecutionException e) {
+                    if( attempts.isEmpty() ) {
+                        throw new ProcessingException("Too many concurrent Privacy CA requests", e);
+                    }
+                    log.debug("Not sending another request to {}, every thread is in use", endpoints.get(index));
+                    return count;
+                }
+                break;
+            }
+        }
+        return position;
+    }
+
+    private <T> Callable<T> attempt(final int index, final Call<C,T> call, final AtomicBoolean finished) {
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                long started = System.nanoTime();
+                try {
+                    T result = call.call(endpoints.get(index));
+                    breakers.get(index).recordSuccess();
+                    recordLatency(System.nanoTime() - started);
+                    return result;
+                }
+                catch(Exception e) {
+                    // a request cancelled because the other one answered first says nothing about this endpoint
+                    if( !finished.get() ) {
+                        if( isEndpointFailure(e) ) {
+                            log.debug("Request to {} failed: {}", endpoints.get(index), e.getMessage());
+                            breakers.get(index).recordFailure();
+                        }
+                        else {
+                            breakers.get(index).recordSuccess();
+                        }
+                    }
+                    throw e;
+                }
+            }
+        };
+    }
+
+    /**
+     *
+     * @return true for connection errors and 5xx responses, which another endpoint may not have
+     */
+    private static boolean isEndpointFailure(Throwable e) {
+        if( e instanceof WebApplicationException ) {
+            return ((WebApplicationException)e).getResponse().getStatus() >= 500;
+        }
+        return true;
+    }
+
+    private void recordLatency(long nanos) {
+        long[] sorted;
+        synchronized(latencies) {
+            latencies[latencyIndex] = nanos;
+            latencyIndex = (latencyIndex + 1) % LATENCY_SAMPLES;
+            if( latencyCount < LATENCY_SAMPLES ) {
+                latencyCount++;
+            }
+            latenciesSinceUpdate++;
+            if( latencyCount < MIN_LATENCY_SAMPLES || latenciesSinceUpdate < MIN_LATENCY_SAMPLES ) {
+                return;
+            }
+            latenciesSinceUpdate = 0;
+            // until the ring is full the samples are at the start of the array
+            sorted = Arrays.copyOf(latencies, latencyCount);
+        }
+        Arrays.sort(sorted);
+        long percentile = sorted[(int)Math.min(sorted.length - 1, Math.ceil(hedgePercentile * sorted.length) - 1)];
+        hedgeDelayMillis = Math.max(minHedgeDelayMillis, TimeUnit.NANOSECONDS.toMillis(percentile));
+    }
+
+    /**
+     *
+     * @return the current hedge delay in milliseconds
+     */
+    public long getHedgeDelayMillis() {
+        return hedgeDelayMillis;
+    }
+
+    public List<C> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     *
+     * @return the circuit breakers, in the same order as the endpoints
+     */
+    public List<CircuitBreaker> getCircuitBreakers() {
+        return breakers;
+    }
+
+    public long getCallCount() {
+        return calls.get();
+    }
+
+    /**
+     *
+     * @return number of calls for which a second request was sent
+     */
+    public long getHedgedCount() {
+        return hedged.get();
+    }
+
+    /**
+     *
+     * @return number of calls answered by a request other than the first
+     */
+    public long getHedgeWinCount() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * Forgets the recorded latencies and uses the initial hedge delay again.
+     */
+    public void resetLatencies() {
+        synchronized(latencies) {
+            latencyIndex = 0;
+            latencyCount = 0;
+            latenciesSinceUpdate = 0;
+        }
+        hedgeDelayMillis = initialHedgeDelayMillis;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
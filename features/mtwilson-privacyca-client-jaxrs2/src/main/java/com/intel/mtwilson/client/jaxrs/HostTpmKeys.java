@@ -11,6 +11,7 @@ import com.intel.dcsg.cpg.tls.policy.TlsConnection;
 import com.intel.dcsg.cpg.x509.X509Util;
 import com.intel.mtwilson.privacyca.v2.model.BindingKeyEndorsementRequest;
 import com.intel.mtwilson.privacyca.v2.model.SigningKeyEndorsementRequest;
+import com.intel.mtwilson.jaxrs2.client.JaxrsClient;
 import com.intel.mtwilson.jaxrs2.client.MtWilsonClient;
 import java.net.URL;
 import java.security.cert.CertificateException;
@@ -43,6 +44,14 @@ public class HostTpmKeys extends MtWilsonClient {
     public HostTpmKeys(Properties properties, TlsConnection tlsConnection) throws Exception {
         super(properties, tlsConnection);
     }
+
+    /**
+     * Uses the connection pool of an existing client, such as one made by
+     * PrivacyCaClientFactory.
+     */
+    public HostTpmKeys(JaxrsClient jaxrsClient) {
+        super(jaxrsClient);
+    }
     
     public X509Certificate createBindingKeyCertificate(BindingKeyEndorsementRequest obj) throws JsonProcessingException, Base64DecodingException, CertificateException {
         log.debug("target: {}", getTarget().getUri().toString());
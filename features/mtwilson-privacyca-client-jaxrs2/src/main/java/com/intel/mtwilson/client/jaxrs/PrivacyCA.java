@@ -4,6 +4,7 @@
  */
 package com.intel.mtwilson.client.jaxrs;
 
+import com.intel.mtwilson.jaxrs2.client.JaxrsClient;
 import com.intel.mtwilson.jaxrs2.client.MtWilsonClient;
 import com.intel.dcsg.cpg.configuration.Configuration;
 import com.intel.dcsg.cpg.tls.policy.TlsConnection;
@@ -38,6 +39,14 @@ public class PrivacyCA extends MtWilsonClient {
     public PrivacyCA(Properties properties, TlsConnection tlsConnection) throws Exception {
         super(properties, tlsConnection);
     }
+
+    /**
+     * Uses the connection pool of an existing client, such as one made by
+     * PrivacyCaClientFactory.
+     */
+    public PrivacyCA(JaxrsClient jaxrsClient) {
+        super(jaxrsClient);
+    }
     
     public X509Certificate endorseTpm(byte[] ekModulus) {
         log.debug("target: {}", getTarget().getUri().toString());
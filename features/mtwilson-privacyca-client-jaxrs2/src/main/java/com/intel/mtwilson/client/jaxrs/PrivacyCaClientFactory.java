@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.client.jaxrs;
+
+import com.intel.dcsg.cpg.tls.policy.TlsConnection;
+import com.intel.mtwilson.jaxrs2.client.JaxrsClient;
+import com.intel.mtwilson.tpm.endorsement.client.jaxrs.TpmEndorsements;
+import java.io.Closeable;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
+import org.glassfish.jersey.apache.connector.ApacheConnectorProvider;
+import org.glassfish.jersey.client.ClientConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the PrivacyCA, HostTpmKeys, CaCertificates and TpmEndorsements
+ * clients on one shared JAX-RS client, so they use the same pool of
+ * keep-alive connections and the same TLS session cache.
+ *
+ * Each client created from Properties builds its own JAX-RS client and
+ * SSLContext, and so makes its own TLS handshake to the same server. The
+ * factory builds one client with the providers, filters and base URL that
+ * the properties configure, and replaces its connector with an Apache
+ * HttpClient connector over a pooling connection manager. Connections are
+ * reused while the server keeps them alive, and never longer than the
+ * connection time to live after they were opened. TLS sessions are resumed
+ * from the shared SSLContext when a new connection is opened. The
+ * SSLContext is the one the TlsConnection makes for its TLS policy, so
+ * the policy's protocol selection and trust manager apply unchanged.
+ *
+ * <pre>
+ *  PrivacyCaClientFactory clients = new PrivacyCaClientFactory(properties, tlsConnection);
+ *  X509Certificate privacy = clients.getCaCertificates().retrieveCaCertificate("privacy");
+ *  IdentityChallenge challenge = clients.getPrivacyCA().identityChallengeRequest(request);
+ *  // at shutdown
+ *  clients.close();
+ * </pre>
+ */
+public class PrivacyCaClientFactory implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(PrivacyCaClientFactory.class);
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 8;
+    public static final int DEFAULT_MAX_CONNECTIONS = 32;
+    public static final long DEFAULT_CONNECTION_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    /** TLS sessions are kept for resumption for one day */
+    private static final int TLS_SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final Client client;
+    private final JaxrsClient jaxrsClient;
+    private final PrivacyCA privacyCA;
+    private final HostTpmKeys hostTpmKeys;
+    private final CaCertificates caCertificates;
+    private final TpmEndorsements tpmEndorsements;
+
+    public PrivacyCaClientFactory(Properties properties, TlsConnection tlsConnection) throws Exception {
+        this(properties, tlsConnection, DEFAULT_MAX_CONNECTIONS_PER_ROUTE, DEFAULT_MAX_CONNECTIONS, DEFAULT_CONNECTION_TTL_MILLIS);
+    }
+
+    /**
+     *
+     * @param properties the client properties, as for the client constructors
+     * @param tlsConnection the server URL and TLS policy
+     * @param maxConnectionsPerRoute maximum connections to one server
+     * @param maxConnections maximum connections in the pool
+     * @param connectionTtlMillis time after which a connection is closed instead of being reused, counted from when it was opened
+     */
+    public PrivacyCaClientFactory(Properties properties, TlsConnection tlsConnection, int maxConnectionsPerRoute, int maxConnections, long connectionTtlMillis) throws Exception {
+        if( maxConnectionsPerRoute <= 0 || maxConnections < maxConnectionsPerRoute || connectionTtlMillis <= 0 ) {
+            throw new IllegalArgumentException("Connection limits and time to live must be positive, and the total limit at least the per-route limit");
+        }
+        // built the usual way for its providers, filters and base URL; only its configuration is kept
+        CaCertificates template = new CaCertificates(properties, tlsConnection);
+        SSLContext sslContext = tlsConnection.getSSLContext();
+        sslContext.getClientSessionContext().setSessionTimeout(TLS_SESSION_TIMEOUT_SECONDS);
+        Registry<ConnectionSocketFactory> socketFactories = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new SSLConnectionSocketFactory(sslContext, tlsConnection.getTlsPolicy().getHostnameVerifier()))
+                .build();
+        connectionManager = new PoolingHttpClientConnectionManager(socketFactories, null, null, null, connectionTtlMillis, TimeUnit.MILLISECONDS);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        connectionManager.setMaxTotal(maxConnections);
+        ClientConfig config = new ClientConfig().loadFrom(template.getClient().getConfiguration());
+        config.connectorProvider(new ApacheConnectorProvider());
+        config.property(ApacheClientProperties.CONNECTION_MANAGER, connectionManager);
+        client = ClientBuilder.newClient(config);
+        jaxrsClient = new JaxrsClient(client, client.target(template.getTarget().getUri()));
+        template.getClient().close();
+        privacyCA = new PrivacyCA(jaxrsClient);
+        hostTpmKeys = new HostTpmKeys(jaxrsClient);
+        caCertificates = new CaCertificates(jaxrsClient);
+        tpmEndorsements = new TpmEndorsements(jaxrsClient);
+        log.debug("Shared client for {} with {} connections per route, {} total, time to live {} ms", jaxrsClient.getTarget().getUri(), maxConnectionsPerRoute, maxConnections, connectionTtlMillis);
+    }
+
+    public PrivacyCA getPrivacyCA() {
+        return privacyCA;
+    }
+
+    public HostTpmKeys getHostTpmKeys() {
+        return hostTpmKeys;
+    }
+
+    public CaCertificates getCaCertificates() {
+        return caCertificates;
+    }
+
+    public TpmEndorsements getTpmEndorsements() {
+        return tpmEndorsements;
+    }
+
+    /**
+     *
+     * @return the shared client, for other MtWilsonClient subclasses with a JaxrsClient constructor
+     */
+    public JaxrsClient getJaxrsClient() {
+        return jaxrsClient;
+    }
+
+    /**
+     *
+     * @return number of connections currently in use
+     */
+    public int getLeasedConnections() {
+        return connectionManager.getTotalStats().getLeased();
+    }
+
+    /**
+     *
+     * @return number of idle connections kept for reuse
+     */
+    public int getAvailableConnections() {
+        return connectionManager.getTotalStats().getAvailable();
+    }
+
+    /**
+     * Closes idle connections that the server may already have dropped.
+     */
+    public void closeIdleConnections(long idleTime, TimeUnit unit) {
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(idleTime, unit);
+    }
+
+    /**
+     * Closes the shared client and every pooled connection. The clients
+     * handed out by this factory cannot be used afterwards.
+     */
+    @Override
+    public void close() {
+        client.close();
+        connectionManager.shutdown();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.client.jaxrs;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent identical lookups: while a call for a key is in
+ * flight, other threads asking for the same key wait for it and get the
+ * same result or exception instead of making their own request.
+ *
+ * Nothing is cached; once the call completes, the next request for the
+ * key makes a new call. This keeps a burst of threads asking for the same
+ * CA certificate or TPM endorsement, for example after a cache flush,
+ * down to one request to the Privacy CA.
+ *
+ * <pre>
+ *  SingleFlight&lt;String,X509Certificate&gt; certificates = new SingleFlight&lt;&gt;();
+ *  X509Certificate privacy = certificates.execute("privacy", new Callable&lt;X509Certificate&gt;() {
+ *      public X509Certificate call() {
+ *          return client.retrieveCaCertificate("privacy");
+ *      }
+ *  });
+ * </pre>
+ *
+ * @param <K> the lookup key
+ * @param <V> the result type
+ */
+public class SingleFlight<K,V> {
+    private final ConcurrentHashMap<K,FutureTask<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Runs the loader in the calling thread, unless a call for the same key
+     * is already in flight, in which case it waits for that call.
+     *
+     * @param key the lookup key
+     * @param loader makes the request
+     * @return the result of the call in flight for the key
+     * @throws Exception the exception thrown by that call
+     */
+    public V execute(K key, Callable<V> loader) throws Exception {
+        FutureTask<V> task = new FutureTask<>(loader);
+        FutureTask<V> existing = inFlight.putIfAbsent(key, task);
+        if( existing != null ) {
+            coalesced.incrementAndGet();
+            return await(existing);
+        }
+        calls.incrementAndGet();
+        try {
+            task.run();
+        }
+        finally {
+            inFlight.remove(key, task);
+        }
+        return await(task);
+    }
+
+    private V await(FutureTask<V> task) throws Exception {
+        try {
+            return task.get();
+        }
+        catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if( cause instanceof Exception ) {
+                throw (Exception)cause;
+            }
+            if( cause instanceof Error ) {
+                throw (Error)cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     *
+     * @return number of keys with a call in flight
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     *
+     * @return number of calls made
+     */
+    public long getCallCount() {
+        return calls.get();
+    }
+
+    /**
+     *
+     * @return number of requests that waited for a call in flight instead of making their own
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.client.jaxrs;
+
+import com.intel.mtwilson.tpm.endorsement.client.jaxrs.TpmEndorsements;
+import com.intel.mtwilson.tpm.endorsement.model.TpmEndorsement;
+import com.intel.mtwilson.tpm.endorsement.model.TpmEndorsementCollection;
+import com.intel.mtwilson.tpm.endorsement.model.TpmEndorsementFilterCriteria;
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.Callable;
+import javax.ws.rs.ProcessingException;
+
+/**
+ * The read-only TpmEndorsements calls, sent to several Privacy CA endpoints
+ * through a {@link HedgedClient}. Concurrent lookups of the same
+ * endorsement are coalesced by a {@link SingleFlight}.
+ */
+public class TpmEndorsementReads implements Closeable {
+    private final HedgedClient<TpmEndorsements> client;
+    private final SingleFlight<String,TpmEndorsement> lookups = new SingleFlight<>();
+
+    public TpmEndorsementReads(HedgedClient<TpmEndorsements> client) {
+        this.client = client;
+    }
+
+    public TpmEndorsementReads(List<TpmEndorsements> endpoints) {
+        this(new HedgedClient<>(endpoints));
+    }
+
+    /**
+     * Concurrent requests for the same UUID share one call.
+     *
+     * @see TpmEndorsements#retrieveTpmEndorsement(java.lang.String)
+     */
+    public TpmEndorsement retrieveTpmEndorsement(final String uuid) {
+        try {
+            return lookups.execute(uuid, new Callable<TpmEndorsement>() {
+                @Override
+                public TpmEndorsement call() {
+                    return client.call(new HedgedClient.Call<TpmEndorsements,TpmEndorsement>() {
+                        @Override
+                        public TpmEndorsement call(TpmEndorsements endpoint) {
+                            return endpoint.retrieveTpmEndorsement(uuid);
+                        }
+                    });
+                }
+            });
+        }
+        catch(RuntimeException e) {
+            throw e;
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessingException(e);
+        }
+        catch(Exception e) {
+            throw new ProcessingException(e);
+        }
+    }
+
+    /**
+     * @see TpmEndorsements#searchTpmEndorsements(com.intel.mtwilson.tpm.endorsement.model.TpmEndorsementFilterCriteria)
+     */
+    public TpmEndorsementCollection searchTpmEndorsements(final TpmEndorsementFilterCriteria criteria) {
+        return client.call(new HedgedClient.Call<TpmEndorsements,TpmEndorsementCollection>() {
+            @Override
+            public TpmEndorsementCollection call(TpmEndorsements endpoint) {
+                return endpoint.searchTpmEndorsements(criteria);
+            }
+        });
+    }
+
+    public SingleFlight<String,TpmEndorsement> getLookups() {
+        return lookups;
+    }
+
+    public HedgedClient<TpmEndorsements> getHedgedClient() {
+        return client;
+    }
+
+    @Override
+    public void close() {
+        client.close();
+    }
+}
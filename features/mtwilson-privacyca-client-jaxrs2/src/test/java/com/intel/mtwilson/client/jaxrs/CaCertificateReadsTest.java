@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.client.jaxrs;
+
+import java.io.ByteArrayInputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import javax.ws.rs.NotFoundException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Sends a burst of lookups for one CA certificate to an endpoint that holds
+ * the first request, and checks they are answered by a single call.
+ */
+public class CaCertificateReadsTest {
+    private static final String PRIVACY_PEM = "-----BEGIN CERTIFICATE-----\n"
+            + "MIIBeDCCAR+gAwIBAgIUE87BtTaTq/flBfTD9RIYY6NB6YEwCgYIKoZIzj0EAwIw\n"
+            + "EjEQMA4GA1UEAwwHcHJpdmFjeTAeFw0yNjEwMTkwNTQ3MDFaFw0zNjEwMTYwNTQ3\n"
+            + "MDFaMBIxEDAOBgNVBAMMB3ByaXZhY3kwWTATBgcqhkjOPQIBBggqhkjOPQMBBwNC\n"
+            + "AAT6r33RxXJ48fbI6SSHhWbfRVIf5/oBY3nTXFewiuzP7HSsgdYcuFJJMPRBWRvr\n"
+            + "GIv3FL4TEBjUzw2atj/MYZpVo1MwUTAdBgNVHQ4EFgQUPQ8U7wU9/Sd+z3hG+9uf\n"
+            + "PMCCYzYwHwYDVR0jBBgwFoAUPQ8U7wU9/Sd+z3hG+9ufPMCCYzYwDwYDVR0TAQH/\n"
+            + "BAUwAwEB/zAKBggqhkjOPQQDAgNHADBEAiA9dgYffdyWS9SHFqNyI5MOKUzlwYoY\n"
+            + "Wac7/KQ8Jbgi8QIgJoK5Z3lF/vp2uRSm6GvcSq7/qJCpylTjfNDaKuKNuxU=\n"
+            + "-----END CERTIFICATE-----\n";
+
+    /**
+     * Answers every lookup with the same certificate, or with the set
+     * failure, after passing the gate.
+     */
+    private static class GatedCaCertificates extends CaCertificates {
+        private final SingleFlightTest.Gate gate;
+        private final X509Certificate certificate;
+        private volatile RuntimeException failure;
+
+        GatedCaCertificates(SingleFlightTest.Gate gate, X509Certificate certificate) throws Exception {
+            super(new URL("https://localhost:8443/mtwilson/v2"));
+            this.gate = gate;
+            this.certificate = certificate;
+        }
+
+        @Override
+        public X509Certificate retrieveCaCertificate(String certificateId) {
+            gate.pass();
+            if( failure != null ) {
+                throw failure;
+            }
+            return certificate;
+        }
+    }
+
+    private static X509Certificate privacyCertificate() throws Exception {
+        return (X509Certificate)CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(PRIVACY_PEM.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    public void testConcurrentLookupsShareOneCall() throws Exception {
+        SingleFlightTest.Gate gate = new SingleFlightTest.Gate();
+        X509Certificate certificate = privacyCertificate();
+        try(final CaCertificateReads reads = new CaCertificateReads(Collections.<CaCertificates>singletonList(new GatedCaCertificates(gate, certificate)))) {
+            Callable<X509Certificate> request = new Callable<X509Certificate>() {
+                @Override
+                public X509Certificate call() {
+                    return reads.retrieveCaCertificate("privacy");
+                }
+            };
+            SingleFlightTest.assertAllSame(certificate, SingleFlightTest.burst(request, reads.getLookups(), gate));
+            assertEquals(1, gate.getCalls());
+            assertEquals(1, reads.getHedgedClient().getCallCount());
+            assertEquals(0, reads.getLookups().getInFlightCount());
+            assertSame(certificate, request.call());
+            assertEquals(2, gate.getCalls());
+        }
+    }
+
+    @Test
+    public void testConcurrentLookupsShareOneFailure() throws Exception {
+        SingleFlightTest.Gate gate = new SingleFlightTest.Gate();
+        GatedCaCertificates endpoint = new GatedCaCertificates(gate, privacyCertificate());
+        NotFoundException notFound = new NotFoundException();
+        endpoint.failure = notFound;
+        try(final CaCertificateReads reads = new CaCertificateReads(Collections.<CaCertificates>singletonList(endpoint))) {
+            Callable<X509Certificate> request = new Callable<X509Certificate>() {
+                @Override
+                public X509Certificate call() {
+                    return reads.retrieveCaCertificate("unknown");
+                }
+            };
+            SingleFlightTest.assertAllSame(notFound, SingleFlightTest.burst(request, reads.getLookups(), gate));
+            assertEquals(1, gate.getCalls());
+            assertEquals(0, reads.getLookups().getInFlightCount());
+            endpoint.failure = null;
+            assertNotNull(request.call());
+            assertEquals(2, gate.getCalls());
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.client.jaxrs;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.ws.rs.InternalServerErrorException;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.ProcessingException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Runs the hedged client against in-memory endpoints that answer after a
+ * set delay or fail in a set way.
+ */
+public class HedgedClientTest {
+
+    /**
+     * A stand-in Privacy CA endpoint.
+     */
+    private static class Endpoint {
+        private final String name;
+        private volatile long delayMillis;
+        private volatile RuntimeException failure;
+        private volatile CountDownLatch entered;
+        private volatile CountDownLatch release;
+        private final AtomicInteger requests = new AtomicInteger();
+
+        Endpoint(String name, long delayMillis) {
+            this.name = name;
+            this.delayMillis = delayMillis;
+        }
+
+        String handle() throws InterruptedException {
+            requests.incrementAndGet();
+            if( entered != null ) {
+                entered.countDown();
+            }
+            if( release != null ) {
+                release.await();
+            }
+            if( delayMillis > 0 ) {
+                Thread.sleep(delayMillis);
+            }
+            if( failure != null ) {
+                throw failure;
+            }
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static final HedgedClient.Call<Endpoint,String> HANDLE = new HedgedClient.Call<Endpoint,String>() {
+        @Override
+        public String call(Endpoint client) throws Exception {
+            return client.handle();
+        }
+    };
+
+    /** hedge delay long enough that no test call is hedged by accident */
+    private static final long NO_HEDGE_MILLIS = 10000;
+
+    private static HedgedClient<Endpoint> client(long initialHedgeDelayMillis, int failureThreshold, long openMillis, Endpoint... endpoints) {
+        return new HedgedClient<>(Arrays.asList(endpoints), HedgedClient.DEFAULT_HEDGE_PERCENTILE, 10, initialHedgeDelayMillis, failureThreshold, openMillis);
+    }
+
+    @Test
+    public void testSlowEndpointIsHedged() {
+        Endpoint slow = new Endpoint("slow", 2000);
+        Endpoint fast = new Endpoint("fast", 0);
+        try(HedgedClient<Endpoint> client = client(50, 5, 30000, slow, fast)) {
+            long start = System.nanoTime();
+            assertEquals("fast", client.call(HANDLE)); // the first call starts at the first endpoint
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1000));
+            assertEquals(1, slow.requests.get());
+            assertEquals(1, fast.requests.get());
+            assertEquals(1, client.getHedgedCount());
+            assertEquals(1, client.getHedgeWinCount());
+            // the cancelled request does not count against the slow endpoint
+            assertEquals(CircuitBreaker.State.CLOSED, client.getCircuitBreakers().get(0).getState());
+        }
+    }
+
+    @Test
+    public void testFastEndpointIsNotHedged() {
+        Endpoint a = new Endpoint("a", 0);
+        Endpoint b = new Endpoint("b", 0);
+        try(HedgedClient<Endpoint> client = client(1000, 5, 30000, a, b)) {
+            assertEquals("a", client.call(HANDLE));
+            assertEquals("b", client.call(HANDLE));
+            assertEquals(2, client.getCallCount());
+            assertEquals(0, client.getHedgedCount());
+        }
+    }
+
+    @Test
+    public void testConnectionErrorFailsOver() {
+        Endpoint down = new Endpoint("down", 0);
+        down.failure = new ProcessingException("Connection refused");
+        Endpoint up = new Endpoint("up", 0);
+        try(HedgedClient<Endpoint> client = client(NO_HEDGE_MILLIS, 5, 30000, down, up)) {
+            assertEquals("up", client.call(HANDLE));
+            assertEquals(1, down.requests.get());
+            assertEquals(0, client.getHedgedCount());
+        }
+    }
+
+    @Test
+    public void testServerErrorFailsOver() {
+        Endpoint broken = new Endpoint("broken", 0);
+        broken.failure = new InternalServerErrorException();
+        Endpoint up = new Endpoint("up", 0);
+        try(HedgedClient<Endpoint> client = client(NO_HEDGE_MILLIS, 5, 30000, broken, up)) {
+            assertEquals("up", client.call(HANDLE));
+            assertEquals(1, broken.requests.get());
+        }
+    }
+
+    @Test
+    public void testClientErrorIsThrownWithoutFailover() {
+        Endpoint missing = new Endpoint("missing", 0);
+        missing.failure = new NotFoundException();
+        Endpoint other = new Endpoint("other", 0);
+        try(HedgedClient<Endpoint> client = client(NO_HEDGE_MILLIS, 1, 30000, missing, other)) {
+            try {
+                client.call(HANDLE);
+                fail("Expected the 404 response");
+            }
+            catch(NotFoundException e) {
+                assertSame(missing.failure, e);
+            }
+            assertEquals(0, other.requests.get());
+            // a 4xx answer means the endpoint is working
+            assertEquals(CircuitBreaker.State.CLOSED, client.getCircuitBreakers().get(0).getState());
+        }
+    }
+
+    @Test
+    public void testLastFailureIsThrownWhenEveryEndpointFails() {
+        Endpoint a = new Endpoint("a", 0);
+        a.failure = new ProcessingException("Connection refused");
+        Endpoint b = new Endpoint("b", 0);
+        b.failure = new InternalServerErrorException();
+        try(HedgedClient<Endpoint> client = client(NO_HEDGE_MILLIS, 5, 30000, a, b)) {
+            try {
+                client.call(HANDLE);
+                fail("Expected the last failure");
+            }
+            catch(InternalServerErrorException e) {
+                assertSame(b.failure, e);
+            }
+            assertEquals(1, a.requests.get());
+            assertEquals(1, b.requests.get());
+        }
+    }
+
+    @Test
+    public void testCircuitBreakerOpensHalfOpensAndCloses() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker("test", 2, 100, TimeUnit.MILLISECONDS);
+        assertTrue(breaker.allowRequest());
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertEquals(1, breaker.getRejectedCount());
+        Thread.sleep(150);
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        // a failed trial opens the breaker again without waiting for the threshold
+        breaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        Thread.sleep(150);
+        assertTrue(breaker.allowRequest());
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void testOpenCircuitBreakerRejectsCallsUntilTrialSucceeds() throws InterruptedException {
+        Endpoint flaky = new Endpoint("flaky", 0);
+        flaky.failure = new ProcessingException("Connection refused");
+        try(HedgedClient<Endpoint> client = client(NO_HEDGE_MILLIS, 2, 100, flaky)) {
+            for(int i = 0; i < 2; i++) {
+                try {
+                    client.call(HANDLE);
+                    fail("Expected the connection error");
+                }
+                catch(CircuitBreaker.OpenException e) {
+                    fail("Circuit breaker opened too early");
+                }
+                catch(ProcessingException e) {
+                    assertSame(flaky.failure, e);
+                }
+            }
+            CircuitBreaker breaker = client.getCircuitBreakers().get(0);
+            assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+            try {
+                client.call(HANDLE);
+                fail("Expected the open circuit breaker");
+            }
+            catch(CircuitBreaker.OpenException e) {
+                assertEquals(2, flaky.requests.get());
+            }
+            flaky.failure = null;
+            Thread.sleep(150);
+            assertEquals("flaky", client.call(HANDLE));
+            assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        }
+    }
+
+    @Test
+    public void testHedgeDelayFollowsLatencies() {
+        Endpoint fast = new Endpoint("fast", 0);
+        try(HedgedClient<Endpoint> client = client(1000, 5, 30000, fast)) {
+            assertEquals(1000, client.getHedgeDelayMillis());
+            // more calls than the latency ring holds
+            for(int i = 0; i < 300; i++) {
+                client.call(HANDLE);
+            }
+            assertEquals(10, client.getHedgeDelayMillis());
+            client.resetLatencies();
+            assertEquals(1000, client.getHedgeDelayMillis());
+        }
+    }
+
+    @Test
+    public void testCallIsRejectedWhenEveryThreadIsInUse() throws Exception {
+        final Endpoint blocked = new Endpoint("blocked", 0);
+        blocked.entered = new CountDownLatch(1);
+        blocked.release = new CountDownLatch(1);
+        final HedgedClient<Endpoint> client = new HedgedClient<>(Collections.singletonList(blocked), HedgedClient.DEFAULT_HEDGE_PERCENTILE, 10, NO_HEDGE_MILLIS, 5, 30000, 1);
+        try {
+            Thread[] callers = new Thread[2];
+            for(int i = 0; i < callers.length; i++) {
+                callers[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        client.call(HANDLE);
+                    }
+                });
+                callers[i].start();
+                if( i == 0 ) {
+                    assertTrue(blocked.entered.await(5, TimeUnit.SECONDS));
+                }
+            }
+            Thread.sleep(100); // the second caller's request is queued
+            try {
+                client.call(HANDLE);
+                fail("Expected the call to be rejected");
+            }
+            catch(ProcessingException e) {
+                assertFalse(e instanceof CircuitBreaker.OpenException);
+            }
+            blocked.release.countDown();
+            for(Thread caller : callers) {
+                caller.join(5000);
+            }
+            assertEquals(2, blocked.requests.get());
+        }
+        finally {
+            blocked.release.countDown();
+            client.close();
+        }
+    }
+}
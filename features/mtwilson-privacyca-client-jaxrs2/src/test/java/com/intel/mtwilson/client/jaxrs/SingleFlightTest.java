@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.client.jaxrs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Blocks one loader while other threads ask for the same key, and checks
+ * that they all share its single call, result or exception, and that the
+ * next request after it completes makes a new call.
+ */
+public class SingleFlightTest {
+    static final int THREADS = 8;
+
+    /**
+     * Holds every call that passes through it until it is released.
+     */
+    static class Gate {
+        private final AtomicInteger calls = new AtomicInteger();
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private volatile CountDownLatch release = new CountDownLatch(1);
+
+        void pass() {
+            calls.incrementAndGet();
+            entered.countDown();
+            try {
+                release.await();
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void open() {
+            release.countDown();
+        }
+
+        int getCalls() {
+            return calls.get();
+        }
+    }
+
+    /**
+     * Sends the request from THREADS threads at once, opens the gate after
+     * all but the first are waiting for the first one's call, and returns
+     * what each thread got: its result or the exception it caught.
+     */
+    static List<Object> burst(final Callable<?> request, SingleFlight<?,?> lookups, Gate gate) throws Exception {
+        final List<Object> outcomes = Collections.synchronizedList(new ArrayList<Object>());
+        long coalesced = lookups.getCoalescedCount();
+        Thread[] threads = new Thread[THREADS];
+        for(int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        outcomes.add(request.call());
+                    }
+                    catch(Exception e) {
+                        outcomes.add(e);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        assertTrue(gate.entered.await(5, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 5000;
+        while( lookups.getCoalescedCount() - coalesced < THREADS - 1 ) {
+            assertTrue("Threads did not wait for the call in flight", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        assertEquals(1, lookups.getInFlightCount());
+        gate.open();
+        for(Thread thread : threads) {
+            thread.join(5000);
+            assertFalse(thread.isAlive());
+        }
+        assertEquals(THREADS, outcomes.size());
+        return outcomes;
+    }
+
+    static void assertAllSame(Object expected, List<Object> outcomes) {
+        for(Object outcome : outcomes) {
+            assertSame(expected, outcome);
+        }
+    }
+
+    @Test
+    public void testWaitersShareOneResult() throws Exception {
+        final SingleFlight<String,Object> lookups = new SingleFlight<>();
+        final Gate gate = new Gate();
+        final Object result = new Object();
+        Callable<Object> request = new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return lookups.execute("privacy", new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        gate.pass();
+                        return result;
+                    }
+                });
+            }
+        };
+        assertAllSame(result, burst(request, lookups, gate));
+        assertEquals(1, gate.getCalls());
+        assertEquals(1, lookups.getCallCount());
+        assertEquals(THREADS - 1, lookups.getCoalescedCount());
+        assertEquals(0, lookups.getInFlightCount());
+        // nothing is cached, so the next request calls the loader again
+        assertSame(result, request.call());
+        assertEquals(2, gate.getCalls());
+        assertEquals(2, lookups.getCallCount());
+    }
+
+    @Test
+    public void testWaitersShareOneException() throws Exception {
+        final SingleFlight<String,Object> lookups = new SingleFlight<>();
+        final Gate gate = new Gate();
+        final IllegalStateException failure = new IllegalStateException("connection refused");
+        Callable<Object> request = new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return lookups.execute("privacy", new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        gate.pass();
+                        throw failure;
+                    }
+                });
+            }
+        };
+        assertAllSame(failure, burst(request, lookups, gate));
+        assertEquals(1, gate.getCalls());
+        assertEquals(0, lookups.getInFlightCount());
+        // a failure is not remembered either
+        try {
+            request.call();
+            fail("Expected the loader to be called again and fail");
+        }
+        catch(IllegalStateException e) {
+            assertSame(failure, e);
+        }
+        assertEquals(2, gate.getCalls());
+    }
+
+    @Test
+    public void testDifferentKeysAreNotCoalesced() throws Exception {
+        final SingleFlight<String,String> lookups = new SingleFlight<>();
+        final Gate gate = new Gate();
+        Thread blocked = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    lookups.execute("privacy", new Callable<String>() {
+                        @Override
+                        public String call() {
+                            gate.pass();
+                            return "privacy";
+                        }
+                    });
+                }
+                catch(Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        blocked.start();
+        assertTrue(gate.entered.await(5, TimeUnit.SECONDS));
+        // another key is loaded while the first call is still in flight
+        assertEquals("endorsement", lookups.execute("endorsement", new Callable<String>() {
+            @Override
+            public String call() {
+                return "endorsement";
+            }
+        }));
+        assertEquals(0, lookups.getCoalescedCount());
+        gate.open();
+        blocked.join(5000);
+        assertEquals(2, lookups.getCallCount());
+        assertEquals(0, lookups.getInFlightCount());
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.client.jaxrs;
+
+import com.intel.dcsg.cpg.io.UUID;
+import com.intel.mtwilson.tpm.endorsement.client.jaxrs.TpmEndorsements;
+import com.intel.mtwilson.tpm.endorsement.model.TpmEndorsement;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import javax.ws.rs.ProcessingException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Sends a burst of lookups for one TPM endorsement to an endpoint that holds
+ * the first request, and checks they are answered by a single call.
+ */
+public class TpmEndorsementReadsTest {
+
+    /**
+     * Answers every lookup with a new endorsement, or with the set failure,
+     * after passing the gate.
+     */
+    private static class GatedTpmEndorsements extends TpmEndorsements {
+        private final SingleFlightTest.Gate gate;
+        private volatile RuntimeException failure;
+
+        GatedTpmEndorsements(SingleFlightTest.Gate gate) throws Exception {
+            super(new URL("https://localhost:8443/mtwilson/v2"));
+            this.gate = gate;
+        }
+
+        @Override
+        public TpmEndorsement retrieveTpmEndorsement(String uuid) {
+            gate.pass();
+            if( failure != null ) {
+                throw failure;
+            }
+            TpmEndorsement endorsement = new TpmEndorsement();
+            endorsement.setId(UUID.valueOf(uuid));
+            return endorsement;
+        }
+    }
+
+    @Test
+    public void testConcurrentLookupsShareOneCall() throws Exception {
+        SingleFlightTest.Gate gate = new SingleFlightTest.Gate();
+        final String uuid = new UUID().toString();
+        try(final TpmEndorsementReads reads = new TpmEndorsementReads(Collections.<TpmEndorsements>singletonList(new GatedTpmEndorsements(gate)))) {
+            Callable<TpmEndorsement> request = new Callable<TpmEndorsement>() {
+                @Override
+                public TpmEndorsement call() {
+                    return reads.retrieveTpmEndorsement(uuid);
+                }
+            };
+            List<Object> outcomes = SingleFlightTest.burst(request, reads.getLookups(), gate);
+            // each call makes a new endorsement, so one shared instance means one call
+            TpmEndorsement endorsement = (TpmEndorsement)outcomes.get(0);
+            assertEquals(uuid, endorsement.getId().toString());
+            SingleFlightTest.assertAllSame(endorsement, outcomes);
+            assertEquals(1, gate.getCalls());
+            assertEquals(0, reads.getLookups().getInFlightCount());
+            TpmEndorsement next = request.call();
+            assertNotSame(endorsement, next);
+            assertEquals(2, gate.getCalls());
+        }
+    }
+
+    @Test
+    public void testConcurrentLookupsShareOneFailure() throws Exception {
+        SingleFlightTest.Gate gate = new SingleFlightTest.Gate();
+        GatedTpmEndorsements endpoint = new GatedTpmEndorsements(gate);
+        ProcessingException unreachable = new ProcessingException("connection refused");
+        endpoint.failure = unreachable;
+        final String uuid = new UUID().toString();
+        try(final TpmEndorsementReads reads = new TpmEndorsementReads(Collections.<TpmEndorsements>singletonList(endpoint))) {
+            Callable<TpmEndorsement> request = new Callable<TpmEndorsement>() {
+                @Override
+                public TpmEndorsement call() {
+                    return reads.retrieveTpmEndorsement(uuid);
+                }
+            };
+            SingleFlightTest.assertAllSame(unreachable, SingleFlightTest.burst(request, reads.getLookups(), gate));
+            assertEquals(1, gate.getCalls());
+            assertEquals(0, reads.getLookups().getInFlightCount());
+            endpoint.failure = null;
+            assertEquals(uuid, request.call().getId().toString());
+            assertEquals(2, gate.getCalls());
+        }
+    }
+}
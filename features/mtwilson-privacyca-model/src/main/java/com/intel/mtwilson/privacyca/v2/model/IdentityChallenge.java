@@ -17,6 +17,22 @@ public class IdentityChallenge {
     private byte[] identityChallenge;
     private int asymSize;
     private int symSize;
+    private String challengeId;
+
+    /**
+     * Identifies the server-side state of this challenge; the client
+     * returns it in the IdentityChallengeResponse. Null if the server does
+     * not keep challenge sessions.
+     * 
+     * @return the challenge id, or null
+     */
+    public String getChallengeId() {
+        return challengeId;
+    }
+
+    public void setChallengeId(String challengeId) {
+        this.challengeId = challengeId;
+    }
 
     public int getAsymSize() {
         return asymSize;
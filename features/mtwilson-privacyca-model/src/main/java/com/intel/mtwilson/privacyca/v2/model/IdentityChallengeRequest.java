@@ -6,6 +6,8 @@ package com.intel.mtwilson.privacyca.v2.model;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlRootElement;
+import java.io.IOException;
+import org.bouncycastle.asn1.ASN1Encoding;
 import org.bouncycastle.asn1.ASN1EncodableVector;
 import org.bouncycastle.asn1.ASN1Sequence;
 import org.bouncycastle.asn1.DERSequence;
@@ -62,7 +64,12 @@ public class IdentityChallengeRequest {
         v.add(identityRequestOctets);
         v.add(endorsementCertificateOctets);
         DERSequence sequence = new DERSequence(v);
-        return sequence.getDEREncoded();
+        try {
+            return sequence.getEncoded(ASN1Encoding.DER);
+        }
+        catch(IOException e) {
+            throw new IllegalStateException("Cannot encode identity challenge request", e);
+        }
     }
     
     public static IdentityChallengeRequest valueOf(ASN1Sequence sequence) {
@@ -15,6 +15,19 @@ public class IdentityChallengeResponse {
     private byte[] identityRequestResponseToChallenge;
     private String tpmVersion;
     private byte[] aikName;
+    private String challengeId;
+
+    /**
+     * 
+     * @return the challenge id from the IdentityChallenge, or null
+     */
+    public String getChallengeId() {
+        return challengeId;
+    }
+
+    public void setChallengeId(String challengeId) {
+        this.challengeId = challengeId;
+    }
 
     public byte[] getAikName() {
         return aikName;
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Builds AIK certificates for one Privacy CA by assembling the DER
+ * encoding of the TBSCertificate directly.
+ *
+ * Everything that is the same for every AIK certificate issued by the CA
+ * is encoded once when the template is created: the version, the
+ * signature AlgorithmIdentifier, the issuer name, and the empty subject
+ * name. Per certificate only the serial number, the validity period, the
+ * AIK SubjectPublicKeyInfo and the critical subject alternative name are
+ * encoded, so the cost of issuing a certificate is close to the cost of
+ * one RSA signature.
+ *
+ * The certificates have the same content as those made by
+ * {@link TpmUtils#makeCert(TpmPubKey, String, java.security.interfaces.RSAPrivateKey, X509Certificate, int, int)}.
+ *
+ * Instances are thread-safe. {@link #issue(PublicKey, String, int)} keeps
+ * one initialized Signature per thread; callers that manage their own
+ * signer threads can use {@link #buildTbsCertificate} and {@link #sign}.
+ */
+public class AikCertificateTemplate {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    /** sha256WithRSAEncryption 1.2.840.113549.1.1.11 with NULL parameters */
+    private static final byte[] SHA256_WITH_RSA = { 0x30, 0x0d, 0x06, 0x09, 0x2a, (byte)0x86, 0x48, (byte)0x86, (byte)0xf7, 0x0d, 0x01, 0x01, 0x0b, 0x05, 0x00 };
+    /** [0] EXPLICIT INTEGER 2 (v3) */
+    private static final byte[] VERSION_3 = { (byte)0xa0, 0x03, 0x02, 0x01, 0x02 };
+    /** empty Name */
+    private static final byte[] EMPTY_NAME = { 0x30, 0x00 };
+    /** subjectAltName 2.5.29.17 followed by critical TRUE */
+    private static final byte[] SAN_CRITICAL_PREFIX = { 0x06, 0x03, 0x55, 0x1d, 0x11, 0x01, 0x01, (byte)0xff };
+
+    private final X509Certificate caCert;
+    private final PrivateKey caKey;
+    private final String signatureAlgorithm = "SHA256withRSA";
+    private final byte[] algorithmIdentifier = SHA256_WITH_RSA;
+    private final byte[] issuer;
+    private final ThreadLocal<Signature> signers = new ThreadLocal<>();
+
+    /**
+     *
+     * @param caCert the Privacy CA certificate; its subject is the issuer of every AIK certificate
+     * @param caKey the Privacy CA RSA private key
+     */
+    public AikCertificateTemplate(X509Certificate caCert, PrivateKey caKey) {
+        this.caCert = caCert;
+        this.caKey = caKey;
+        this.issuer = caCert.getSubjectX500Principal().getEncoded();
+    }
+
+    /**
+     * Callers normally pass the same CA certificate and key objects on
+     * every request, so they are compared by identity before the more
+     * expensive encoded comparison.
+     *
+     * @return true if this template signs with the key and issuer
+     */
+    public boolean isFor(X509Certificate caCert, PrivateKey caKey) {
+        return (this.caCert == caCert || this.caCert.equals(caCert)) && (this.caKey == caKey || this.caKey.equals(caKey));
+    }
+
+    public X509Certificate getCaCertificate() {
+        return caCert;
+    }
+
+    public PrivateKey getCaKey() {
+        return caKey;
+    }
+
+    /**
+     *
+     * @param aik the AIK public key
+     * @param sanLabel the identity label, placed in a critical rfc822Name subject alternative name
+     * @param validityDays number of days from now until the certificate expires
+     * @return the signed AIK certificate
+     */
+    public X509Certificate issue(PublicKey aik, String sanLabel, int validityDays)
+            throws InvalidKeyException, NoSuchAlgorithmException, SignatureException, CertificateEncodingException {
+        Date notBefore = new Date();
+        Calendar expiry = Calendar.getInstance();
+        expiry.setTime(notBefore);
+        expiry.add(Calendar.DAY_OF_YEAR, validityDays);
+        byte[] tbs = buildTbsCertificate(TpmUtils.getSerialNumberGenerator().nextSerialNumber(), notBefore, expiry.getTime(), aik, sanLabel);
+        Signature signer = signers.get();
+        if( signer == null ) {
+            signer = newSigner();
+            signers.set(signer);
+        }
+        return sign(tbs, signer);
+    }
+
+    /**
+     * Discards the Signature kept for the calling thread, which holds the
+     * CA key, once the thread will not issue with this template again.
+     */
+    void removeSigner() {
+        signers.remove();
+    }
+
+    /**
+     *
+     * @return a Signature initialized for signing with the CA key
+     */
+    public Signature newSigner() throws NoSuchAlgorithmException, InvalidKeyException {
+        Signature signer = Signature.getInstance(signatureAlgorithm);
+        signer.initSign(caKey);
+        return signer;
+    }
+
+    /**
+     * Encodes the TBSCertificate; only the arguments are encoded here, the
+     * rest was encoded when the template was created.
+     */
+    public byte[] buildTbsCertificate(BigInteger serialNumber, Date notBefore, Date notAfter, PublicKey aik, String sanLabel) {
+        byte[] serial = tlv(0x02, serialNumber.toByteArray());
+        byte[] validity = tlv(0x30, concat(time(notBefore), time(notAfter)));
+        byte[] subjectPublicKeyInfo = aik.getEncoded();
+        byte[] generalNames = tlv(0x30, tlv(0x81, sanLabel.getBytes(ASCII))); // [1] IMPLICIT IA5String rfc822Name
+        byte[] san = tlv(0x30, concat(SAN_CRITICAL_PREFIX, tlv(0x04, generalNames)));
+        byte[] extensions = tlv(0xa3, tlv(0x30, san));
+        return tlv(0x30, concat(VERSION_3, serial, algorithmIdentifier, issuer, validity, EMPTY_NAME, subjectPublicKeyInfo, extensions));
+    }
+
+    /**
+     *
+     * @param tbsCertificate output of {@link #buildTbsCertificate}
+     * @param signer a Signature from {@link #newSigner()}, used by one thread at a time
+     * @return the signed certificate
+     * @throws CertificateEncodingException if the assembled certificate cannot be decoded
+     */
+    public X509Certificate sign(byte[] tbsCertificate, Signature signer) throws SignatureException, CertificateEncodingException {
+        signer.update(tbsCertificate);
+        byte[] signature = signer.sign();
+        byte[] bitString = new byte[signature.length + 1];
+        System.arraycopy(signature, 0, bitString, 1, signature.length);
+        byte[] certificate = tlv(0x30, concat(tbsCertificate, algorithmIdentifier, tlv(0x03, bitString)));
+        try {
+            return (X509Certificate)CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(certificate));
+        }
+        catch(CertificateException e) {
+            throw new CertificateEncodingException("Cannot decode AIK certificate", e);
+        }
+    }
+
+    /**
+     * Checks that the template can sign with the CA key and that the
+     * result verifies with the CA certificate.
+     */
+    public void verify() throws GeneralSecurityException {
+        Signature signer = newSigner();
+        byte[] probe = "AikCertificateTemplate".getBytes(ASCII);
+        signer.update(probe);
+        byte[] signature = signer.sign();
+        Signature verifier = Signature.getInstance(signatureAlgorithm);
+        verifier.initVerify(caCert.getPublicKey());
+        verifier.update(probe);
+        if( !verifier.verify(signature) ) {
+            throw new InvalidKeyException("CA private key does not match the CA certificate");
+        }
+    }
+
+    /**
+     * UTCTime through 2049 and GeneralizedTime from 2050, as required by
+     * RFC 5280 section 4.1.2.5.
+     */
+    private static byte[] time(Date date) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+        calendar.setTime(date);
+        boolean utc = calendar.get(Calendar.YEAR) < 2050;
+        SimpleDateFormat format = new SimpleDateFormat(utc ? "yyMMddHHmmss'Z'" : "yyyyMMddHHmmss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return tlv(utc ? 0x17 : 0x18, format.format(date).getBytes(ASCII));
+    }
+
+    private static byte[] tlv(int tag, byte[] value) {
+        int length = value.length;
+        int lengthBytes = length < 0x80 ? 0 : length < 0x100 ? 1 : length < 0x10000 ? 2 : 3;
+        byte[] out = new byte[2 + lengthBytes + length];
+        out[0] = (byte)tag;
+        if( lengthBytes == 0 ) {
+            out[1] = (byte)length;
+        }
+        else {
+            out[1] = (byte)(0x80 | lengthBytes);
+            for(int i = 0; i < lengthBytes; i++) {
+                out[2+i] = (byte)(length >>> (8 * (lengthBytes - 1 - i)));
+            }
+        }
+        System.arraycopy(value, 0, out, 2 + lengthBytes, length);
+        return out;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for(byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
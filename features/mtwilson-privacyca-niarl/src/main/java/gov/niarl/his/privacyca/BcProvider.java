@@ -0,0 +1,27 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.security.Provider;
+import java.security.Security;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * The Bouncy Castle provider shared by the certificate helpers in this
+ * package. It is the provider registered as "BC" when the application has
+ * installed one, and otherwise a single unregistered instance, so the
+ * provider and its algorithm tables are set up once per class loader.
+ */
+final class BcProvider {
+    static final Provider INSTANCE = getProvider();
+
+    private BcProvider() {
+    }
+
+    private static Provider getProvider() {
+        Provider registered = Security.getProvider(BouncyCastleProvider.PROVIDER_NAME);
+        return registered != null ? registered : new BouncyCastleProvider();
+    }
+}
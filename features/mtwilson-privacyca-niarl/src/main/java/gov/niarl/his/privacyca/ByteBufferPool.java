@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of equally sized heap ByteBuffers for the output of the
+ * symmetric ciphers, so decrypting an identity proof or encrypting an AIK
+ * certificate does not allocate a new output array on every request.
+ *
+ * A buffer is taken with {@link #acquire(int)} and must be given back with
+ * {@link #release(ByteBuffer)} once its contents were copied or written
+ * out. Released buffers are zeroed before they are pooled again, because
+ * they held decrypted request data and key material. Requests larger than
+ * the buffer size get a new buffer that is not pooled.
+ *
+ * The pool is used by the decrypt and encrypt paths when it is installed
+ * with {@link TpmUtils#setBufferPool(ByteBufferPool)}. Without a pool (the
+ * default) every call allocates its own buffer.
+ */
+public class ByteBufferPool {
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final int bufferSize;
+    private final int capacity;
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger available = new AtomicInteger();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     *
+     * @param capacity maximum number of buffers kept for reuse
+     */
+    public ByteBufferPool(int capacity) {
+        this(DEFAULT_BUFFER_SIZE, capacity);
+    }
+
+    /**
+     *
+     * @param bufferSize size of each pooled buffer; the largest identity proof or AIK certificate expected
+     * @param capacity maximum number of buffers kept for reuse
+     */
+    public ByteBufferPool(int bufferSize, int capacity) {
+        if( bufferSize <= 0 || capacity <= 0 ) {
+            throw new IllegalArgumentException("Buffer size and capacity must be positive");
+        }
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+    }
+
+    /**
+     *
+     * @param length number of bytes the caller will write
+     * @return a zeroed buffer with position 0 and limit equal to length
+     */
+    public ByteBuffer acquire(int length) {
+        if( length < 0 ) {
+            throw new IllegalArgumentException("Length must not be negative");
+        }
+        if( length > bufferSize ) {
+            misses.incrementAndGet();
+            return ByteBuffer.allocate(length);
+        }
+        ByteBuffer buffer = buffers.poll();
+        if( buffer == null ) {
+            misses.incrementAndGet();
+            buffer = ByteBuffer.allocate(bufferSize);
+        }
+        else {
+            hits.incrementAndGet();
+            available.decrementAndGet();
+        }
+        buffer.limit(length);
+        return buffer;
+    }
+
+    /**
+     * Zeroes the buffer and keeps it for reuse if it came from this pool
+     * and the pool is not full. The caller must not use the buffer
+     * afterwards.
+     *
+     * @param buffer a buffer returned by {@link #acquire(int)}
+     */
+    public void release(ByteBuffer buffer) {
+        if( buffer == null ) {
+            return;
+        }
+        zero(buffer);
+        if( buffer.capacity() != bufferSize || buffer.isReadOnly() ) {
+            return;
+        }
+        if( available.incrementAndGet() <= capacity ) {
+            buffers.offer(buffer);
+        }
+        else {
+            available.decrementAndGet();
+        }
+    }
+
+    /**
+     * Overwrites the whole buffer, regardless of its position and limit,
+     * with zeros.
+     */
+    static void zero(ByteBuffer buffer) {
+        buffer.clear();
+        if( buffer.hasArray() ) {
+            Arrays.fill(buffer.array(), buffer.arrayOffset(), buffer.arrayOffset() + buffer.capacity(), (byte)0);
+        }
+        else if( !buffer.isReadOnly() ) {
+            while( buffer.hasRemaining() ) {
+                buffer.put((byte)0);
+            }
+            buffer.clear();
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     *
+     * @return number of buffers currently in the pool
+     */
+    public int getAvailable() {
+        return available.get();
+    }
+
+    /**
+     *
+     * @return number of buffers served from the pool
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     *
+     * @return number of buffers allocated because the pool was empty or the request was too large
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+}
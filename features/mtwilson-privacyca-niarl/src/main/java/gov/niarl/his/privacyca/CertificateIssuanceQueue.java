@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Issues AIK certificates on a fixed pool of signer threads so that a burst
+ * of enrollments, for example when a rack of hosts boots at once, does not
+ * start one RSA signature per request thread.
+ *
+ * Request threads submit jobs to a bounded queue and get a Future for the
+ * certificate. Each signer thread owns a Signature initialized once with
+ * the CA key; it takes every job that is waiting, up to the batch size,
+ * and signs them one after another with the same validity period. When
+ * the queue is full, {@link #submit(PublicKey, String, int)} rejects the
+ * job so the caller can answer with a retry instead of piling up threads.
+ *
+ * A signer thread that cannot initialize its Signature, at start or after
+ * a failed signature, stops. When the last one stops the queue fails:
+ * queued jobs complete with the initialization error and new jobs are
+ * rejected, so callers do not wait for signers that will never come.
+ */
+public class CertificateIssuanceQueue implements AutoCloseable {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(CertificateIssuanceQueue.class);
+
+    private final AikCertificateTemplate template;
+    private final int maxBatchSize;
+    private final ArrayBlockingQueue<Job> queue;
+    private final ExecutorService signers;
+    private volatile boolean closed = false;
+    private volatile GeneralSecurityException failure = null;
+    private final AtomicInteger liveSigners;
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    /**
+     *
+     * @param template the AIK certificate template of the CA
+     * @param signerThreads number of signer threads, usually the number of cores
+     * @param queueCapacity maximum number of jobs waiting to be signed
+     * @param maxBatchSize maximum number of jobs a signer thread takes at once
+     */
+    public CertificateIssuanceQueue(AikCertificateTemplate template, int signerThreads, int queueCapacity, int maxBatchSize) {
+        if( signerThreads <= 0 || queueCapacity <= 0 || maxBatchSize <= 0 ) {
+            throw new IllegalArgumentException("Signer threads, queue capacity and batch size must be positive");
+        }
+        this.template = template;
+        this.maxBatchSize = maxBatchSize;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.liveSigners = new AtomicInteger(signerThreads);
+        this.signers = Executors.newFixedThreadPool(signerThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "privacyca-signer-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for(int i = 0; i < signerThreads; i++) {
+            signers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sign();
+                }
+            });
+        }
+    }
+
+    /**
+     * Queues an AIK certificate for signing without waiting for space.
+     *
+     * @param aik the AIK public key
+     * @param sanLabel the identity label
+     * @param validityDays number of days from signing until the certificate expires
+     * @return the certificate when it has been signed
+     * @throws RejectedExecutionException if the queue is full, closed or failed
+     */
+    public Future<X509Certificate> submit(PublicKey aik, String sanLabel, int validityDays) {
+        Job job = new Job(aik, sanLabel, validityDays);
+        checkAccepting();
+        if( !queue.offer(job) ) {
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException("Certificate issuance queue is full");
+        }
+        return accepted(job);
+    }
+
+    /**
+     * Queues an AIK certificate for signing, waiting up to the timeout for
+     * space in the queue.
+     *
+     * @throws RejectedExecutionException if there is still no space after the timeout, or the queue is closed or failed
+     */
+    public Future<X509Certificate> submit(PublicKey aik, String sanLabel, int validityDays, long timeout, TimeUnit unit) throws InterruptedException {
+        Job job = new Job(aik, sanLabel, validityDays);
+        checkAccepting();
+        if( !queue.offer(job, timeout, unit) ) {
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException("Certificate issuance queue is full");
+        }
+        return accepted(job);
+    }
+
+    private void checkAccepting() {
+        if( failure != null ) {
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException("No certificate signer is available", failure);
+        }
+        if( closed ) {
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException("Certificate issuance queue is closed");
+        }
+    }
+
+    /**
+     * {@link #close()} and the last failing signer set their flag before
+     * they drain the queue, so a job offered after the drain sees the flag
+     * here and is taken back instead of waiting in a queue nobody reads.
+     * If the drain got the job first it was already cancelled or failed.
+     */
+    private Job accepted(Job job) {
+        if( (closed || failure != null) && queue.remove(job) ) {
+            checkAccepting();
+        }
+        return job;
+    }
+
+    private void sign() {
+        ArrayList<Job> batch = new ArrayList<>(maxBatchSize);
+        GeneralSecurityException cause = null;
+        try {
+            Signature signer = template.newSigner();
+            while( !Thread.currentThread().isInterrupted() ) {
+                batch.add(queue.take());
+                queue.drainTo(batch, maxBatchSize - 1);
+                batches.incrementAndGet();
+                Date notBefore = new Date();
+                for(Job job : batch) {
+                    if( job.isCancelled() ) { continue; }
+                    try {
+                        Calendar expiry = Calendar.getInstance();
+                        expiry.setTime(notBefore);
+                        expiry.add(Calendar.DAY_OF_YEAR, job.validityDays);
+                        byte[] tbs = template.buildTbsCertificate(TpmUtils.getSerialNumberGenerator().nextSerialNumber(), notBefore, expiry.getTime(), job.aik, job.sanLabel);
+                        X509Certificate certificate = template.sign(tbs, signer);
+                        issued.incrementAndGet();
+                        job.complete(certificate);
+                    }
+                    catch(GeneralSecurityException | RuntimeException e) {
+                        failed.incrementAndGet();
+                        job.fail(e);
+                        // the signer may be left in an unknown state
+                        signer = template.newSigner();
+                    }
+                }
+                batch.clear();
+            }
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch(GeneralSecurityException e) {
+            log.error("Cannot initialize certificate signer: {}", e.getMessage());
+            cause = e;
+        }
+        finally {
+            for(Job job : batch) {
+                if( cause == null ) {
+                    job.cancel(false);
+                }
+                else {
+                    job.fail(cause);
+                }
+            }
+            if( cause != null ) {
+                signerFailed(cause);
+            }
+        }
+    }
+
+    /**
+     * Fails the queue when the last signer thread could not initialize its
+     * Signature.
+     */
+    private void signerFailed(GeneralSecurityException cause) {
+        if( liveSigners.decrementAndGet() > 0 ) {
+            return;
+        }
+        log.error("No certificate signer left, failing queued certificate jobs");
+        failure = cause;
+        Job job;
+        while( (job = queue.poll()) != null ) {
+            job.fail(cause);
+        }
+    }
+
+    /**
+     *
+     * @return number of jobs waiting to be signed
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getIssuedCount() {
+        return issued.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    /**
+     *
+     * @return average number of jobs taken by a signer thread at once
+     */
+    public double getAverageBatchSize() {
+        long b = batches.get();
+        return b == 0 ? 0.0 : (double)(issued.get() + failed.get()) / b;
+    }
+
+    /**
+     *
+     * @return the signer initialization error if no signer thread is left, otherwise null
+     */
+    public GeneralSecurityException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Stops the signer threads. Jobs that were not signed yet are cancelled.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        signers.shutdownNow();
+        Job job;
+        while( (job = queue.poll()) != null ) {
+            job.cancel(false);
+        }
+    }
+
+    /**
+     * A queued certificate; completed by a signer thread rather than run.
+     */
+    private static class Job extends FutureTask<X509Certificate> {
+        private static final Runnable NONE = new Runnable() {
+            @Override
+            public void run() {
+                throw new CancellationException();
+            }
+        };
+        private final PublicKey aik;
+        private final String sanLabel;
+        private final int validityDays;
+
+        Job(PublicKey aik, String sanLabel, int validityDays) {
+            super(NONE, null);
+            this.aik = aik;
+            this.sanLabel = sanLabel;
+            this.validityDays = validityDays;
+        }
+
+        void complete(X509Certificate certificate) {
+            set(certificate);
+        }
+
+        void fail(Throwable cause) {
+            setException(cause);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.math.BigInteger;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Calendar;
+import java.util.Date;
+import javax.security.auth.x500.X500Principal;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.cert.CertIOException;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+/**
+ * Creates the CA, client and EK certificates of the Privacy CA with the
+ * BouncyCastle X509v3CertificateBuilder.
+ *
+ * An issuer is created once per CA certificate and key. It keeps one
+ * ContentSigner per thread, which is reused for every certificate that
+ * thread signs, and computes the authority key identifier of the CA once.
+ * TpmUtils.createCaP12, createClientP12 and makeEkCert delegate here; AIK
+ * certificates are made by {@link AikCertificateTemplate}.
+ */
+public class CertificateIssuer {
+    private static final Provider BC = BcProvider.INSTANCE;
+
+    private final X509Certificate caCert;
+    private final PrivateKey caKey;
+    private final String signatureAlgorithm;
+    private final JcaX509ExtensionUtils extensionUtils;
+    private final AuthorityKeyIdentifier authorityKeyIdentifier;
+    private final ThreadLocal<ContentSigner> signers = new ThreadLocal<>();
+
+    /**
+     *
+     * @param caCert the certificate of the issuing CA
+     * @param caKey the private key of the issuing CA, RSA or EC
+     * @throws NoSuchAlgorithmException if SHA-1 is not available for key identifiers
+     * @throws CertificateEncodingException if the CA certificate cannot be encoded
+     */
+    public CertificateIssuer(X509Certificate caCert, PrivateKey caKey) throws NoSuchAlgorithmException, CertificateEncodingException {
+        this.caCert = caCert;
+        this.caKey = caKey;
+        this.signatureAlgorithm = signatureAlgorithm(caKey);
+        this.extensionUtils = new JcaX509ExtensionUtils();
+        this.authorityKeyIdentifier = extensionUtils.createAuthorityKeyIdentifier(caCert);
+    }
+
+    /**
+     *
+     * @return true if this issuer signs with the CA certificate and key
+     */
+    public boolean isFor(X509Certificate caCert, PrivateKey caKey) {
+        return this.caCert.equals(caCert) && this.caKey.equals(caKey);
+    }
+
+    public X509Certificate getCaCertificate() {
+        return caCert;
+    }
+
+    /**
+     * Creates a self-signed CA certificate with subject "CN=" + caName, a
+     * subject key identifier, an authority key identifier naming itself,
+     * and a critical CA basic constraint.
+     *
+     * @param keyPair the CA key pair, RSA or EC
+     * @param caName the subject common name
+     * @param validityDays number of days until the certificate expires
+     * @return the CA certificate
+     */
+    public static X509Certificate createCaCertificate(KeyPair keyPair, String caName, int validityDays)
+            throws NoSuchAlgorithmException, InvalidKeyException, CertificateEncodingException {
+        X500Principal name = new X500Principal("CN=" + caName);
+        BigInteger serialNumber = TpmUtils.getSerialNumberGenerator().nextSerialNumber();
+        JcaX509ExtensionUtils utils = new JcaX509ExtensionUtils();
+        Date notBefore = new Date();
+        X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(name, serialNumber, notBefore, notAfter(notBefore, validityDays), name, keyPair.getPublic());
+        try {
+            builder.addExtension(Extension.subjectKeyIdentifier, false, utils.createSubjectKeyIdentifier(keyPair.getPublic()));
+            builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(true));
+            builder.addExtension(Extension.authorityKeyIdentifier, false, utils.createAuthorityKeyIdentifier(keyPair.getPublic(), name, serialNumber));
+        }
+        catch(CertIOException e) {
+            throw new CertificateEncodingException("Cannot encode CA certificate extensions", e);
+        }
+        return build(builder, contentSigner(signatureAlgorithm(keyPair.getPrivate()), keyPair.getPrivate()));
+    }
+
+    /**
+     * Creates an end entity certificate with subject "CN=" + subjectName,
+     * subject and authority key identifiers, and a critical basic
+     * constraint that is not a CA.
+     *
+     * @param publicKey the client public key
+     * @param subjectName the subject common name
+     * @param validityDays number of days until the certificate expires
+     * @return the client certificate
+     */
+    public X509Certificate createClientCertificate(PublicKey publicKey, String subjectName, int validityDays)
+            throws InvalidKeyException, CertificateEncodingException {
+        X509v3CertificateBuilder builder = builder(new X500Principal("CN=" + subjectName), publicKey, validityDays);
+        try {
+            builder.addExtension(Extension.subjectKeyIdentifier, false, extensionUtils.createSubjectKeyIdentifier(publicKey));
+            builder.addExtension(Extension.authorityKeyIdentifier, false, authorityKeyIdentifier);
+            builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(false));
+        }
+        catch(CertIOException e) {
+            throw new CertificateEncodingException("Cannot encode client certificate extensions", e);
+        }
+        return build(builder, signer());
+    }
+
+    /**
+     * Creates an EK certificate with an empty subject and the critical
+     * subject alternative name "TPM EK Credential".
+     *
+     * @param ek the public endorsement key
+     * @param validityDays number of days until the certificate expires
+     * @return the EK certificate
+     */
+    public X509Certificate createEkCertificate(PublicKey ek, int validityDays)
+            throws InvalidKeyException, CertificateEncodingException {
+        X509v3CertificateBuilder builder = builder(new X500Principal(""), ek, validityDays);
+        try {
+            builder.addExtension(Extension.subjectAlternativeName, true, new GeneralNames(new GeneralName(GeneralName.rfc822Name, "TPM EK Credential")));
+        }
+        catch(CertIOException e) {
+            throw new CertificateEncodingException("Cannot encode EK certificate extensions", e);
+        }
+        return build(builder, signer());
+    }
+
+    private X509v3CertificateBuilder builder(X500Principal subject, PublicKey publicKey, int validityDays) {
+        Date notBefore = new Date();
+        return new JcaX509v3CertificateBuilder(caCert, TpmUtils.getSerialNumberGenerator().nextSerialNumber(), notBefore, notAfter(notBefore, validityDays), subject, publicKey);
+    }
+
+    /**
+     * Discards the ContentSigner kept for the calling thread, which holds
+     * the CA key, once the thread will not issue with this issuer again.
+     */
+    void removeSigner() {
+        signers.remove();
+    }
+
+    private ContentSigner signer() throws InvalidKeyException {
+        ContentSigner signer = signers.get();
+        if( signer == null ) {
+            signer = contentSigner(signatureAlgorithm, caKey);
+            signers.set(signer);
+        }
+        return signer;
+    }
+
+    private static ContentSigner contentSigner(String algorithm, PrivateKey key) throws InvalidKeyException {
+        try {
+            return new JcaContentSignerBuilder(algorithm).setProvider(BC).build(key);
+        }
+        catch(OperatorCreationException e) {
+            throw new InvalidKeyException("Cannot sign with " + algorithm, e);
+        }
+    }
+
+    private static X509Certificate build(X509v3CertificateBuilder builder, ContentSigner signer) throws CertificateEncodingException {
+        try {
+            return new JcaX509CertificateConverter().setProvider(BC).getCertificate(builder.build(signer));
+        }
+        catch(CertificateException e) {
+            throw new CertificateEncodingException("Cannot decode new certificate", e);
+        }
+    }
+
+    private static Date notAfter(Date notBefore, int validityDays) {
+        Calendar expiry = Calendar.getInstance();
+        expiry.setTime(notBefore);
+        expiry.add(Calendar.DAY_OF_YEAR, validityDays);
+        return expiry.getTime();
+    }
+
+    /**
+     * Chooses the certificate signature algorithm for the signing key: SHA256withRSA for RSA keys, and SHA256withECDSA
+     * or SHA384withECDSA for EC keys depending on the curve size.
+     */
+    static String signatureAlgorithm(PrivateKey signingKey) {
+        if( signingKey instanceof java.security.interfaces.ECPrivateKey ) {
+            int fieldSize = ((java.security.interfaces.ECPrivateKey)signingKey).getParams().getCurve().getField().getFieldSize();
+            return fieldSize > 256 ? "SHA384withECDSA" : "SHA256withECDSA";
+        }
+        return "SHA256withRSA";
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Verifies the TPM_CERTIFY_INFO sent with a binding or signing key
+ * endorsement request: that it describes the public key in the request,
+ * that it was signed by the AIK in the accompanying AIK certificate, and,
+ * when the verifier is created with the Privacy CA certificate, that the
+ * AIK certificate was issued by the Privacy CA and is within its validity
+ * period.
+ *
+ * The AIK certificate comes from the same request as the key, so a
+ * verifier created without the Privacy CA certificate only proves that
+ * the request is consistent with itself. Anyone can make an AIK
+ * certificate for a key of their own. Such a verifier is for callers that
+ * have already checked the AIK certificate against the Privacy CA, and
+ * its {@link Result#VALID} means nothing more than that.
+ *
+ * A host certifies many keys with the same AIK, so the AIK certificate is
+ * decoded and checked against the Privacy CA once, and kept in a
+ * size-bounded LRU cache keyed by the SHA-256 of the certificate DER.
+ * SHA1withRSA Signature instances are kept in a pool and reused. The
+ * public key digest is read from its fixed position in the
+ * TPM_CERTIFY_INFO without parsing the rest of it.
+ *
+ * Instances may be shared between threads.
+ */
+public class CertifyKeyVerifier {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(CertifyKeyVerifier.class);
+    private static final Provider BC = BcProvider.INSTANCE;
+    /** TPM_SS_RSASSAPKCS1v15_SHA1 */
+    private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+    private static final int DIGEST_LENGTH = 20;
+    /** TPM_STRUCT_VER (4), keyUsage (2), keyFlags (4), authDataUsage (1) */
+    private static final int KEY_PARMS_OFFSET = 11;
+    private static final int KEY_PARMS_HEADER_SIZE = 12;
+
+    /**
+     * The outcome of verifying one certified key. {@link #VALID} includes
+     * the Privacy CA check of the AIK certificate only if the verifier was
+     * created with the Privacy CA certificate.
+     */
+    public static enum Result {
+        VALID("valid"),
+        MISSING_FIELD("public key, certify info, signature or AIK certificate is missing"),
+        MALFORMED_CERTIFY_INFO("certify info is truncated or its key parameters are too large"),
+        PUBLIC_KEY_DIGEST_MISMATCH("certify info does not describe the public key"),
+        INVALID_AIK_CERTIFICATE("AIK certificate cannot be decoded or does not contain an RSA key"),
+        UNTRUSTED_AIK_CERTIFICATE("AIK certificate was not issued by the Privacy CA or is not within its validity period"),
+        INVALID_SIGNATURE("certify info signature does not verify with the AIK");
+
+        private final String description;
+
+        private Result(String description) {
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    /**
+     * One key to verify, with the fields of a BindingKeyEndorsementRequest
+     * or SigningKeyEndorsementRequest.
+     */
+    public static class CertifiedKey {
+        private final byte[] publicKeyModulus;
+        private final byte[] tpmCertifyKey;
+        private final byte[] tpmCertifyKeySignature;
+        private final byte[] aikDerCertificate;
+
+        public CertifiedKey(byte[] publicKeyModulus, byte[] tpmCertifyKey, byte[] tpmCertifyKeySignature, byte[] aikDerCertificate) {
+            this.publicKeyModulus = publicKeyModulus;
+            this.tpmCertifyKey = tpmCertifyKey;
+            this.tpmCertifyKeySignature = tpmCertifyKeySignature;
+            this.aikDerCertificate = aikDerCertificate;
+        }
+
+        public byte[] getPublicKeyModulus() {
+            return publicKeyModulus;
+        }
+
+        public byte[] getTpmCertifyKey() {
+            return tpmCertifyKey;
+        }
+
+        public byte[] getTpmCertifyKeySignature() {
+            return tpmCertifyKeySignature;
+        }
+
+        public byte[] getAikDerCertificate() {
+            return aikDerCertificate;
+        }
+    }
+
+    private final X509Certificate privacyCaCertificate;
+    private final Map<ByteBuffer,X509Certificate> aikCertificates;
+    private final ConcurrentLinkedQueue<Signature> signatures = new ConcurrentLinkedQueue<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong verified = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Creates a verifier that does not check the AIK certificate against
+     * the Privacy CA; the caller must do that before trusting a
+     * {@link Result#VALID}.
+     *
+     * @param maxCachedAiks maximum number of AIK certificates kept
+     */
+    public CertifyKeyVerifier(int maxCachedAiks) {
+        this(maxCachedAiks, null);
+    }
+
+    /**
+     *
+     * @param maxCachedAiks maximum number of AIK certificates kept
+     * @param privacyCaCertificate the Privacy CA certificate that must have signed every AIK certificate, or null to leave that check to the caller
+     */
+    public CertifyKeyVerifier(final int maxCachedAiks, X509Certificate privacyCaCertificate) {
+        if( maxCachedAiks <= 0 ) {
+            throw new IllegalArgumentException("Maximum cached AIKs must be positive");
+        }
+        this.privacyCaCertificate = privacyCaCertificate;
+        this.aikCertificates = new LinkedHashMap<ByteBuffer,X509Certificate>(16, 0.75f, true) {
+            private static final long serialVersionUID = 0;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer,X509Certificate> eldest) {
+                return size() > maxCachedAiks;
+            }
+        };
+    }
+
+    /**
+     *
+     * @param publicKeyModulus the modulus of the certified key
+     * @param tpmCertifyKey the TPM_CERTIFY_INFO returned by TPM_CertifyKey
+     * @param tpmCertifyKeySignature the AIK signature over the TPM_CERTIFY_INFO
+     * @param aikDerCertificate the DER-encoded AIK certificate
+     * @return {@link Result#VALID} or the first problem found
+     */
+    public Result verify(byte[] publicKeyModulus, byte[] tpmCertifyKey, byte[] tpmCertifyKeySignature, byte[] aikDerCertificate) {
+        Signature signature = null;
+        try {
+            signature = borrowSignature();
+            return count(verify(new CertifiedKey(publicKeyModulus, tpmCertifyKey, tpmCertifyKeySignature, aikDerCertificate), signature));
+        }
+        catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(SIGNATURE_ALGORITHM + " not available", e);
+        }
+        finally {
+            if( signature != null ) {
+                signatures.offer(signature);
+            }
+        }
+    }
+
+    /**
+     * Verifies the keys of one request in order, with one Signature for the
+     * whole batch.
+     *
+     * @param keys the certified keys
+     * @return one result per key, in the same order
+     */
+    public List<Result> verifyAll(List<CertifiedKey> keys) {
+        ArrayList<Result> results = new ArrayList<>(keys.size());
+        Signature signature = null;
+        try {
+            signature = borrowSignature();
+            for(CertifiedKey key : keys) {
+                results.add(count(verify(key, signature)));
+            }
+            return results;
+        }
+        catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(SIGNATURE_ALGORITHM + " not available", e);
+        }
+        finally {
+            if( signature != null ) {
+                signatures.offer(signature);
+            }
+        }
+    }
+
+    private Result verify(CertifiedKey key, Signature signature) {
+        byte[] certifyInfo = key.tpmCertifyKey;
+        if( key.publicKeyModulus == null || certifyInfo == null || key.tpmCertifyKeySignature == null || key.aikDerCertificate == null ) {
+            return Result.MISSING_FIELD;
+        }
+        int digestOffset = publicKeyDigestOffset(certifyInfo);
+        if( digestOffset < 0 ) {
+            return Result.MALFORMED_CERTIFY_INFO;
+        }
+        if( !publicKeyDigestMatches(key.publicKeyModulus, certifyInfo, digestOffset) ) {
+            return Result.PUBLIC_KEY_DIGEST_MISMATCH;
+        }
+        X509Certificate aikCertificate;
+        try {
+            aikCertificate = aikCertificate(key.aikDerCertificate);
+        }
+        catch(CertificateException e) {
+            log.debug("Cannot decode AIK certificate: {}", e.getMessage());
+            return Result.INVALID_AIK_CERTIFICATE;
+        }
+        if( aikCertificate == null ) {
+            return Result.UNTRUSTED_AIK_CERTIFICATE;
+        }
+        if( privacyCaCertificate != null ) {
+            try {
+                aikCertificate.checkValidity();
+            }
+            catch(CertificateException e) {
+                log.debug("AIK certificate is not valid now: {}", e.getMessage());
+                return Result.UNTRUSTED_AIK_CERTIFICATE;
+            }
+        }
+        try {
+            signature.initVerify(aikCertificate.getPublicKey());
+            signature.update(certifyInfo);
+            return signature.verify(key.tpmCertifyKeySignature) ? Result.VALID : Result.INVALID_SIGNATURE;
+        }
+        catch(InvalidKeyException | SignatureException e) {
+            log.debug("Cannot verify certify info signature: {}", e.getMessage());
+            return Result.INVALID_SIGNATURE;
+        }
+    }
+
+    /**
+     *
+     * @return the offset of pubkeyDigest in the TPM_CERTIFY_INFO, or -1 if it is truncated
+     */
+    static int publicKeyDigestOffset(byte[] certifyInfo) {
+        if( certifyInfo.length < KEY_PARMS_OFFSET + KEY_PARMS_HEADER_SIZE ) {
+            return -1;
+        }
+        int parmSize = uint32(certifyInfo, KEY_PARMS_OFFSET + 8);
+        if( parmSize < 0 || parmSize > TpmIdentityRequestReader.MAX_KEY_PARAMS_SIZE ) {
+            return -1;
+        }
+        int offset = KEY_PARMS_OFFSET + KEY_PARMS_HEADER_SIZE + parmSize;
+        // the digest is followed by the nonce, parentPCRStatus and pcrInfoSize
+        if( offset + 2 * DIGEST_LENGTH + 5 > certifyInfo.length ) {
+            return -1;
+        }
+        return offset;
+    }
+
+    /**
+     * The pubkeyDigest is the SHA-1 of the key field of the TPM_STORE_PUBKEY,
+     * which is the modulus.
+     */
+    private static boolean publicKeyDigestMatches(byte[] modulus, byte[] certifyInfo, int digestOffset) {
+        byte[] expected;
+        try {
+            expected = MessageDigest.getInstance("SHA-1").digest(modulus);
+        }
+        catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+        int difference = 0;
+        for(int i = 0; i < DIGEST_LENGTH; i++) {
+            difference |= expected[i] ^ certifyInfo[digestOffset + i];
+        }
+        return difference == 0;
+    }
+
+    /**
+     * Only certificates that passed the Privacy CA signature check are
+     * cached, so a cached certificate needs no second check.
+     *
+     * @return the decoded AIK certificate, or null if it was not signed by the Privacy CA
+     * @throws CertificateException if the certificate cannot be decoded or its key is not RSA
+     */
+    private X509Certificate aikCertificate(byte[] aikDerCertificate) throws CertificateException {
+        ByteBuffer digest = ByteBuffer.wrap(EkCertificateCache.sha256(aikDerCertificate));
+        X509Certificate certificate;
+        synchronized(aikCertificates) {
+            certificate = aikCertificates.get(digest);
+        }
+        if( certificate != null ) {
+            hits.incrementAndGet();
+            return certificate;
+        }
+        misses.incrementAndGet();
+        // decode outside the lock; if two threads miss at once both decode and the last one wins
+        CertificateFactory cf = CertificateFactory.getInstance("X.509", BC);
+        certificate = (X509Certificate)cf.generateCertificate(new ByteArrayInputStream(aikDerCertificate));
+        PublicKey publicKey = certificate.getPublicKey();
+        if( !(publicKey instanceof RSAPublicKey) ) {
+            throw new CertificateException("AIK certificate does not contain an RSA public key");
+        }
+        if( privacyCaCertificate != null && !issuedByPrivacyCa(certificate) ) {
+            return null;
+        }
+        synchronized(aikCertificates) {
+            aikCertificates.put(digest, certificate);
+        }
+        return certificate;
+    }
+
+    private boolean issuedByPrivacyCa(X509Certificate aikCertificate) {
+        if( !aikCertificate.getIssuerX500Principal().equals(privacyCaCertificate.getSubjectX500Principal()) ) {
+            log.debug("AIK certificate issuer {} is not the Privacy CA", aikCertificate.getIssuerX500Principal());
+            return false;
+        }
+        try {
+            aikCertificate.verify(privacyCaCertificate.getPublicKey());
+            return true;
+        }
+        catch(GeneralSecurityException e) {
+            log.debug("AIK certificate signature does not verify with the Privacy CA key: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    private Signature borrowSignature() throws NoSuchAlgorithmException {
+        Signature signature = signatures.poll();
+        return signature != null ? signature : Signature.getInstance(SIGNATURE_ALGORITHM);
+    }
+
+    private Result count(Result result) {
+        if( result == Result.VALID ) {
+            verified.incrementAndGet();
+        }
+        else {
+            rejected.incrementAndGet();
+        }
+        return result;
+    }
+
+    public void clear() {
+        synchronized(aikCertificates) {
+            aikCertificates.clear();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getVerifiedCount() {
+        return verified.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    private static int uint32(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset+1] & 0xff) << 16) | ((bytes[offset+2] & 0xff) << 8) | (bytes[offset+3] & 0xff);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import com.intel.dcsg.cpg.crypto.RandomUtil;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free serial number generator for concurrent issuance on one or more
+ * nodes sharing a CA key. Each thread draws its random bits from its own
+ * SecureRandom, so threads do not contend on a shared instance.
+ *
+ * Each serial number is 20 octets:
+ * <pre>
+ * node id (15 bits) | time in milliseconds (48 bits) | counter (32 bits) | random (64 bits)
+ * </pre>
+ * The node id, time and counter make the serial unique as long as each
+ * node sharing the CA has its own node id; the counter is a single atomic
+ * increment shared by all threads, so parallel requests in the same
+ * millisecond never collide. The 64 random bits make serial numbers
+ * unpredictable. The leading bit is always zero so the value is positive
+ * and its DER encoding fits the 20 octet limit.
+ */
+public class DefaultSerialNumberGenerator implements SerialNumberGenerator {
+    public static final int MAX_NODE_ID = 0x7fff;
+
+    private static final ThreadLocal<SecureRandom> random = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            return new SecureRandom();
+        }
+    };
+
+    private final int nodeId;
+    private final AtomicInteger counter;
+
+    /**
+     * Creates a generator with a random node id, for a single node or when
+     * no node ids are assigned. The random bits still make a collision
+     * between nodes negligible.
+     */
+    public DefaultSerialNumberGenerator() {
+        this(RandomUtil.getSecureRandom().nextInt(MAX_NODE_ID + 1));
+    }
+
+    /**
+     *
+     * @param nodeId unique id of this node among those sharing the CA key, 0 to 32767
+     */
+    public DefaultSerialNumberGenerator(int nodeId) {
+        if( nodeId < 0 || nodeId > MAX_NODE_ID ) {
+            throw new IllegalArgumentException("Node id must be between 0 and " + MAX_NODE_ID);
+        }
+        this.nodeId = nodeId;
+        this.counter = new AtomicInteger(random.get().nextInt());
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public BigInteger nextSerialNumber() {
+        byte[] serial = new byte[20];
+        long time = System.currentTimeMillis();
+        int count = counter.getAndIncrement();
+        serial[0] = (byte)((nodeId >>> 8) & 0x7f);
+        serial[1] = (byte)nodeId;
+        for(int i = 0; i < 6; i++) {
+            serial[2+i] = (byte)(time >>> (40 - 8*i));
+        }
+        serial[8] = (byte)(count >>> 24);
+        serial[9] = (byte)(count >>> 16);
+        serial[10] = (byte)(count >>> 8);
+        serial[11] = (byte)count;
+        byte[] randomBits = new byte[8];
+        random.get().nextBytes(randomBits);
+        System.arraycopy(randomBits, 0, serial, 12, 8);
+        return new BigInteger(1, serial);
+    }
+}
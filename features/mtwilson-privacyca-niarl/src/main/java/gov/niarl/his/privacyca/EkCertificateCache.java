@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded LRU cache of decoded EK certificates keyed by the SHA-256
+ * of the certificate DER.
+ *
+ * Hosts send the same EK certificate every time they enroll an AIK, so
+ * the certificate is decoded and its public key extracted once, and a
+ * chain validation verdict can be stored with it.
+ *
+ * The cache is used by processIdentityRequest when it is installed with
+ * {@link TpmUtils#setEkCertificateCache(EkCertificateCache)}; it can also
+ * be used directly with IdentityChallengeRequest.getEndorsementCertificate().
+ */
+public class EkCertificateCache {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(EkCertificateCache.class);
+    private static final Provider BC = BcProvider.INSTANCE;
+
+    private final Map<ByteBuffer,Entry> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     *
+     * @param maxEntries maximum number of certificates kept
+     */
+    public EkCertificateCache(final int maxEntries) {
+        if( maxEntries <= 0 ) {
+            throw new IllegalArgumentException("Maximum entries must be positive");
+        }
+        this.entries = new LinkedHashMap<ByteBuffer,Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 0;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer,EkCertificateCache.Entry> eldest) {
+                if( size() > maxEntries ) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached entry for the certificate, decoding it on a miss.
+     *
+     * @param ekCertificateDer the DER-encoded EK certificate
+     * @return the decoded certificate, its public key, and any cached verdict
+     * @throws CertificateException if the certificate cannot be decoded or its key is not RSA
+     */
+    public Entry get(byte[] ekCertificateDer) throws CertificateException {
+        ByteBuffer key = ByteBuffer.wrap(sha256(ekCertificateDer));
+        Entry entry;
+        synchronized(entries) {
+            entry = entries.get(key);
+        }
+        if( entry != null ) {
+            hits.incrementAndGet();
+            return entry;
+        }
+        misses.incrementAndGet();
+        // decode outside the lock; if two threads miss at once both decode and the last one wins
+        CertificateFactory cf = CertificateFactory.getInstance("X.509", BC);
+        X509Certificate certificate = (X509Certificate)cf.generateCertificate(new ByteArrayInputStream(ekCertificateDer));
+        if( !(certificate.getPublicKey() instanceof RSAPublicKey) ) {
+            throw new CertificateException("EK certificate does not contain an RSA public key");
+        }
+        entry = new Entry(key.array(), certificate, (RSAPublicKey)certificate.getPublicKey());
+        synchronized(entries) {
+            entries.put(key, entry);
+        }
+        log.debug("Cached EK certificate {}", certificate.getSubjectX500Principal());
+        return entry;
+    }
+
+    public void invalidate(byte[] ekCertificateDer) {
+        ByteBuffer key = ByteBuffer.wrap(sha256(ekCertificateDer));
+        synchronized(entries) {
+            entries.remove(key);
+        }
+    }
+
+    public void clear() {
+        synchronized(entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized(entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        }
+        catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * A decoded EK certificate. The verdict is set by whoever validates the
+     * certificate chain and expires after the given time to live.
+     */
+    public static class Entry {
+        private final byte[] digest;
+        private final X509Certificate certificate;
+        private final RSAPublicKey publicKey;
+        private volatile Verdict verdict;
+
+        Entry(byte[] digest, X509Certificate certificate, RSAPublicKey publicKey) {
+            this.digest = digest;
+            this.certificate = certificate;
+            this.publicKey = publicKey;
+        }
+
+        /**
+         *
+         * @return SHA-256 of the certificate DER
+         */
+        public byte[] getDigest() {
+            return digest.clone();
+        }
+
+        public X509Certificate getCertificate() {
+            return certificate;
+        }
+
+        public RSAPublicKey getPublicKey() {
+            return publicKey;
+        }
+
+        /**
+         *
+         * @return the cached chain validation result, or null if there is none or it has expired
+         */
+        public Boolean getVerdict() {
+            Verdict current = verdict;
+            if( current == null || System.nanoTime() - current.expiresNanos >= 0 ) {
+                return null;
+            }
+            return current.valid;
+        }
+
+        public void setVerdict(boolean valid, long ttl, TimeUnit unit) {
+            verdict = new Verdict(valid, System.nanoTime() + unit.toNanos(ttl));
+        }
+
+        public void clearVerdict() {
+            verdict = null;
+        }
+    }
+
+    private static class Verdict {
+        private final boolean valid;
+        private final long expiresNanos;
+
+        Verdict(boolean valid, long expiresNanos) {
+            this.valid = valid;
+            this.expiresNanos = expiresNanos;
+        }
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertPath;
+import java.security.cert.CertPathBuilder;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.CertStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.CollectionCertStoreParameters;
+import java.security.cert.PKIXBuilderParameters;
+import java.security.cert.PKIXCertPathBuilderResult;
+import java.security.cert.PKIXCertPathChecker;
+import java.security.cert.PKIXParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509CertSelector;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.Extension;
+
+/**
+ * Validates EK certificates against the TPM manufacturer CA certificates,
+ * for example those returned by CaCertificates.searchCaCertificatesPem
+ * with domain "ek".
+ *
+ * The self-signed manufacturer certificates become the PKIX trust anchors
+ * and the others are put in a certificate store of intermediates, once,
+ * when the validator is created. Each EK certificate is then validated
+ * with a full PKIX path build ({@link CertPathBuilder} "PKIX"), which
+ * checks signatures, validity periods, basic constraints and path length,
+ * key usage keyCertSign and name constraints on every CA in the path and
+ * rejects unknown critical extensions. The only critical extensions
+ * accepted beyond the PKIX ones are those in
+ * {@link #TCG_CRITICAL_EXTENSIONS}, and only on the EK certificate itself.
+ * Revocation is not checked here; see TpmEndorsementRevocationSet.
+ *
+ * A path that was built is remembered per issuing CA, identified by the
+ * authority key identifier of the EK certificate or else by its issuer
+ * DN. The next EK certificate from that CA is validated against the
+ * remembered path with {@link CertPathValidator}, which performs the same
+ * checks without searching for the path again; if that fails the path is
+ * built from scratch. Verdicts are cached per SHA-256 of the EK
+ * certificate DER, up to a maximum number; when it is reached the least
+ * recently used verdict is evicted. Cached verdicts and paths are kept for
+ * the time to live, but never past the notAfter date of any certificate
+ * in the path.
+ */
+public class EkCertificateValidator {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(EkCertificateValidator.class);
+    private static final int MAX_INTERMEDIATES = 6;
+
+    /**
+     * Critical extensions accepted on EK certificates although the PKIX
+     * validator does not process them: subject directory attributes
+     * (2.5.29.9), which carry the TPM specification and security assertions,
+     * and the TCG certificate extensions tcg-ce-relevantCredentials through
+     * tcg-ce-virtualPlatformBackupService (2.23.133.6.2 to 2.23.133.6.7).
+     */
+    public static final Set<String> TCG_CRITICAL_EXTENSIONS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "2.5.29.9",
+            "2.23.133.6.2", "2.23.133.6.3", "2.23.133.6.4", "2.23.133.6.5", "2.23.133.6.6", "2.23.133.6.7")));
+
+    private final PKIXBuilderParameters builderTemplate;
+    private final long ttlNanos;
+    private final ConcurrentHashMap<ByteBuffer,IssuerPath> issuerPaths = new ConcurrentHashMap<>();
+    private final Map<ByteBuffer,Verdict> verdicts;
+    private final AtomicLong verdictHits = new AtomicLong();
+    private final AtomicLong verdictMisses = new AtomicLong();
+
+    /**
+     *
+     * @param manufacturerCas root and intermediate manufacturer CA certificates
+     * @param verdictTtl how long a verdict or validated path is remembered at most
+     * @param unit unit of verdictTtl
+     * @param maxVerdicts maximum number of cached EK verdicts
+     */
+    public EkCertificateValidator(Collection<X509Certificate> manufacturerCas, long verdictTtl, TimeUnit unit, final int maxVerdicts) {
+        if( maxVerdicts <= 0 ) {
+            throw new IllegalArgumentException("Maximum verdicts must be positive");
+        }
+        HashSet<TrustAnchor> anchors = new HashSet<>();
+        ArrayList<X509Certificate> intermediates = new ArrayList<>();
+        for(X509Certificate ca : manufacturerCas) {
+            if( isSelfSigned(ca) ) {
+                anchors.add(new TrustAnchor(ca, null));
+            }
+            else {
+                intermediates.add(ca);
+            }
+        }
+        PKIXBuilderParameters template = null;
+        if( anchors.isEmpty() ) {
+            log.warn("No self-signed manufacturer CA certificates; every EK certificate will be rejected");
+        }
+        else {
+            try {
+                template = new PKIXBuilderParameters(anchors, null);
+                template.addCertStore(CertStore.getInstance("Collection", new CollectionCertStoreParameters(intermediates)));
+                template.setMaxPathLength(MAX_INTERMEDIATES);
+                template.setRevocationEnabled(false);
+            }
+            catch(GeneralSecurityException e) {
+                throw new IllegalArgumentException("Cannot use manufacturer CA certificates", e);
+            }
+        }
+        this.builderTemplate = template;
+        this.ttlNanos = unit.toNanos(verdictTtl);
+        this.verdicts = new LinkedHashMap<ByteBuffer,Verdict>(16, 0.75f, true) {
+            private static final long serialVersionUID = 0;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer,EkCertificateValidator.Verdict> eldest) {
+                return size() > maxVerdicts;
+            }
+        };
+        log.debug("Indexed {} manufacturer CA certificates, {} roots", manufacturerCas.size(), anchors.size());
+    }
+
+    /**
+     *
+     * @param pem concatenated PEM certificates, as returned by CaCertificates.searchCaCertificatesPem
+     * @param verdictTtl how long a verdict or validated path is remembered at most
+     * @param unit unit of verdictTtl
+     * @return a validator for those manufacturer CAs
+     * @throws CertificateException if the PEM cannot be decoded
+     */
+    public static EkCertificateValidator fromPem(String pem, long verdictTtl, TimeUnit unit) throws CertificateException {
+        CertificateFactory cf = CertificateFactory.getInstance("X.509");
+        ArrayList<X509Certificate> cas = new ArrayList<>();
+        for(Certificate certificate : cf.generateCertificates(new ByteArrayInputStream(pem.getBytes(Charset.forName("US-ASCII"))))) {
+            cas.add((X509Certificate)certificate);
+        }
+        return new EkCertificateValidator(cas, verdictTtl, unit, 10000);
+    }
+
+    /**
+     *
+     * @param ekCertificate the EK certificate from the identity request
+     * @return true if a valid PKIX path leads from the certificate to a manufacturer root
+     */
+    public boolean isValid(X509Certificate ekCertificate) {
+        return verdict(ekCertificate).valid;
+    }
+
+    /**
+     * Uses the verdict stored with a cached EK certificate, and stores the
+     * result there on a miss.
+     *
+     * @param entry an entry from {@link EkCertificateCache}
+     * @return true if the EK certificate is valid
+     */
+    public boolean isValid(EkCertificateCache.Entry entry) {
+        Boolean cached = entry.getVerdict();
+        if( cached != null ) {
+            verdictHits.incrementAndGet();
+            return cached;
+        }
+        Verdict verdict = verdict(entry.getCertificate());
+        entry.setVerdict(verdict.valid, verdict.expiresNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        return verdict.valid;
+    }
+
+    public void clearCache() {
+        synchronized(verdicts) {
+            verdicts.clear();
+        }
+        issuerPaths.clear();
+    }
+
+    /**
+     *
+     * @return number of EK verdicts currently cached, including expired ones not yet replaced or evicted
+     */
+    int getVerdictCount() {
+        synchronized(verdicts) {
+            return verdicts.size();
+        }
+    }
+
+    public long getVerdictHitCount() {
+        return verdictHits.get();
+    }
+
+    public long getVerdictMissCount() {
+        return verdictMisses.get();
+    }
+
+    private Verdict verdict(X509Certificate ekCertificate) {
+        ByteBuffer key;
+        try {
+            key = ByteBuffer.wrap(EkCertificateCache.sha256(ekCertificate.getEncoded()));
+        }
+        catch(CertificateEncodingException e) {
+            log.debug("Cannot encode EK certificate: {}", e.getMessage());
+            return new Verdict(false, System.nanoTime());
+        }
+        long now = System.nanoTime();
+        Verdict verdict;
+        synchronized(verdicts) {
+            verdict = verdicts.get(key);
+        }
+        if( verdict != null && now - verdict.expiresNanos < 0 ) {
+            verdictHits.incrementAndGet();
+            return verdict;
+        }
+        verdictMisses.incrementAndGet();
+        // validate outside the lock; if two threads miss at once both validate and the last one wins
+        verdict = validate(ekCertificate, now);
+        synchronized(verdicts) {
+            verdicts.put(key, verdict);
+        }
+        return verdict;
+    }
+
+    private Verdict validate(X509Certificate ekCertificate, long now) {
+        if( builderTemplate == null ) {
+            return new Verdict(false, now + ttlNanos);
+        }
+        ByteBuffer issuerKey = issuerKey(ekCertificate);
+        IssuerPath issuerPath = issuerPaths.get(issuerKey);
+        if( issuerPath != null && now - issuerPath.expiresNanos < 0 ) {
+            try {
+                return validatePath(ekCertificate, issuerPath, now);
+            }
+            catch(GeneralSecurityException e) {
+                log.debug("EK certificate {} does not validate against the path of {}, building a new path: {}", ekCertificate.getSubjectX500Principal(), ekCertificate.getIssuerX500Principal(), e.getMessage());
+            }
+        }
+        try {
+            PKIXBuilderParameters params = (PKIXBuilderParameters)builderTemplate.clone();
+            X509CertSelector target = new X509CertSelector();
+            target.setCertificate(ekCertificate);
+            params.setTargetCertConstraints(target);
+            params.addCertStore(CertStore.getInstance("Collection", new CollectionCertStoreParameters(Collections.singleton(ekCertificate))));
+            params.addCertPathChecker(new TcgExtensionChecker(ekCertificate));
+            PKIXCertPathBuilderResult result = (PKIXCertPathBuilderResult)CertPathBuilder.getInstance("PKIX").build(params);
+            List<X509Certificate> path = toX509(result.getCertPath().getCertificates());
+            List<X509Certificate> issuers = path.subList(1, path.size());
+            TrustAnchor anchor = result.getTrustAnchor();
+            issuerPaths.put(issuerKey, new IssuerPath(new ArrayList<>(issuers), anchor, expires(issuers, anchor, now)));
+            return new Verdict(true, expires(path, anchor, now));
+        }
+        catch(GeneralSecurityException e) {
+            log.debug("No valid path from EK certificate {} to a manufacturer root: {}", ekCertificate.getSubjectX500Principal(), e.getMessage());
+            return new Verdict(false, now + ttlNanos);
+        }
+    }
+
+    private Verdict validatePath(X509Certificate ekCertificate, IssuerPath issuerPath, long now) throws GeneralSecurityException {
+        ArrayList<X509Certificate> path = new ArrayList<>(issuerPath.certificates.size() + 1);
+        path.add(ekCertificate);
+        path.addAll(issuerPath.certificates);
+        CertPath certPath = CertificateFactory.getInstance("X.509").generateCertPath(path);
+        PKIXParameters params = new PKIXParameters(Collections.singleton(issuerPath.anchor));
+        params.setRevocationEnabled(false);
+        params.addCertPathChecker(new TcgExtensionChecker(ekCertificate));
+        CertPathValidator.getInstance("PKIX").validate(certPath, params);
+        return new Verdict(true, expires(path, issuerPath.anchor, now));
+    }
+
+    /**
+     * The time to live from now, shortened so it ends before the earliest
+     * notAfter of the certificates and the trust anchor.
+     */
+    private long expires(List<X509Certificate> certificates, TrustAnchor anchor, long now) {
+        long notAfter = anchor.getTrustedCert().getNotAfter().getTime();
+        for(X509Certificate certificate : certificates) {
+            notAfter = Math.min(notAfter, certificate.getNotAfter().getTime());
+        }
+        long remainingMillis = notAfter - System.currentTimeMillis();
+        if( remainingMillis <= 0 ) {
+            return now;
+        }
+        return now + Math.min(ttlNanos, TimeUnit.MILLISECONDS.toNanos(remainingMillis));
+    }
+
+    private static ByteBuffer issuerKey(X509Certificate certificate) {
+        byte[] aki = authorityKeyIdentifier(certificate);
+        if( aki != null ) {
+            return ByteBuffer.wrap(aki);
+        }
+        return ByteBuffer.wrap(certificate.getIssuerX500Principal().getEncoded());
+    }
+
+    private static List<X509Certificate> toX509(List<? extends Certificate> certificates) {
+        ArrayList<X509Certificate> list = new ArrayList<>(certificates.size());
+        for(Certificate certificate : certificates) {
+            list.add((X509Certificate)certificate);
+        }
+        return list;
+    }
+
+    private static boolean isSelfSigned(X509Certificate certificate) {
+        if( !certificate.getSubjectX500Principal().equals(certificate.getIssuerX500Principal()) ) {
+            return false;
+        }
+        try {
+            certificate.verify(certificate.getPublicKey());
+            return true;
+        }
+        catch(GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    /**
+     *
+     * @return the keyIdentifier of the authority key identifier extension, or null if there is none
+     */
+    static byte[] authorityKeyIdentifier(X509Certificate certificate) {
+        byte[] value = certificate.getExtensionValue(Extension.authorityKeyIdentifier.getId());
+        if( value == null ) { return null; }
+        try {
+            return AuthorityKeyIdentifier.getInstance(ASN1OctetString.getInstance(value).getOctets()).getKeyIdentifier();
+        }
+        catch(IllegalArgumentException e) {
+            log.debug("Cannot decode authority key identifier of {}: {}", certificate.getSubjectX500Principal(), e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Marks the TCG critical extensions as processed on the EK certificate
+     * only, so the same extensions on a CA certificate still fail the path.
+     * Forward checking is not supported, so path building does not treat
+     * the extensions as supported on every certificate.
+     */
+    private static class TcgExtensionChecker extends PKIXCertPathChecker {
+        private final X509Certificate ekCertificate;
+
+        TcgExtensionChecker(X509Certificate ekCertificate) {
+            this.ekCertificate = ekCertificate;
+        }
+
+        @Override
+        public void init(boolean forward) throws CertPathValidatorException {
+            if( forward ) {
+                throw new CertPathValidatorException("Forward checking is not supported");
+            }
+        }
+
+        @Override
+        public boolean isForwardCheckingSupported() {
+            return false;
+        }
+
+        /**
+         * The path builder skips these extensions while it searches for
+         * issuers and leaves the decision to {@link #check}, which runs on
+         * the completed path.
+         */
+        @Override
+        public Set<String> getSupportedExtensions() {
+            return TCG_CRITICAL_EXTENSIONS;
+        }
+
+        @Override
+        public void check(Certificate certificate, Collection<String> unresolvedCritExts) throws CertPathValidatorException {
+            if( certificate.equals(ekCertificate) ) {
+                unresolvedCritExts.removeAll(TCG_CRITICAL_EXTENSIONS);
+                return;
+            }
+            for(String oid : TCG_CRITICAL_EXTENSIONS) {
+                if( unresolvedCritExts.contains(oid) ) {
+                    throw new CertPathValidatorException("Unrecognized critical extension " + oid + " on CA certificate");
+                }
+            }
+        }
+    }
+
+    private static class IssuerPath {
+        private final List<X509Certificate> certificates;
+        private final TrustAnchor anchor;
+        private final long expiresNanos;
+
+        IssuerPath(List<X509Certificate> certificates, TrustAnchor anchor, long expiresNanos) {
+            this.certificates = certificates;
+            this.anchor = anchor;
+            this.expiresNanos = expiresNanos;
+        }
+    }
+
+    private static class Verdict {
+        private final boolean valid;
+        private final long expiresNanos;
+
+        Verdict(boolean valid, long expiresNanos) {
+            this.valid = valid;
+            this.expiresNanos = expiresNanos;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-memory {@link PrivacyCaMetrics} with a latency histogram per stage,
+ * counters for the TrouSerS request formats, and failure counts by stage
+ * and reason.
+ *
+ * Histograms use power-of-two nanosecond buckets, so percentiles are
+ * reported as the upper bound of the bucket that contains them, which is
+ * within a factor of two of the true value. That is enough to tell whether
+ * RSA, certificate generation or parsing is responsible for a latency
+ * spike. Recording is lock-free.
+ */
+public class HistogramPrivacyCaMetrics implements PrivacyCaMetrics {
+    private final EnumMap<Stage,Histogram> stages = new EnumMap<>(Stage.class);
+    private final Histogram completed = new Histogram();
+    private final AtomicLong ivInBlob = new AtomicLong();
+    private final AtomicLong symkeyEncschemeNone = new AtomicLong();
+    private final AtomicLong blankOaep = new AtomicLong();
+    private final AtomicLong specCompliant = new AtomicLong();
+    private final ConcurrentHashMap<String,AtomicLong> failures = new ConcurrentHashMap<>();
+
+    public HistogramPrivacyCaMetrics() {
+        for(Stage stage : Stage.values()) {
+            stages.put(stage, new Histogram());
+        }
+    }
+
+    @Override
+    public void recordStage(Stage stage, long nanos) {
+        stages.get(stage).record(nanos);
+    }
+
+    @Override
+    public void recordCompleted(long nanos) {
+        completed.record(nanos);
+    }
+
+    @Override
+    public void recordFailure(Stage stage, String reason) {
+        String key = stage.name() + ":" + reason;
+        AtomicLong counter = failures.get(key);
+        if( counter == null ) {
+            AtomicLong created = new AtomicLong();
+            counter = failures.putIfAbsent(key, created);
+            if( counter == null ) { counter = created; }
+        }
+        counter.incrementAndGet();
+    }
+
+    @Override
+    public void recordRequestFormat(boolean ivInBlob, boolean symkeyEncschemeNone, boolean blankOaep) {
+        if( ivInBlob ) { this.ivInBlob.incrementAndGet(); }
+        if( symkeyEncschemeNone ) { this.symkeyEncschemeNone.incrementAndGet(); }
+        if( blankOaep ) { this.blankOaep.incrementAndGet(); }
+        if( !ivInBlob && !symkeyEncschemeNone && !blankOaep ) { specCompliant.incrementAndGet(); }
+    }
+
+    public Histogram getStage(Stage stage) {
+        return stages.get(stage);
+    }
+
+    public Histogram getCompleted() {
+        return completed;
+    }
+
+    public long getIvInBlobCount() {
+        return ivInBlob.get();
+    }
+
+    public long getSymkeyEncschemeNoneCount() {
+        return symkeyEncschemeNone.get();
+    }
+
+    public long getBlankOaepCount() {
+        return blankOaep.get();
+    }
+
+    public long getSpecCompliantCount() {
+        return specCompliant.get();
+    }
+
+    /**
+     *
+     * @return failure counts keyed by "STAGE:reason"
+     */
+    public Map<String,Long> getFailures() {
+        HashMap<String,Long> copy = new HashMap<>();
+        for(Map.Entry<String,AtomicLong> entry : failures.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue().get());
+        }
+        return Collections.unmodifiableMap(copy);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("completed: ").append(completed).append("\n");
+        for(Stage stage : Stage.values()) {
+            sb.append(stage.name()).append(": ").append(stages.get(stage)).append("\n");
+        }
+        sb.append("format: ivInBlob=").append(ivInBlob.get())
+                .append(" symkeyEncschemeNone=").append(symkeyEncschemeNone.get())
+                .append(" blankOaep=").append(blankOaep.get())
+                .append(" specCompliant=").append(specCompliant.get()).append("\n");
+        sb.append("failures: ").append(getFailures());
+        return sb.toString();
+    }
+
+    /**
+     * Lock-free histogram with one bucket per power of two nanoseconds.
+     */
+    public static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            if( nanos < 0 ) { nanos = 0; }
+            buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(nanos | 1));
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while( nanos > max && !maxNanos.compareAndSet(max, nanos) ) {
+                max = maxNanos.get();
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.get();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        public long getMeanNanos() {
+            long n = count.get();
+            return n == 0 ? 0 : totalNanos.get() / n;
+        }
+
+        /**
+         *
+         * @param percentile between 0 and 100, for example 99
+         * @return upper bound in nanoseconds of the bucket containing the percentile, or 0 if nothing was recorded
+         */
+        public long getPercentileNanos(double percentile) {
+            long[] snapshot = new long[buckets.length()];
+            long n = 0;
+            for(int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = buckets.get(i);
+                n += snapshot[i];
+            }
+            if( n == 0 ) { return 0; }
+            long rank = (long)Math.ceil(n * percentile / 100.0);
+            long seen = 0;
+            for(int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if( seen >= rank && snapshot[i] > 0 ) {
+                    return Math.min((i == 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1), getMaxNanos());
+                }
+            }
+            return getMaxNanos();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d mean=%dus p50=%dus p99=%dus max=%dus", getCount(), getMeanNanos() / 1000,
+                    getPercentileNanos(50) / 1000, getPercentileNanos(99) / 1000, getMaxNanos() / 1000);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+/**
+ * State kept by the Privacy CA between the identity challenge request and
+ * the identity challenge response, so the response can be checked without
+ * decrypting or parsing the original request again.
+ *
+ * @see IdentityChallengeSessionStore
+ */
+public class IdentityChallengeSession {
+    private final String challengeId;
+    private final byte[] nonce;
+    private final PublicKey aikPublicKey;
+    private final X509Certificate ekCertificate;
+    private final byte[] aikName;
+
+    /**
+     *
+     * @param challengeId identifier returned to the client with the challenge
+     * @param nonce the secret the client must return in its response
+     * @param aikPublicKey the AIK public key from the identity request
+     * @param ekCertificate the parsed EK certificate from the identity request
+     * @param aikName the TPM 2.0 AIK name, or null for TPM 1.2
+     */
+    public IdentityChallengeSession(String challengeId, byte[] nonce, PublicKey aikPublicKey, X509Certificate ekCertificate, byte[] aikName) {
+        this.challengeId = challengeId;
+        this.nonce = nonce.clone();
+        this.aikPublicKey = aikPublicKey;
+        this.ekCertificate = ekCertificate;
+        this.aikName = aikName == null ? null : aikName.clone();
+    }
+
+    public String getChallengeId() {
+        return challengeId;
+    }
+
+    public byte[] getNonce() {
+        return nonce.clone();
+    }
+
+    /**
+     * Compares in constant time so the check does not reveal how much of
+     * the nonce was correct.
+     *
+     * @param response the nonce decrypted from the client's response
+     * @return true if it equals the expected nonce
+     */
+    public boolean isExpectedNonce(byte[] response) {
+        if( response == null || response.length != nonce.length ) {
+            return false;
+        }
+        int diff = 0;
+        for(int i = 0; i < nonce.length; i++) {
+            diff |= nonce[i] ^ response[i];
+        }
+        return diff == 0;
+    }
+
+    public PublicKey getAikPublicKey() {
+        return aikPublicKey;
+    }
+
+    public X509Certificate getEkCertificate() {
+        return ekCertificate;
+    }
+
+    public byte[] getAikName() {
+        return aikName == null ? null : aikName.clone();
+    }
+
+    public boolean hasAikName(byte[] name) {
+        return aikName != null && Arrays.equals(aikName, name);
+    }
+}
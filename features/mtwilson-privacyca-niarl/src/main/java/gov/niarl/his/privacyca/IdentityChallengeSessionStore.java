@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import com.intel.dcsg.cpg.crypto.RandomUtil;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded store of {@link IdentityChallengeSession} with a fixed time to
+ * live, for the identity challenge request/response round trip.
+ *
+ * The challenge request handler stores the session under a new challenge
+ * id; the response handler takes it back with {@link #take(String)}. A
+ * session can be taken only once, so a replayed response finds nothing.
+ *
+ * Lookups do not lock. Because every session has the same time to live,
+ * insertion order is also expiry order; sessions are kept in a queue in
+ * that order and expired sessions are removed from its head when a new
+ * session is stored. When the store is full the oldest session is evicted.
+ */
+public class IdentityChallengeSessionStore {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(IdentityChallengeSessionStore.class);
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final int maxSessions;
+    private final long ttlNanos;
+    private final ConcurrentHashMap<String,Entry> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Entry> insertionOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    /**
+     *
+     * @param maxSessions maximum number of outstanding challenges
+     * @param ttl how long a challenge remains valid
+     * @param unit unit of ttl
+     */
+    public IdentityChallengeSessionStore(int maxSessions, long ttl, TimeUnit unit) {
+        if( maxSessions <= 0 || ttl <= 0 ) {
+            throw new IllegalArgumentException("Maximum sessions and time to live must be positive");
+        }
+        this.maxSessions = maxSessions;
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     *
+     * @return a new random challenge id, 32 hex characters
+     */
+    public static String createChallengeId() {
+        byte[] random = new byte[16];
+        RandomUtil.getSecureRandom().nextBytes(random);
+        char[] hex = new char[random.length * 2];
+        for(int i = 0; i < random.length; i++) {
+            hex[2*i] = HEX[(random[i] >> 4) & 0x0f];
+            hex[2*i+1] = HEX[random[i] & 0x0f];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Stores the session under its challenge id, replacing any session with
+     * the same id.
+     *
+     * @param session the state of an issued challenge
+     */
+    public void put(IdentityChallengeSession session) {
+        long now = System.nanoTime();
+        Entry entry = new Entry(session, now + ttlNanos);
+        sessions.put(session.getChallengeId(), entry);
+        insertionOrder.offer(entry);
+        stored.incrementAndGet();
+        trim(now);
+    }
+
+    /**
+     * Removes and returns the session for the challenge id.
+     *
+     * @param challengeId the id from the challenge response
+     * @return the session, or null if there is none or it has expired
+     */
+    public IdentityChallengeSession take(String challengeId) {
+        Entry entry = sessions.remove(challengeId);
+        if( entry == null ) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if( entry.isExpired(System.nanoTime()) ) {
+            expired.incrementAndGet();
+            misses.incrementAndGet();
+            log.debug("Identity challenge {} expired", challengeId);
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.session;
+    }
+
+    /**
+     * Returns the session without removing it.
+     *
+     * @param challengeId the challenge id
+     * @return the session, or null if there is none or it has expired
+     */
+    public IdentityChallengeSession peek(String challengeId) {
+        Entry entry = sessions.get(challengeId);
+        if( entry == null || entry.isExpired(System.nanoTime()) ) {
+            return null;
+        }
+        return entry.session;
+    }
+
+    /**
+     * Removes expired sessions. This also happens on every put, so calling
+     * it is only needed to release memory when no new challenges arrive.
+     */
+    public void evictExpired() {
+        trim(System.nanoTime());
+    }
+
+    private synchronized void trim(long now) {
+        Entry entry;
+        while( (entry = insertionOrder.peek()) != null ) {
+            String challengeId = entry.session.getChallengeId();
+            if( sessions.get(challengeId) != entry ) {
+                // already taken, or replaced by a later put of the same id
+                insertionOrder.poll();
+                continue;
+            }
+            if( entry.isExpired(now) ) {
+                insertionOrder.poll();
+                if( sessions.remove(challengeId, entry) ) {
+                    expired.incrementAndGet();
+                }
+                continue;
+            }
+            if( sessions.size() > maxSessions ) {
+                insertionOrder.poll();
+                if( sessions.remove(challengeId, entry) ) {
+                    evicted.incrementAndGet();
+                    log.debug("Evicted identity challenge {} because the store is full", challengeId);
+                }
+                continue;
+            }
+            break;
+        }
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    public long getStoredCount() {
+        return stored.get();
+    }
+
+    /**
+     *
+     * @return number of take calls that found a live session
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     *
+     * @return number of take calls that found no session or an expired one
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double)h / total;
+    }
+
+    /**
+     *
+     * @return number of sessions removed because their time to live passed
+     */
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    /**
+     *
+     * @return number of live sessions removed because the store was full
+     */
+    public long getEvictedCount() {
+        return evicted.get();
+    }
+
+    private static class Entry {
+        private final IdentityChallengeSession session;
+        private final long expiresNanos;
+
+        Entry(IdentityChallengeSession session, long expiresNanos) {
+            this.session = session;
+            this.expiresNanos = expiresNanos;
+        }
+
+        boolean isExpired(long now) {
+            return now - expiresNanos >= 0;
+        }
+    }
+}
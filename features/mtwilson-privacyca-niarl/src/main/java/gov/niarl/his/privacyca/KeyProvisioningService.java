@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates key pairs ahead of time on background threads so that CA and
+ * client keystore creation does not wait for key generation, which takes
+ * seconds for 3072 and 4096 bit RSA keys.
+ *
+ * Each registered {@link KeyType} has its own bounded pool and its own
+ * generator threads, which block while the pool is full. {@link #take(KeyType)}
+ * returns a pooled key pair, or generates one on the calling thread when the
+ * pool is empty or the type was not registered.
+ *
+ * TpmUtils.createCaP12 and createClientP12 use the service installed with
+ * {@link TpmUtils#setKeyProvisioningService(KeyProvisioningService)}.
+ */
+public class KeyProvisioningService implements AutoCloseable {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(KeyProvisioningService.class);
+
+    private final Map<KeyType,LinkedBlockingQueue<KeyPair>> pools;
+    private final ExecutorService executor;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     *
+     * @param types the key types to pre-generate
+     * @param poolSize number of key pairs kept ready for each type
+     * @param threadsPerType number of generator threads for each type
+     */
+    public KeyProvisioningService(List<KeyType> types, int poolSize, int threadsPerType) {
+        if( poolSize <= 0 || threadsPerType <= 0 ) {
+            throw new IllegalArgumentException("Pool size and threads per type must be positive");
+        }
+        HashMap<KeyType,LinkedBlockingQueue<KeyPair>> map = new HashMap<>();
+        for(KeyType type : types) {
+            map.put(type, new LinkedBlockingQueue<KeyPair>(poolSize));
+        }
+        this.pools = Collections.unmodifiableMap(map);
+        this.executor = Executors.newFixedThreadPool(Math.max(1, pools.size() * threadsPerType), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "privacyca-keygen-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        for(final Map.Entry<KeyType,LinkedBlockingQueue<KeyPair>> pool : pools.entrySet()) {
+            for(int i = 0; i < threadsPerType; i++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        fill(pool.getKey(), pool.getValue());
+                    }
+                });
+            }
+        }
+    }
+
+    private void fill(KeyType type, LinkedBlockingQueue<KeyPair> pool) {
+        try {
+            while( !Thread.currentThread().isInterrupted() ) {
+                pool.put(type.generate());
+            }
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch(GeneralSecurityException e) {
+            log.error("Cannot pre-generate {} keys: {}", type, e.getMessage());
+        }
+    }
+
+    /**
+     *
+     * @param type the kind of key pair needed
+     * @return a new key pair that has not been returned before
+     * @throws GeneralSecurityException if the key pair must be generated now and the algorithm is not available
+     */
+    public KeyPair take(KeyType type) throws GeneralSecurityException {
+        LinkedBlockingQueue<KeyPair> pool = pools.get(type);
+        if( pool != null ) {
+            KeyPair keyPair = pool.poll();
+            if( keyPair != null ) {
+                hits.incrementAndGet();
+                return keyPair;
+            }
+        }
+        misses.incrementAndGet();
+        return type.generate();
+    }
+
+    /**
+     * Waits up to the timeout for a pooled key pair before generating one
+     * on the calling thread.
+     */
+    public KeyPair take(KeyType type, long timeout, TimeUnit unit) throws GeneralSecurityException, InterruptedException {
+        LinkedBlockingQueue<KeyPair> pool = pools.get(type);
+        if( pool != null ) {
+            KeyPair keyPair = pool.poll(timeout, unit);
+            if( keyPair != null ) {
+                hits.incrementAndGet();
+                return keyPair;
+            }
+        }
+        misses.incrementAndGet();
+        return type.generate();
+    }
+
+    /**
+     *
+     * @return number of key pairs ready for the type, or 0 if it is not registered
+     */
+    public int getAvailable(KeyType type) {
+        LinkedBlockingQueue<KeyPair> pool = pools.get(type);
+        return pool == null ? 0 : pool.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Stops the generator threads and discards the pooled key pairs.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        for(LinkedBlockingQueue<KeyPair> pool : pools.values()) {
+            pool.clear();
+        }
+    }
+
+    /**
+     * Creates a PKCS12 keystore with one key entry and writes it with NIO.
+     * The keystore is written to a temporary file in the same directory and
+     * moved into place, so readers never see a partially written file.
+     *
+     * @param file destination keystore file
+     * @param password keystore and key password
+     * @param alias key entry alias
+     * @param privateKey the private key
+     * @param chain the certificate chain, starting with the certificate for privateKey
+     */
+    public static void writePkcs12(Path file, char[] password, String alias, PrivateKey privateKey, Certificate[] chain)
+            throws KeyStoreException, NoSuchAlgorithmException, CertificateException, IOException {
+        KeyStore keystore = KeyStore.getInstance("PKCS12");
+        keystore.load(null, password);
+        keystore.setKeyEntry(alias, privateKey, password, chain);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        keystore.store(out, password);
+        Path directory = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, out.toByteArray());
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * An algorithm and key size or named curve.
+     */
+    public static class KeyType {
+        public static final KeyType RSA_2048 = rsa(2048);
+        public static final KeyType RSA_3072 = rsa(3072);
+        public static final KeyType RSA_4096 = rsa(4096);
+        public static final KeyType EC_P256 = ec("secp256r1");
+        public static final KeyType EC_P384 = ec("secp384r1");
+
+        private final String algorithm;
+        private final int keySize;
+        private final String curve;
+
+        private KeyType(String algorithm, int keySize, String curve) {
+            this.algorithm = algorithm;
+            this.keySize = keySize;
+            this.curve = curve;
+        }
+
+        public static KeyType rsa(int keySize) {
+            return new KeyType("RSA", keySize, null);
+        }
+
+        /**
+         *
+         * @param curve a standard curve name such as secp256r1 (P-256) or secp384r1 (P-384)
+         */
+        public static KeyType ec(String curve) {
+            return new KeyType("EC", 0, curve);
+        }
+
+        public String getAlgorithm() {
+            return algorithm;
+        }
+
+        public KeyPair generate() throws NoSuchAlgorithmException, InvalidAlgorithmParameterException {
+            KeyPairGenerator keyGen = KeyPairGenerator.getInstance(algorithm);
+            if( curve == null ) {
+                keyGen.initialize(keySize);
+            }
+            else {
+                keyGen.initialize(new ECGenParameterSpec(curve));
+            }
+            return keyGen.generateKeyPair();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if( !(obj instanceof KeyType) ) { return false; }
+            KeyType other = (KeyType)obj;
+            return algorithm.equals(other.algorithm) && keySize == other.keySize
+                    && (curve == null ? other.curve == null : curve.equals(other.curve));
+        }
+
+        @Override
+        public int hashCode() {
+            return algorithm.hashCode() * 31 + keySize + (curve == null ? 0 : curve.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return curve == null ? algorithm + "-" + keySize : algorithm + "-" + curve;
+        }
+    }
+
+    public static List<KeyType> types(KeyType... types) {
+        ArrayList<KeyType> list = new ArrayList<>();
+        Collections.addAll(list, types);
+        return list;
+    }
+}
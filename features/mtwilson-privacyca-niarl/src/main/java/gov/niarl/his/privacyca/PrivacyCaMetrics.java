@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+/**
+ * Receives timing and outcome events from
+ * {@link TpmUtils#processIdentityRequest(byte[], java.security.interfaces.RSAPrivateKey, java.security.cert.X509Certificate, int)}.
+ *
+ * Install an implementation with {@link TpmUtils#setMetrics(PrivacyCaMetrics)};
+ * the default is {@link #NOOP}. {@link HistogramPrivacyCaMetrics} keeps
+ * the measurements in memory, and an application that already has a
+ * metrics registry can implement this interface to forward the events to it.
+ *
+ * Implementations are called on the request thread and must be thread-safe
+ * and fast; they must not throw.
+ */
+public interface PrivacyCaMetrics {
+
+    /**
+     * The stages of processing an identity request, in order.
+     */
+    enum Stage {
+        /** parsing the TPM_IDENTITY_REQUEST structure */
+        PARSE,
+        /** RSA decryption of the asymmetric blob with the Privacy CA key */
+        ASYM_DECRYPT,
+        /** symmetric decryption of the identity proof */
+        SYM_DECRYPT,
+        /** checking the EK credential is present, verifying the identity binding and validating the EK certificate */
+        BINDING_VERIFY,
+        /** generating and signing the AIK certificate */
+        CERT_ISSUE,
+        /** encrypting the AIK certificate for the TPM_SYM_CA_ATTESTATION */
+        SYM_ENCRYPT,
+        /** RSA encryption of the TPM_ASYM_CA_CONTENTS with the EK */
+        EK_ENCRYPT
+    }
+
+    /**
+     *
+     * @param stage the stage that completed successfully
+     * @param nanos elapsed time of the stage in nanoseconds
+     */
+    void recordStage(Stage stage, long nanos);
+
+    /**
+     *
+     * @param nanos elapsed time of the whole request in nanoseconds
+     */
+    void recordCompleted(long nanos);
+
+    /**
+     *
+     * @param stage the stage that failed
+     * @param reason short, low-cardinality reason such as the exception class name
+     */
+    void recordFailure(Stage stage, String reason);
+
+    /**
+     * Records which TrouSerS deviations from the TPM 1.2 specification were
+     * detected in a request that was decrypted successfully.
+     *
+     * @param ivInBlob the IV was at the head of the symmetric blob instead of in the key parameters
+     * @param symkeyEncschemeNone the symmetric key encryption scheme was TPM_ES_NONE
+     * @param blankOaep the OAEP parameter was blank instead of "TCPA"
+     */
+    void recordRequestFormat(boolean ivInBlob, boolean symkeyEncschemeNone, boolean blankOaep);
+
+    PrivacyCaMetrics NOOP = new PrivacyCaMetrics() {
+        @Override
+        public void recordStage(Stage stage, long nanos) {
+        }
+
+        @Override
+        public void recordCompleted(long nanos) {
+        }
+
+        @Override
+        public void recordFailure(Stage stage, String reason) {
+        }
+
+        @Override
+        public void recordRequestFormat(boolean ivInBlob, boolean symkeyEncschemeNone, boolean blankOaep) {
+        }
+    };
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs synthetic TPM 1.2 and TPM 2.0 enrollments through the Privacy CA
+ * code at service start, so the first real enrollments do not run in the
+ * interpreter against cold BouncyCastle and JCA providers.
+ *
+ * The warm-up creates a throwaway CA key and certificate, an EK with an EK
+ * certificate issued by that CA, and an AIK, all in memory. Each iteration
+ * then builds a new identity request and processes it with
+ * {@link TpmUtils#processIdentityRequest(byte[], RSAPrivateKey, X509Certificate, int)},
+ * alternating between the byte array and stream readers and between the
+ * TrouSerS and specification request formats, and performs the TPM 2.0
+ * steps: parse the AIK public area and compute its name, issue the AIK
+ * certificate with {@link TpmUtils#makeCert(TpmPubKey, String, RSAPrivateKey, X509Certificate, int, int)},
+ * encrypt it and wrap the key with {@link Tpm2Utils#makeCredential}.
+ *
+ * It stops after the configured number of iterations or the configured
+ * time, whichever comes first. Call {@link #run()} before the service
+ * reports ready: while it runs, the metrics hook and the serial number
+ * generator of TpmUtils are replaced so the synthetic enrollments are
+ * neither counted nor take serial numbers from the real generator, and
+ * both are restored afterwards. If an EK certificate validator is
+ * installed it is likewise replaced by one that trusts only the throwaway
+ * CA, so the path validation is warmed up as well. The AIK certificate template and
+ * certificate issuer that TpmUtils cached before are put back, the signers
+ * holding the throwaway CA key are discarded, and the throwaway EK and
+ * keys are removed from the installed EK certificate and public key
+ * caches.
+ *
+ * The warm-up runs the same code as real enrollments, so a failure is
+ * thrown from {@link #run()} rather than logged and ignored.
+ */
+public class PrivacyCaWarmup {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(PrivacyCaWarmup.class);
+    public static final int DEFAULT_ITERATIONS = 200;
+    public static final long DEFAULT_MAX_MILLIS = 30000;
+    public static final int DEFAULT_KEY_SIZE = 2048;
+    private static final int VALIDITY_DAYS = 1;
+    private static final String LABEL = "warmup";
+    /** TPM_ORD_MakeIdentity, signed in the identity binding */
+    private static final int TPM_ORD_MAKE_IDENTITY = 0x79;
+    private static final int TPM_ALG_RSASSA = 0x0014;
+
+    private final int iterations;
+    private final long maxNanos;
+    private final int keySize;
+    private final AtomicLong tpm12Count = new AtomicLong();
+    private final AtomicLong tpm2Count = new AtomicLong();
+    private volatile boolean complete = false;
+
+    private RSAPrivateKey caPrivateKey;
+    private X509Certificate caCertificate;
+    private RSAPublicKey ekPublicKey;
+    private byte[] ekCertificate;
+    private RSAPublicKey aikPublicKey;
+    private TpmPubKey aik;
+    private byte[] identityBinding;
+    private byte[] aikPublicArea;
+
+    public PrivacyCaWarmup() {
+        this(DEFAULT_ITERATIONS, DEFAULT_MAX_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_KEY_SIZE);
+    }
+
+    /**
+     *
+     * @param iterations number of TPM 1.2 and TPM 2.0 enrollment pairs to run
+     * @param maxTime time after which the warm-up stops even if iterations are left
+     * @param unit unit of the maximum time
+     * @param keySize RSA key size of the throwaway CA, which should match the real CA key
+     */
+    public PrivacyCaWarmup(int iterations, long maxTime, TimeUnit unit, int keySize) {
+        if( iterations < 0 || maxTime <= 0 || keySize < 1024 ) {
+            throw new IllegalArgumentException("Iterations must not be negative, the maximum time must be positive and the key size at least 1024");
+        }
+        this.iterations = iterations;
+        this.maxNanos = unit.toNanos(maxTime);
+        this.keySize = keySize;
+    }
+
+    /**
+     * Runs the warm-up in the calling thread. The service should not
+     * process identity requests until it returns.
+     *
+     * @return number of iterations completed
+     * @throws IllegalStateException if a synthetic enrollment failed
+     */
+    public int run() {
+        long start = System.nanoTime();
+        PrivacyCaMetrics metrics = TpmUtils.getMetrics();
+        SerialNumberGenerator serialNumberGenerator = TpmUtils.getSerialNumberGenerator();
+        AikCertificateTemplate aikCertificateTemplate = TpmUtils.getAikCertificateTemplate();
+        CertificateIssuer certificateIssuer = TpmUtils.getCertificateIssuer();
+        EkCertificateValidator ekCertificateValidator = TpmUtils.getEkCertificateValidator();
+        TpmUtils.setMetrics(PrivacyCaMetrics.NOOP);
+        TpmUtils.setSerialNumberGenerator(new DefaultSerialNumberGenerator());
+        int completed = 0;
+        try {
+            setUp();
+            if( ekCertificateValidator != null ) {
+                TpmUtils.setEkCertificateValidator(new EkCertificateValidator(Collections.singleton(caCertificate), 1, TimeUnit.HOURS, 1));
+            }
+            while( completed < iterations && System.nanoTime() - start < maxNanos ) {
+                enrollTpm12(completed);
+                tpm12Count.incrementAndGet();
+                enrollTpm2();
+                tpm2Count.incrementAndGet();
+                completed++;
+            }
+            log.info("Privacy CA warm-up completed {} iterations in {} ms", completed, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        catch(Exception e) {
+            throw new IllegalStateException("Privacy CA warm-up failed after " + completed + " iterations", e);
+        }
+        finally {
+            restore(aikCertificateTemplate, certificateIssuer);
+            removeCachedKeys();
+            TpmUtils.setMetrics(metrics);
+            TpmUtils.setSerialNumberGenerator(serialNumberGenerator);
+            TpmUtils.setEkCertificateValidator(ekCertificateValidator);
+            complete = true;
+        }
+        return completed;
+    }
+
+    /**
+     * Puts back the AIK certificate template and certificate issuer that
+     * were cached before the warm-up, and discards the calling thread's
+     * signers of the ones made for the throwaway CA.
+     */
+    private static void restore(AikCertificateTemplate aikCertificateTemplate, CertificateIssuer certificateIssuer) {
+        AikCertificateTemplate warmupTemplate = TpmUtils.getAikCertificateTemplate();
+        if( warmupTemplate != null && warmupTemplate != aikCertificateTemplate ) {
+            warmupTemplate.removeSigner();
+        }
+        TpmUtils.setAikCertificateTemplate(aikCertificateTemplate);
+        CertificateIssuer warmupIssuer = TpmUtils.getCertificateIssuer();
+        if( warmupIssuer != null && warmupIssuer != certificateIssuer ) {
+            warmupIssuer.removeSigner();
+        }
+        TpmUtils.setCertificateIssuer(certificateIssuer);
+    }
+
+    /**
+     * Removes the throwaway EK certificate and RSA keys from the caches
+     * installed in TpmUtils, so they do not take the place of real hosts.
+     */
+    private void removeCachedKeys() {
+        EkCertificateCache ekCertificateCache = TpmUtils.getEkCertificateCache();
+        if( ekCertificateCache != null && ekCertificate != null ) {
+            ekCertificateCache.invalidate(ekCertificate);
+        }
+        RsaPublicKeyCache publicKeyCache = TpmUtils.getPublicKeyCache();
+        if( publicKeyCache != null ) {
+            if( caCertificate != null ) {
+                publicKeyCache.invalidate(((RSAPublicKey)caCertificate.getPublicKey()).getModulus().toByteArray());
+            }
+            if( ekPublicKey != null ) {
+                publicKeyCache.invalidate(ekPublicKey.getModulus().toByteArray());
+            }
+            if( aikPublicKey != null ) {
+                publicKeyCache.invalidate(aikPublicKey.getModulus().toByteArray());
+            }
+        }
+    }
+
+    private void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(keySize);
+        KeyPair ca = generator.generateKeyPair();
+        caPrivateKey = (RSAPrivateKey)ca.getPrivate();
+        caCertificate = CertificateIssuer.createCaCertificate(ca, "Privacy CA warm-up", VALIDITY_DAYS);
+        generator.initialize(DEFAULT_KEY_SIZE);
+        KeyPair ek = generator.generateKeyPair();
+        ekPublicKey = (RSAPublicKey)ek.getPublic();
+        ekCertificate = TpmUtils.makeEkCert(ekPublicKey.getModulus().toByteArray(), caPrivateKey, caCertificate, VALIDITY_DAYS).getEncoded();
+        KeyPair aikPair = generator.generateKeyPair();
+        aikPublicKey = (RSAPublicKey)aikPair.getPublic();
+        aik = new TpmPubKey(aikPublicKey, 3, 1);
+        identityBinding = sign(aikPair, aik);
+        aikPublicArea = tpmtPublic(aikPublicKey);
+    }
+
+    /**
+     * Signs the TPM_IDENTITY_CONTENTS as the TPM does in TPM_MakeIdentity,
+     * so the request passes {@link TpmIdentityProof#checkValidity(RSAPublicKey)}.
+     */
+    private byte[] sign(KeyPair aikPair, TpmPubKey aik) throws Exception {
+        byte[] pca = new TpmPubKey((RSAPublicKey)caCertificate.getPublicKey(), 3, 1).toByteArray();
+        MessageDigest sha1 = MessageDigest.getInstance("SHA1");
+        sha1.update(LABEL.getBytes("UTF-8"));
+        sha1.update(pca);
+        byte[] chosenIdHash = sha1.digest();
+        Signature signature = Signature.getInstance("SHA1withRSA");
+        signature.initSign(aikPair.getPrivate());
+        signature.update(new byte[] { 0x01, 0x01, 0x00, 0x00 });
+        signature.update(TpmUtils.intToByteArray(TPM_ORD_MAKE_IDENTITY));
+        signature.update(chosenIdHash);
+        signature.update(aik.toByteArray());
+        return signature.sign();
+    }
+
+    /**
+     * Encodes the AIK as the TPMT_PUBLIC of a restricted RSA signing key.
+     */
+    private static byte[] tpmtPublic(RSAPublicKey key) {
+        int modulusLength = (key.getModulus().bitLength() + 7) / 8;
+        ByteBuffer area = ByteBuffer.allocate(26 + modulusLength);
+        area.putShort((short)Tpm2Public.TPM_ALG_RSA);
+        area.putShort((short)Tpm2Public.TPM_ALG_SHA256);
+        area.putInt(Tpm2Public.FIXED_TPM | Tpm2Public.FIXED_PARENT | Tpm2Public.SENSITIVE_DATA_ORIGIN | Tpm2Public.RESTRICTED | Tpm2Public.SIGN);
+        area.putShort((short)0); // authPolicy
+        area.putShort((short)Tpm2Public.TPM_ALG_NULL); // symmetric
+        area.putShort((short)TPM_ALG_RSASSA);
+        area.putShort((short)Tpm2Public.TPM_ALG_SHA256);
+        area.putShort((short)key.getModulus().bitLength());
+        area.putInt(0); // default exponent
+        area.putShort((short)modulusLength);
+        area.put(unsigned(key.getModulus(), modulusLength));
+        return area.array();
+    }
+
+    private static byte[] unsigned(BigInteger value, int length) {
+        byte[] bytes = value.toByteArray();
+        byte[] result = new byte[length];
+        int copy = Math.min(bytes.length, length);
+        System.arraycopy(bytes, bytes.length - copy, result, length - copy, copy);
+        return result;
+    }
+
+    private void enrollTpm12(int iteration) throws Exception {
+        boolean trousers = (iteration & 1) == 0;
+        // the EK certificate is also sent as the platform and conformance credential
+        // because TpmIdentityProof.toByteArray writes the EK length for all three
+        TpmIdentityProof proof = new TpmIdentityProof(LABEL.getBytes("UTF-8"), identityBinding, aik, ekCertificate, ekCertificate, ekCertificate, trousers, trousers, trousers);
+        byte[] request = new TpmIdentityRequest(proof, (RSAPublicKey)caCertificate.getPublicKey()).toByteArray();
+        idResponse response;
+        if( (iteration & 2) == 0 ) {
+            response = TpmUtils.processIdentityRequest(request, caPrivateKey, caCertificate, VALIDITY_DAYS);
+        }
+        else {
+            response = TpmUtils.processIdentityRequest(new ByteArrayInputStream(request), caPrivateKey, caCertificate, VALIDITY_DAYS);
+        }
+        response.toByteArray();
+    }
+
+    private void enrollTpm2() throws Exception {
+        Tpm2Public publicArea = Tpm2Public.parse(aikPublicArea);
+        byte[] name = publicArea.getName();
+        RSAPublicKey aikKey = publicArea.getRsaPublicKey();
+        X509Certificate aikCertificate = TpmUtils.makeCert(new TpmPubKey(aikKey, 3, 1), LABEL, caPrivateKey, caCertificate, VALIDITY_DAYS, 0);
+        byte[] key = TpmUtils.newRandomAESValue();
+        byte[] iv = TpmUtils.newRandomAESValue();
+        TpmUtils.tcgSymEncrypt(aikCertificate.getEncoded(), key, iv);
+        Tpm2Utils.makeCredential(ekPublicKey, Tpm2Algorithm.Symmetric.AES, 128, Tpm2Algorithm.Hash.SHA256, key, name);
+    }
+
+    /**
+     *
+     * @return true once {@link #run()} has returned, whether or not all iterations ran
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public long getTpm12Count() {
+        return tpm12Count.get();
+    }
+
+    public long getTpm2Count() {
+        return tpm2Count.get();
+    }
+}
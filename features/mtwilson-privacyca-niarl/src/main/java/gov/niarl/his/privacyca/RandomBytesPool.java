@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import com.intel.dcsg.cpg.crypto.RandomUtil;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded pool of pre-generated random blocks, filled by a background
+ * thread, so request threads do not contend on SecureRandom when they need
+ * a fresh AES key or IV.
+ *
+ * Request threads take blocks from a lock-free queue. Each block is handed
+ * out once. When the pool is empty the block is drawn directly from a
+ * SecureRandom obtained with RandomUtil.getSecureRandom(), as before, and
+ * the miss is counted. The filler thread's own SecureRandom is not used
+ * for misses, so request threads do not contend with the filler when the
+ * pool is drained under load.
+ *
+ * The pool is used by {@link TpmUtils#createRandomBytes(int)} when it is
+ * installed with {@link TpmUtils#setRandomBytesPool(RandomBytesPool)} and
+ * the requested length equals the block size. Without a pool (the default,
+ * "strict" mode) every call draws directly from SecureRandom.
+ *
+ * The filler thread is started by {@link #start()}, not by the constructor.
+ * Until then every block is a miss.
+ */
+public class RandomBytesPool implements AutoCloseable {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(RandomBytesPool.class);
+    private static final long IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final int blockSize;
+    private final int capacity;
+    private final int lowWatermark;
+    /** used only by the filler thread */
+    private final SecureRandom random;
+    private final ConcurrentLinkedQueue<byte[]> blocks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger available = new AtomicInteger();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong generated = new AtomicLong();
+    private volatile Thread filler;
+    private volatile boolean running = true;
+
+    /**
+     * Creates a pool of 16-byte blocks, the size of the AES-128 keys and
+     * IVs used in identity responses.
+     *
+     * @param capacity maximum number of blocks held in the pool
+     */
+    public RandomBytesPool(int capacity) {
+        this(16, capacity);
+    }
+
+    /**
+     *
+     * @param blockSize number of bytes in each block
+     * @param capacity maximum number of blocks held in the pool
+     */
+    public RandomBytesPool(int blockSize, int capacity) {
+        if( blockSize <= 0 || capacity <= 0 ) {
+            throw new IllegalArgumentException("Block size and capacity must be positive");
+        }
+        this.blockSize = blockSize;
+        this.capacity = capacity;
+        this.lowWatermark = capacity / 2;
+        this.random = RandomUtil.getSecureRandom();
+    }
+
+    /**
+     * Starts the background thread that fills the pool. Calling it again
+     * has no effect.
+     *
+     * @return this pool
+     * @throws IllegalStateException if the pool was closed
+     */
+    public synchronized RandomBytesPool start() {
+        if( !running ) {
+            throw new IllegalStateException("Random pool is closed");
+        }
+        if( filler == null ) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    fill();
+                }
+            }, "privacyca-random-pool");
+            thread.setDaemon(true);
+            thread.start();
+            filler = thread;
+        }
+        return this;
+    }
+
+    private void fill() {
+        while( running ) {
+            while( running && available.get() < capacity ) {
+                byte[] block = new byte[blockSize];
+                random.nextBytes(block);
+                blocks.offer(block);
+                available.incrementAndGet();
+                generated.incrementAndGet();
+            }
+            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+        log.debug("Random pool filler stopped");
+    }
+
+    /**
+     *
+     * @return a block of random bytes that no other caller has seen; from the pool if available, otherwise drawn directly
+     */
+    public byte[] nextBlock() {
+        byte[] block = blocks.poll();
+        if( block != null ) {
+            hits.incrementAndGet();
+            if( available.decrementAndGet() <= lowWatermark ) {
+                LockSupport.unpark(filler);
+            }
+            return block;
+        }
+        misses.incrementAndGet();
+        LockSupport.unpark(filler);
+        block = new byte[blockSize];
+        RandomUtil.getSecureRandom().nextBytes(block);
+        return block;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     *
+     * @return number of blocks currently in the pool
+     */
+    public int getAvailable() {
+        return available.get();
+    }
+
+    /**
+     *
+     * @return number of blocks served from the pool
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     *
+     * @return number of times the pool was empty and a block was drawn directly
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     *
+     * @return number of blocks generated by the background thread
+     */
+    public long getGenerated() {
+        return generated.get();
+    }
+
+    /**
+     *
+     * @return the filler thread, or null if the pool was not started
+     */
+    Thread getFiller() {
+        return filler;
+    }
+
+    /**
+     * Stops the background thread and discards the remaining blocks.
+     */
+    @Override
+    public synchronized void close() {
+        running = false;
+        LockSupport.unpark(filler);
+        blocks.clear();
+        available.set(0);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded LRU cache of RSA public keys keyed by the SHA-256 of the
+ * modulus, so that the same AIK or EK seen in repeated requests is turned
+ * into an RSAPublicKey once instead of going through BigInteger and
+ * KeyFactory every time.
+ *
+ * The cache is used by TpmUtils.makePubKey, and through it by
+ * TpmPubKey.getKey and Tpm2Utils.getPubKeyFromAikBlob, when it is installed
+ * with {@link TpmUtils#setPublicKeyCache(RsaPublicKeyCache)}.
+ */
+public class RsaPublicKeyCache {
+    /**
+     * Keyed by the modulus digest alone; each entry keeps the exponent it was
+     * made with, and a lookup with another exponent is a miss.
+     */
+    private final Map<ByteBuffer,Entry> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     *
+     * @param maxEntries maximum number of keys kept
+     */
+    public RsaPublicKeyCache(final int maxEntries) {
+        if( maxEntries <= 0 ) {
+            throw new IllegalArgumentException("Maximum entries must be positive");
+        }
+        this.entries = new LinkedHashMap<ByteBuffer,Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 0;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer,RsaPublicKeyCache.Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     *
+     * @param modulus the unsigned big-endian modulus
+     * @param exponent the unsigned big-endian public exponent
+     * @return the cached key, or null if it is not cached
+     */
+    public RSAPublicKey get(byte[] modulus, byte[] exponent) {
+        Entry entry;
+        synchronized(entries) {
+            entry = entries.get(ByteBuffer.wrap(digest(modulus)));
+        }
+        if( entry != null && Arrays.equals(entry.exponent, exponent) ) {
+            hits.incrementAndGet();
+            return entry.publicKey;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     *
+     * @param modulus the unsigned big-endian modulus the key was made from
+     * @param exponent the unsigned big-endian public exponent the key was made from
+     * @param publicKey the key
+     */
+    public void put(byte[] modulus, byte[] exponent, RSAPublicKey publicKey) {
+        Entry entry = new Entry(exponent.clone(), publicKey);
+        ByteBuffer key = ByteBuffer.wrap(digest(modulus));
+        synchronized(entries) {
+            entries.put(key, entry);
+        }
+    }
+
+    /**
+     *
+     * @param modulus the unsigned big-endian modulus of the key to remove
+     */
+    public void invalidate(byte[] modulus) {
+        ByteBuffer key = ByteBuffer.wrap(digest(modulus));
+        synchronized(entries) {
+            entries.remove(key);
+        }
+    }
+
+    public void clear() {
+        synchronized(entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized(entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    private static byte[] digest(byte[] modulus) {
+        int offset = 0;
+        while( offset < modulus.length - 1 && modulus[offset] == 0 ) {
+            offset++; // a leading zero does not change the key
+        }
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            sha256.update(modulus, offset, modulus.length - offset);
+            return sha256.digest();
+        }
+        catch(java.security.NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static class Entry {
+        private final byte[] exponent;
+        private final RSAPublicKey publicKey;
+
+        Entry(byte[] exponent, RSAPublicKey publicKey) {
+            this.exponent = exponent;
+            this.publicKey = publicKey;
+        }
+    }
+}
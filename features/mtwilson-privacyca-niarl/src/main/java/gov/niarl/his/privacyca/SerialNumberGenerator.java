@@ -0,0 +1,18 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.math.BigInteger;
+
+/**
+ * Supplies certificate serial numbers. Implementations must be thread-safe
+ * and must return positive values of at most 20 octets (RFC 5280 section
+ * 4.1.2.2) that are unique for the issuing CA.
+ *
+ * @see TpmUtils#setSerialNumberGenerator(SerialNumberGenerator)
+ */
+public interface SerialNumberGenerator {
+    BigInteger nextSerialNumber();
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A TPM 2.0 TPMS_ATTEST read in place from a ByteBuffer, as returned by
+ * TPM2_Certify for a binding or signing key.
+ *
+ * Like {@link Tpm2Public}, parsing only records field positions, and the
+ * getters return read-only views of the original bytes. For a
+ * TPM_ST_ATTEST_CERTIFY structure the certified name can be compared with
+ * the name of the key's public area by {@link #certifies(Tpm2Public)}
+ * without copying either.
+ */
+public final class Tpm2Attest {
+    /** TPM_GENERATED_VALUE, "\xffTCG" */
+    public static final int TPM_GENERATED_VALUE = 0xff544347;
+    public static final int TPM_ST_ATTEST_CERTIFY = 0x8017;
+    public static final int TPM_ST_ATTEST_QUOTE = 0x8018;
+
+    private final ByteBuffer attest;
+    private final int type;
+    private final int qualifiedSignerOffset;
+    private final int qualifiedSignerLength;
+    private final int extraDataOffset;
+    private final int extraDataLength;
+    private final long clock;
+    private final int resetCount;
+    private final int restartCount;
+    private final boolean safe;
+    private final long firmwareVersion;
+    private final int attestedOffset;
+    private final int certifiedNameOffset;
+    private final int certifiedNameLength;
+    private final int certifiedQualifiedNameOffset;
+    private final int certifiedQualifiedNameLength;
+
+    private Tpm2Attest(ByteBuffer attest, Tpm2Public.Reader reader) throws PrivacyCaException {
+        if( reader.uint32() != TPM_GENERATED_VALUE ) {
+            throw new PrivacyCaException("TPMS_ATTEST was not generated by a TPM");
+        }
+        type = reader.uint16();
+        qualifiedSignerLength = reader.uint16();
+        qualifiedSignerOffset = reader.skip(qualifiedSignerLength);
+        extraDataLength = reader.uint16();
+        extraDataOffset = reader.skip(extraDataLength);
+        // TPMS_CLOCK_INFO
+        clock = reader.uint64();
+        resetCount = reader.uint32();
+        restartCount = reader.uint32();
+        safe = attest.get(reader.skip(1)) != 0;
+        firmwareVersion = reader.uint64();
+        attestedOffset = reader.position();
+        if( type == TPM_ST_ATTEST_CERTIFY ) {
+            certifiedNameLength = reader.uint16();
+            certifiedNameOffset = reader.skip(certifiedNameLength);
+            certifiedQualifiedNameLength = reader.uint16();
+            certifiedQualifiedNameOffset = reader.skip(certifiedQualifiedNameLength);
+            attest.limit(reader.position());
+        }
+        else {
+            certifiedNameOffset = 0;
+            certifiedNameLength = 0;
+            certifiedQualifiedNameOffset = 0;
+            certifiedQualifiedNameLength = 0;
+        }
+        this.attest = attest;
+    }
+
+    /**
+     * Reads a TPMS_ATTEST starting at the position of the buffer. A
+     * certify structure ends after the qualified name and the buffer is
+     * advanced past it; any other type is assumed to extend to the limit of
+     * the buffer.
+     *
+     * @param in the buffer; its byte order is ignored, TPM structures are big-endian
+     * @throws PrivacyCaException if the structure is truncated or its magic value is wrong
+     */
+    public static Tpm2Attest parse(ByteBuffer in) throws PrivacyCaException {
+        Tpm2Attest parsed = new Tpm2Attest(in.slice(), new Tpm2Public.Reader(in.slice()));
+        in.position(in.position() + parsed.attest.limit());
+        return parsed;
+    }
+
+    public static Tpm2Attest parse(byte[] tpmsAttest) throws PrivacyCaException {
+        return parse(ByteBuffer.wrap(tpmsAttest));
+    }
+
+    /**
+     *
+     * @return a read-only view of the encoded TPMS_ATTEST, which is what the AIK signed
+     */
+    public ByteBuffer getEncoded() {
+        return attest.asReadOnlyBuffer();
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public ByteBuffer getQualifiedSigner() {
+        return view(qualifiedSignerOffset, qualifiedSignerLength);
+    }
+
+    public ByteBuffer getExtraData() {
+        return view(extraDataOffset, extraDataLength);
+    }
+
+    public long getClock() {
+        return clock;
+    }
+
+    public int getResetCount() {
+        return resetCount;
+    }
+
+    public int getRestartCount() {
+        return restartCount;
+    }
+
+    public boolean isSafe() {
+        return safe;
+    }
+
+    public long getFirmwareVersion() {
+        return firmwareVersion;
+    }
+
+    /**
+     *
+     * @return the TPMU_ATTEST for the type of this structure
+     */
+    public ByteBuffer getAttested() {
+        return view(attestedOffset, attest.limit() - attestedOffset);
+    }
+
+    /**
+     *
+     * @return the name of the certified object, or an empty buffer if this is not a certify structure
+     */
+    public ByteBuffer getCertifiedName() {
+        return view(certifiedNameOffset, certifiedNameLength);
+    }
+
+    public ByteBuffer getCertifiedQualifiedName() {
+        return view(certifiedQualifiedNameOffset, certifiedQualifiedNameLength);
+    }
+
+    /**
+     *
+     * @param publicArea the public area sent with the certified key
+     * @return true if this is a certify structure for that public area
+     * @throws NoSuchAlgorithmException if the name algorithm of the public area is not supported
+     */
+    public boolean certifies(Tpm2Public publicArea) throws NoSuchAlgorithmException {
+        return type == TPM_ST_ATTEST_CERTIFY && publicArea.hasName(getCertifiedName());
+    }
+
+    private ByteBuffer view(int offset, int length) {
+        ByteBuffer view = attest.asReadOnlyBuffer();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice();
+    }
+}
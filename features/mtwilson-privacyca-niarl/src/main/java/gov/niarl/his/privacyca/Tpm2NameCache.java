@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded LRU cache of TPM 2.0 object names keyed by the encoded
+ * TPMT_PUBLIC.
+ *
+ * A host presents the same AIK and keys on every request, so the name of
+ * each public area is hashed once. A lookup compares the public area
+ * with the cached one byte by byte, which is cheaper than hashing it again;
+ * the public area is copied only when a new entry is added.
+ */
+public class Tpm2NameCache {
+    private final Map<ByteBuffer,byte[]> names;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     *
+     * @param maxEntries maximum number of names kept
+     */
+    public Tpm2NameCache(final int maxEntries) {
+        if( maxEntries <= 0 ) {
+            throw new IllegalArgumentException("Maximum entries must be positive");
+        }
+        this.names = new LinkedHashMap<ByteBuffer,byte[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 0;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer,byte[]> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     *
+     * @param publicArea a parsed public area
+     * @return the TPM2B_NAME content of the public area
+     * @throws NoSuchAlgorithmException if its name algorithm is not supported
+     */
+    public byte[] getName(Tpm2Public publicArea) throws NoSuchAlgorithmException {
+        ByteBuffer encoded = publicArea.getEncoded();
+        byte[] name;
+        synchronized(names) {
+            name = names.get(encoded);
+        }
+        if( name != null ) {
+            hits.incrementAndGet();
+            return name.clone();
+        }
+        misses.incrementAndGet();
+        name = publicArea.getName();
+        // copy the key so the cache does not keep the whole request buffer
+        ByteBuffer key = ByteBuffer.allocate(encoded.remaining());
+        key.put(encoded.duplicate());
+        key.flip();
+        synchronized(names) {
+            names.put(key, name);
+        }
+        return name.clone();
+    }
+
+    /**
+     * Compares in constant time.
+     *
+     * @param publicArea a parsed public area
+     * @param name a name sent by the client
+     * @return true if the name is the name of the public area
+     */
+    public boolean hasName(Tpm2Public publicArea, byte[] name) throws NoSuchAlgorithmException {
+        return MessageDigest.isEqual(getName(publicArea), name);
+    }
+
+    public void clear() {
+        synchronized(names) {
+            names.clear();
+        }
+    }
+
+    public int size() {
+        synchronized(names) {
+            return names.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.InvalidKeySpecException;
+
+/**
+ * A TPM 2.0 TPMT_PUBLIC read in place from a ByteBuffer.
+ *
+ * Parsing records the position of each field in the encoded public area
+ * and does not copy it; getters that return a ByteBuffer return a
+ * read-only view of the original bytes. The object name, nameAlg followed
+ * by the digest of the whole TPMT_PUBLIC, is computed by passing that view
+ * to MessageDigest.update, and is kept with the instance once computed.
+ * Use a {@link Tpm2NameCache} to reuse names across requests.
+ *
+ * RSA and ECC keys are supported, which covers AIKs and the binding and
+ * signing keys a host certifies.
+ */
+public final class Tpm2Public {
+    public static final int TPM_ALG_RSA = 0x0001;
+    public static final int TPM_ALG_SHA1 = 0x0004;
+    public static final int TPM_ALG_SHA256 = 0x000B;
+    public static final int TPM_ALG_SHA384 = 0x000C;
+    public static final int TPM_ALG_SHA512 = 0x000D;
+    public static final int TPM_ALG_NULL = 0x0010;
+    public static final int TPM_ALG_RSAES = 0x0015;
+    public static final int TPM_ALG_ECDAA = 0x001A;
+    public static final int TPM_ALG_ECC = 0x0023;
+    /** TPMA_OBJECT bits checked by callers */
+    public static final int FIXED_TPM = 1 << 1;
+    public static final int FIXED_PARENT = 1 << 4;
+    public static final int SENSITIVE_DATA_ORIGIN = 1 << 5;
+    public static final int RESTRICTED = 1 << 16;
+    public static final int DECRYPT = 1 << 17;
+    public static final int SIGN = 1 << 18;
+
+    private final ByteBuffer area;
+    private final int type;
+    private final int nameAlg;
+    private final int objectAttributes;
+    private final int authPolicyOffset;
+    private final int authPolicyLength;
+    private final int symmetricAlg;
+    private final int schemeAlg;
+    private final int schemeHashAlg;
+    private final int keyBits;
+    private final long exponent;
+    private final int curveId;
+    private final int uniqueOffset;
+    private final int uniqueLength;
+    private final int uniqueYOffset;
+    private final int uniqueYLength;
+    private volatile byte[] name;
+
+    private Tpm2Public(ByteBuffer area, Reader reader) throws PrivacyCaException {
+        type = reader.uint16();
+        nameAlg = reader.uint16();
+        objectAttributes = reader.uint32();
+        authPolicyLength = reader.uint16();
+        authPolicyOffset = reader.skip(authPolicyLength);
+        if( type != TPM_ALG_RSA && type != TPM_ALG_ECC ) {
+            throw new PrivacyCaException("Unsupported TPMT_PUBLIC type: 0x" + Integer.toHexString(type));
+        }
+        // TPMT_SYM_DEF_OBJECT
+        symmetricAlg = reader.uint16();
+        if( symmetricAlg != TPM_ALG_NULL ) {
+            reader.skip(4); // keyBits, mode
+        }
+        // TPMT_RSA_SCHEME or TPMT_ECC_SCHEME
+        schemeAlg = reader.uint16();
+        if( schemeAlg != TPM_ALG_NULL && schemeAlg != TPM_ALG_RSAES ) {
+            schemeHashAlg = reader.uint16();
+            if( schemeAlg == TPM_ALG_ECDAA ) {
+                reader.skip(2); // count
+            }
+        }
+        else {
+            schemeHashAlg = TPM_ALG_NULL;
+        }
+        if( type == TPM_ALG_RSA ) {
+            keyBits = reader.uint16();
+            int storedExponent = reader.uint32();
+            exponent = storedExponent == 0 ? 65537 : storedExponent & 0xffffffffL;
+            curveId = 0;
+            uniqueLength = reader.uint16();
+            uniqueOffset = reader.skip(uniqueLength);
+            uniqueYOffset = 0;
+            uniqueYLength = 0;
+        }
+        else {
+            keyBits = 0;
+            exponent = 0;
+            curveId = reader.uint16();
+            // TPMT_KDF_SCHEME
+            if( reader.uint16() != TPM_ALG_NULL ) {
+                reader.skip(2);
+            }
+            uniqueLength = reader.uint16();
+            uniqueOffset = reader.skip(uniqueLength);
+            uniqueYLength = reader.uint16();
+            uniqueYOffset = reader.skip(uniqueYLength);
+        }
+        area.limit(reader.position());
+        this.area = area;
+    }
+
+    /**
+     * Reads a TPMT_PUBLIC starting at the position of the buffer, and
+     * advances the buffer past it.
+     *
+     * @param in the buffer; its byte order is ignored, TPM structures are big-endian
+     * @return the public area, which shares content with the buffer
+     * @throws PrivacyCaException if the structure is truncated or not an RSA or ECC key
+     */
+    public static Tpm2Public parse(ByteBuffer in) throws PrivacyCaException {
+        Tpm2Public publicArea = new Tpm2Public(in.slice(), new Reader(in.slice()));
+        in.position(in.position() + publicArea.area.limit());
+        return publicArea;
+    }
+
+    /**
+     * Reads a TPM2B_PUBLIC, a TPMT_PUBLIC preceded by its size, and
+     * advances the buffer past it.
+     *
+     * @throws PrivacyCaException if the structure is truncated, its size does not match its content, or it is not an RSA or ECC key
+     */
+    public static Tpm2Public parseSized(ByteBuffer in) throws PrivacyCaException {
+        if( in.remaining() < 2 ) {
+            throw new PrivacyCaException("TPM2B_PUBLIC is truncated");
+        }
+        int size = in.duplicate().getShort() & 0xffff;
+        if( in.remaining() < 2 + size ) {
+            throw new PrivacyCaException("TPM2B_PUBLIC is truncated");
+        }
+        ByteBuffer content = in.duplicate();
+        content.position(in.position() + 2);
+        content.limit(in.position() + 2 + size);
+        Tpm2Public publicArea = parse(content);
+        if( content.hasRemaining() ) {
+            throw new PrivacyCaException("TPM2B_PUBLIC size " + size + " does not match its content");
+        }
+        in.position(in.position() + 2 + size);
+        return publicArea;
+    }
+
+    public static Tpm2Public parse(byte[] tpmtPublic) throws PrivacyCaException {
+        return parse(ByteBuffer.wrap(tpmtPublic));
+    }
+
+    /**
+     *
+     * @return a read-only view of the encoded TPMT_PUBLIC
+     */
+    public ByteBuffer getEncoded() {
+        return area.asReadOnlyBuffer();
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getNameAlg() {
+        return nameAlg;
+    }
+
+    public int getObjectAttributes() {
+        return objectAttributes;
+    }
+
+    public boolean hasAttributes(int attributes) {
+        return (objectAttributes & attributes) == attributes;
+    }
+
+    public ByteBuffer getAuthPolicy() {
+        return view(authPolicyOffset, authPolicyLength);
+    }
+
+    public int getSymmetricAlg() {
+        return symmetricAlg;
+    }
+
+    public int getSchemeAlg() {
+        return schemeAlg;
+    }
+
+    public int getSchemeHashAlg() {
+        return schemeHashAlg;
+    }
+
+    /**
+     *
+     * @return the RSA key size in bits, or 0 for an ECC key
+     */
+    public int getKeyBits() {
+        return keyBits;
+    }
+
+    /**
+     *
+     * @return the RSA public exponent, with the TPM default 0 replaced by 65537, or 0 for an ECC key
+     */
+    public long getExponent() {
+        return exponent;
+    }
+
+    /**
+     *
+     * @return the TPM_ECC_CURVE of an ECC key, or 0 for an RSA key
+     */
+    public int getCurveId() {
+        return curveId;
+    }
+
+    /**
+     *
+     * @return the RSA modulus, or the x coordinate of an ECC point
+     */
+    public ByteBuffer getUnique() {
+        return view(uniqueOffset, uniqueLength);
+    }
+
+    /**
+     *
+     * @return the y coordinate of an ECC point, or an empty buffer for an RSA key
+     */
+    public ByteBuffer getUniqueY() {
+        return view(uniqueYOffset, uniqueYLength);
+    }
+
+    /**
+     *
+     * @return the RSA public key with the exponent from the public area
+     * @throws InvalidKeySpecException if this is not an RSA key
+     */
+    public RSAPublicKey getRsaPublicKey() throws NoSuchAlgorithmException, InvalidKeySpecException {
+        if( type != TPM_ALG_RSA ) {
+            throw new InvalidKeySpecException("TPMT_PUBLIC is not an RSA key");
+        }
+        byte[] modulus = new byte[uniqueLength];
+        getUnique().get(modulus);
+        byte[] exponentBytes = { (byte)(exponent >>> 24), (byte)(exponent >>> 16), (byte)(exponent >>> 8), (byte)exponent };
+        return TpmUtils.makePubKey(modulus, exponentBytes);
+    }
+
+    /**
+     *
+     * @return the TPM2B_NAME content: nameAlg followed by the digest of the TPMT_PUBLIC
+     * @throws NoSuchAlgorithmException if nameAlg is not a supported hash algorithm
+     */
+    public byte[] getName() throws NoSuchAlgorithmException {
+        byte[] result = name;
+        if( result == null ) {
+            MessageDigest digest = MessageDigest.getInstance(digestAlgorithm(nameAlg));
+            result = new byte[2 + digest.getDigestLength()];
+            result[0] = (byte)(nameAlg >>> 8);
+            result[1] = (byte)nameAlg;
+            // a writable duplicate lets the digest read the backing array directly
+            digest.update(area.duplicate());
+            try {
+                digest.digest(result, 2, result.length - 2);
+            }
+            catch(java.security.DigestException e) {
+                throw new IllegalStateException("Name buffer too small", e);
+            }
+            name = result;
+        }
+        return result.clone();
+    }
+
+    /**
+     * Compares in constant time.
+     *
+     * @param otherName a name sent by the client, such as a name digest or AIK name
+     * @return true if it equals the name of this public area
+     */
+    public boolean hasName(byte[] otherName) throws NoSuchAlgorithmException {
+        getName();
+        return MessageDigest.isEqual(name, otherName);
+    }
+
+    /**
+     * Same as {@link #hasName(byte[])} for a name read in place, such as the
+     * attested name of a {@link Tpm2Attest}; does not move the buffer.
+     */
+    public boolean hasName(ByteBuffer otherName) throws NoSuchAlgorithmException {
+        getName();
+        if( otherName.remaining() != name.length ) {
+            return false;
+        }
+        int diff = 0;
+        for(int i = 0; i < name.length; i++) {
+            diff |= name[i] ^ otherName.get(otherName.position() + i);
+        }
+        return diff == 0;
+    }
+
+    /**
+     *
+     * @return the MessageDigest algorithm for a TPM_ALG_ID hash algorithm
+     * @throws NoSuchAlgorithmException if the algorithm is not a supported hash
+     */
+    static String digestAlgorithm(int hashAlg) throws NoSuchAlgorithmException {
+        switch(hashAlg) {
+            case TPM_ALG_SHA1:
+                return "SHA-1";
+            case TPM_ALG_SHA256:
+                return "SHA-256";
+            case TPM_ALG_SHA384:
+                return "SHA-384";
+            case TPM_ALG_SHA512:
+                return "SHA-512";
+            default:
+                throw new NoSuchAlgorithmException("Unsupported TPM hash algorithm: 0x" + Integer.toHexString(hashAlg));
+        }
+    }
+
+    private ByteBuffer view(int offset, int length) {
+        ByteBuffer view = area.asReadOnlyBuffer();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice();
+    }
+
+    /**
+     * Reads big-endian fields and skips variable-length ones, reporting a
+     * truncated structure as a PrivacyCaException.
+     */
+    static class Reader {
+        private final ByteBuffer buffer;
+        private int position;
+
+        Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.position = buffer.position();
+        }
+
+        int uint16() throws PrivacyCaException {
+            try {
+                int value = buffer.getShort(position) & 0xffff;
+                position += 2;
+                return value;
+            }
+            catch(IndexOutOfBoundsException e) {
+                throw truncated();
+            }
+        }
+
+        int uint32() throws PrivacyCaException {
+            try {
+                int value = buffer.getInt(position);
+                position += 4;
+                return value;
+            }
+            catch(IndexOutOfBoundsException e) {
+                throw truncated();
+            }
+        }
+
+        long uint64() throws PrivacyCaException {
+            try {
+                long value = buffer.getLong(position);
+                position += 8;
+                return value;
+            }
+            catch(IndexOutOfBoundsException e) {
+                throw truncated();
+            }
+        }
+
+        /**
+         *
+         * @return the position of the skipped bytes
+         */
+        int skip(int length) throws PrivacyCaException {
+            if( length > buffer.limit() - position ) {
+                throw truncated();
+            }
+            int start = position;
+            position += length;
+            return start;
+        }
+
+        int position() {
+            return position;
+        }
+
+        private static PrivacyCaException truncated() {
+            return new PrivacyCaException("TPM structure is truncated");
+        }
+    }
+}
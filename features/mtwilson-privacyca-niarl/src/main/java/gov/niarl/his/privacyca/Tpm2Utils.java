@@ -7,19 +7,16 @@ package gov.niarl.his.privacyca;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.Provider;
 import java.security.PublicKey;
-import java.security.interfaces.RSAPublicKey;
+import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.MGF1ParameterSpec;
-import java.security.spec.RSAPublicKeySpec;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.crypto.BadPaddingException;
@@ -86,7 +83,6 @@ public class Tpm2Utils {
         }
     }
 
-    @SuppressWarnings("ConvertToStringSwitch")
     public static Tpm2Credential makeCredential(PublicKey key, Tpm2Algorithm.Symmetric symmetricAlgorithm, int symKeySizeInBits, Tpm2Algorithm.Hash nameAlgorithm, byte[] credential, byte[] objectName)
             throws NoSuchAlgorithmException,
             NoSuchPaddingException,
@@ -96,6 +92,27 @@ public class Tpm2Utils {
             BadPaddingException,
             ShortBufferException,
             IOException {
+        return makeCredential(key, symmetricAlgorithm, symKeySizeInBits, nameAlgorithm, credential, objectName, null);
+    }
+
+    /**
+     * Same as TPM2_MakeCredential, but with the randomness supplied by the caller.
+     * The random source provides both the seed and the OAEP padding of the
+     * encrypted seed, so a deterministic source produces a reproducible
+     * credential; this is meant for known-answer tests, not for production use.
+     *
+     * @param random source of the seed and OAEP padding, or null to use {@link TpmUtils#createRandomBytes(int)} and the provider default
+     */
+    @SuppressWarnings("ConvertToStringSwitch")
+    public static Tpm2Credential makeCredential(PublicKey key, Tpm2Algorithm.Symmetric symmetricAlgorithm, int symKeySizeInBits, Tpm2Algorithm.Hash nameAlgorithm, byte[] credential, byte[] objectName, SecureRandom random)
+            throws NoSuchAlgorithmException,
+            NoSuchPaddingException,
+            InvalidKeyException,
+            InvalidAlgorithmParameterException,
+            IllegalBlockSizeException,
+            BadPaddingException,
+            ShortBufferException,
+            IOException {
         if (credential == null || credential.length <= 0) {
             throw new IllegalArgumentException("credential is null or empty");
         }
@@ -123,7 +140,13 @@ public class Tpm2Utils {
         ByteBuffer encryptedSeed = ByteBuffer.allocate(Tpm2Credential.TPM2B_ENCRYPTED_SECRET_SIZE);
         switch (key.getAlgorithm()) {
             case "RSA": {
-                byte[] secretData = TpmUtils.createRandomBytes(nameAlgDigestLength);
+                byte[] secretData;
+                if (random == null) {
+                    secretData = TpmUtils.createRandomBytes(nameAlgDigestLength);
+                } else {
+                    secretData = new byte[nameAlgDigestLength];
+                    random.nextBytes(secretData);
+                }
                 seed = secretData;
                 Cipher rsaCipher;
                 Provider bcProvider = new BouncyCastleProvider();
@@ -138,7 +161,11 @@ public class Tpm2Utils {
                     throw new NoSuchAlgorithmException(nameAlgorithm + " is not (currently) supported");
                 }
 
-                rsaCipher.init(Cipher.PUBLIC_KEY, key, oaepSpec);
+                if (random == null) {
+                    rsaCipher.init(Cipher.PUBLIC_KEY, key, oaepSpec);
+                } else {
+                    rsaCipher.init(Cipher.PUBLIC_KEY, key, oaepSpec, random);
+                }
                 byte[] encryptedSecret = rsaCipher.doFinal(secretData);
                 encryptedSeed.order(ByteOrder.LITTLE_ENDIAN).putShort((short) encryptedSecret.length);
                 encryptedSeed.put(encryptedSecret);
@@ -288,12 +315,9 @@ public class Tpm2Utils {
     
     // needs to be updated to support more algorithms
     public static PublicKey getPubKeyFromAikBlob(byte[] blob) throws NoSuchAlgorithmException, InvalidKeySpecException {
-        BigInteger modI = new BigInteger(1, blob);
-        BigInteger expI = BigInteger.valueOf(65537);
-        RSAPublicKeySpec newKeySpec = new RSAPublicKeySpec(modI, expI);
-        KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-        RSAPublicKey newKey = (RSAPublicKey) keyFactory.generatePublic(newKeySpec);
-        return newKey;
+        // TPM 2.0 AIKs use the default exponent 65537; makePubKey uses the installed public key cache.
+        // When the whole TPMT_PUBLIC is available, Tpm2Public.getRsaPublicKey uses its actual exponent.
+        return TpmUtils.makePubKey(blob, new byte[] {0x01, 0x00, 0x01});
     }
 }
 
@@ -87,8 +87,11 @@ public class TpmAsymCaContents {
 		Cipher asymCipher = Cipher.getInstance("RSA/ECB/OAEPWithSha1AndMGF1Padding");
 		asymCipher.init(Cipher.PUBLIC_KEY, ekPubKey, oaepSpec);
 		byte[] newbytes = this.toPlaintextByteArray();
-		asymCipher.update(newbytes);
-		encrypted = asymCipher.doFinal();
+		try {
+			encrypted = asymCipher.doFinal(newbytes);
+		} finally {
+			java.util.Arrays.fill(newbytes, (byte)0); //the plaintext holds the symmetric key
+		}
 	}
 	/**
 	 * Get the encrypted TpmAsymCaContents as a byte array suitable for delivery to the TPM with TPM_ActivateIdentity.
@@ -124,6 +127,7 @@ public class TpmAsymCaContents {
 		byte [] returnArray = new byte[symKeyBytes.length + tpmDigest.length];
 		System.arraycopy(symKeyBytes, 0, returnArray, 0, symKeyBytes.length);
 		System.arraycopy(tpmDigest, 0, returnArray, symKeyBytes.length, tpmDigest.length);
+		java.util.Arrays.fill(symKeyBytes, (byte)0);
 		return returnArray;
 	}
 }
@@ -131,10 +131,25 @@ public class TpmIdentityProof {
 			throws PrivacyCaException, 
 			TpmUtils.TpmUnsignedConversionException, 
 			TpmUtils.TpmBytestreamResouceException {
+		this(blob, 0, blob.length, IV, symKey, oaep);
+	}
+	/**
+	 * Parse an Identity Proof from part of an array, such as a pooled decryption buffer. Every field is copied, 
+	 * so the array may be reused afterwards.
+	 * 
+	 * @param blob The array holding the decrypted form of the sym blob from the Identity Request.
+	 * @param offset The start of the Identity Proof in the array.
+	 * @param length The length of the Identity Proof.
+	 * @see #TpmIdentityProof(byte[], boolean, boolean, boolean)
+	 */
+	TpmIdentityProof(byte[] blob, int offset, int length, boolean IV, boolean symKey, boolean oaep) 
+			throws PrivacyCaException, 
+			TpmUtils.TpmUnsignedConversionException, 
+			TpmUtils.TpmBytestreamResouceException {
 		TrousersModeIV = IV;
 		TrousersModeSymkeyEncscheme = symKey;
 		TrousersModeBlankOeap = oaep;
-		ByteArrayInputStream bs = new ByteArrayInputStream(blob);
+		ByteArrayInputStream bs = new ByteArrayInputStream(blob, offset, length);
 		structVer = new byte[4];
 		structVer = TpmUtils.getBytes(bs, 4);
 		int labelSize = TpmUtils.getUINT32(bs);
@@ -51,6 +51,7 @@ public class TpmIdentityRequest {
 	private boolean TrousersModeIV = false;
 	private boolean TrousersModeSymkeyEncscheme = false;
 	private boolean TrousersModeBlankOeap = false;
+	private int symSize = -1;
 	
 	public byte[] getAsymBlob(){
 		return asymBlob;
@@ -135,6 +136,22 @@ public class TpmIdentityRequest {
                 throw new PrivacyCaException("Error generating TPM identity request");
             }
 	}
+	/**
+	 * Create a TpmIdentityRequest from its parsed header and asymmetric blob, used by TpmIdentityRequestReader. The symmetric 
+	 * blob is not held; it is decrypted as it is read from the stream.
+	 * 
+	 * @param asymAlgorithm The asym key_parms
+	 * @param symAlgorithm The sym key_parms
+	 * @param asymBlob The asymmetrically encrypted symmetric key
+	 * @param symSize The size of the symmetric blob that follows in the stream
+	 */
+	TpmIdentityRequest(TpmKeyParams asymAlgorithm, TpmKeyParams symAlgorithm, byte[] asymBlob, int symSize) {
+		this.asymAlgorithm = asymAlgorithm;
+		this.symAlgorithm = symAlgorithm;
+		TrousersModeIV = symAlgorithm.getTrouSerSmode();
+		this.asymBlob = asymBlob;
+		this.symSize = symSize;
+	}
 	/**
 	 * Create a new TpmIdentityRequest by supplying a TpmIdentityProof and the Privacy CA's public key. A symmetric key and IV will be randomly created.
 	 * 
@@ -415,6 +432,13 @@ public class TpmIdentityRequest {
 	public TpmKeyParams getSymKeyParams() {
 		return symAlgorithm;
 	}
+	/**
+	 * 
+	 * @return The size of the symmetric blob, including a TrouSerS-style IV if one was present.
+	 */
+	int getSymSize() {
+		return symBlob != null ? symBlob.length : symSize;
+	}
 	/**
 	 * 
 	 * @return A textual report of the contents of the identity request.
@@ -448,7 +472,7 @@ public class TpmIdentityRequest {
 	 * @throws InvalidAlgorithmParameterException
 	 * @throws TpmUtils.TpmBytestreamResouceException
 	 */
-	private TpmSymmetricKey decryptAsym(RSAPrivateKey privCaKey)
+	TpmSymmetricKey decryptAsym(RSAPrivateKey privCaKey)
 			throws NoSuchPaddingException, 
 			InvalidKeyException, 
 			BadPaddingException, 
@@ -506,7 +530,7 @@ public class TpmIdentityRequest {
 	 * @throws PrivacyCaException
 	 * @throws TpmUtils.TpmBytestreamResouceException
 	 */
-	private TpmIdentityProof decryptSym(TpmSymmetricKey symKey)
+	TpmIdentityProof decryptSym(TpmSymmetricKey symKey)
 			throws NoSuchAlgorithmException, 
 			NoSuchPaddingException, 
 			InvalidAlgorithmParameterException, 
@@ -516,13 +540,39 @@ public class TpmIdentityRequest {
 			IllegalBlockSizeException, 
 			PrivacyCaException, 
 			TpmUtils.TpmBytestreamResouceException {
+		Cipher symCipher = initSymCipher(symKey);
+		//decrypt into a pooled buffer; the proof copies its fields out of it
+		java.nio.ByteBuffer plain = TpmUtils.acquireBuffer(symCipher.getOutputSize(symBlob.length));
+		try {
+			symCipher.doFinal(java.nio.ByteBuffer.wrap(symBlob), plain);
+			TpmIdentityProof identProof = new TpmIdentityProof(plain.array(), plain.arrayOffset(), plain.position(), TrousersModeIV, TrousersModeSymkeyEncscheme, TrousersModeBlankOeap);
+			return identProof;
+		} catch (ShortBufferException e) {
+			throw new IllegalStateException("Identity proof buffer too small", e);
+		} finally {
+			TpmUtils.releaseBuffer(plain);
+		}
+	}
+	/**
+	 * Create a cipher for decrypting the symmetric portion of the request with the key from decryptAsym and the IV from the sym key_parms.
+	 * 
+	 * @param symKey The output of decryptAsym.
+	 * @return A cipher initialized for decryption.
+	 * @throws NoSuchAlgorithmException
+	 * @throws NoSuchPaddingException
+	 * @throws InvalidAlgorithmParameterException
+	 * @throws InvalidKeyException
+	 */
+	Cipher initSymCipher(TpmSymmetricKey symKey)
+			throws NoSuchAlgorithmException, 
+			NoSuchPaddingException, 
+			InvalidAlgorithmParameterException, 
+			InvalidKeyException {
 		String instance = symKey.getAlgorithmStr() + "/" + symKey.getEncSchemeStr();
-		//System.out.println("Instance: " + instance);
 		Cipher symCipher = Cipher.getInstance(instance);
 		IvParameterSpec ivSpec = new IvParameterSpec(symAlgorithm.getSubParams().getByteData());
 		symCipher.init(Cipher.DECRYPT_MODE, symKey.getSecretKey(), ivSpec);
-		TpmIdentityProof identProof = new TpmIdentityProof(symCipher.doFinal(symBlob), TrousersModeIV, TrousersModeSymkeyEncscheme, TrousersModeBlankOeap);
-		return identProof;
+		return symCipher;
 	}
 	/**
 	 * If the byte blob captured as an Identity Request was not an encrypted Identity Proof (which could be done to transfer data from client to Privacy CA outside of the specification), then this method of decrypting the symblob may be preferable.
@@ -549,12 +599,16 @@ public class TpmIdentityRequest {
 			IllegalBlockSizeException, 
 			PrivacyCaException, 
 			TpmUtils.TpmBytestreamResouceException {
-		String instance = symKey.getAlgorithmStr() + "/" + symKey.getEncSchemeStr();
-		//System.out.println("Instance: " + instance);
-		Cipher symCipher = Cipher.getInstance(instance);
-		IvParameterSpec ivSpec = new IvParameterSpec(symAlgorithm.getSubParams().getByteData());
-		symCipher.init(Cipher.DECRYPT_MODE, symKey.getSecretKey(), ivSpec);
-		return symCipher.doFinal(symBlob);
+		Cipher symCipher = initSymCipher(symKey);
+		java.nio.ByteBuffer plain = TpmUtils.acquireBuffer(symCipher.getOutputSize(symBlob.length));
+		try {
+			symCipher.doFinal(java.nio.ByteBuffer.wrap(symBlob), plain);
+			return java.util.Arrays.copyOfRange(plain.array(), plain.arrayOffset(), plain.arrayOffset() + plain.position());
+		} catch (ShortBufferException e) {
+			throw new IllegalStateException("Identity proof buffer too small", e);
+		} finally {
+			TpmUtils.releaseBuffer(plain);
+		}
 	}
 	/**
 	 * Decrypt the identity request to get the identity proof.
@@ -623,6 +677,27 @@ public class TpmIdentityRequest {
 	 */
 	private void findIv() 
 			throws PrivacyCaException { //must be called at this level to have access to symBlob
+		int ivLength = trousersIvLength();
+		if (ivLength > 0) {
+			//snag the first (blocksize) bits from the symBlob
+			if (symBlob.length < ivLength) throw new PrivacyCaException("Symmetric blob is shorter than its IV");
+			byte [] newIv = new byte[ivLength];
+			System.arraycopy(symBlob, 0, newIv, 0, newIv.length);
+			symAlgorithm.getSubParams().setByteData(newIv);
+			byte [] newSymBlob = new byte[symBlob.length - newIv.length];
+			System.arraycopy(symBlob, newIv.length, newSymBlob, 0, newSymBlob.length);
+			symBlob = newSymBlob;
+		}
+	}
+	/**
+	 * Detects a TrouSerS-style request, in which the IV is not in the symmetric key parameters but at the head of the 
+	 * symmetric blob, and fills in the key length and block size for the symmetric algorithm.
+	 * 
+	 * @return The length of the IV at the head of the symmetric blob, or 0 if the IV is in the symmetric key parameters.
+	 * @throws PrivacyCaException If the symmetric algorithm is not recognized.
+	 */
+	int trousersIvLength() 
+			throws PrivacyCaException {
 		//Because TrouSerS-style might be in effect, we may have to find the IV and adjust the symBlob
 		//Also, based on this populate other values (keyLength, blockSize)
 		if (symAlgorithm.getSubParams().getValueData() == 0) {
@@ -653,13 +728,8 @@ public class TpmIdentityRequest {
 			default:
 				throw new PrivacyCaException("Unexpected symmetric algorithm ID: " + Integer.toHexString(symAlgorithm.getAlgorithmId()));
 			}
-			//snag the first (blocksize) bits from the symBlob
-			byte [] newIv = new byte[symAlgorithm.getSubParams().getValueData() / 8];
-			System.arraycopy(symBlob, 0, newIv, 0, newIv.length);
-			symAlgorithm.getSubParams().setByteData(newIv);
-			byte [] newSymBlob = new byte[symBlob.length - newIv.length];
-			System.arraycopy(symBlob, newIv.length, newSymBlob, 0, newSymBlob.length);
-			symBlob = newSymBlob;
+			return symAlgorithm.getSubParams().getValueData() / 8;
 		}
+		return 0;
 	}
 }
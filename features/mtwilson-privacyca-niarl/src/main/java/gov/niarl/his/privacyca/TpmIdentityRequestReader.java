@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.Arrays;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+
+/**
+ * Reads a TPM_IDENTITY_REQUEST from a stream, such as the body of an HTTP
+ * request, without first collecting the whole request in a byte array.
+ *
+ * {@link #readHeader(InputStream)} reads the two blob sizes, the two
+ * TPM_KEY_PARMS and the asymmetric blob, and rejects sizes above the
+ * configured limits before reading anything else. {@link #decrypt} then
+ * decrypts the asymmetric blob and passes the symmetric blob through
+ * Cipher.update in small chunks as it arrives, writing the identity proof
+ * directly into an output buffer, which comes from the buffer pool when
+ * one is installed with {@link TpmUtils#setBufferPool(ByteBufferPool)}.
+ * The ciphertext is never held in memory as a whole.
+ *
+ * Instances hold only the limits and may be shared between threads.
+ */
+public class TpmIdentityRequestReader {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TpmIdentityRequestReader.class);
+    /** Enough for a 4096-bit Privacy CA key */
+    public static final int DEFAULT_MAX_ASYM_SIZE = 512;
+    /** Enough for an identity proof with endorsement, platform and conformance certificates */
+    public static final int DEFAULT_MAX_SYM_SIZE = 64 * 1024;
+    /** TPM_KEY_PARMS parmSize; RSA and symmetric parameters are much smaller */
+    static final int MAX_KEY_PARAMS_SIZE = 1024;
+    private static final int CHUNK_SIZE = 4096;
+
+    private final int maxAsymSize;
+    private final int maxSymSize;
+
+    public TpmIdentityRequestReader() {
+        this(DEFAULT_MAX_ASYM_SIZE, DEFAULT_MAX_SYM_SIZE);
+    }
+
+    /**
+     *
+     * @param maxAsymSize largest accepted asymmetric blob, in bytes
+     * @param maxSymSize largest accepted symmetric blob, in bytes
+     */
+    public TpmIdentityRequestReader(int maxAsymSize, int maxSymSize) {
+        if( maxAsymSize <= 0 || maxSymSize <= 0 ) {
+            throw new IllegalArgumentException("Maximum sizes must be positive");
+        }
+        this.maxAsymSize = maxAsymSize;
+        this.maxSymSize = maxSymSize;
+    }
+
+    /**
+     * Reads the identity request up to the start of the symmetric blob.
+     *
+     * @param in the request stream; it is left positioned at the symmetric blob
+     * @return a request without its symmetric blob, to be passed to {@link #decrypt}
+     * @throws PrivacyCaException if a size exceeds its limit or the key parameters cannot be parsed
+     * @throws IOException if the stream ends early or cannot be read
+     */
+    public TpmIdentityRequest readHeader(InputStream in) throws PrivacyCaException, IOException {
+        byte[] sizes = readFully(in, 8);
+        int asymSize = uint32(sizes, 0);
+        int symSize = uint32(sizes, 4);
+        if( asymSize <= 0 || asymSize > maxAsymSize ) {
+            throw new PrivacyCaException("Identity request asymmetric blob size " + (asymSize & 0xffffffffL) + " is not between 1 and " + maxAsymSize);
+        }
+        if( symSize <= 0 || symSize > maxSymSize ) {
+            throw new PrivacyCaException("Identity request symmetric blob size " + (symSize & 0xffffffffL) + " is not between 1 and " + maxSymSize);
+        }
+        TpmKeyParams asymAlgorithm = readKeyParams(in);
+        TpmKeyParams symAlgorithm = readKeyParams(in);
+        if( symAlgorithm.getSubParams() == null ) {
+            throw new PrivacyCaException("Unexpected symmetric algorithm ID: " + Integer.toHexString(symAlgorithm.getAlgorithmId()));
+        }
+        byte[] asymBlob = readFully(in, asymSize);
+        return new TpmIdentityRequest(asymAlgorithm, symAlgorithm, asymBlob, symSize);
+    }
+
+    /**
+     * Decrypts the identity request, reading the symmetric blob from the
+     * stream.
+     *
+     * @param request the output of {@link #readHeader(InputStream)}
+     * @param in the same stream, positioned at the symmetric blob
+     * @param caKey the Privacy CA private key
+     * @return the identity proof
+     */
+    public TpmIdentityProof decrypt(TpmIdentityRequest request, InputStream in, RSAPrivateKey caKey)
+            throws PrivacyCaException, IOException, GeneralSecurityException, TpmUtils.TpmUnsignedConversionException, TpmUtils.TpmBytestreamResouceException {
+        return decryptSym(request, request.decryptAsym(caKey), in);
+    }
+
+    /**
+     * Reads and decrypts the symmetric blob with the key already recovered
+     * from the asymmetric blob.
+     */
+    TpmIdentityProof decryptSym(TpmIdentityRequest request, TpmSymmetricKey symKey, InputStream in)
+            throws PrivacyCaException, IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidAlgorithmParameterException, InvalidKeyException,
+            BadPaddingException, IllegalBlockSizeException, TpmUtils.TpmUnsignedConversionException, TpmUtils.TpmBytestreamResouceException {
+        int remaining = request.getSymSize();
+        int ivLength = request.trousersIvLength();
+        if( ivLength > 0 ) {
+            if( ivLength >= remaining ) {
+                throw new PrivacyCaException("Identity request symmetric blob is shorter than its IV");
+            }
+            request.getSymKeyParams().getSubParams().setByteData(readFully(in, ivLength));
+            remaining -= ivLength;
+        }
+        Cipher symCipher = request.initSymCipher(symKey);
+        ByteBuffer buffer = TpmUtils.acquireBuffer(symCipher.getOutputSize(remaining));
+        byte[] proof = buffer.array();
+        int offset = buffer.arrayOffset();
+        byte[] chunk = new byte[Math.min(CHUNK_SIZE, remaining)];
+        int length = 0;
+        try {
+            while( remaining > 0 ) {
+                int count = in.read(chunk, 0, Math.min(chunk.length, remaining));
+                if( count < 0 ) {
+                    throw new EOFException("Identity request ended with " + remaining + " bytes of the symmetric blob missing");
+                }
+                length += symCipher.update(chunk, 0, count, proof, offset + length);
+                remaining -= count;
+            }
+            length += symCipher.doFinal(proof, offset + length);
+            log.debug("Decrypted {} byte identity proof from stream", length);
+            return new TpmIdentityProof(proof, offset, length, request.getIVmode(), request.getSymkeyEncscheme(), request.getOeapMode());
+        }
+        catch(ShortBufferException e) {
+            // the output buffer was sized by getOutputSize for the whole blob
+            throw new IllegalStateException("Identity proof buffer too small", e);
+        }
+        finally {
+            TpmUtils.releaseBuffer(buffer);
+        }
+    }
+
+    /**
+     * TPM_KEY_PARMS: algorithmID (4), encScheme (2), sigScheme (2),
+     * parmSize (4), parms (parmSize)
+     */
+    private static TpmKeyParams readKeyParams(InputStream in) throws PrivacyCaException, IOException {
+        byte[] fixed = readFully(in, 12);
+        int parmSize = uint32(fixed, 8);
+        if( parmSize < 0 || parmSize > MAX_KEY_PARAMS_SIZE ) {
+            throw new PrivacyCaException("Identity request key parameter size " + (parmSize & 0xffffffffL) + " exceeds " + MAX_KEY_PARAMS_SIZE);
+        }
+        byte[] keyParams = Arrays.copyOf(fixed, 12 + parmSize);
+        System.arraycopy(readFully(in, parmSize), 0, keyParams, 12, parmSize);
+        try {
+            return new TpmKeyParams(new ByteArrayInputStream(keyParams));
+        }
+        catch(TpmUtils.TpmUnsignedConversionException | TpmUtils.TpmBytestreamResouceException e) {
+            throw new PrivacyCaException("Cannot parse identity request key parameters: " + e.getMessage());
+        }
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] buffer = new byte[length];
+        int offset = 0;
+        while( offset < length ) {
+            int count = in.read(buffer, offset, length - offset);
+            if( count < 0 ) {
+                throw new EOFException("Identity request ended after " + offset + " of " + length + " bytes");
+            }
+            offset += count;
+        }
+        return buffer;
+    }
+
+    private static int uint32(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset+1] & 0xff) << 16) | ((bytes[offset+2] & 0xff) << 8) | (bytes[offset+3] & 0xff);
+    }
+}
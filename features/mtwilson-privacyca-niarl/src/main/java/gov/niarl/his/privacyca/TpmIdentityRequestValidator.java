@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+/**
+ * Checks the structure of a TPM_IDENTITY_REQUEST before any private key
+ * operation is spent on it.
+ *
+ * The check reads only the fixed-size fields: the two blob sizes and the
+ * two TPM_KEY_PARMS. It verifies that the declared sizes add up to the
+ * length of the request and stay within the limits, that the algorithm ids
+ * are ones TpmIdentityRequest can decrypt, and that the symmetric blob is a
+ * whole number of cipher blocks. It allocates
+ * nothing and returns a {@link Reason} instead of throwing, so rejecting a
+ * malformed request costs microseconds.
+ *
+ * A request that passes may still fail to decrypt; the check only filters
+ * out requests that certainly would. The encryption schemes are not
+ * checked: TpmIdentityRequest decrypts the asymmetric blob with OAEP when
+ * its scheme is TPM_ES_RSAESOAEP_SHA1_MGF1 and with PKCS#1 v1.5 for any
+ * other value, and takes the symmetric scheme from the decrypted
+ * TPM_SYMMETRIC_KEY rather than from the key parameters.
+ */
+public class TpmIdentityRequestValidator {
+    private static final int KEY_PARMS_HEADER_SIZE = 12;
+
+    /**
+     * Why a request was rejected.
+     */
+    public static enum Reason {
+        VALID("valid"),
+        TRUNCATED("request is shorter than its header"),
+        ASYM_SIZE("asymmetric blob size is out of range or does not match the Privacy CA key"),
+        SYM_SIZE("symmetric blob size is out of range"),
+        KEY_PARMS_SIZE("key parameter size is out of range"),
+        LENGTH_MISMATCH("declared sizes do not add up to the request length"),
+        ASYM_ALGORITHM("asymmetric algorithm is not RSA"),
+        SYM_ALGORITHM("symmetric algorithm is not supported"),
+        IV_SIZE("IV size does not match the symmetric algorithm"),
+        SYM_BLOCK_ALIGNMENT("symmetric blob is not a whole number of cipher blocks");
+
+        private final String description;
+
+        private Reason(String description) {
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    /**
+     * Thrown by {@link #validate(byte[], int)} with the reason the request
+     * was rejected.
+     */
+    public static class InvalidRequestException extends PrivacyCaException {
+        private static final long serialVersionUID = 0;
+        private final Reason reason;
+
+        public InvalidRequestException(Reason reason) {
+            super("Malformed identity request: " + reason.getDescription());
+            this.reason = reason;
+        }
+
+        public Reason getReason() {
+            return reason;
+        }
+    }
+
+    private final int maxAsymSize;
+    private final int maxSymSize;
+    private final int maxKeyParmsSize;
+
+    public TpmIdentityRequestValidator() {
+        this(TpmIdentityRequestReader.DEFAULT_MAX_ASYM_SIZE, TpmIdentityRequestReader.DEFAULT_MAX_SYM_SIZE, TpmIdentityRequestReader.MAX_KEY_PARAMS_SIZE);
+    }
+
+    /**
+     *
+     * @param maxAsymSize largest accepted asymmetric blob, in bytes
+     * @param maxSymSize largest accepted symmetric blob, in bytes
+     * @param maxKeyParmsSize largest accepted parmSize of a TPM_KEY_PARMS, in bytes
+     */
+    public TpmIdentityRequestValidator(int maxAsymSize, int maxSymSize, int maxKeyParmsSize) {
+        this.maxAsymSize = maxAsymSize;
+        this.maxSymSize = maxSymSize;
+        this.maxKeyParmsSize = maxKeyParmsSize;
+    }
+
+    /**
+     *
+     * @param blob the identity request
+     * @param expectedAsymSize the Privacy CA modulus length in bytes, or 0 to accept any asymmetric blob size within the limit
+     * @return {@link Reason#VALID} or the first problem found
+     */
+    public Reason check(byte[] blob, int expectedAsymSize) {
+        if( blob == null || blob.length < 8 + 2 * KEY_PARMS_HEADER_SIZE ) {
+            return Reason.TRUNCATED;
+        }
+        int asymSize = uint32(blob, 0);
+        int symSize = uint32(blob, 4);
+        if( asymSize <= 0 || asymSize > maxAsymSize || (expectedAsymSize > 0 && asymSize != expectedAsymSize) ) {
+            return Reason.ASYM_SIZE;
+        }
+        if( symSize <= 0 || symSize > maxSymSize ) {
+            return Reason.SYM_SIZE;
+        }
+        // asym TPM_KEY_PARMS
+        int asymParms = 8;
+        int asymParmSize = uint32(blob, asymParms + 8);
+        if( asymParmSize < 0 || asymParmSize > maxKeyParmsSize ) {
+            return Reason.KEY_PARMS_SIZE;
+        }
+        int symParms = asymParms + KEY_PARMS_HEADER_SIZE + asymParmSize;
+        if( symParms + KEY_PARMS_HEADER_SIZE > blob.length ) {
+            return Reason.TRUNCATED;
+        }
+        int symParmSize = uint32(blob, symParms + 8);
+        if( symParmSize < 0 || symParmSize > maxKeyParmsSize ) {
+            return Reason.KEY_PARMS_SIZE;
+        }
+        long expectedLength = (long)symParms + KEY_PARMS_HEADER_SIZE + symParmSize + asymSize + symSize;
+        if( expectedLength != blob.length ) {
+            return Reason.LENGTH_MISMATCH;
+        }
+        if( uint32(blob, asymParms) != TpmKeyParams.TPM_ALG_RSA ) {
+            return Reason.ASYM_ALGORITHM;
+        }
+        int blockSize = blockSize(uint32(blob, symParms));
+        if( blockSize == 0 ) {
+            return Reason.SYM_ALGORITHM;
+        }
+        int symEncScheme = uint16(blob, symParms + 4);
+        // TPM_SYMMETRIC_KEY_PARMS: keyLength (4), blockSize (4), ivSize (4), IV
+        if( symParmSize > 0 && symParmSize < 12 ) {
+            return Reason.KEY_PARMS_SIZE;
+        }
+        int ciphertextSize = symSize;
+        boolean ivInParms = symParmSize > 0 && uint32(blob, symParms + KEY_PARMS_HEADER_SIZE + 4) != 0;
+        if( ivInParms ) {
+            int ivSize = uint32(blob, symParms + KEY_PARMS_HEADER_SIZE + 8);
+            if( ivSize != blockSize || 12 + ivSize != symParmSize ) {
+                return Reason.IV_SIZE;
+            }
+        }
+        else {
+            // TrouSerS: the IV is the first block of the symmetric blob
+            ciphertextSize -= blockSize;
+            if( ciphertextSize <= 0 ) {
+                return Reason.SYM_SIZE;
+            }
+        }
+        if( symEncScheme == TpmKeyParams.TPM_ES_SYM_CBC_PKCS5PAD && ciphertextSize % blockSize != 0 ) {
+            return Reason.SYM_BLOCK_ALIGNMENT;
+        }
+        return Reason.VALID;
+    }
+
+    public Reason check(byte[] blob) {
+        return check(blob, 0);
+    }
+
+    /**
+     *
+     * @param blob the identity request
+     * @param expectedAsymSize the Privacy CA modulus length in bytes, or 0 to accept any asymmetric blob size within the limit
+     * @throws InvalidRequestException if the request is malformed
+     */
+    public void validate(byte[] blob, int expectedAsymSize) throws InvalidRequestException {
+        Reason reason = check(blob, expectedAsymSize);
+        if( reason != Reason.VALID ) {
+            throw new InvalidRequestException(reason);
+        }
+    }
+
+    /**
+     *
+     * @return the cipher block size in bytes, or 0 for an algorithm TpmIdentityRequest cannot decrypt
+     */
+    private static int blockSize(int algorithmId) {
+        switch(algorithmId) {
+            case TpmKeyParams.TPM_ALG_DES:
+            case TpmKeyParams.TPM_ALG_3DES:
+                return 8;
+            case TpmKeyParams.TPM_ALG_AES:
+            case TpmKeyParams.TPM_ALG_AES192:
+            case TpmKeyParams.TPM_ALG_AES256:
+                return 16;
+            default:
+                return 0;
+        }
+    }
+
+    private static int uint32(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset+1] & 0xff) << 16) | ((bytes[offset+2] & 0xff) << 8) | (bytes[offset+3] & 0xff);
+    }
+
+    private static int uint16(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 8) | (bytes[offset+1] & 0xff);
+    }
+}
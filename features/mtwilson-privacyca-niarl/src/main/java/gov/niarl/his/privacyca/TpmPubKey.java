@@ -27,6 +27,14 @@ import java.math.*;
 public class TpmPubKey {
 	private TpmKeyParams algorithm;
 	private byte [] key; //just the modulus!!
+	/** getKey always uses the default exponent 65537 */
+	private static final BigInteger DEFAULT_EXPONENT = BigInteger.valueOf(65537);
+	/**
+	 * The RSAPublicKey for key, made on the first call to getKey. Only keys with the exponent 65537 are memoized, because
+	 * getKey always uses that exponent: a key with any other exponent passed to the constructor is not kept here, and
+	 * getKey returns the key with exponent 65537 for its modulus.
+	 */
+	private volatile RSAPublicKey publicKey;
 	
 	public TpmPubKey() {}
 	/**
@@ -53,6 +61,9 @@ public class TpmPubKey {
 		algorithm.getSubParams().setByteData(pubKey.getPublicExponent().toByteArray());
 		algorithm.getSubParams().setValueData(2); //numPrimes
 		algorithm.getSubParams().setKeyLength(2048);
+		if (DEFAULT_EXPONENT.equals(pubKey.getPublicExponent())) {
+			publicKey = pubKey;
+		}
 	}
 	/**
 	 * Create a TPM_PUBKEY using the specified modulus. An default encryption scheme of 1 (TPM_ES_NONE) and signature scheme 
@@ -100,12 +111,16 @@ public class TpmPubKey {
 	 * @throws InvalidKeySpecException
 	 */
 	public RSAPublicKey getKey() throws NoSuchAlgorithmException, InvalidKeySpecException {
+		RSAPublicKey result = publicKey;
+		if (result != null) return result;
 		byte [] pubExp = new byte[3];
 		pubExp[0] = (byte)(0x01 & 0xff);
 //		pubExp[1] = (byte)(0x00 & 0xff);
 		pubExp[1] = (byte)(0x00);
 		pubExp[2] = (byte)(0x01 & 0xff);
-		return TpmUtils.makePubKey(key, pubExp);
+		result = TpmUtils.makePubKey(key, pubExp);
+		publicKey = result;
+		return result;
 	}
 	/**
 	 * Return a human-readable report of the TPM_PUBKEY.
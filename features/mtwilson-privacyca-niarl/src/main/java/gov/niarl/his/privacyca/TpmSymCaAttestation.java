@@ -20,8 +20,6 @@ import java.io.*;
 import java.security.*;
 import javax.crypto.*;
 
-import javax.crypto.Cipher;
-import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 /**
@@ -30,6 +28,10 @@ import javax.crypto.spec.SecretKeySpec;
  *
  */
 public class TpmSymCaAttestation {
+	/** TPM_KEY_PARMS algorithmID, encScheme, sigScheme and parmSize */
+	private static final int KEY_PARMS_HEADER_LENGTH = 4 + 2 + 2 + 4;
+	/** TPM_SYMMETRIC_KEY_PARMS keyLength, blockSize and ivSize */
+	private static final int SYMMETRIC_KEY_PARMS_HEADER_LENGTH = 4 + 4 + 4;
 	private TpmKeyParams algorithm;
 	private byte [] plainAikCred = null;
 	private byte [] encAikCred;
@@ -105,19 +107,17 @@ public class TpmSymCaAttestation {
 		//create a random key for AES (128 bit = 16 byte)
 		byte [] newKey = TpmUtils.createRandomBytes(16);
 		//System.out.println("The symmetric key is " + newKey.length + " bytes long");
-		//encrypt
-		Cipher symCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-		IvParameterSpec ivSpec = new IvParameterSpec(newIv);
 		SecretKeySpec symKey = new SecretKeySpec(newKey, "AES");
-		symCipher.init(Cipher.ENCRYPT_MODE, symKey, ivSpec);
-		encAikCred = symCipher.doFinal(plainAikCred);
-		if (TrousersModeIV) { //copy iv to from of encrypted portion
-			byte [] temp = new byte[newIv.length + encAikCred.length];
-			System.arraycopy(newIv, 0, temp, 0, newIv.length);
-			System.arraycopy(encAikCred, 0, temp, newIv.length, encAikCred.length);
-			encAikCred = temp;
+		//encrypt into an array of the exact size; in TrouSerS mode the iv is written in front of the encrypted portion
+		encAikCred = new byte[TpmUtils.tcgSymEncryptedLength(plainAikCred.length, TrousersModeIV)];
+		try {
+			TpmUtils.tcgSymEncrypt(java.nio.ByteBuffer.wrap(plainAikCred), newKey, newIv, TrousersModeIV, java.nio.ByteBuffer.wrap(encAikCred));
+		} catch (ShortBufferException e) {
+			throw new IllegalStateException("Encrypted credential buffer too small", e);
+		} finally {
+			java.util.Arrays.fill(newKey, (byte)0); //the key spec keeps its own copy
 		}
-		else {
+		if (!TrousersModeIV) {
 			algorithm.setSubParams(new TpmSymmetricKeyParams());
 			algorithm.getSubParams().setByteData(newIv);
 			algorithm.getSubParams().setValueData(16);
@@ -149,4 +149,29 @@ public class TpmSymCaAttestation {
 		System.arraycopy(encAikCred, 0, returnArray, credSize.length + tempAlgo.length, encAikCred.length);
 		return returnArray;
 	}
+	/**
+	 * Serialize the structure into a buffer, such as a pooled response buffer, in the same form as toByteArray().
+	 * 
+	 * @param out The buffer, which must have getEncodedLength() bytes remaining.
+	 * @throws TpmUtils.TpmUnsignedConversionException
+	 */
+	public void writeTo(java.nio.ByteBuffer out)
+			throws TpmUtils.TpmUnsignedConversionException {
+		out.putInt(encAikCred.length);
+		out.put(algorithm.toByteArray());
+		out.put(encAikCred);
+	}
+	/**
+	 * Computes the length from the parameters set by encrypt(), without serializing them.
+	 * 
+	 * @return The length of the serialized structure.
+	 */
+	public int getEncodedLength() {
+		int length = 4 + KEY_PARMS_HEADER_LENGTH + encAikCred.length;
+		if (!algorithm.getTrouSerSmode()) { //in TrouSerS mode the AES parameters are left out and the iv is part of encAikCred
+			byte [] iv = algorithm.getSubParams().getByteData();
+			length += SYMMETRIC_KEY_PARMS_HEADER_LENGTH + (iv == null ? 0 : iv.length);
+		}
+		return length;
+	}
 }
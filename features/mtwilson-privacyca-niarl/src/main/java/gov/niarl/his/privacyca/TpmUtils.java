@@ -25,14 +25,9 @@ import java.security.cert.*;
 import java.security.cert.Certificate;
 import java.security.spec.*;
 import java.security.interfaces.*;
-import javax.security.auth.x500.X500Principal;
 import javax.security.cert.CertificateException;
 import org.apache.commons.io.IOUtils;
 import org.bouncycastle.util.encoders.Base64;
-import org.bouncycastle.x509.*;
-import org.bouncycastle.x509.extension.AuthorityKeyIdentifierStructure;
-import org.bouncycastle.x509.extension.SubjectKeyIdentifierStructure;
-import org.bouncycastle.asn1.x509.*;
 import org.bouncycastle.jce.provider.*;
 import javax.crypto.*;
 import javax.crypto.spec.*;
@@ -64,6 +59,151 @@ import java.util.BitSet;
  */
 public class TpmUtils {
         private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TpmUtils.class);
+	private static volatile PrivacyCaMetrics metrics = PrivacyCaMetrics.NOOP;
+	/**
+	 * Installs the metrics hook used by processIdentityRequest to record per-stage timing, request formats, and failures.
+	 * 
+	 * @param newMetrics The metrics implementation, or null to disable metrics.
+	 */
+	public static void setMetrics(PrivacyCaMetrics newMetrics) {
+		metrics = (newMetrics == null ? PrivacyCaMetrics.NOOP : newMetrics);
+	}
+	public static PrivacyCaMetrics getMetrics() {
+		return metrics;
+	}
+	private static volatile RandomBytesPool randomBytesPool = null;
+	/**
+	 * Installs a pool of pre-generated random blocks for createRandomBytes, used for the symmetric key and IV of each identity response. 
+	 * 
+	 * @param pool The pool, started with {@link RandomBytesPool#start()}, or null to draw every value directly from SecureRandom (the default).
+	 */
+	public static void setRandomBytesPool(RandomBytesPool pool) {
+		randomBytesPool = pool;
+	}
+	public static RandomBytesPool getRandomBytesPool() {
+		return randomBytesPool;
+	}
+	private static volatile EkCertificateCache ekCertificateCache = null;
+	/**
+	 * Installs a cache of decoded EK certificates, used by processIdentityRequest to avoid decoding the same EK certificate on every enrollment.
+	 * 
+	 * @param cache The cache, or null to decode the EK certificate on every request (the default).
+	 */
+	public static void setEkCertificateCache(EkCertificateCache cache) {
+		ekCertificateCache = cache;
+	}
+	public static EkCertificateCache getEkCertificateCache() {
+		return ekCertificateCache;
+	}
+	private static volatile EkCertificateValidator ekCertificateValidator = null;
+	/**
+	 * Installs the validator used by processIdentityRequest and verifyTPM to check EK certificates against the TPM manufacturer CAs. 
+	 * processIdentityRequest rejects a request whose EK certificate fails the check before it issues the AIK certificate.
+	 * 
+	 * @param validator The validator, or null to accept every EK certificate (the default).
+	 */
+	public static void setEkCertificateValidator(EkCertificateValidator validator) {
+		ekCertificateValidator = validator;
+	}
+	public static EkCertificateValidator getEkCertificateValidator() {
+		return ekCertificateValidator;
+	}
+	private static volatile KeyProvisioningService keyProvisioningService = null;
+	/**
+	 * Installs the service that supplies pre-generated key pairs to createCaP12 and createClientP12.
+	 * 
+	 * @param service The service, or null to generate each key pair when it is needed (the default).
+	 */
+	public static void setKeyProvisioningService(KeyProvisioningService service) {
+		keyProvisioningService = service;
+	}
+	public static KeyProvisioningService getKeyProvisioningService() {
+		return keyProvisioningService;
+	}
+	private static volatile SerialNumberGenerator serialNumberGenerator = new DefaultSerialNumberGenerator();
+	/**
+	 * Sets the source of serial numbers for every certificate created by this class. The default is a 
+	 * DefaultSerialNumberGenerator with a random node id; nodes sharing a CA key should each install one with their own node id.
+	 * 
+	 * @param generator The serial number generator.
+	 */
+	public static void setSerialNumberGenerator(SerialNumberGenerator generator) {
+		if (generator == null) throw new IllegalArgumentException("Serial number generator must not be null");
+		serialNumberGenerator = generator;
+	}
+	public static SerialNumberGenerator getSerialNumberGenerator() {
+		return serialNumberGenerator;
+	}
+	private static volatile RsaPublicKeyCache publicKeyCache = null;
+	/**
+	 * Installs a cache of RSA public keys used by makePubKey, so that the AIK or EK of a host that enrolls repeatedly
+	 * is converted from its modulus only once.
+	 * 
+	 * @param cache The cache, or null to create a new key on every call (the default).
+	 */
+	public static void setPublicKeyCache(RsaPublicKeyCache cache) {
+		publicKeyCache = cache;
+	}
+	public static RsaPublicKeyCache getPublicKeyCache() {
+		return publicKeyCache;
+	}
+	private static volatile ByteBufferPool bufferPool = null;
+	/**
+	 * Installs a pool of output buffers used when decrypting identity proofs and encrypting AIK certificates, 
+	 * so those paths do not allocate a new output array for every request. Buffers are zeroed when they are returned.
+	 * 
+	 * @param pool The pool, or null to allocate a new buffer on every call (the default).
+	 */
+	public static void setBufferPool(ByteBufferPool pool) {
+		bufferPool = pool;
+	}
+	public static ByteBufferPool getBufferPool() {
+		return bufferPool;
+	}
+	/**
+	 * Takes an output buffer from the installed pool, or allocates one if there is no pool.
+	 */
+	static java.nio.ByteBuffer acquireBuffer(int length) {
+		ByteBufferPool pool = bufferPool;
+		return pool == null ? java.nio.ByteBuffer.allocate(length) : pool.acquire(length);
+	}
+	/**
+	 * Zeroes a buffer from acquireBuffer and returns it to the pool it came from, if any.
+	 */
+	static void releaseBuffer(java.nio.ByteBuffer buffer) {
+		ByteBufferPool pool = bufferPool;
+		if (pool == null) {
+			ByteBufferPool.zero(buffer);
+		}
+		else {
+			pool.release(buffer);
+		}
+	}
+	/**
+	 * The AIK certificate template for the most recently used Privacy CA. makeCert builds a new one when called with a
+	 * different CA certificate or key, so a single CA pays for encoding its issuer and algorithm identifier only once.
+	 */
+	private static volatile AikCertificateTemplate aikCertificateTemplate = null;
+	/**
+	 * The certificate issuer for the most recently used CA, for client and EK certificates.
+	 */
+	private static volatile CertificateIssuer certificateIssuer = null;
+	/**
+	 * The cached AIK certificate template and certificate issuer are replaced when another CA is used; these let 
+	 * PrivacyCaWarmup put back the ones that were cached before it issued with its throwaway CA.
+	 */
+	static AikCertificateTemplate getAikCertificateTemplate() {
+		return aikCertificateTemplate;
+	}
+	static void setAikCertificateTemplate(AikCertificateTemplate template) {
+		aikCertificateTemplate = template;
+	}
+	static CertificateIssuer getCertificateIssuer() {
+		return certificateIssuer;
+	}
+	static void setCertificateIssuer(CertificateIssuer issuer) {
+		certificateIssuer = issuer;
+	}
 	/**
 	 * Converts an integer to a four-byte array.
 	 * 
@@ -227,20 +367,12 @@ public class TpmUtils {
             NoSuchProviderException,
             SignatureException,
             InvalidKeyException {
-        Security.addProvider(new BouncyCastleProvider());
-        X509V3CertificateGenerator certGen = new X509V3CertificateGenerator();
-        certGen.setSerialNumber(BigInteger.valueOf(System.currentTimeMillis()));
-        certGen.setIssuerDN(caCert.getSubjectX500Principal());
-        certGen.setNotBefore(new java.sql.Time(System.currentTimeMillis()));
-        Calendar expiry = Calendar.getInstance();
-        expiry.add(Calendar.DAY_OF_YEAR, validityDays);
-        certGen.setNotAfter(expiry.getTime());
-        certGen.setSubjectDN(new X500Principal(""));
-        certGen.setPublicKey(aik.getKey());
-        certGen.setSignatureAlgorithm("SHA256withRSA");
-        certGen.addExtension(org.bouncycastle.asn1.x509.X509Extension.subjectAlternativeName /*org.bouncycastle.asn1.x509.X509Extensions.SubjectAlternativeName*/, true, new GeneralNames(new GeneralName(GeneralName.rfc822Name, sanLabel)));
-        X509Certificate cert = certGen.generate(privKey, "BC");
-        return cert;
+        AikCertificateTemplate template = aikCertificateTemplate;
+        if (template == null || !template.isFor(caCert, privKey)) {
+            template = new AikCertificateTemplate(caCert, privKey);
+            aikCertificateTemplate = template;
+        }
+        return template.issue(aik.getKey(), sanLabel, validityDays);
     }
 
     /**
@@ -295,6 +427,7 @@ public class TpmUtils {
 	 * @throws SignatureException
 	 * @throws KeyStoreException
 	 * @throws java.security.cert.CertificateException
+	 * @throws GeneralSecurityException if the key pair cannot be generated
 	 * @throws IOException
 	 */
 	public static void createCaP12(int keySize, String caName, String newP12Pass, String p12FileName, int validityDays) 
@@ -304,46 +437,41 @@ public class TpmUtils {
 				SignatureException, 
 				KeyStoreException, 
 				java.security.cert.CertificateException, 
+				GeneralSecurityException, 
 				IOException{
-		Security.addProvider(new BouncyCastleProvider());
-		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
-		keyGen.initialize(keySize);
-		KeyPair keyPair = keyGen.generateKeyPair();
-		RSAPrivateKey privKey = (RSAPrivateKey)keyPair.getPrivate();
-		RSAPublicKey pubKey = (RSAPublicKey)keyPair.getPublic();
-		X509V3CertificateGenerator certGen = new X509V3CertificateGenerator();
-		certGen.setSerialNumber(BigInteger.valueOf(System.currentTimeMillis()));
-		certGen.setIssuerDN(new X500Principal("CN=" + caName));
-		certGen.setNotBefore(new java.sql.Time(System.currentTimeMillis()));
-		Calendar expiry = Calendar.getInstance();
-		expiry.add(Calendar.DAY_OF_YEAR, validityDays);
-		certGen.setNotAfter(expiry.getTime());
-		certGen.setSubjectDN(new X500Principal("CN=" + caName));
-		certGen.setPublicKey(pubKey);
-		certGen.setSignatureAlgorithm("SHA256withRSA");
-		certGen.addExtension(X509Extensions.SubjectKeyIdentifier, false, new SubjectKeyIdentifierStructure(pubKey));
-		certGen.addExtension(X509Extensions.BasicConstraints, true, new BasicConstraints(true));
-		X509Certificate caCert = certGen.generate(privKey);
-		certGen.addExtension(X509Extensions.AuthorityKeyIdentifier, false, new AuthorityKeyIdentifierStructure(caCert));
-		caCert = certGen.generate(privKey);
-		FileOutputStream newp12 = new FileOutputStream(p12FileName);
-		
-		try {
-			KeyStore keystore = KeyStore.getInstance("PKCS12");
-			keystore.load(null, newP12Pass.toCharArray());
-			Certificate [] chain = {caCert};
-			keystore.setKeyEntry("1", privKey, newP12Pass.toCharArray(), chain);
-			keystore.store(newp12, newP12Pass.toCharArray());
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		finally{
-			newp12.close();
-		}
-		
+		createCaP12(provisionKeyPair(KeyProvisioningService.KeyType.rsa(keySize)), caName, newP12Pass, p12FileName, validityDays);
+	}
+	/**
+	 * Creates a certificate for a certificate authority from an existing key pair, which may be RSA or EC, 
+	 * and stores both in a PKCS 12 key store file.
+	 * 
+	 * @param keyPair The CA key pair, for example from a KeyProvisioningService
+	 * @param caName The subject name for the new Certificate Authority (do not include "CN=")
+	 * @param newP12Pass The password for encrypting the PKCS 12 file
+	 * @param p12FileName The name for the PKCS 12 key store file (should end with .p12)
+	 * @param validityDays The number of days the certificate should be valid before expiring
+	 * @throws NoSuchAlgorithmException
+	 * @throws InvalidKeyException
+	 * @throws IllegalStateException
+	 * @throws SignatureException
+	 * @throws KeyStoreException
+	 * @throws java.security.cert.CertificateException
+	 * @throws IOException
+	 */
+	public static void createCaP12(KeyPair keyPair, String caName, String newP12Pass, String p12FileName, int validityDays) 
+			throws NoSuchAlgorithmException, 
+				InvalidKeyException, 
+				IllegalStateException, 
+				SignatureException, 
+				KeyStoreException, 
+				java.security.cert.CertificateException, 
+				IOException{
+		X509Certificate caCert = CertificateIssuer.createCaCertificate(keyPair, caName, validityDays);
+		Certificate [] chain = {caCert};
+		KeyProvisioningService.writePkcs12(java.nio.file.Paths.get(p12FileName), newP12Pass.toCharArray(), "1", keyPair.getPrivate(), chain);
 	}
 	/**
-	 * This function creates a p12 file for a client, creating a new RSA key pair of specified size. A certificate generated, signed by a the CA using the specified private key and CA certificate file. Both the client and CA certificates are stored as a chain in the p12 file. The client certificate's serial number is a system time in miliseconds.
+	 * This function creates a p12 file for a client, creating a new RSA key pair of specified size. A certificate generated, signed by a the CA using the specified private key and CA certificate file. Both the client and CA certificates are stored as a chain in the p12 file. The client certificate's serial number comes from the configured SerialNumberGenerator.
 	 * 
 	 * @param keySize Size of the key to generate
 	 * @param subjectName Subject name for the client certificate
@@ -358,6 +486,7 @@ public class TpmUtils {
 	 * @throws SignatureException
 	 * @throws KeyStoreException
 	 * @throws java.security.cert.CertificateException
+	 * @throws GeneralSecurityException if the key pair cannot be generated
 	 * @throws IOException
 	 */
 	public static void createClientP12(int keySize, String subjectName, String newP12Pass, String p12FileName, int validityDays, X509Certificate caCert, RSAPrivateKey caPrivKey) 
@@ -367,44 +496,60 @@ public class TpmUtils {
 				SignatureException, 
 				KeyStoreException, 
 				java.security.cert.CertificateException, 
+				GeneralSecurityException, 
 				IOException{
-		Security.addProvider(new BouncyCastleProvider());
-		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
-		keyGen.initialize(keySize);
-		KeyPair keyPair = keyGen.generateKeyPair();
-		RSAPrivateKey privKey = (RSAPrivateKey)keyPair.getPrivate();
-		RSAPublicKey pubKey = (RSAPublicKey)keyPair.getPublic();
-		X509V3CertificateGenerator certGen = new X509V3CertificateGenerator();
-		certGen.setSerialNumber(BigInteger.valueOf(System.currentTimeMillis()));
-		certGen.setIssuerDN(caCert.getSubjectX500Principal());
-		certGen.setNotBefore(new java.sql.Time(System.currentTimeMillis()));
-		Calendar expiry = Calendar.getInstance();
-		expiry.add(Calendar.DAY_OF_YEAR, validityDays);
-		certGen.setNotAfter(expiry.getTime());
-		certGen.setSubjectDN(new X500Principal("CN=" + subjectName));
-		certGen.setPublicKey(pubKey);
-		certGen.setSignatureAlgorithm("SHA256withRSA");
-		certGen.addExtension(X509Extensions.SubjectKeyIdentifier, false, new SubjectKeyIdentifierStructure(pubKey));
-		certGen.addExtension(X509Extensions.AuthorityKeyIdentifier, false, new AuthorityKeyIdentifierStructure(caCert));
-		certGen.addExtension(X509Extensions.BasicConstraints, true, new BasicConstraints(false));
-		X509Certificate clientCert = certGen.generate(caPrivKey);
-		FileOutputStream newp12 = new FileOutputStream(p12FileName);
-		
-		try {
-			KeyStore keystore = KeyStore.getInstance("PKCS12");
-			keystore.load(null, newP12Pass.toCharArray());
-			System.out.println(clientCert.toString());
-			System.out.println(caCert.toString());
-			Certificate [] chain = {clientCert, caCert};
-			keystore.setKeyEntry("1", privKey, newP12Pass.toCharArray(), chain);
-			keystore.store(newp12, newP12Pass.toCharArray());
-		} catch (Exception e) {
-			e.printStackTrace();
+		createClientP12(provisionKeyPair(KeyProvisioningService.KeyType.rsa(keySize)), subjectName, newP12Pass, p12FileName, validityDays, caCert, caPrivKey);
+	}
+	/**
+	 * This function creates a p12 file for a client from an existing key pair, which may be RSA or EC. A certificate generated, signed by a the CA using the specified private key and CA certificate file. Both the client and CA certificates are stored as a chain in the p12 file.
+	 * 
+	 * @param keyPair The client key pair, for example from a KeyProvisioningService
+	 * @param subjectName Subject name for the client certificate
+	 * @param newP12Pass Password to use for encrypting the p12 file
+	 * @param p12FileName name for the generated file
+	 * @param validityDays number of days the client certificate should be valid
+	 * @param caCert The CA's certificate
+	 * @param caPrivKey The CA's private key, for signing the client certificate
+	 * @throws NoSuchAlgorithmException
+	 * @throws InvalidKeyException
+	 * @throws IllegalStateException
+	 * @throws SignatureException
+	 * @throws KeyStoreException
+	 * @throws java.security.cert.CertificateException
+	 * @throws IOException
+	 */
+	public static void createClientP12(KeyPair keyPair, String subjectName, String newP12Pass, String p12FileName, int validityDays, X509Certificate caCert, PrivateKey caPrivKey) 
+			throws NoSuchAlgorithmException, 
+				InvalidKeyException, 
+				IllegalStateException, 
+				SignatureException, 
+				KeyStoreException, 
+				java.security.cert.CertificateException, 
+				IOException{
+		X509Certificate clientCert = certificateIssuer(caCert, caPrivKey).createClientCertificate(keyPair.getPublic(), subjectName, validityDays);
+		log.debug("Created client certificate {} issued by {}", clientCert.getSubjectX500Principal(), caCert.getSubjectX500Principal());
+		Certificate [] chain = {clientCert, caCert};
+		KeyProvisioningService.writePkcs12(java.nio.file.Paths.get(p12FileName), newP12Pass.toCharArray(), "1", keyPair.getPrivate(), chain);
+	}
+	private static KeyPair provisionKeyPair(KeyProvisioningService.KeyType type) 
+			throws GeneralSecurityException {
+		KeyProvisioningService service = keyProvisioningService;
+		if (service != null) {
+			return service.take(type);
 		}
-		finally{
-			newp12.close();
+		return type.generate();
+	}
+	/**
+	 * Returns the certificate issuer for the CA, creating a new one when the CA certificate or key differs from the last call.
+	 */
+	private static CertificateIssuer certificateIssuer(X509Certificate caCert, PrivateKey caPrivKey) 
+			throws NoSuchAlgorithmException, CertificateEncodingException {
+		CertificateIssuer issuer = certificateIssuer;
+		if (issuer == null || !issuer.isFor(caCert, caPrivKey)) {
+			issuer = new CertificateIssuer(caCert, caPrivKey);
+			certificateIssuer = issuer;
 		}
-		
+		return issuer;
 	}
 	/**
 	 * Creates an Endorsement Key (EK) Certificate. This certificate is not fully meet Trusted Computing Group specifications. Aside from the key and label source, the 
@@ -431,26 +576,13 @@ public class TpmUtils {
 			NoSuchProviderException, 
 			InvalidKeyException, 
 			CertificateEncodingException {
-		Security.addProvider(new BouncyCastleProvider());
-		X509V3CertificateGenerator certGen = new X509V3CertificateGenerator();
-		certGen.setSerialNumber(BigInteger.valueOf(System.currentTimeMillis()));
-		certGen.setIssuerDN(caCert.getSubjectX500Principal());
-		certGen.setNotBefore(new java.sql.Time(System.currentTimeMillis()));
-		Calendar expiry = Calendar.getInstance();
-		expiry.add(Calendar.DAY_OF_YEAR, validityDays);
-		certGen.setNotAfter(expiry.getTime());
-		certGen.setSubjectDN(new X500Principal(""));
 		byte [] pubExp = new byte[3];
 		pubExp[0] = (byte)(0x01 & 0xff);
 //		pubExp[1] = (byte)(0x00 & 0xff);
 		pubExp[1] = (byte)(0x00);
 		pubExp[2] = (byte)(0x01 & 0xff);
 		RSAPublicKey pubEk = TpmUtils.makePubKey(pubEkMod, pubExp);
-		certGen.setPublicKey(pubEk);
-		certGen.setSignatureAlgorithm("SHA256withRSA");
-		certGen.addExtension(org.bouncycastle.asn1.x509.X509Extension.subjectAlternativeName /*org.bouncycastle.asn1.x509.X509Extensions.SubjectAlternativeName*/, true, new GeneralNames(new GeneralName(GeneralName.rfc822Name, "TPM EK Credential")));
-		X509Certificate cert = certGen.generate(privKey, "BC");
-		return cert;
+		return certificateIssuer(caCert, privKey).createEkCertificate(pubEk, validityDays);
 	}
 	/**
 	 * Create a Java RSAPublicKey using the specified modulus and public exponent in byte array form.
@@ -464,11 +596,17 @@ public class TpmUtils {
 	public static RSAPublicKey makePubKey(byte[] modulus, byte[] exponent) 
 			throws NoSuchAlgorithmException, 
 			InvalidKeySpecException {
+		RsaPublicKeyCache cache = publicKeyCache;
+		if (cache != null) {
+			RSAPublicKey cached = cache.get(modulus, exponent);
+			if (cached != null) return cached;
+		}
 		BigInteger modulusBI = byteArrayToBigInt(modulus);
 		BigInteger exponentBI = byteArrayToBigInt(exponent);
 		RSAPublicKeySpec newKeySpec = new RSAPublicKeySpec(modulusBI, exponentBI);
 		KeyFactory keyFactory = KeyFactory.getInstance("RSA");
 		RSAPublicKey newKey = (RSAPublicKey)keyFactory.generatePublic(newKeySpec);
+		if (cache != null) cache.put(modulus, exponent, newKey);
 		return newKey;
 	}
 	/**
@@ -499,28 +637,23 @@ public class TpmUtils {
 	 * @return The Big Integer with the value of the byte array.
 	 */
 	private static BigInteger byteArrayToBigInt(byte[] incoming) {
-		byte [] tempArray;
-		if ((incoming[0]&0x80) == 0x80) {
-			tempArray = new byte[incoming.length + 1];
-			tempArray[0] = (byte)0x00;
-			for (int i = 0; i < incoming.length; i++)
-				tempArray[i+1] = incoming[i];
-		}
-		else {
-			tempArray = incoming;
-		}
-		return new BigInteger(tempArray);
+		// signum 1 reads the array as unsigned without copying it behind a 0x00 byte
+		return new BigInteger(1, incoming);
 	}
 	/**
-	 * This function is not yet implemented. The intended purpose is to check the validity of an EK certificate supplied in an identity 
-	 * request. A valid certificate is one signed by a trusted entity. Another potential version of validity is the EK being present in 
-	 * a database of known TPMs.
+	 * Checks the validity of an EK certificate supplied in an identity request. A valid certificate is one that chains to a 
+	 * TPM manufacturer CA; see setEkCertificateValidator. If no validator is installed every certificate is accepted. Another 
+	 * potential version of validity is the EK being present in a database of known TPMs.
 	 * 
 	 * @param ekCred The EK certificate from the identity proof.
 	 * @return <b>True</b>, if EK certificate passes verification.
 	 */
 	public static boolean verifyTPM(X509Certificate ekCred) {
-		return true;
+		EkCertificateValidator validator = ekCertificateValidator;
+		if (validator == null) {
+			return true;
+		}
+		return validator.isValid(ekCred);
 	}
 	/**
 	 * Creates a string of uppercase hexidecimal duples representing the supplied byte array. They are placed in lines containing a specified number of duples..
@@ -709,21 +842,159 @@ public class TpmUtils {
 			javax.security.cert.CertificateException, 
 			java.security.cert.CertificateException,
 			TpmUtils.TpmBytestreamResouceException {
-		TpmIdentityRequest request = new TpmIdentityRequest(idRequestBlob);
-		TpmIdentityProof idProof = request.decrypt(caPrivKey);
-		if (idProof.getEkCredBytes().length == 0) throw new PrivacyCaException("PrivacyCaException: Error parsing TPM_IDENTITY_PROOF: there is no endorsement credential.");
-		if (!idProof.checkValidity((RSAPublicKey)caPubCert.getPublicKey())) throw new PrivacyCaException("Request does not pass integrity check: identity binding does not pass verification.");
-		TpmSymCaAttestation symPart = new TpmSymCaAttestation();
-		symPart.setAikCredential(TpmUtils.makeCert(idProof, caPrivKey, caPubCert, validityDays, 0));
-		TpmAsymCaContents asymPart = new TpmAsymCaContents();
-		//pass symmetric encryption mode here
-		TpmSymmetricKey temp = symPart.encrypt(TpmKeyParams.TPM_ALG_AES, TpmKeyParams.TPM_ES_SYM_CBC_PKCS5PAD, request.getSymKeyParams().getTrouSerSmode(), !request.getSymkeyEncscheme()); //see the !
-		asymPart.setSymmetricKey(temp);
-		asymPart.setDigest(idProof.getAik());
-		//pass asymmetric encryption mode here
-		asymPart.encrypt((RSAPublicKey)idProof.getEkCred().getPublicKey(), !request.getOeapMode());//see the !
-		idResponse returnval = new idResponse(asymPart, symPart);
-		return returnval;
+		return processIdentityRequest(idRequestBlob, null, caPrivKey, caPubCert, validityDays);
+	}
+	/**
+	 * Take an incoming identity request from a stream, such as an HTTP request body, and process it like 
+	 * processIdentityRequest(byte[], ...). The request is read with a TpmIdentityRequestReader using its default size limits, 
+	 * so the symmetric blob is decrypted as it is read and never held in memory as a whole.
+	 * 
+	 * @param idRequestStream The TPM_Identity_Request as a stream; exactly one request is read from it.
+	 * @param caPrivKey The Privacy CA's private signing key.
+	 * @param caPubCert The Privacy CA's public key certificate.
+	 * @param validityDays The number of validity days, after which the certificate will expire.
+	 * @return An idResponse, containing both TPM_ASYM_CA_CONTENTS and TPM_SYM_CA_ATTESTATION structures, suitable as input for the Tspi_TPM_ActivateIdentity function.
+	 * @throws PrivacyCaException Thrown if an error occurs when processing the request, including a blob larger than the reader limits.
+	 * @throws IOException Thrown if the stream cannot be read or ends before the whole request was read.
+	 */
+	public static idResponse processIdentityRequest (InputStream idRequestStream, RSAPrivateKey caPrivKey, X509Certificate caPubCert, int validityDays) 
+			throws PrivacyCaException, 
+			TpmUtils.TpmUnsignedConversionException, 
+			BadPaddingException, 
+			IllegalBlockSizeException, 
+			InvalidAlgorithmParameterException, 
+			NoSuchPaddingException, 
+			NoSuchAlgorithmException, 
+			InvalidKeyException, 
+			CertificateEncodingException, 
+			IOException, 
+			InvalidKeySpecException, 
+			SignatureException, 
+			NoSuchProviderException, 
+			javax.security.cert.CertificateException, 
+			java.security.cert.CertificateException,
+			TpmUtils.TpmBytestreamResouceException {
+		return processIdentityRequest(null, idRequestStream, caPrivKey, caPubCert, validityDays);
+	}
+	/**
+	 * Take an incoming identity request from a channel and process it like processIdentityRequest(InputStream, ...).
+	 */
+	public static idResponse processIdentityRequest (java.nio.channels.ReadableByteChannel idRequestChannel, RSAPrivateKey caPrivKey, X509Certificate caPubCert, int validityDays) 
+			throws PrivacyCaException, 
+			TpmUtils.TpmUnsignedConversionException, 
+			BadPaddingException, 
+			IllegalBlockSizeException, 
+			InvalidAlgorithmParameterException, 
+			NoSuchPaddingException, 
+			NoSuchAlgorithmException, 
+			InvalidKeyException, 
+			CertificateEncodingException, 
+			IOException, 
+			InvalidKeySpecException, 
+			SignatureException, 
+			NoSuchProviderException, 
+			javax.security.cert.CertificateException, 
+			java.security.cert.CertificateException,
+			TpmUtils.TpmBytestreamResouceException {
+		return processIdentityRequest(null, java.nio.channels.Channels.newInputStream(idRequestChannel), caPrivKey, caPubCert, validityDays);
+	}
+	private static final TpmIdentityRequestReader identityRequestReader = new TpmIdentityRequestReader();
+	private static final TpmIdentityRequestValidator identityRequestValidator = new TpmIdentityRequestValidator();
+	private static idResponse processIdentityRequest (byte [] idRequestBlob, InputStream idRequestStream, RSAPrivateKey caPrivKey, X509Certificate caPubCert, int validityDays) 
+			throws PrivacyCaException, 
+			TpmUtils.TpmUnsignedConversionException, 
+			BadPaddingException, 
+			IllegalBlockSizeException, 
+			InvalidAlgorithmParameterException, 
+			NoSuchPaddingException, 
+			NoSuchAlgorithmException, 
+			InvalidKeyException, 
+			CertificateEncodingException, 
+			IOException, 
+			InvalidKeySpecException, 
+			SignatureException, 
+			NoSuchProviderException, 
+			javax.security.cert.CertificateException, 
+			java.security.cert.CertificateException,
+			TpmUtils.TpmBytestreamResouceException {
+		PrivacyCaMetrics metrics = TpmUtils.metrics;
+		PrivacyCaMetrics.Stage stage = PrivacyCaMetrics.Stage.PARSE;
+		long start = System.nanoTime();
+		long mark = start;
+		try {
+			if (idRequestStream == null) {
+				//reject malformed requests before spending a private key operation on them
+				identityRequestValidator.validate(idRequestBlob, (caPrivKey.getModulus().bitLength() + 7) / 8);
+			}
+			TpmIdentityRequest request = (idRequestStream == null ? new TpmIdentityRequest(idRequestBlob) : identityRequestReader.readHeader(idRequestStream));
+			mark = recordStage(metrics, stage, mark);
+			stage = PrivacyCaMetrics.Stage.ASYM_DECRYPT;
+			TpmSymmetricKey requestKey = request.decryptAsym(caPrivKey);
+			mark = recordStage(metrics, stage, mark);
+			stage = PrivacyCaMetrics.Stage.SYM_DECRYPT;
+			TpmIdentityProof idProof = (idRequestStream == null ? request.decryptSym(requestKey) : identityRequestReader.decryptSym(request, requestKey, idRequestStream));
+			mark = recordStage(metrics, stage, mark);
+			metrics.recordRequestFormat(request.getIVmode(), request.getSymkeyEncscheme(), request.getOeapMode());
+			stage = PrivacyCaMetrics.Stage.BINDING_VERIFY;
+			if (idProof.getEkCredBytes().length == 0) throw new PrivacyCaException("PrivacyCaException: Error parsing TPM_IDENTITY_PROOF: there is no endorsement credential.");
+			if (!idProof.checkValidity((RSAPublicKey)caPubCert.getPublicKey())) throw new PrivacyCaException("Request does not pass integrity check: identity binding does not pass verification.");
+			RSAPublicKey ekPublicKey = verifiedEkPublicKey(idProof);
+			mark = recordStage(metrics, stage, mark);
+			stage = PrivacyCaMetrics.Stage.CERT_ISSUE;
+			TpmSymCaAttestation symPart = new TpmSymCaAttestation();
+			symPart.setAikCredential(TpmUtils.makeCert(idProof, caPrivKey, caPubCert, validityDays, 0));
+			mark = recordStage(metrics, stage, mark);
+			stage = PrivacyCaMetrics.Stage.SYM_ENCRYPT;
+			TpmAsymCaContents asymPart = new TpmAsymCaContents();
+			//pass symmetric encryption mode here
+			TpmSymmetricKey temp = symPart.encrypt(TpmKeyParams.TPM_ALG_AES, TpmKeyParams.TPM_ES_SYM_CBC_PKCS5PAD, request.getSymKeyParams().getTrouSerSmode(), !request.getSymkeyEncscheme()); //see the !
+			mark = recordStage(metrics, stage, mark);
+			stage = PrivacyCaMetrics.Stage.EK_ENCRYPT;
+			asymPart.setSymmetricKey(temp);
+			asymPart.setDigest(idProof.getAik());
+			//pass asymmetric encryption mode here
+			asymPart.encrypt(ekPublicKey, !request.getOeapMode());//see the !
+			mark = recordStage(metrics, stage, mark);
+			idResponse returnval = new idResponse(asymPart, symPart);
+			metrics.recordCompleted(mark - start);
+			return returnval;
+		} catch (TpmIdentityRequestValidator.InvalidRequestException e) {
+			metrics.recordFailure(stage, e.getReason().name());
+			throw e;
+		} catch (Exception e) {
+			metrics.recordFailure(stage, e.getClass().getSimpleName());
+			throw e;
+		}
+	}
+	/**
+	 * Decodes the EK certificate of the identity proof, through the EK certificate cache if one is installed, and checks it 
+	 * with the EK certificate validator if one is installed.
+	 * 
+	 * @return The EK public key to encrypt the response to.
+	 * @throws PrivacyCaException Thrown if the EK certificate does not chain to a trusted TPM manufacturer CA.
+	 */
+	private static RSAPublicKey verifiedEkPublicKey(TpmIdentityProof idProof) 
+			throws PrivacyCaException, 
+			javax.security.cert.CertificateException, 
+			java.security.cert.CertificateException {
+		EkCertificateCache cache = ekCertificateCache;
+		EkCertificateValidator validator = ekCertificateValidator;
+		if (cache != null) {
+			EkCertificateCache.Entry entry = cache.get(idProof.getEkCredBytes());
+			if (validator != null && !validator.isValid(entry)) throw new PrivacyCaException("Request does not pass integrity check: EK certificate is not issued by a trusted TPM manufacturer.");
+			return entry.getPublicKey();
+		}
+		if (validator != null) {
+			X509Certificate ekCert = certFromBytes(idProof.getEkCredBytes());
+			if (!validator.isValid(ekCert)) throw new PrivacyCaException("Request does not pass integrity check: EK certificate is not issued by a trusted TPM manufacturer.");
+			return (RSAPublicKey)ekCert.getPublicKey();
+		}
+		return (RSAPublicKey)idProof.getEkCred().getPublicKey();
+	}
+	private static long recordStage(PrivacyCaMetrics metrics, PrivacyCaMetrics.Stage stage, long mark) {
+		long now = System.nanoTime();
+		metrics.recordStage(stage, now - mark);
+		return now;
 	}
 	/**
 	 * Used by the Privacy CA (version 1) to process Identity Requests that do not contain an EC. The EC is not validated, and the AIC is returned in plaintext. The client can then get the AIC without using ActivateIdentity. This is here because the Windows (NTRU) TSS client is broken, and cannot include the EC in an Identity Request, and also cannot perform an ActivateIdentity properly. 
@@ -824,6 +1095,10 @@ public class TpmUtils {
 	 */
 	public static byte [] createRandomBytes(int numBytes) 
 			throws IOException {
+		RandomBytesPool pool = randomBytesPool;
+		if (pool != null && pool.getBlockSize() == numBytes) {
+			return pool.nextBlock();
+		}
 		SecureRandom random = RandomUtil.getSecureRandom();		
 		//byte [] randomBytes = longToByteArray(random.nextLong());
 		byte [] randomBytes = new byte[numBytes];
@@ -1029,13 +1304,55 @@ public class TpmUtils {
 				InvalidAlgorithmParameterException, 
 				IllegalBlockSizeException, 
 				BadPaddingException{
-		Cipher symCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-		IvParameterSpec ivSpec = new IvParameterSpec(iv);
-		SecretKeySpec symKey = new SecretKeySpec(key, "AES");
-		symCipher.init(Cipher.ENCRYPT_MODE, symKey, ivSpec);
-		byte [] toReturn = symCipher.doFinal(payload);
+		byte [] toReturn = new byte[tcgSymEncryptedLength(payload.length, false)];
+		try {
+			tcgSymEncrypt(java.nio.ByteBuffer.wrap(payload), key, iv, false, java.nio.ByteBuffer.wrap(toReturn));
+		}
+		catch (ShortBufferException e) {
+			throw new IllegalStateException("Output sized by tcgSymEncryptedLength is too small", e);
+		}
 		return toReturn;
 	}
+	/**
+	 * Perform the symmetric encryption of tcgSymEncrypt(byte[], byte[], byte[]) from one buffer into another, such as a 
+	 * pooled or caller-supplied buffer, without allocating an output array. In TrouSerS mode the IV is written to the output 
+	 * ahead of the ciphertext instead of being concatenated with it afterwards.
+	 * @param payload The plaintext, from its position to its limit; the position is advanced to the limit
+	 * @param key Symmetric (AES) key to use
+	 * @param iv Initialization Vector to use
+	 * @param ivInBlob Set to TRUE to write the IV ahead of the ciphertext, as TrouSerS expects
+	 * @param out The output, which must have at least tcgSymEncryptedLength bytes remaining; the position is advanced past the output
+	 * @return The number of bytes written, including the IV if it was written
+	 * @throws ShortBufferException Thrown if the output does not have enough room
+	 */
+	public static int tcgSymEncrypt(java.nio.ByteBuffer payload, byte[] key, byte[] iv, boolean ivInBlob, java.nio.ByteBuffer out)
+			throws NoSuchAlgorithmException, 
+				NoSuchPaddingException, 
+				InvalidKeyException, 
+				InvalidAlgorithmParameterException, 
+				IllegalBlockSizeException, 
+				BadPaddingException,
+				ShortBufferException{
+		if (out.remaining() < tcgSymEncryptedLength(payload.remaining(), ivInBlob)) {
+			throw new ShortBufferException("Output has " + out.remaining() + " bytes, " + tcgSymEncryptedLength(payload.remaining(), ivInBlob) + " needed");
+		}
+		Cipher symCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		symCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+		int written = 0;
+		if (ivInBlob) {
+			out.put(iv);
+			written = iv.length;
+		}
+		return written + symCipher.doFinal(payload, out);
+	}
+	/**
+	 * @param payloadLength The plaintext length
+	 * @param ivInBlob Set to TRUE if the 16 byte IV is written ahead of the ciphertext
+	 * @return The exact output length of tcgSymEncrypt for AES/CBC/PKCS5Padding
+	 */
+	public static int tcgSymEncryptedLength(int payloadLength, boolean ivInBlob) {
+		return (ivInBlob ? 16 : 0) + (payloadLength / 16 + 1) * 16;
+	}
 	/**
 	 * Create a random 128-bit value that can be used as an AES key or IV.
 	 * @return
@@ -1085,6 +1402,21 @@ public class TpmUtils {
 		symCipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), ivSpec);
 		return symCipher.doFinal(ciphertext);
 	}
+	/**
+	 * Decrypt an AES/CBC/PKCS5Padded blob from one buffer into another, such as a pooled or caller-supplied buffer, 
+	 * without allocating an output array.
+	 * @param ciphertext The encrypted blob, from its position to its limit; the position is advanced to the limit
+	 * @param key The key used to perform the decryption
+	 * @param iv The Initialization Vector used
+	 * @param out The output, which must have at least as many bytes remaining as the ciphertext; the position is advanced past the plaintext
+	 * @return The plaintext length
+	 * @throws ShortBufferException Thrown if the output does not have enough room
+	 */
+	public static int tcgSymDecrypt(java.nio.ByteBuffer ciphertext, byte[] key, byte[] iv, java.nio.ByteBuffer out) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException, IllegalBlockSizeException, BadPaddingException, ShortBufferException{
+		Cipher symCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		symCipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+		return symCipher.doFinal(ciphertext, out);
+	}
 
     /**
      *
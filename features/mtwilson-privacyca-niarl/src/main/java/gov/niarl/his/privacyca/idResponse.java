@@ -51,6 +51,28 @@ public class idResponse {
 		System.arraycopy(sym, 0, returnArray, asym.length, sym.length);
 		return returnArray;
 	}
+	/**
+	 * Writes the same bytes as toByteArray() into a buffer, such as a pooled or caller-supplied response buffer, without 
+	 * assembling intermediate arrays.
+	 * 
+	 * @param out The buffer, which must have getEncodedLength() bytes remaining.
+	 * @throws TpmUtils.TpmUnsignedConversionException Thrown if bad data is encountered when writing the response.
+	 * @throws PrivacyCaException Thrown if either part is not complete and ready to be written.
+	 */
+	public void writeTo(java.nio.ByteBuffer out) 
+			throws TpmUtils.TpmUnsignedConversionException,
+			PrivacyCaException {
+		out.put(asymPart.toByteArray());
+		symPart.writeTo(out);
+	}
+	/**
+	 * @return The length of the response written by writeTo or returned by toByteArray.
+	 * @throws PrivacyCaException Thrown if either part is not complete.
+	 */
+	public int getEncodedLength() 
+			throws PrivacyCaException {
+		return asymPart.toByteArray().length + symPart.getEncodedLength();
+	}
 	/**
 	 * Asym getter function.
 	 * 
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package Tpm2;
+
+import gov.niarl.his.privacyca.Tpm2Algorithm;
+import gov.niarl.his.privacyca.Tpm2Credential;
+import gov.niarl.his.privacyca.Tpm2Utils;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Known-answer vectors for Tpm2Utils.makeCredential, read from
+ * src/test/resources/tpm2-make-credential-vectors.txt.
+ *
+ * Each vector is a block of "name = hex" lines separated by a blank line.
+ * The randomness for each vector comes from a {@link DeterministicRandom}
+ * seeded with randomSeed, so replaying a vector must reproduce
+ * credentialBlob and encryptedSecret exactly.
+ */
+public class Tpm2CredentialVectors {
+    public static final String PATH = "src/test/resources/tpm2-make-credential-vectors.txt";
+
+    public static class Vector {
+        public String name;
+        public Tpm2Algorithm.Hash nameAlgorithm;
+        public int symKeySizeInBits;
+        public PublicKey ek;
+        public byte[] objectName;
+        public byte[] credential;
+        public byte[] randomSeed;
+        public byte[] credentialBlob;
+        public byte[] encryptedSecret;
+
+        public Tpm2Credential replay() throws GeneralSecurityException, IOException {
+            return Tpm2Utils.makeCredential(ek, Tpm2Algorithm.Symmetric.AES, symKeySizeInBits, nameAlgorithm, credential, objectName, new DeterministicRandom(randomSeed));
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    public static List<Vector> load() throws IOException, GeneralSecurityException {
+        List<String> lines = Files.readAllLines(Paths.get(PATH), Charset.forName("US-ASCII"));
+        ArrayList<Vector> vectors = new ArrayList<>();
+        Vector current = null;
+        KeyFactory kf = KeyFactory.getInstance("RSA");
+        for(String line : lines) {
+            line = line.trim();
+            if( line.startsWith("#") ) { continue; }
+            if( line.isEmpty() ) {
+                current = null;
+                continue;
+            }
+            if( current == null ) {
+                current = new Vector();
+                vectors.add(current);
+            }
+            int eq = line.indexOf('=');
+            String key = line.substring(0, eq).trim();
+            String value = line.substring(eq + 1).trim();
+            switch(key) {
+                case "name": current.name = value; break;
+                case "nameAlgorithm": current.nameAlgorithm = Tpm2Algorithm.Hash.valueOf(value); break;
+                case "symKeySizeInBits": current.symKeySizeInBits = Integer.parseInt(value); break;
+                case "ekModulus": current.ek = kf.generatePublic(new RSAPublicKeySpec(new BigInteger(1, fromHex(value)), BigInteger.valueOf(65537))); break;
+                case "objectName": current.objectName = fromHex(value); break;
+                case "credential": current.credential = fromHex(value); break;
+                case "randomSeed": current.randomSeed = fromHex(value); break;
+                case "credentialBlob": current.credentialBlob = fromHex(value); break;
+                case "encryptedSecret": current.encryptedSecret = fromHex(value); break;
+                default: throw new IOException("Unknown vector field: " + key);
+            }
+        }
+        return vectors;
+    }
+
+    public static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for(int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte)Integer.parseInt(hex.substring(2*i, 2*i+2), 16);
+        }
+        return bytes;
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder();
+        for(byte b : bytes) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Reproducible byte stream: block i is SHA-256(seed || i) with i as a
+     * big-endian 32-bit counter. Not for production use.
+     */
+    public static class DeterministicRandom extends SecureRandom {
+        private static final long serialVersionUID = 0;
+        private final byte[] seed;
+        private int counter = 0;
+        private byte[] block = new byte[0];
+        private int position = 0;
+
+        public DeterministicRandom(byte[] seed) {
+            this.seed = seed.clone();
+        }
+
+        @Override
+        public synchronized void nextBytes(byte[] bytes) {
+            for(int i = 0; i < bytes.length; i++) {
+                if( position == block.length ) {
+                    nextBlock();
+                }
+                bytes[i] = block[position++];
+            }
+        }
+
+        @Override
+        public synchronized void setSeed(long seed) {
+            // ignored so the stream stays reproducible
+        }
+
+        private void nextBlock() {
+            try {
+                MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+                sha256.update(seed);
+                sha256.update(new byte[] { (byte)(counter >>> 24), (byte)(counter >>> 16), (byte)(counter >>> 8), (byte)counter });
+                block = sha256.digest();
+                position = 0;
+                counter++;
+            }
+            catch(NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -23,6 +23,7 @@ import java.security.interfaces.RSAPublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.RSAPublicKeySpec;
 import java.util.Arrays;
+import java.util.List;
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
@@ -82,6 +83,25 @@ public class Tpm2MakeCredentialTest {
         System.out.println(bytesToHex(out.getSecret()));
     }
     
+    @Test
+    public void testMakeCredentialKnownAnswers() throws Exception {
+        List<Tpm2CredentialVectors.Vector> vectors = Tpm2CredentialVectors.load();
+        assertFalse(vectors.isEmpty());
+        for(Tpm2CredentialVectors.Vector vector : vectors) {
+            Tpm2Credential out = vector.replay();
+            assertArrayEquals(vector.name + " credentialBlob", vector.credentialBlob, out.getCredential());
+            assertArrayEquals(vector.name + " encryptedSecret", vector.encryptedSecret, out.getSecret());
+        }
+    }
+    
+    @Test
+    public void testMakeCredentialIsRandomizedByDefault() throws Exception {
+        Tpm2CredentialVectors.Vector vector = Tpm2CredentialVectors.load().get(0);
+        Tpm2Credential first = Tpm2Utils.makeCredential(vector.ek, Tpm2Algorithm.Symmetric.AES, vector.symKeySizeInBits, vector.nameAlgorithm, vector.credential, vector.objectName);
+        Tpm2Credential second = Tpm2Utils.makeCredential(vector.ek, Tpm2Algorithm.Symmetric.AES, vector.symKeySizeInBits, vector.nameAlgorithm, vector.credential, vector.objectName);
+        assertFalse(Arrays.equals(first.getSecret(), second.getSecret()));
+    }
+    
     @Before
     public void setUp() {
     }
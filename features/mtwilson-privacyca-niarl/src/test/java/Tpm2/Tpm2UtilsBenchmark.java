@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package Tpm2;
+
+import gov.niarl.his.privacyca.Tpm2Credential;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Replays the known-answer vectors through Tpm2Utils.makeCredential.
+ * Each vector is checked against its expected output during setup, so a
+ * refactor that changes the result fails before it is measured.
+ *
+ * Run from the module directory after test-compile:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=Tpm2.Tpm2UtilsBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Tpm2UtilsBenchmark {
+
+    @Param({"0", "1", "2", "3", "4", "5", "6", "7", "8", "9"})
+    public int index;
+
+    private Tpm2CredentialVectors.Vector vector;
+
+    @Setup
+    public void setUp() throws Exception {
+        List<Tpm2CredentialVectors.Vector> vectors = Tpm2CredentialVectors.load();
+        vector = vectors.get(index % vectors.size());
+        Tpm2Credential out = vector.replay();
+        if( !Arrays.equals(vector.credentialBlob, out.getCredential()) || !Arrays.equals(vector.encryptedSecret, out.getSecret()) ) {
+            throw new IllegalStateException("makeCredential does not match known answer " + vector.name);
+        }
+    }
+
+    @Benchmark
+    public Tpm2Credential makeCredential() throws Exception {
+        return vector.replay();
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(Tpm2UtilsBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import javax.security.auth.x500.X500Principal;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Compares the certificates assembled by the template with those built
+ * by the BouncyCastle certificate builder from the same fields.
+ */
+public class AikCertificateTemplateTest {
+    private static final String LABEL = "HIS_Identity_Key";
+    private static final int UTC_TIME = 0x17;
+    private static final int GENERALIZED_TIME = 0x18;
+    private static KeyPair caKey;
+    private static KeyPair aikKey;
+    private static X509Certificate caCert;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        caKey = generator.generateKeyPair();
+        aikKey = generator.generateKeyPair();
+        caCert = CertificateIssuer.createCaCertificate(caKey, "AikCertificateTemplateTest", 1);
+    }
+
+    private static Date utc(int year, int month, int day, int hour, int minute, int second) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute, second);
+        return calendar.getTime();
+    }
+
+    private static X509Certificate template(BigInteger serial, Date notBefore, Date notAfter) throws Exception {
+        AikCertificateTemplate template = new AikCertificateTemplate(caCert, caKey.getPrivate());
+        return template.sign(template.buildTbsCertificate(serial, notBefore, notAfter, aikKey.getPublic(), LABEL), template.newSigner());
+    }
+
+    private static X509Certificate builder(BigInteger serial, Date notBefore, Date notAfter) throws Exception {
+        X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(caCert.getSubjectX500Principal(), serial, notBefore, notAfter, new X500Principal(""), aikKey.getPublic());
+        builder.addExtension(Extension.subjectAlternativeName, true, new GeneralNames(new GeneralName(GeneralName.rfc822Name, LABEL)));
+        return new JcaX509CertificateConverter().getCertificate(builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(caKey.getPrivate())));
+    }
+
+    /**
+     * Returns the tag of the notBefore or notAfter time in the encoded
+     * TBSCertificate.
+     */
+    private static int timeTag(X509Certificate certificate, boolean notAfter) throws Exception {
+        byte[] tbs = certificate.getTBSCertificate();
+        byte[] serial = certificate.getSerialNumber().toByteArray();
+        byte[] issuer = certificate.getIssuerX500Principal().getEncoded();
+        // SEQUENCE header, version [0], serial, signature algorithm, issuer, validity header
+        int offset = headerLength(tbs, 0) + 5 + 2 + serial.length + 15 + issuer.length;
+        offset += headerLength(tbs, offset);
+        if( notAfter ) {
+            offset += 2 + (tbs[offset+1] & 0xff);
+        }
+        return tbs[offset] & 0xff;
+    }
+
+    private static int headerLength(byte[] der, int offset) {
+        int length = der[offset+1] & 0xff;
+        return length < 0x80 ? 2 : 2 + (length & 0x7f);
+    }
+
+    @Test
+    public void testSameEncodingAsCertificateBuilder() throws Exception {
+        BigInteger serial = BigInteger.valueOf(0x1234567890L);
+        Date notBefore = utc(2014, 6, 1, 12, 0, 0);
+        Date notAfter = utc(2024, 6, 1, 12, 0, 0);
+        X509Certificate expected = builder(serial, notBefore, notAfter);
+        X509Certificate actual = template(serial, notBefore, notAfter);
+        assertArrayEquals(expected.getTBSCertificate(), actual.getTBSCertificate());
+        assertArrayEquals(expected.getEncoded(), actual.getEncoded());
+    }
+
+    @Test
+    public void testCertificateContent() throws Exception {
+        X509Certificate certificate = template(BigInteger.TEN, utc(2014, 6, 1, 0, 0, 0), utc(2015, 6, 1, 0, 0, 0));
+        assertEquals(3, certificate.getVersion());
+        assertEquals(BigInteger.TEN, certificate.getSerialNumber());
+        assertEquals(caCert.getSubjectX500Principal(), certificate.getIssuerX500Principal());
+        assertArrayEquals(new byte[] { 0x30, 0x00 }, certificate.getSubjectX500Principal().getEncoded());
+        assertEquals(new X500Principal(""), certificate.getSubjectX500Principal());
+        assertEquals(aikKey.getPublic(), certificate.getPublicKey());
+        assertEquals("SHA256withRSA", certificate.getSigAlgName());
+        assertTrue(certificate.getCriticalExtensionOIDs().contains("2.5.29.17"));
+        Collection<List<?>> names = certificate.getSubjectAlternativeNames();
+        assertEquals(1, names.size());
+        List<?> name = names.iterator().next();
+        assertEquals(GeneralName.rfc822Name, name.get(0));
+        assertEquals(LABEL, name.get(1));
+        certificate.verify(caCert.getPublicKey());
+    }
+
+    @Test
+    public void testTimeEncodingAround2050() throws Exception {
+        Date lastUtcTime = utc(2049, 12, 31, 23, 59, 59);
+        Date firstGeneralizedTime = utc(2050, 1, 1, 0, 0, 0);
+        BigInteger serial = BigInteger.ONE;
+        X509Certificate actual = template(serial, lastUtcTime, firstGeneralizedTime);
+        assertEquals(UTC_TIME, timeTag(actual, false));
+        assertEquals(GENERALIZED_TIME, timeTag(actual, true));
+        assertEquals(lastUtcTime, actual.getNotBefore());
+        assertEquals(firstGeneralizedTime, actual.getNotAfter());
+        assertArrayEquals(builder(serial, lastUtcTime, firstGeneralizedTime).getEncoded(), actual.getEncoded());
+    }
+
+    @Test
+    public void testIssue() throws Exception {
+        AikCertificateTemplate template = new AikCertificateTemplate(caCert, caKey.getPrivate());
+        long before = System.currentTimeMillis() / 1000 * 1000;
+        X509Certificate first = template.issue(aikKey.getPublic(), LABEL, 30);
+        X509Certificate second = template.issue(aikKey.getPublic(), LABEL, 30);
+        first.verify(caCert.getPublicKey());
+        second.verify(caCert.getPublicKey());
+        assertFalse(first.getSerialNumber().equals(second.getSerialNumber()));
+        assertTrue(first.getNotBefore().getTime() >= before);
+        Calendar expiry = Calendar.getInstance();
+        expiry.setTime(first.getNotBefore());
+        expiry.add(Calendar.DAY_OF_YEAR, 30);
+        assertEquals(expiry.getTimeInMillis(), first.getNotAfter().getTime(), 1000);
+        template.verify();
+    }
+
+    @Test
+    public void testIsFor() throws Exception {
+        AikCertificateTemplate template = new AikCertificateTemplate(caCert, caKey.getPrivate());
+        assertTrue(template.isFor(caCert, caKey.getPrivate()));
+        X509Certificate copy = (X509Certificate)CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(caCert.getEncoded()));
+        assertTrue(template.isFor(copy, caKey.getPrivate()));
+        PrivateKey otherKey = aikKey.getPrivate();
+        assertFalse(template.isFor(caCert, otherKey));
+        X509Certificate otherCa = CertificateIssuer.createCaCertificate(aikKey, "Other", 1);
+        assertFalse(template.isFor(otherCa, caKey.getPrivate()));
+        assertTrue(Arrays.equals(caCert.getEncoded(), template.getCaCertificate().getEncoded()));
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the pool itself, and that the decrypt and encrypt paths give the
+ * same results with a pool installed in TpmUtils as without one.
+ */
+public class ByteBufferPoolTest {
+    private static final SecureRandom random = new SecureRandom();
+    private static KeyPair caKey;
+    private static KeyPair ekKey;
+    private static TpmPubKey aik;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        caKey = generator.generateKeyPair();
+        ekKey = generator.generateKeyPair();
+        aik = new TpmPubKey((RSAPublicKey)generator.generateKeyPair().getPublic(), 3, 1);
+    }
+
+    @After
+    public void tearDown() {
+        TpmUtils.setBufferPool(null);
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static boolean isZero(ByteBuffer buffer) {
+        byte[] array = buffer.array();
+        for(int i = buffer.arrayOffset(); i < buffer.arrayOffset() + buffer.capacity(); i++) {
+            if( array[i] != 0 ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] written(ByteBuffer buffer) {
+        return Arrays.copyOfRange(buffer.array(), buffer.arrayOffset(), buffer.arrayOffset() + buffer.position());
+    }
+
+    @Test
+    public void testReleasedBufferIsZeroedAndReused() {
+        ByteBufferPool pool = new ByteBufferPool(64, 2);
+        ByteBuffer buffer = pool.acquire(10);
+        assertEquals(0, buffer.position());
+        assertEquals(10, buffer.limit());
+        assertEquals(1, pool.getMisses());
+        buffer.put(randomBytes(10));
+        pool.release(buffer);
+        assertEquals(1, pool.getAvailable());
+        ByteBuffer again = pool.acquire(20);
+        assertSame(buffer, again);
+        assertEquals(20, again.limit());
+        assertTrue(isZero(again));
+        assertEquals(1, pool.getHits());
+        assertEquals(0, pool.getAvailable());
+    }
+
+    @Test
+    public void testCapacityAndOversizedBuffers() {
+        ByteBufferPool pool = new ByteBufferPool(64, 2);
+        ByteBuffer[] buffers = { pool.acquire(64), pool.acquire(64), pool.acquire(64) };
+        for(ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+        assertEquals(2, pool.getAvailable());
+        ByteBuffer oversized = pool.acquire(65);
+        assertEquals(65, oversized.capacity());
+        oversized.put(randomBytes(65));
+        pool.release(oversized);
+        assertTrue(isZero(oversized));
+        assertEquals(2, pool.getAvailable());
+        assertEquals(4, pool.getMisses());
+    }
+
+    @Test
+    public void testIdentityProofDecryptedIntoPooledBuffer() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool(4);
+        for(boolean trousers : new boolean[] { true, false }) {
+            byte[] credential = randomBytes(1000);
+            TpmIdentityProof proof = new TpmIdentityProof("label".getBytes("UTF-8"), randomBytes(256), aik, credential, credential, credential, trousers, trousers, trousers);
+            byte[] request = new TpmIdentityRequest(proof, (RSAPublicKey)caKey.getPublic()).toByteArray();
+            TpmUtils.setBufferPool(null);
+            TpmIdentityProof expected = new TpmIdentityRequest(request).decrypt((RSAPrivateKey)caKey.getPrivate());
+            TpmUtils.setBufferPool(pool);
+            TpmIdentityProof fromArray = new TpmIdentityRequest(request).decrypt((RSAPrivateKey)caKey.getPrivate());
+            assertArrayEquals(expected.toByteArray(), fromArray.toByteArray());
+            TpmIdentityRequestReader reader = new TpmIdentityRequestReader();
+            ByteArrayInputStream in = new ByteArrayInputStream(request);
+            TpmIdentityProof fromStream = reader.decrypt(reader.readHeader(in), in, (RSAPrivateKey)caKey.getPrivate());
+            assertArrayEquals(expected.toByteArray(), fromStream.toByteArray());
+            assertArrayEquals(credential, fromStream.getEkCredBytes());
+        }
+        // one buffer serves every request because each is released before the next is taken
+        assertEquals(1, pool.getMisses());
+        assertEquals(3, pool.getHits());
+        assertEquals(1, pool.getAvailable());
+        assertTrue(isZero(pool.acquire(0)));
+    }
+
+    @Test
+    public void testSymmetricEncryptionIntoPooledBuffer() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool(4);
+        byte[] key = TpmUtils.newRandomAESValue();
+        byte[] iv = TpmUtils.newRandomAESValue();
+        for(int length : new int[] { 0, 15, 16, 1000 }) {
+            byte[] payload = randomBytes(length);
+            byte[] expected = TpmUtils.tcgSymEncrypt(payload, key, iv);
+            for(boolean ivInBlob : new boolean[] { true, false }) {
+                ByteBuffer encrypted = pool.acquire(TpmUtils.tcgSymEncryptedLength(length, ivInBlob));
+                int written = TpmUtils.tcgSymEncrypt(ByteBuffer.wrap(payload), key, iv, ivInBlob, encrypted);
+                assertEquals(encrypted.limit(), written);
+                byte[] ciphertext = written(encrypted);
+                assertArrayEquals(ivInBlob ? TpmUtils.concat(iv, expected) : expected, ciphertext);
+                ByteBuffer decrypted = pool.acquire(expected.length);
+                assertEquals(length, TpmUtils.tcgSymDecrypt(ByteBuffer.wrap(expected), key, iv, decrypted));
+                assertArrayEquals(payload, written(decrypted));
+                pool.release(encrypted);
+                pool.release(decrypted);
+            }
+        }
+        assertEquals(2, pool.getMisses());
+    }
+
+    @Test
+    public void testResponseWrittenIntoPooledBuffer() throws Exception {
+        ByteBufferPool pool = new ByteBufferPool(4);
+        byte[] credential = randomBytes(1000);
+        for(boolean trousers : new boolean[] { true, false }) {
+            TpmSymCaAttestation sym = new TpmSymCaAttestation();
+            sym.setAikCredential(credential);
+            TpmSymmetricKey key = sym.encrypt(TpmKeyParams.TPM_ALG_AES, TpmKeyParams.TPM_ES_SYM_CBC_PKCS5PAD, trousers, trousers);
+            TpmAsymCaContents asym = new TpmAsymCaContents();
+            asym.setSymmetricKey(key);
+            asym.setDigest(aik);
+            asym.encrypt((RSAPublicKey)ekKey.getPublic(), false);
+            // the EK recovers the symmetric key from the asymmetric part
+            byte[] asymPlain = TpmUtils.tcgAsymDecrypt(asym.toByteArray(), (RSAPrivateKey)ekKey.getPrivate(), "TCPA");
+            byte[] keyBytes = key.toByteArray();
+            assertArrayEquals(keyBytes, Arrays.copyOf(asymPlain, keyBytes.length));
+            idResponse response = new idResponse(asym, sym);
+            byte[] expected = response.toByteArray();
+            assertEquals(sym.toByteArray().length, sym.getEncodedLength());
+            assertEquals(expected.length, response.getEncodedLength());
+            ByteBuffer out = pool.acquire(response.getEncodedLength());
+            response.writeTo(out);
+            assertFalse(out.hasRemaining());
+            assertArrayEquals(expected, written(out));
+            if( trousers ) {
+                // the IV is at the head of the credential, where decryptSymCaAttestation reads it
+                assertArrayEquals(credential, TpmUtils.decryptSymCaAttestation(key.getSecretKey().getEncoded(), sym.toByteArray()));
+            }
+            pool.release(out);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Runs the issuance queue against templates that stall or fail on demand.
+ */
+public class CertificateIssuanceQueueTest {
+    private static final String LABEL = "HIS_Identity_Key";
+    private static KeyPair caKey;
+    private static PublicKey aik;
+    private static X509Certificate caCert;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        caKey = generator.generateKeyPair();
+        aik = generator.generateKeyPair().getPublic();
+        caCert = CertificateIssuer.createCaCertificate(caKey, "CertificateIssuanceQueueTest", 1);
+    }
+
+    /**
+     * Blocks every signature until released; the first signerInits calls
+     * to newSigner succeed and the later ones fail, and signatures fail
+     * while failSignatures is set.
+     */
+    private static class ControlledTemplate extends AikCertificateTemplate {
+        private final CountDownLatch release;
+        private final AtomicInteger signerInits;
+        private volatile boolean failSignatures = false;
+        private final CountDownLatch signing = new CountDownLatch(1);
+
+        ControlledTemplate(int signerInits, CountDownLatch release) {
+            super(caCert, caKey.getPrivate());
+            this.signerInits = new AtomicInteger(signerInits);
+            this.release = release;
+        }
+
+        @Override
+        public Signature newSigner() throws NoSuchAlgorithmException, InvalidKeyException {
+            if( signerInits.getAndDecrement() <= 0 ) {
+                throw new InvalidKeyException("CA key is not available");
+            }
+            return super.newSigner();
+        }
+
+        @Override
+        public X509Certificate sign(byte[] tbsCertificate, Signature signer) throws SignatureException, CertificateEncodingException {
+            signing.countDown();
+            try {
+                release.await();
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SignatureException("Interrupted");
+            }
+            if( failSignatures ) {
+                throw new SignatureException("Signature failed");
+            }
+            return super.sign(tbsCertificate, signer);
+        }
+    }
+
+    private static Throwable failure(Future<X509Certificate> future) throws Exception {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("Expected the job to fail");
+            return null;
+        }
+        catch(ExecutionException e) {
+            return e.getCause();
+        }
+    }
+
+    private static void assertRejected(CertificateIssuanceQueue queue) {
+        try {
+            queue.submit(aik, LABEL, 1);
+            fail("Expected the job to be rejected");
+        }
+        catch(RejectedExecutionException e) {
+        }
+    }
+
+    @Test
+    public void testIssuesCertificates() throws Exception {
+        try(CertificateIssuanceQueue queue = new CertificateIssuanceQueue(new AikCertificateTemplate(caCert, caKey.getPrivate()), 2, 32, 4)) {
+            List<Future<X509Certificate>> futures = new ArrayList<>();
+            for(int i = 0; i < 20; i++) {
+                futures.add(queue.submit(aik, LABEL, 1));
+            }
+            HashSet<BigInteger> serialNumbers = new HashSet<>();
+            for(Future<X509Certificate> future : futures) {
+                X509Certificate certificate = future.get(10, TimeUnit.SECONDS);
+                certificate.verify(caCert.getPublicKey());
+                assertEquals(aik, certificate.getPublicKey());
+                serialNumbers.add(certificate.getSerialNumber());
+            }
+            assertEquals(20, serialNumbers.size());
+            assertEquals(20, queue.getIssuedCount());
+            assertEquals(0, queue.getFailedCount());
+            assertTrue(queue.getBatchCount() > 0 && queue.getBatchCount() <= 20);
+        }
+    }
+
+    @Test
+    public void testRejectsWhenFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ControlledTemplate template = new ControlledTemplate(Integer.MAX_VALUE, release);
+        try(CertificateIssuanceQueue queue = new CertificateIssuanceQueue(template, 1, 1, 1)) {
+            Future<X509Certificate> signing = queue.submit(aik, LABEL, 1);
+            assertTrue(template.signing.await(10, TimeUnit.SECONDS));
+            Future<X509Certificate> waiting = queue.submit(aik, LABEL, 1);
+            assertRejected(queue);
+            assertEquals(1, queue.getRejectedCount());
+            assertEquals(1, queue.getQueueDepth());
+            release.countDown();
+            signing.get(10, TimeUnit.SECONDS).verify(caCert.getPublicKey());
+            waiting.get(10, TimeUnit.SECONDS).verify(caCert.getPublicKey());
+        }
+    }
+
+    @Test
+    public void testFailsWhenNoSignerStarts() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        try(CertificateIssuanceQueue queue = new CertificateIssuanceQueue(new ControlledTemplate(0, release), 2, 8, 1)) {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while( queue.getFailure() == null && System.nanoTime() < deadline ) {
+                Thread.sleep(1);
+            }
+            assertTrue(queue.getFailure() instanceof InvalidKeyException);
+            try {
+                queue.submit(aik, LABEL, 1, 1, TimeUnit.SECONDS);
+                fail("Expected the job to be rejected");
+            }
+            catch(RejectedExecutionException e) {
+                assertSame(queue.getFailure(), e.getCause());
+            }
+        }
+    }
+
+    @Test
+    public void testFailsQueuedJobsWhenLastSignerDies() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ControlledTemplate template = new ControlledTemplate(1, release);
+        try(CertificateIssuanceQueue queue = new CertificateIssuanceQueue(template, 1, 4, 1)) {
+            Future<X509Certificate> signing = queue.submit(aik, LABEL, 1);
+            assertTrue(template.signing.await(10, TimeUnit.SECONDS));
+            Future<X509Certificate> waiting = queue.submit(aik, LABEL, 1);
+            template.failSignatures = true;
+            release.countDown();
+            assertTrue(failure(signing) instanceof SignatureException);
+            Throwable cause = failure(waiting);
+            assertTrue(cause instanceof InvalidKeyException);
+            assertSame(cause, queue.getFailure());
+            assertEquals(0, queue.getQueueDepth());
+            assertRejected(queue);
+        }
+    }
+
+    @Test
+    public void testCloseCancelsQueuedJobs() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ControlledTemplate template = new ControlledTemplate(Integer.MAX_VALUE, release);
+        CertificateIssuanceQueue queue = new CertificateIssuanceQueue(template, 1, 4, 1);
+        queue.submit(aik, LABEL, 1);
+        assertTrue(template.signing.await(10, TimeUnit.SECONDS));
+        Future<X509Certificate> waiting = queue.submit(aik, LABEL, 1);
+        queue.close();
+        assertTrue(waiting.isCancelled());
+        assertEquals(0, queue.getQueueDepth());
+        assertRejected(queue);
+        assertNull(queue.getFailure());
+    }
+
+    @Test
+    public void testSubmitRacingCloseIsNotOrphaned() throws Exception {
+        for(int round = 0; round < 50; round++) {
+            final CertificateIssuanceQueue queue = new CertificateIssuanceQueue(new ControlledTemplate(Integer.MAX_VALUE, new CountDownLatch(0)), 1, 64, 1);
+            final List<Future<X509Certificate>> accepted = new ArrayList<>();
+            final CountDownLatch started = new CountDownLatch(1);
+            Thread submitter = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        while( true ) {
+                            accepted.add(queue.submit(aik, LABEL, 1));
+                        }
+                    }
+                    catch(RejectedExecutionException e) {
+                    }
+                }
+            });
+            submitter.start();
+            started.await();
+            queue.close();
+            submitter.join(10000);
+            assertFalse(submitter.isAlive());
+            assertEquals(0, queue.getQueueDepth());
+            for(Future<X509Certificate> future : accepted) {
+                try {
+                    future.get(10, TimeUnit.SECONDS);
+                }
+                catch(CancellationException | ExecutionException e) {
+                }
+                assertTrue(future.isDone());
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidArguments() throws GeneralSecurityException {
+        new CertificateIssuanceQueue(new AikCertificateTemplate(caCert, caKey.getPrivate()), 0, 1, 1);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Calendar;
+import java.util.TreeSet;
+import javax.security.auth.x500.X500Principal;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+import org.bouncycastle.x509.extension.AuthorityKeyIdentifierStructure;
+import org.bouncycastle.x509.extension.SubjectKeyIdentifierStructure;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Compares the CA, client and EK certificates made by CertificateIssuer with
+ * those of the X509V3CertificateGenerator code it replaced: names,
+ * extensions, their criticality and the validity period.
+ */
+public class CertificateIssuerTest {
+    private static final int VALIDITY_DAYS = 30;
+    private static KeyPairGenerator generator;
+    private static KeyPair ca;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        ca = generator.generateKeyPair();
+    }
+
+    /**
+     * The generator as TpmUtils used to set it up, with the issuer,
+     * subject, key and validity shared by all three certificates.
+     */
+    private static X509V3CertificateGenerator legacyGenerator(X500Principal issuer, X500Principal subject, PublicKey publicKey, BigInteger serialNumber) {
+        X509V3CertificateGenerator certGen = new X509V3CertificateGenerator();
+        certGen.setSerialNumber(serialNumber);
+        certGen.setIssuerDN(issuer);
+        certGen.setNotBefore(new java.sql.Time(System.currentTimeMillis()));
+        Calendar expiry = Calendar.getInstance();
+        expiry.add(Calendar.DAY_OF_YEAR, VALIDITY_DAYS);
+        certGen.setNotAfter(expiry.getTime());
+        certGen.setSubjectDN(subject);
+        certGen.setPublicKey(publicKey);
+        certGen.setSignatureAlgorithm("SHA256withRSA");
+        return certGen;
+    }
+
+    private static X509Certificate legacyCaCertificate(KeyPair keyPair, String caName, BigInteger serialNumber) throws Exception {
+        X500Principal name = new X500Principal("CN=" + caName);
+        X509V3CertificateGenerator certGen = legacyGenerator(name, name, keyPair.getPublic(), serialNumber);
+        certGen.addExtension(Extension.subjectKeyIdentifier, false, new SubjectKeyIdentifierStructure(keyPair.getPublic()));
+        certGen.addExtension(Extension.basicConstraints, true, new BasicConstraints(true));
+        X509Certificate caCert = certGen.generate(keyPair.getPrivate());
+        certGen.addExtension(Extension.authorityKeyIdentifier, false, new AuthorityKeyIdentifierStructure(caCert));
+        return certGen.generate(keyPair.getPrivate());
+    }
+
+    private static X509Certificate legacyClientCertificate(PublicKey publicKey, String subjectName, X509Certificate caCert, PrivateKey caKey) throws Exception {
+        X509V3CertificateGenerator certGen = legacyGenerator(caCert.getSubjectX500Principal(), new X500Principal("CN=" + subjectName), publicKey, BigInteger.ONE);
+        certGen.addExtension(Extension.subjectKeyIdentifier, false, new SubjectKeyIdentifierStructure(publicKey));
+        certGen.addExtension(Extension.authorityKeyIdentifier, false, new AuthorityKeyIdentifierStructure(caCert));
+        certGen.addExtension(Extension.basicConstraints, true, new BasicConstraints(false));
+        return certGen.generate(caKey);
+    }
+
+    private static X509Certificate legacyEkCertificate(PublicKey ek, X509Certificate caCert, PrivateKey caKey) throws Exception {
+        X509V3CertificateGenerator certGen = legacyGenerator(caCert.getSubjectX500Principal(), new X500Principal(""), ek, BigInteger.ONE);
+        certGen.addExtension(Extension.subjectAlternativeName, true, new GeneralNames(new GeneralName(GeneralName.rfc822Name, "TPM EK Credential")));
+        return certGen.generate(caKey);
+    }
+
+    private static void assertSameFields(X509Certificate expected, X509Certificate actual) {
+        assertEquals(expected.getVersion(), actual.getVersion());
+        assertEquals(expected.getIssuerX500Principal(), actual.getIssuerX500Principal());
+        assertEquals(expected.getSubjectX500Principal(), actual.getSubjectX500Principal());
+        assertEquals(expected.getPublicKey(), actual.getPublicKey());
+        assertEquals(expected.getSigAlgOID(), actual.getSigAlgOID());
+        assertEquals(new TreeSet<>(expected.getCriticalExtensionOIDs()), new TreeSet<>(actual.getCriticalExtensionOIDs()));
+        assertEquals(new TreeSet<>(expected.getNonCriticalExtensionOIDs()), new TreeSet<>(actual.getNonCriticalExtensionOIDs()));
+        for(String oid : expected.getCriticalExtensionOIDs()) {
+            assertArrayEquals(oid, expected.getExtensionValue(oid), actual.getExtensionValue(oid));
+        }
+        for(String oid : expected.getNonCriticalExtensionOIDs()) {
+            assertArrayEquals(oid, expected.getExtensionValue(oid), actual.getExtensionValue(oid));
+        }
+        assertEquals(expected.getBasicConstraints(), actual.getBasicConstraints());
+        // both are encoded with one second precision and made within the same few seconds
+        long expectedValidity = expected.getNotAfter().getTime() - expected.getNotBefore().getTime();
+        long actualValidity = actual.getNotAfter().getTime() - actual.getNotBefore().getTime();
+        assertEquals(expectedValidity, actualValidity, 2000);
+        assertEquals(expected.getNotBefore().getTime(), actual.getNotBefore().getTime(), 5000);
+    }
+
+    @Test
+    public void testCaCertificateMatchesLegacyGenerator() throws Exception {
+        X509Certificate caCert = CertificateIssuer.createCaCertificate(ca, "CertificateIssuerTest CA", VALIDITY_DAYS);
+        X509Certificate legacy = legacyCaCertificate(ca, "CertificateIssuerTest CA", caCert.getSerialNumber());
+        // same serial number, so the self-referencing authority key identifiers match too
+        assertSameFields(legacy, caCert);
+        caCert.verify(ca.getPublic());
+    }
+
+    @Test
+    public void testClientCertificateMatchesLegacyGenerator() throws Exception {
+        X509Certificate caCert = CertificateIssuer.createCaCertificate(ca, "CertificateIssuerTest CA", VALIDITY_DAYS);
+        CertificateIssuer issuer = new CertificateIssuer(caCert, ca.getPrivate());
+        PublicKey client = generator.generateKeyPair().getPublic();
+        X509Certificate clientCert = issuer.createClientCertificate(client, "client", VALIDITY_DAYS);
+        X509Certificate legacy = legacyClientCertificate(client, "client", caCert, ca.getPrivate());
+        assertSameFields(legacy, clientCert);
+        assertEquals(-1, clientCert.getBasicConstraints());
+        clientCert.verify(ca.getPublic());
+    }
+
+    @Test
+    public void testEkCertificateMatchesLegacyGenerator() throws Exception {
+        X509Certificate caCert = CertificateIssuer.createCaCertificate(ca, "CertificateIssuerTest CA", VALIDITY_DAYS);
+        RSAPublicKey ek = (RSAPublicKey)generator.generateKeyPair().getPublic();
+        X509Certificate legacy = legacyEkCertificate(ek, caCert, ca.getPrivate());
+        assertSameFields(legacy, new CertificateIssuer(caCert, ca.getPrivate()).createEkCertificate(ek, VALIDITY_DAYS));
+        // makeEkCert rebuilds the key from the modulus with exponent 65537
+        X509Certificate ekCert = TpmUtils.makeEkCert(ek.getModulus().toByteArray(), (RSAPrivateKey)ca.getPrivate(), caCert, VALIDITY_DAYS);
+        assertSameFields(legacy, ekCert);
+        assertTrue(ekCert.getSubjectX500Principal().getName().isEmpty());
+        ekCert.verify(ca.getPublic());
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import gov.niarl.his.privacyca.CertifyKeyVerifier.CertifiedKey;
+import gov.niarl.his.privacyca.CertifyKeyVerifier.Result;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Builds TPM_CERTIFY_INFO structures signed by an AIK and checks the
+ * digest offset arithmetic and each verification result.
+ */
+public class CertifyKeyVerifierTest {
+    private static final int PUBKEY_DIGEST_AFTER_HEADER = 4 + 2 + 4 + 1 + 12;
+    private static final int FIELDS_AFTER_DIGEST = 20 + 20 + 1 + 4;
+    private static KeyPair caKey;
+    private static KeyPair aikKey;
+    private static KeyPair certifiedKey;
+    private static X509Certificate caCert;
+    private static byte[] aikCertificate;
+    private static byte[] untrustedAikCertificate;
+    private static byte[] expiredAikCertificate;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        caKey = generator.generateKeyPair();
+        aikKey = generator.generateKeyPair();
+        certifiedKey = generator.generateKeyPair();
+        caCert = CertificateIssuer.createCaCertificate(caKey, "CertifyKeyVerifierTest", 1);
+        AikCertificateTemplate template = new AikCertificateTemplate(caCert, caKey.getPrivate());
+        aikCertificate = template.issue(aikKey.getPublic(), "aik", 1).getEncoded();
+        long now = System.currentTimeMillis();
+        expiredAikCertificate = template.sign(template.buildTbsCertificate(BigInteger.ONE, new Date(now - TimeUnit.DAYS.toMillis(2)), new Date(now - TimeUnit.DAYS.toMillis(1)), aikKey.getPublic(), "aik"), template.newSigner()).getEncoded();
+        // same issuer name, but signed by another key
+        KeyPair otherKey = generator.generateKeyPair();
+        X509Certificate otherCa = CertificateIssuer.createCaCertificate(otherKey, "CertifyKeyVerifierTest", 1);
+        untrustedAikCertificate = new AikCertificateTemplate(otherCa, otherKey.getPrivate()).issue(aikKey.getPublic(), "aik", 1).getEncoded();
+    }
+
+    private static byte[] modulus(KeyPair key) {
+        return ((RSAPublicKey)key.getPublic()).getModulus().toByteArray();
+    }
+
+    /**
+     * TPM_CERTIFY_INFO: version, keyUsage, keyFlags, authDataUsage,
+     * TPM_KEY_PARMS with parmSize bytes of parameters, pubkeyDigest, data,
+     * parentPCRStatus, pcrInfoSize and pcrInfo.
+     */
+    private static byte[] certifyInfo(byte[] modulus, int parmSize, int pcrInfoSize) throws Exception {
+        ByteBuffer info = ByteBuffer.allocate(PUBKEY_DIGEST_AFTER_HEADER + parmSize + FIELDS_AFTER_DIGEST + pcrInfoSize);
+        info.put(new byte[] { 1, 1, 0, 0 });
+        info.putShort((short)0x0014); // TPM_KEY_BIND
+        info.putInt(0);
+        info.put((byte)1);
+        info.putInt(TpmKeyParams.TPM_ALG_RSA);
+        info.putShort(TpmKeyParams.TPM_ES_RSAESOAEP_SHA1_MGF1);
+        info.putShort((short)1);
+        info.putInt(parmSize);
+        info.put(new byte[parmSize]);
+        info.put(MessageDigest.getInstance("SHA-1").digest(modulus));
+        info.put(new byte[20]);
+        info.put((byte)0);
+        info.putInt(pcrInfoSize);
+        info.put(new byte[pcrInfoSize]);
+        return info.array();
+    }
+
+    private static byte[] sign(byte[] certifyInfo) throws Exception {
+        Signature signature = Signature.getInstance("SHA1withRSA");
+        signature.initSign(aikKey.getPrivate());
+        signature.update(certifyInfo);
+        return signature.sign();
+    }
+
+    private static byte[] withUint32(byte[] bytes, int offset, int value) {
+        byte[] copy = Arrays.copyOf(bytes, bytes.length);
+        ByteBuffer.wrap(copy).putInt(offset, value);
+        return copy;
+    }
+
+    @Test
+    public void testPublicKeyDigestOffset() throws Exception {
+        byte[] modulus = modulus(certifiedKey);
+        for(int parmSize : new int[] { 0, 12, 100, TpmIdentityRequestReader.MAX_KEY_PARAMS_SIZE }) {
+            byte[] info = certifyInfo(modulus, parmSize, 0);
+            int offset = CertifyKeyVerifier.publicKeyDigestOffset(info);
+            assertEquals(PUBKEY_DIGEST_AFTER_HEADER + parmSize, offset);
+            assertArrayEquals(MessageDigest.getInstance("SHA-1").digest(modulus), Arrays.copyOfRange(info, offset, offset + 20));
+            // the shortest structure that still holds the fields after the digest
+            assertEquals(offset, CertifyKeyVerifier.publicKeyDigestOffset(Arrays.copyOf(info, offset + FIELDS_AFTER_DIGEST)));
+            assertEquals(-1, CertifyKeyVerifier.publicKeyDigestOffset(Arrays.copyOf(info, offset + FIELDS_AFTER_DIGEST - 1)));
+        }
+        // PCR info after pcrInfoSize is not needed to find the digest
+        assertEquals(PUBKEY_DIGEST_AFTER_HEADER + 12, CertifyKeyVerifier.publicKeyDigestOffset(certifyInfo(modulus, 12, 26)));
+    }
+
+    @Test
+    public void testPublicKeyDigestOffsetRejectsBadParmSize() throws Exception {
+        byte[] info = certifyInfo(modulus(certifiedKey), 12, 0);
+        int parmSizeOffset = PUBKEY_DIGEST_AFTER_HEADER - 4;
+        assertEquals(-1, CertifyKeyVerifier.publicKeyDigestOffset(withUint32(info, parmSizeOffset, TpmIdentityRequestReader.MAX_KEY_PARAMS_SIZE + 1)));
+        assertEquals(-1, CertifyKeyVerifier.publicKeyDigestOffset(withUint32(info, parmSizeOffset, -1)));
+        assertEquals(-1, CertifyKeyVerifier.publicKeyDigestOffset(withUint32(info, parmSizeOffset, info.length)));
+        assertEquals(-1, CertifyKeyVerifier.publicKeyDigestOffset(Arrays.copyOf(info, PUBKEY_DIGEST_AFTER_HEADER - 1)));
+        assertEquals(-1, CertifyKeyVerifier.publicKeyDigestOffset(new byte[0]));
+    }
+
+    @Test
+    public void testVerifyWithPrivacyCa() throws Exception {
+        CertifyKeyVerifier verifier = new CertifyKeyVerifier(4, caCert);
+        byte[] modulus = modulus(certifiedKey);
+        byte[] info = certifyInfo(modulus, 12, 0);
+        byte[] signature = sign(info);
+        assertEquals(Result.VALID, verifier.verify(modulus, info, signature, aikCertificate));
+        assertEquals(Result.UNTRUSTED_AIK_CERTIFICATE, verifier.verify(modulus, info, signature, untrustedAikCertificate));
+        assertEquals(Result.UNTRUSTED_AIK_CERTIFICATE, verifier.verify(modulus, info, signature, expiredAikCertificate));
+        assertEquals(Result.PUBLIC_KEY_DIGEST_MISMATCH, verifier.verify(modulus(aikKey), info, signature, aikCertificate));
+        byte[] tampered = Arrays.copyOf(signature, signature.length);
+        tampered[0] ^= 1;
+        assertEquals(Result.INVALID_SIGNATURE, verifier.verify(modulus, info, tampered, aikCertificate));
+        assertEquals(Result.INVALID_AIK_CERTIFICATE, verifier.verify(modulus, info, signature, new byte[] { 0x30, 0x00 }));
+        assertEquals(Result.MALFORMED_CERTIFY_INFO, verifier.verify(modulus, Arrays.copyOf(info, 30), signature, aikCertificate));
+        assertEquals(Result.MISSING_FIELD, verifier.verify(modulus, info, null, aikCertificate));
+        assertEquals(1, verifier.getVerifiedCount());
+        assertEquals(7, verifier.getRejectedCount());
+    }
+
+    @Test
+    public void testVerifyWithoutPrivacyCa() throws Exception {
+        CertifyKeyVerifier verifier = new CertifyKeyVerifier(4);
+        byte[] modulus = modulus(certifiedKey);
+        byte[] info = certifyInfo(modulus, 12, 0);
+        // only the consistency of the request is checked
+        assertEquals(Result.VALID, verifier.verify(modulus, info, sign(info), untrustedAikCertificate));
+    }
+
+    @Test
+    public void testVerifyAllCachesAikCertificate() throws Exception {
+        CertifyKeyVerifier verifier = new CertifyKeyVerifier(4, caCert);
+        byte[] modulus = modulus(certifiedKey);
+        byte[] info = certifyInfo(modulus, 12, 0);
+        byte[] signature = sign(info);
+        List<Result> results = verifier.verifyAll(Arrays.asList(
+                new CertifiedKey(modulus, info, signature, aikCertificate),
+                new CertifiedKey(modulus, info, signature, aikCertificate),
+                new CertifiedKey(modulus, info, signature, untrustedAikCertificate),
+                new CertifiedKey(modulus, info, signature, untrustedAikCertificate)));
+        assertEquals(Arrays.asList(Result.VALID, Result.VALID, Result.UNTRUSTED_AIK_CERTIFICATE, Result.UNTRUSTED_AIK_CERTIFICATE), results);
+        // the untrusted certificate is not cached, so it is checked again
+        assertEquals(1, verifier.getHitCount());
+        assertEquals(3, verifier.getMissCount());
+        assertEquals(2, verifier.getVerifiedCount());
+        assertEquals(2, verifier.getRejectedCount());
+    }
+}
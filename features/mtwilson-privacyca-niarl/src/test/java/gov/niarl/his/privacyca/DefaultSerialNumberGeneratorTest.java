@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the layout of the serial numbers and that they stay unique when
+ * many threads share one generator.
+ */
+public class DefaultSerialNumberGeneratorTest {
+
+    /**
+     * The 20 octet big endian form, with leading zero octets restored.
+     */
+    private static byte[] octets(BigInteger serial) {
+        byte[] value = serial.toByteArray();
+        assertTrue(value.length <= 21);
+        byte[] octets = new byte[20];
+        int length = Math.min(value.length, 20);
+        System.arraycopy(value, value.length - length, octets, 20 - length, length);
+        return octets;
+    }
+
+    private static long field(byte[] octets, int offset, int length) {
+        long value = 0;
+        for(int i = offset; i < offset + length; i++) {
+            value = (value << 8) | (octets[i] & 0xff);
+        }
+        return value;
+    }
+
+    @Test
+    public void testLengthAndSign() {
+        DefaultSerialNumberGenerator generator = new DefaultSerialNumberGenerator(DefaultSerialNumberGenerator.MAX_NODE_ID);
+        for(int i = 0; i < 1000; i++) {
+            BigInteger serial = generator.nextSerialNumber();
+            assertEquals(1, serial.signum());
+            // the leading bit is clear, so the DER integer needs no padding octet
+            assertTrue(serial.bitLength() <= 159);
+            assertTrue(serial.toByteArray().length <= 20);
+            assertEquals(DefaultSerialNumberGenerator.MAX_NODE_ID, field(octets(serial), 0, 2));
+        }
+        assertEquals(0, field(octets(new DefaultSerialNumberGenerator(0).nextSerialNumber()), 0, 2));
+    }
+
+    @Test
+    public void testTimeAndCounterFields() {
+        DefaultSerialNumberGenerator generator = new DefaultSerialNumberGenerator(7);
+        long start = System.currentTimeMillis();
+        long previousTime = 0;
+        long previousCount = -1;
+        for(int i = 0; i < 1000; i++) {
+            byte[] octets = octets(generator.nextSerialNumber());
+            long time = field(octets, 2, 6);
+            long count = field(octets, 8, 4);
+            assertTrue(time >= start && time <= System.currentTimeMillis());
+            assertTrue(time >= previousTime);
+            if( previousCount >= 0 ) {
+                // the counter starts at a random value and wraps around at 32 bits
+                assertEquals((previousCount + 1) & 0xffffffffL, count);
+            }
+            previousTime = time;
+            previousCount = count;
+        }
+    }
+
+    @Test
+    public void testRandomBitsDiffer() {
+        DefaultSerialNumberGenerator generator = new DefaultSerialNumberGenerator(7);
+        HashSet<Long> randomBits = new HashSet<>();
+        for(int i = 0; i < 100; i++) {
+            randomBits.add(field(octets(generator.nextSerialNumber()), 12, 8));
+        }
+        assertEquals(100, randomBits.size());
+    }
+
+    @Test
+    public void testUniqueAcrossThreads() throws Exception {
+        final DefaultSerialNumberGenerator generator = new DefaultSerialNumberGenerator();
+        final List<BigInteger> serials = Collections.synchronizedList(new ArrayList<BigInteger>());
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for(int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch(InterruptedException e) {
+                        return;
+                    }
+                    ArrayList<BigInteger> local = new ArrayList<>();
+                    for(int i = 0; i < 5000; i++) {
+                        local.add(generator.nextSerialNumber());
+                    }
+                    serials.addAll(local);
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for(Thread thread : threads) {
+            thread.join(10000);
+        }
+        assertEquals(40000, serials.size());
+        HashSet<BigInteger> unique = new HashSet<>();
+        HashSet<Long> counts = new HashSet<>();
+        for(BigInteger serial : serials) {
+            assertTrue(unique.add(serial));
+            assertTrue(counts.add(field(octets(serial), 8, 4)));
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidNodeId() {
+        new DefaultSerialNumberGenerator(DefaultSerialNumberGenerator.MAX_NODE_ID + 1);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import javax.security.auth.x500.X500Principal;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks hits, LRU eviction, keying by content and that certificates which
+ * fail to decode are not cached.
+ */
+public class EkCertificateCacheTest {
+    private static KeyPairGenerator generator;
+    private static KeyPair ca;
+    private static X509Certificate caCert;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        ca = generator.generateKeyPair();
+        caCert = CertificateIssuer.createCaCertificate(ca, "EkCertificateCacheTest", 1);
+    }
+
+    private static byte[] newEkCertificate() throws Exception {
+        RSAPublicKey ek = (RSAPublicKey)generator.generateKeyPair().getPublic();
+        return TpmUtils.makeEkCert(ek.getModulus().toByteArray(), (RSAPrivateKey)ca.getPrivate(), caCert, 1).getEncoded();
+    }
+
+    @Test
+    public void testHitReturnsSameEntry() throws Exception {
+        EkCertificateCache cache = new EkCertificateCache(4);
+        byte[] der = newEkCertificate();
+        EkCertificateCache.Entry entry = cache.get(der);
+        assertArrayEquals(der, entry.getCertificate().getEncoded());
+        assertEquals(entry.getCertificate().getPublicKey(), entry.getPublicKey());
+        assertArrayEquals(EkCertificateCache.sha256(der), entry.getDigest());
+        assertSame(entry, cache.get(der));
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testSameBytesInAnotherArrayHit() throws Exception {
+        EkCertificateCache cache = new EkCertificateCache(4);
+        byte[] der = newEkCertificate();
+        EkCertificateCache.Entry entry = cache.get(der);
+        byte[] copy = Arrays.copyOf(der, der.length);
+        assertNotSame(der, copy);
+        assertSame(entry, cache.get(copy));
+        assertEquals(1, cache.getMissCount());
+        cache.invalidate(Arrays.copyOf(der, der.length));
+        assertEquals(0, cache.size());
+        assertNotSame(entry, cache.get(der));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        EkCertificateCache cache = new EkCertificateCache(2);
+        byte[] a = newEkCertificate();
+        byte[] b = newEkCertificate();
+        byte[] c = newEkCertificate();
+        EkCertificateCache.Entry entryA = cache.get(a);
+        EkCertificateCache.Entry entryB = cache.get(b);
+        // using a makes b the least recently used
+        assertSame(entryA, cache.get(a));
+        cache.get(c);
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertSame(entryA, cache.get(a));
+        assertNotSame(entryB, cache.get(b));
+        assertEquals(4, cache.getMissCount());
+    }
+
+    @Test
+    public void testInvalidCertificateIsNotCached() throws Exception {
+        EkCertificateCache cache = new EkCertificateCache(4);
+        byte[] der = newEkCertificate();
+        byte[] truncated = Arrays.copyOf(der, der.length / 2);
+        for(int i = 0; i < 2; i++) {
+            try {
+                cache.get(truncated);
+                fail("Expected the truncated certificate to be rejected");
+            }
+            catch(CertificateException e) {
+                // expected
+            }
+        }
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testNonRsaCertificateIsNotCached() throws Exception {
+        KeyPairGenerator ecGenerator = KeyPairGenerator.getInstance("EC");
+        ecGenerator.initialize(256);
+        KeyPair ek = ecGenerator.generateKeyPair();
+        long now = System.currentTimeMillis();
+        byte[] der = new JcaX509CertificateConverter().getCertificate(new JcaX509v3CertificateBuilder(caCert.getSubjectX500Principal(), BigInteger.ONE, new Date(now), new Date(now + TimeUnit.DAYS.toMillis(1)), new X500Principal("CN=ec"), ek.getPublic())
+                .build(new JcaContentSignerBuilder("SHA256withRSA").build(ca.getPrivate()))).getEncoded();
+        EkCertificateCache cache = new EkCertificateCache(4);
+        try {
+            cache.get(der);
+            fail("Expected the EC certificate to be rejected");
+        }
+        catch(CertificateException e) {
+            // expected
+        }
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testVerdictExpires() throws Exception {
+        EkCertificateCache.Entry entry = new EkCertificateCache(4).get(newEkCertificate());
+        assertNull(entry.getVerdict());
+        entry.setVerdict(false, 1, TimeUnit.MINUTES);
+        assertEquals(Boolean.FALSE, entry.getVerdict());
+        entry.setVerdict(true, 20, TimeUnit.MILLISECONDS);
+        assertEquals(Boolean.TRUE, entry.getVerdict());
+        Thread.sleep(50);
+        assertNull(entry.getVerdict());
+        entry.setVerdict(true, 1, TimeUnit.MINUTES);
+        entry.clearVerdict();
+        assertNull(entry.getVerdict());
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import javax.security.auth.x500.X500Principal;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.DERUTF8String;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.Attribute;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralSubtree;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.asn1.x509.NameConstraints;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Builds small manufacturer hierarchies and checks that the PKIX path
+ * build enforces the CA constraints and the TCG critical extension list,
+ * and that processIdentityRequest applies the installed validator.
+ */
+public class EkCertificateValidatorTest {
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    private static final ASN1ObjectIdentifier SUBJECT_DIRECTORY_ATTRIBUTES = new ASN1ObjectIdentifier("2.5.29.9");
+    private static final ASN1ObjectIdentifier TPM_SPECIFICATION = new ASN1ObjectIdentifier("2.23.133.2.16");
+    private static KeyPair rootKey;
+    private static KeyPair intermediateKey;
+    private static KeyPair intermediate2Key;
+    private static KeyPair ekKey;
+    private static KeyPair attackerKey;
+    private static X509Certificate root;
+    private static long serial = 1;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        rootKey = generator.generateKeyPair();
+        intermediateKey = generator.generateKeyPair();
+        intermediate2Key = generator.generateKeyPair();
+        ekKey = generator.generateKeyPair();
+        attackerKey = generator.generateKeyPair();
+        root = ca("CN=Root,O=Manufacturer", rootKey.getPublic(), null, rootKey.getPrivate(), -1, true, 10 * DAY);
+    }
+
+    private static X509Certificate certificate(String subject, PublicKey subjectKey, X509Certificate issuer, PrivateKey issuerKey, long validMillis, Extension... extensions) throws Exception {
+        X500Principal issuerName = issuer == null ? new X500Principal(subject) : issuer.getSubjectX500Principal();
+        long now = System.currentTimeMillis();
+        X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(issuerName, BigInteger.valueOf(serial++), new Date(now - DAY), new Date(now + validMillis), new X500Principal(subject), subjectKey);
+        JcaX509ExtensionUtils utils = new JcaX509ExtensionUtils();
+        builder.addExtension(Extension.authorityKeyIdentifier, false, utils.createAuthorityKeyIdentifier(issuer == null ? subjectKey : issuer.getPublicKey()));
+        for(Extension extension : extensions) {
+            builder.addExtension(extension.getExtnId(), extension.isCritical(), extension.getParsedValue());
+        }
+        return new JcaX509CertificateConverter().getCertificate(builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(issuerKey)));
+    }
+
+    private static X509Certificate ca(String subject, PublicKey subjectKey, X509Certificate issuer, PrivateKey issuerKey, int pathLength, boolean keyCertSign, long validMillis, Extension... extensions) throws Exception {
+        Extension[] all = Arrays.copyOf(extensions, extensions.length + 2);
+        BasicConstraints basicConstraints = pathLength < 0 ? new BasicConstraints(true) : new BasicConstraints(pathLength);
+        all[extensions.length] = new Extension(Extension.basicConstraints, true, basicConstraints.getEncoded());
+        all[extensions.length + 1] = new Extension(Extension.keyUsage, true, new KeyUsage(keyCertSign ? KeyUsage.keyCertSign | KeyUsage.cRLSign : KeyUsage.digitalSignature).getEncoded());
+        return certificate(subject, subjectKey, issuer, issuerKey, validMillis, all);
+    }
+
+    private static X509Certificate ek(X509Certificate issuer, PrivateKey issuerKey, String subject, long validMillis, Extension... extensions) throws Exception {
+        Extension[] all = Arrays.copyOf(extensions, extensions.length + 1);
+        all[extensions.length] = new Extension(Extension.keyUsage, true, new KeyUsage(KeyUsage.keyEncipherment).getEncoded());
+        return certificate(subject, ekKey.getPublic(), issuer, issuerKey, validMillis, all);
+    }
+
+    private static Extension tpmSpecification(boolean critical) throws Exception {
+        ASN1Encodable attributes = new DERSequence(new Attribute(TPM_SPECIFICATION, new DERSet(new DERUTF8String("1.2"))));
+        return new Extension(SUBJECT_DIRECTORY_ATTRIBUTES, critical, attributes.toASN1Primitive().getEncoded());
+    }
+
+    private static EkCertificateValidator validator(X509Certificate... cas) {
+        return new EkCertificateValidator(Arrays.asList(cas), 1, TimeUnit.HOURS, 100);
+    }
+
+    @After
+    public void tearDown() {
+        TpmUtils.setEkCertificateValidator(null);
+        TpmUtils.setEkCertificateCache(null);
+    }
+
+    /**
+     * Builds a TPM 1.2 identity request for a new AIK with the given EK
+     * certificate, signing the identity binding as TPM_MakeIdentity does.
+     */
+    private static byte[] identityRequest(X509Certificate privacyCa, byte[] ekCertificate) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair aikPair = generator.generateKeyPair();
+        TpmPubKey aik = new TpmPubKey((RSAPublicKey)aikPair.getPublic(), 3, 1);
+        byte[] label = "label".getBytes("UTF-8");
+        MessageDigest sha1 = MessageDigest.getInstance("SHA1");
+        sha1.update(label);
+        sha1.update(new TpmPubKey((RSAPublicKey)privacyCa.getPublicKey(), 3, 1).toByteArray());
+        Signature signature = Signature.getInstance("SHA1withRSA");
+        signature.initSign(aikPair.getPrivate());
+        signature.update(new byte[] { 0x01, 0x01, 0x00, 0x00 });
+        signature.update(TpmUtils.intToByteArray(0x79)); // TPM_ORD_MakeIdentity
+        signature.update(sha1.digest());
+        signature.update(aik.toByteArray());
+        TpmIdentityProof proof = new TpmIdentityProof(label, signature.sign(), aik, ekCertificate, ekCertificate, ekCertificate, true, true, true);
+        return new TpmIdentityRequest(proof, (RSAPublicKey)privacyCa.getPublicKey()).toByteArray();
+    }
+
+    @Test
+    public void testIdentityRequestWithUntrustedEkIsRejected() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair privacyCaKey = generator.generateKeyPair();
+        X509Certificate privacyCa = CertificateIssuer.createCaCertificate(privacyCaKey, "EkCertificateValidatorTest", 1);
+        RSAPrivateKey privacyCaPrivateKey = (RSAPrivateKey)privacyCaKey.getPrivate();
+        KeyPair manufacturerKey = generator.generateKeyPair();
+        X509Certificate manufacturer = CertificateIssuer.createCaCertificate(manufacturerKey, "Manufacturer", 1);
+        byte[] modulus = ((RSAPublicKey)ekKey.getPublic()).getModulus().toByteArray();
+        byte[] trusted = TpmUtils.makeEkCert(modulus, (RSAPrivateKey)manufacturerKey.getPrivate(), manufacturer, 1).getEncoded();
+        byte[] untrusted = TpmUtils.makeEkCert(modulus, (RSAPrivateKey)attackerKey.getPrivate(), CertificateIssuer.createCaCertificate(attackerKey, "Attacker", 1), 1).getEncoded();
+        EkCertificateValidator validator = new EkCertificateValidator(Collections.singleton(manufacturer), 1, TimeUnit.HOURS, 100);
+        TpmUtils.setEkCertificateValidator(validator);
+        for(EkCertificateCache cache : new EkCertificateCache[] { null, new EkCertificateCache(16) }) {
+            TpmUtils.setEkCertificateCache(cache);
+            assertNotNull(TpmUtils.processIdentityRequest(identityRequest(privacyCa, trusted), privacyCaPrivateKey, privacyCa, 1));
+            try {
+                TpmUtils.processIdentityRequest(identityRequest(privacyCa, untrusted), privacyCaPrivateKey, privacyCa, 1);
+                fail("Expected the untrusted EK certificate to be rejected");
+            }
+            catch(PrivacyCaException e) {
+                assertTrue(e.getMessage().contains("EK certificate"));
+            }
+        }
+        // the verdict for the cached certificate is kept with the cache entry
+        assertNotNull(TpmUtils.getEkCertificateCache().get(untrusted).getVerdict());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedVerdictIsEvicted() throws Exception {
+        X509Certificate intermediate = ca("CN=Intermediate,O=Manufacturer", intermediateKey.getPublic(), root, rootKey.getPrivate(), 0, true, 5 * DAY);
+        X509Certificate a = ek(intermediate, intermediateKey.getPrivate(), "CN=EK A,O=Manufacturer", DAY);
+        X509Certificate b = ek(intermediate, intermediateKey.getPrivate(), "CN=EK B,O=Manufacturer", DAY);
+        X509Certificate c = ek(intermediate, intermediateKey.getPrivate(), "CN=EK C,O=Manufacturer", DAY);
+        EkCertificateValidator validator = new EkCertificateValidator(Arrays.asList(root, intermediate), 1, TimeUnit.HOURS, 2);
+        assertTrue(validator.isValid(a));
+        assertTrue(validator.isValid(b));
+        // using a makes b the least recently used
+        assertTrue(validator.isValid(a));
+        assertTrue(validator.isValid(c));
+        assertEquals(2, validator.getVerdictCount());
+        assertEquals(3, validator.getVerdictMissCount());
+        // a and c are still cached, b was evicted but the others were kept
+        assertTrue(validator.isValid(a));
+        assertTrue(validator.isValid(c));
+        assertEquals(3, validator.getVerdictMissCount());
+        assertTrue(validator.isValid(b));
+        assertEquals(4, validator.getVerdictMissCount());
+        assertEquals(2, validator.getVerdictCount());
+    }
+
+    @Test
+    public void testValidChainWithTcgCriticalExtension() throws Exception {
+        X509Certificate intermediate = ca("CN=Intermediate,O=Manufacturer", intermediateKey.getPublic(), root, rootKey.getPrivate(), 0, true, 5 * DAY);
+        X509Certificate ek = ek(intermediate, intermediateKey.getPrivate(), "CN=EK,O=Manufacturer", DAY, tpmSpecification(true));
+        EkCertificateValidator validator = validator(root, intermediate);
+        assertTrue(validator.isValid(ek));
+        assertTrue(validator.isValid(ek));
+        assertEquals(1, validator.getVerdictMissCount());
+        assertEquals(1, validator.getVerdictHitCount());
+    }
+
+    @Test
+    public void testMissingIntermediate() throws Exception {
+        X509Certificate intermediate = ca("CN=Intermediate,O=Manufacturer", intermediateKey.getPublic(), root, rootKey.getPrivate(), 0, true, 5 * DAY);
+        X509Certificate ek = ek(intermediate, intermediateKey.getPrivate(), "CN=EK,O=Manufacturer", DAY);
+        assertFalse(validator(root).isValid(ek));
+        assertFalse(validator(intermediate).isValid(ek)); // no root
+    }
+
+    @Test
+    public void testIntermediateWithoutKeyCertSign() throws Exception {
+        X509Certificate intermediate = ca("CN=Intermediate,O=Manufacturer", intermediateKey.getPublic(), root, rootKey.getPrivate(), 0, false, 5 * DAY);
+        X509Certificate ek = ek(intermediate, intermediateKey.getPrivate(), "CN=EK,O=Manufacturer", DAY);
+        assertFalse(validator(root, intermediate).isValid(ek));
+    }
+
+    @Test
+    public void testPathLengthConstraint() throws Exception {
+        X509Certificate intermediate = ca("CN=Intermediate,O=Manufacturer", intermediateKey.getPublic(), root, rootKey.getPrivate(), 0, true, 5 * DAY);
+        X509Certificate intermediate2 = ca("CN=Intermediate 2,O=Manufacturer", intermediate2Key.getPublic(), intermediate, intermediateKey.getPrivate(), -1, true, 5 * DAY);
+        X509Certificate ek = ek(intermediate2, intermediate2Key.getPrivate(), "CN=EK,O=Manufacturer", DAY);
+        assertFalse(validator(root, intermediate, intermediate2).isValid(ek));
+        X509Certificate intermediateLen1 = ca("CN=Intermediate,O=Manufacturer", intermediateKey.getPublic(), root, rootKey.getPrivate(), 1, true, 5 * DAY);
+        assertTrue(validator(root, intermediateLen1, intermediate2).isValid(ek));
+    }
+
+    @Test
+    public void testNameConstraints() throws Exception {
+        NameConstraints constraints = new NameConstraints(new GeneralSubtree[] { new GeneralSubtree(new GeneralName(new X500Name("O=Manufacturer"))) }, null);
+        Extension nameConstraints = new Extension(Extension.nameConstraints, true, constraints.getEncoded());
+        X509Certificate intermediate = ca("CN=Intermediate,O=Manufacturer", intermediateKey.getPublic(), root, rootKey.getPrivate(), 0, true, 5 * DAY, nameConstraints);
+        assertTrue(validator(root, intermediate).isValid(ek(intermediate, intermediateKey.getPrivate(), "CN=EK,O=Manufacturer", DAY)));
+        assertFalse(validator(root, intermediate).isValid(ek(intermediate, intermediateKey.getPrivate(), "CN=EK,O=Other", DAY)));
+    }
+
+    @Test
+    public void testUnknownCriticalExtensions() throws Exception {
+        X509Certificate intermediate = ca("CN=Intermediate,O=Manufacturer", intermediateKey.getPublic(), root, rootKey.getPrivate(), 0, true, 5 * DAY);
+        Extension unknown = new Extension(new ASN1ObjectIdentifier("1.2.3.4"), true, new DERUTF8String("x").getEncoded());
+        assertFalse(validator(root, intermediate).isValid(ek(intermediate, intermediateKey.getPrivate(), "CN=EK,O=Manufacturer", DAY, unknown)));
+        // the TCG extensions are accepted on the EK only
+        X509Certificate tcgIntermediate = ca("CN=Intermediate,O=Manufacturer", intermediateKey.getPublic(), root, rootKey.getPrivate(), 0, true, 5 * DAY, tpmSpecification(true));
+        assertFalse(validator(root, tcgIntermediate).isValid(ek(tcgIntermediate, intermediateKey.getPrivate(), "CN=EK,O=Manufacturer", DAY)));
+    }
+
+    @Test
+    public void testExpiredIntermediate() throws Exception {
+        X509Certificate intermediate = ca("CN=Intermediate,O=Manufacturer", intermediateKey.getPublic(), root, rootKey.getPrivate(), 0, true, -DAY / 2);
+        X509Certificate ek = ek(intermediate, intermediateKey.getPrivate(), "CN=EK,O=Manufacturer", DAY);
+        assertFalse(validator(root, intermediate).isValid(ek));
+    }
+
+    @Test
+    public void testForgedCertificateWithSameIssuer() throws Exception {
+        X509Certificate intermediate = ca("CN=Intermediate,O=Manufacturer", intermediateKey.getPublic(), root, rootKey.getPrivate(), 0, true, 5 * DAY);
+        EkCertificateValidator validator = validator(root, intermediate);
+        assertTrue(validator.isValid(ek(intermediate, intermediateKey.getPrivate(), "CN=EK 1,O=Manufacturer", DAY)));
+        // same issuer DN and authority key identifier, so the remembered path is tried first
+        assertTrue(validator.isValid(ek(intermediate, intermediateKey.getPrivate(), "CN=EK 2,O=Manufacturer", DAY)));
+        X509Certificate forged = ek(intermediate, attackerKey.getPrivate(), "CN=EK 3,O=Manufacturer", DAY);
+        assertFalse(validator.isValid(forged));
+        assertEquals(3, validator.getVerdictMissCount());
+    }
+
+    @Test
+    public void testVerdictEndsAtNotAfter() throws Exception {
+        X509Certificate intermediate = ca("CN=Intermediate,O=Manufacturer", intermediateKey.getPublic(), root, rootKey.getPrivate(), 0, true, 5 * DAY);
+        X509Certificate ek = ek(intermediate, intermediateKey.getPrivate(), "CN=EK,O=Manufacturer", 2000);
+        EkCertificateValidator validator = validator(root, intermediate);
+        assertTrue(validator.isValid(ek));
+        Thread.sleep(ek.getNotAfter().getTime() - System.currentTimeMillis() + 1100);
+        assertFalse(validator.isValid(ek));
+        assertEquals(2, validator.getVerdictMissCount());
+    }
+
+    @Test
+    public void testAuthorityKeyIdentifier() throws Exception {
+        X509Certificate intermediate = ca("CN=Intermediate,O=Manufacturer", intermediateKey.getPublic(), root, rootKey.getPrivate(), 0, true, 5 * DAY);
+        byte[] expected = new JcaX509ExtensionUtils().createAuthorityKeyIdentifier(rootKey.getPublic()).getKeyIdentifier();
+        assertArrayEquals(expected, EkCertificateValidator.authorityKeyIdentifier(intermediate));
+    }
+}
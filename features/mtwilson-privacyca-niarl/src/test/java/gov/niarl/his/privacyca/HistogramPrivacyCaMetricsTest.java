@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import gov.niarl.his.privacyca.HistogramPrivacyCaMetrics.Histogram;
+import gov.niarl.his.privacyca.PrivacyCaMetrics.Stage;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks the bucket boundaries and percentiles of the latency histogram.
+ */
+public class HistogramPrivacyCaMetricsTest {
+
+    @Test
+    public void testEmptyHistogram() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMeanNanos());
+        assertEquals(0, histogram.getPercentileNanos(50));
+        assertEquals(0, histogram.getPercentileNanos(99));
+    }
+
+    @Test
+    public void testBucketBoundaries() {
+        // 1023 is the top of the bucket 512..1023 and 1024 the bottom of 1024..2047
+        Histogram histogram = new Histogram();
+        histogram.record(1023);
+        histogram.record(1024);
+        assertEquals(1023, histogram.getPercentileNanos(50));
+        assertEquals(1024, histogram.getPercentileNanos(100)); // upper bound 2047 is capped at the maximum
+        histogram.record(2047);
+        assertEquals(2047, histogram.getPercentileNanos(100));
+        assertEquals(2047, histogram.getMaxNanos());
+    }
+
+    @Test
+    public void testZeroAndNegative() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        histogram.record(0);
+        histogram.record(1);
+        assertEquals(3, histogram.getCount());
+        assertEquals(1, histogram.getPercentileNanos(100));
+        assertEquals(1, histogram.getTotalNanos());
+    }
+
+    @Test
+    public void testPercentiles() {
+        Histogram histogram = new Histogram();
+        for(int i = 0; i < 90; i++) {
+            histogram.record(1000); // bucket 512..1023
+        }
+        for(int i = 0; i < 9; i++) {
+            histogram.record(600000); // bucket 524288..1048575
+        }
+        histogram.record(5000000); // bucket 4194304..8388607
+        assertEquals(100, histogram.getCount());
+        assertEquals((90 * 1000L + 9 * 600000L + 5000000L) / 100, histogram.getMeanNanos());
+        assertEquals(1023, histogram.getPercentileNanos(1));
+        assertEquals(1023, histogram.getPercentileNanos(50));
+        assertEquals(1023, histogram.getPercentileNanos(90));
+        assertEquals(1048575, histogram.getPercentileNanos(91));
+        assertEquals(1048575, histogram.getPercentileNanos(99));
+        assertEquals(5000000, histogram.getPercentileNanos(99.5));
+        assertEquals(5000000, histogram.getPercentileNanos(100));
+    }
+
+    @Test
+    public void testStagesAndCounters() {
+        HistogramPrivacyCaMetrics metrics = new HistogramPrivacyCaMetrics();
+        metrics.recordStage(Stage.ASYM_DECRYPT, 3000);
+        metrics.recordStage(Stage.ASYM_DECRYPT, 5000);
+        metrics.recordCompleted(9000);
+        metrics.recordFailure(Stage.PARSE, "TpmUnsignedConversionException");
+        metrics.recordFailure(Stage.PARSE, "TpmUnsignedConversionException");
+        metrics.recordRequestFormat(true, true, false);
+        metrics.recordRequestFormat(false, false, false);
+        assertEquals(2, metrics.getStage(Stage.ASYM_DECRYPT).getCount());
+        assertEquals(0, metrics.getStage(Stage.CERT_ISSUE).getCount());
+        assertEquals(5000, metrics.getStage(Stage.ASYM_DECRYPT).getMaxNanos());
+        assertEquals(1, metrics.getCompleted().getCount());
+        assertEquals(Long.valueOf(2), metrics.getFailures().get("PARSE:TpmUnsignedConversionException"));
+        assertEquals(1, metrics.getIvInBlobCount());
+        assertEquals(1, metrics.getSymkeyEncschemeNoneCount());
+        assertEquals(0, metrics.getBlankOaepCount());
+        assertEquals(1, metrics.getSpecCompliantCount());
+    }
+}
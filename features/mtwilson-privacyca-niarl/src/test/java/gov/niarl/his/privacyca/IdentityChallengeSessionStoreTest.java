@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that challenge sessions expire, are evicted oldest first when the
+ * store is full, and can be taken only once, also by racing threads.
+ */
+public class IdentityChallengeSessionStoreTest {
+
+    private static IdentityChallengeSession session(String challengeId) {
+        return new IdentityChallengeSession(challengeId, new byte[] { 1, 2, 3 }, null, null, null);
+    }
+
+    @Test
+    public void testTakeOnlyOnce() {
+        IdentityChallengeSessionStore store = new IdentityChallengeSessionStore(10, 1, TimeUnit.MINUTES);
+        String challengeId = IdentityChallengeSessionStore.createChallengeId();
+        IdentityChallengeSession session = session(challengeId);
+        store.put(session);
+        assertSame(session, store.peek(challengeId));
+        assertSame(session, store.take(challengeId));
+        assertNull(store.take(challengeId));
+        assertNull(store.peek(challengeId));
+        assertNull(store.take("unknown"));
+        assertEquals(0, store.size());
+        assertEquals(1, store.getHitCount());
+        assertEquals(2, store.getMissCount());
+        assertEquals(1.0 / 3, store.getHitRate(), 1e-9);
+    }
+
+    @Test
+    public void testExpiredSessionsAreNotReturned() throws InterruptedException {
+        IdentityChallengeSessionStore store = new IdentityChallengeSessionStore(10, 50, TimeUnit.MILLISECONDS);
+        store.put(session("a"));
+        store.put(session("b"));
+        store.put(session("c"));
+        Thread.sleep(100);
+        assertNull(store.peek("a"));
+        assertNull(store.take("a"));
+        assertEquals(1, store.getExpiredCount());
+        // the other expired sessions are removed when the next one is stored
+        store.put(session("d"));
+        assertEquals(1, store.size());
+        assertEquals(3, store.getExpiredCount());
+        assertNotNull(store.take("d"));
+        store.put(session("e"));
+        Thread.sleep(100);
+        store.evictExpired();
+        assertEquals(0, store.size());
+        assertEquals(4, store.getExpiredCount());
+    }
+
+    @Test
+    public void testOldestSessionIsEvictedWhenFull() {
+        IdentityChallengeSessionStore store = new IdentityChallengeSessionStore(3, 1, TimeUnit.MINUTES);
+        for(String challengeId : new String[] { "a", "b", "c" }) {
+            store.put(session(challengeId));
+        }
+        // a taken session frees its place without an eviction
+        assertNotNull(store.take("b"));
+        store.put(session("d"));
+        assertEquals(3, store.size());
+        assertEquals(0, store.getEvictedCount());
+        store.put(session("e"));
+        store.put(session("f"));
+        assertEquals(3, store.size());
+        assertEquals(2, store.getEvictedCount());
+        assertNull(store.take("a"));
+        assertNull(store.take("c"));
+        assertNotNull(store.take("d"));
+        assertNotNull(store.take("e"));
+        assertNotNull(store.take("f"));
+        assertEquals(6, store.getStoredCount());
+    }
+
+    @Test
+    public void testReplacedSessionKeepsItsOwnExpiry() throws InterruptedException {
+        IdentityChallengeSessionStore store = new IdentityChallengeSessionStore(10, 200, TimeUnit.MILLISECONDS);
+        store.put(session("a"));
+        store.put(session("b"));
+        Thread.sleep(120);
+        IdentityChallengeSession replacement = session("a");
+        store.put(replacement);
+        Thread.sleep(120);
+        // b has expired; a was stored again and has not
+        store.evictExpired();
+        assertEquals(1, store.size());
+        assertNull(store.peek("b"));
+        assertSame(replacement, store.take("a"));
+    }
+
+    @Test
+    public void testConcurrentTakeReturnsEachSessionOnce() throws Exception {
+        final IdentityChallengeSessionStore store = new IdentityChallengeSessionStore(10000, 1, TimeUnit.MINUTES);
+        final ArrayList<String> challengeIds = new ArrayList<>();
+        for(int i = 0; i < 1000; i++) {
+            String challengeId = IdentityChallengeSessionStore.createChallengeId();
+            challengeIds.add(challengeId);
+            store.put(session(challengeId));
+        }
+        assertEquals(1000, new HashSet<>(challengeIds).size());
+        final AtomicInteger taken = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for(int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch(InterruptedException e) {
+                        return;
+                    }
+                    for(String challengeId : challengeIds) {
+                        if( store.take(challengeId) != null ) {
+                            taken.incrementAndGet();
+                        }
+                        store.put(session(IdentityChallengeSessionStore.createChallengeId()));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for(Thread thread : threads) {
+            thread.join(10000);
+        }
+        assertEquals(1000, taken.get());
+        assertEquals(1000, store.getHitCount());
+        assertEquals(8000, store.size());
+    }
+
+    @Test
+    public void testConcurrentPutsStayWithinCapacity() throws Exception {
+        final IdentityChallengeSessionStore store = new IdentityChallengeSessionStore(100, 1, TimeUnit.MINUTES);
+        Thread[] threads = new Thread[8];
+        for(int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < 1000; i++) {
+                        store.put(session(IdentityChallengeSessionStore.createChallengeId()));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for(Thread thread : threads) {
+            thread.join(10000);
+        }
+        assertEquals(100, store.size());
+        assertEquals(7900, store.getEvictedCount());
+    }
+
+    @Test
+    public void testNonceComparison() {
+        IdentityChallengeSession session = new IdentityChallengeSession("a", new byte[] { 1, 2, 3 }, null, null, new byte[] { 9 });
+        assertTrue(session.isExpectedNonce(new byte[] { 1, 2, 3 }));
+        assertFalse(session.isExpectedNonce(new byte[] { 1, 2, 4 }));
+        assertFalse(session.isExpectedNonce(new byte[] { 1, 2 }));
+        assertFalse(session.isExpectedNonce(null));
+        assertTrue(session.hasAikName(new byte[] { 9 }));
+        assertFalse(session("b").hasAikName(new byte[] { 9 }));
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.io.File;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPair;
+import java.security.interfaces.RSAPublicKey;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that pooled key pairs are handed out once, that the pool refills
+ * after it is drained, and that key pairs are generated on the calling
+ * thread when the pool cannot supply one.
+ */
+public class KeyProvisioningServiceTest {
+    private static final KeyProvisioningService.KeyType RSA_1024 = KeyProvisioningService.KeyType.rsa(1024);
+
+    @After
+    public void tearDown() {
+        TpmUtils.setKeyProvisioningService(null);
+    }
+
+    private static void awaitFull(KeyProvisioningService service, KeyProvisioningService.KeyType type, int poolSize) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while( service.getAvailable(type) < poolSize ) {
+            assertTrue("Pool was not filled", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testDrainAndRefill() throws Exception {
+        try(KeyProvisioningService service = new KeyProvisioningService(KeyProvisioningService.types(RSA_1024), 3, 1)) {
+            awaitFull(service, RSA_1024, 3);
+            HashSet<KeyPair> seen = new HashSet<>();
+            for(int i = 0; i < 3; i++) {
+                KeyPair keyPair = service.take(RSA_1024);
+                assertEquals(1024, ((RSAPublicKey)keyPair.getPublic()).getModulus().bitLength());
+                assertTrue(seen.add(keyPair));
+            }
+            assertEquals(3, service.getHitCount());
+            assertEquals(0, service.getMissCount());
+            // the generator thread puts the drained key pairs back
+            awaitFull(service, RSA_1024, 3);
+            for(int i = 0; i < 3; i++) {
+                assertTrue(seen.add(service.take(RSA_1024, 1, TimeUnit.SECONDS)));
+            }
+            assertEquals(6, service.getHitCount());
+            assertEquals(0, service.getMissCount());
+        }
+    }
+
+    @Test
+    public void testUnregisteredTypeIsGeneratedInline() throws Exception {
+        KeyProvisioningService.KeyType other = KeyProvisioningService.KeyType.rsa(512);
+        try(KeyProvisioningService service = new KeyProvisioningService(KeyProvisioningService.types(RSA_1024), 1, 1)) {
+            assertEquals(0, service.getAvailable(other));
+            KeyPair keyPair = service.take(other);
+            assertEquals(512, ((RSAPublicKey)keyPair.getPublic()).getModulus().bitLength());
+            assertNotNull(service.take(other, 10, TimeUnit.MILLISECONDS));
+            assertEquals(0, service.getHitCount());
+            assertEquals(2, service.getMissCount());
+        }
+    }
+
+    @Test
+    public void testClosedServiceGeneratesInline() throws Exception {
+        KeyProvisioningService service = new KeyProvisioningService(KeyProvisioningService.types(RSA_1024), 2, 1);
+        awaitFull(service, RSA_1024, 2);
+        service.close();
+        assertEquals(0, service.getAvailable(RSA_1024));
+        assertNotNull(service.take(RSA_1024));
+        assertNotNull(service.take(RSA_1024, 10, TimeUnit.MILLISECONDS));
+        assertEquals(0, service.getHitCount());
+        assertEquals(2, service.getMissCount());
+    }
+
+    @Test
+    public void testGenerationErrorIsNotWrapped() throws Exception {
+        KeyProvisioningService.KeyType unknown = KeyProvisioningService.KeyType.ec("nosuchcurve");
+        try(KeyProvisioningService service = new KeyProvisioningService(KeyProvisioningService.types(unknown), 1, 1)) {
+            try {
+                service.take(unknown);
+                fail("Expected the unknown curve to be rejected");
+            }
+            catch(InvalidAlgorithmParameterException e) {
+                // expected
+            }
+            TpmUtils.setKeyProvisioningService(service);
+            File p12 = File.createTempFile("KeyProvisioningServiceTest", ".p12");
+            try {
+                // createCaP12 with a key size asks the service for an RSA key pair, which it generates inline
+                TpmUtils.createCaP12(512, "KeyProvisioningServiceTest", "password", p12.getAbsolutePath(), 1);
+                assertTrue(p12.length() > 0);
+                assertEquals(2, service.getMissCount());
+            }
+            finally {
+                p12.delete();
+            }
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidPoolSize() {
+        new KeyProvisioningService(KeyProvisioningService.types(RSA_1024), 0, 1);
+    }
+}
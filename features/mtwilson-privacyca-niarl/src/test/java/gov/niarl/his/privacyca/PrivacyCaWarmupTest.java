@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Runs the warm-up and checks that it completes the requested iterations
+ * and leaves the shared TpmUtils state as it found it.
+ */
+public class PrivacyCaWarmupTest {
+
+    @After
+    public void tearDown() {
+        TpmUtils.setEkCertificateCache(null);
+        TpmUtils.setPublicKeyCache(null);
+        TpmUtils.setEkCertificateValidator(null);
+    }
+
+    @Test
+    public void testRunCompletesIterations() {
+        PrivacyCaWarmup warmup = new PrivacyCaWarmup(3, 5, TimeUnit.MINUTES, 1024);
+        assertFalse(warmup.isComplete());
+        assertEquals(3, warmup.run());
+        assertTrue(warmup.isComplete());
+        assertEquals(3, warmup.getTpm12Count());
+        assertEquals(3, warmup.getTpm2Count());
+    }
+
+    @Test
+    public void testRunWithoutIterations() {
+        PrivacyCaWarmup warmup = new PrivacyCaWarmup(0, 5, TimeUnit.MINUTES, 1024);
+        assertEquals(0, warmup.run());
+        assertTrue(warmup.isComplete());
+        assertEquals(0, warmup.getTpm12Count());
+    }
+
+    @Test
+    public void testRunRestoresSharedState() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        KeyPair ca = generator.generateKeyPair();
+        X509Certificate caCert = CertificateIssuer.createCaCertificate(ca, "PrivacyCaWarmupTest", 1);
+        KeyPair aik = generator.generateKeyPair();
+        // cache the template and issuer of the real CA, as an earlier enrollment would
+        TpmUtils.makeCert(new TpmPubKey((RSAPublicKey)aik.getPublic(), 3, 1), "aik", (RSAPrivateKey)ca.getPrivate(), caCert, 1, 0);
+        TpmUtils.makeEkCert(((RSAPublicKey)aik.getPublic()).getModulus().toByteArray(), (RSAPrivateKey)ca.getPrivate(), caCert, 1);
+        AikCertificateTemplate template = TpmUtils.getAikCertificateTemplate();
+        CertificateIssuer issuer = TpmUtils.getCertificateIssuer();
+        assertTrue(template.isFor(caCert, ca.getPrivate()));
+        EkCertificateCache ekCertificateCache = new EkCertificateCache(16);
+        RsaPublicKeyCache publicKeyCache = new RsaPublicKeyCache(16);
+        TpmUtils.setEkCertificateCache(ekCertificateCache);
+        TpmUtils.setPublicKeyCache(publicKeyCache);
+        // the warm-up EK is not issued by this CA, so it passes only with the warm-up's own validator
+        EkCertificateValidator validator = new EkCertificateValidator(Collections.singleton(caCert), 1, TimeUnit.HOURS, 16);
+        TpmUtils.setEkCertificateValidator(validator);
+        PrivacyCaMetrics metrics = TpmUtils.getMetrics();
+        SerialNumberGenerator serialNumberGenerator = TpmUtils.getSerialNumberGenerator();
+
+        PrivacyCaWarmup warmup = new PrivacyCaWarmup(2, 5, TimeUnit.MINUTES, 1024);
+        assertEquals(2, warmup.run());
+
+        assertSame(template, TpmUtils.getAikCertificateTemplate());
+        assertSame(issuer, TpmUtils.getCertificateIssuer());
+        assertSame(metrics, TpmUtils.getMetrics());
+        assertSame(serialNumberGenerator, TpmUtils.getSerialNumberGenerator());
+        assertSame(validator, TpmUtils.getEkCertificateValidator());
+        assertEquals(0, validator.getVerdictMissCount());
+        // the caches were used by the synthetic enrollments but keep none of their keys
+        assertTrue(ekCertificateCache.getMissCount() > 0);
+        assertEquals(0, ekCertificateCache.size());
+        assertTrue(publicKeyCache.getMissCount() > 0);
+        assertEquals(0, publicKeyCache.size());
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks where the pool's blocks come from, that TpmUtils only uses it for
+ * its block size, and that closing it stops the filler.
+ */
+public class RandomBytesPoolTest {
+
+    @After
+    public void tearDown() {
+        TpmUtils.setRandomBytesPool(null);
+    }
+
+    private static void awaitFull(RandomBytesPool pool) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while( pool.getAvailable() < pool.getCapacity() ) {
+            assertTrue("Pool was not filled", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testBlocksAreServedFromPool() throws Exception {
+        try(RandomBytesPool pool = new RandomBytesPool(8).start()) {
+            awaitFull(pool);
+            HashSet<String> seen = new HashSet<>();
+            for(int i = 0; i < 4; i++) {
+                byte[] block = pool.nextBlock();
+                assertEquals(16, block.length);
+                assertTrue(seen.add(Arrays.toString(block)));
+            }
+            assertEquals(4, pool.getHits());
+            assertEquals(0, pool.getMisses());
+            assertTrue(pool.getGenerated() >= 8);
+        }
+    }
+
+    @Test
+    public void testEmptyPoolFallsBack() {
+        RandomBytesPool pool = new RandomBytesPool(32, 4);
+        // not started, so nothing is generated in the background
+        assertNull(pool.getFiller());
+        byte[] first = pool.nextBlock();
+        byte[] second = pool.nextBlock();
+        assertEquals(32, first.length);
+        assertFalse(Arrays.equals(first, second));
+        assertEquals(2, pool.getMisses());
+        assertEquals(0, pool.getHits());
+        assertEquals(0, pool.getGenerated());
+        assertEquals(0, pool.getAvailable());
+    }
+
+    @Test
+    public void testOtherLengthsBypassPool() throws Exception {
+        try(RandomBytesPool pool = new RandomBytesPool(4).start()) {
+            awaitFull(pool);
+            TpmUtils.setRandomBytesPool(pool);
+            assertEquals(20, TpmUtils.createRandomBytes(20).length);
+            assertEquals(0, TpmUtils.createRandomBytes(0).length);
+            assertEquals(0, pool.getHits() + pool.getMisses());
+            assertEquals(16, TpmUtils.createRandomBytes(16).length);
+            assertEquals(1, pool.getHits());
+        }
+    }
+
+    @Test
+    public void testStartIsIdempotent() throws Exception {
+        try(RandomBytesPool pool = new RandomBytesPool(4)) {
+            assertSame(pool, pool.start());
+            Thread filler = pool.getFiller();
+            assertNotNull(filler);
+            pool.start();
+            assertSame(filler, pool.getFiller());
+        }
+    }
+
+    @Test
+    public void testCloseStopsFiller() throws Exception {
+        RandomBytesPool pool = new RandomBytesPool(4).start();
+        awaitFull(pool);
+        Thread filler = pool.getFiller();
+        pool.close();
+        filler.join(5000);
+        assertFalse(filler.isAlive());
+        assertEquals(0, pool.getAvailable());
+        long generated = pool.getGenerated();
+        assertEquals(16, pool.nextBlock().length);
+        assertEquals(1, pool.getMisses());
+        assertEquals(generated, pool.getGenerated());
+        try {
+            pool.start();
+            fail("Expected a closed pool not to start");
+        }
+        catch(IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidCapacity() {
+        new RandomBytesPool(16, 0);
+    }
+}
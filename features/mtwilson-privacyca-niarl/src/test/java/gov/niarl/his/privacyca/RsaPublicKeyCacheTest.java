@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the public key cache and TpmPubKey return the same key for the
+ * same modulus, keep keys with different exponents apart, and read moduli
+ * with the high bit set as unsigned.
+ */
+public class RsaPublicKeyCacheTest {
+    private static final byte[] EXPONENT_65537 = { 0x01, 0x00, 0x01 };
+    private static final byte[] EXPONENT_3 = { 0x03 };
+    private static RSAPublicKey rsa;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        rsa = (RSAPublicKey)generator.generateKeyPair().getPublic();
+    }
+
+    @After
+    public void tearDown() {
+        TpmUtils.setPublicKeyCache(null);
+    }
+
+    /**
+     * The modulus as a TPM stores it, unsigned without a leading zero byte,
+     * so the first byte has its high bit set.
+     */
+    private static byte[] unsignedModulus() {
+        byte[] signed = rsa.getModulus().toByteArray();
+        assertEquals(0, signed[0]);
+        byte[] modulus = Arrays.copyOfRange(signed, 1, signed.length);
+        assertTrue((modulus[0] & 0x80) != 0);
+        return modulus;
+    }
+
+    @Test
+    public void testSameModulusReturnsSameKey() throws Exception {
+        RsaPublicKeyCache cache = new RsaPublicKeyCache(4);
+        TpmUtils.setPublicKeyCache(cache);
+        byte[] modulus = unsignedModulus();
+        RSAPublicKey key = TpmUtils.makePubKey(modulus, EXPONENT_65537);
+        assertEquals(rsa, key);
+        assertSame(key, TpmUtils.makePubKey(modulus.clone(), EXPONENT_65537.clone()));
+        // a leading zero byte does not make it another key
+        assertSame(key, TpmUtils.makePubKey(rsa.getModulus().toByteArray(), EXPONENT_65537));
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testDifferentExponentDoesNotCollide() throws Exception {
+        RsaPublicKeyCache cache = new RsaPublicKeyCache(4);
+        TpmUtils.setPublicKeyCache(cache);
+        byte[] modulus = unsignedModulus();
+        RSAPublicKey key65537 = TpmUtils.makePubKey(modulus, EXPONENT_65537);
+        assertNull(cache.get(modulus, EXPONENT_3));
+        RSAPublicKey key3 = TpmUtils.makePubKey(modulus, EXPONENT_3);
+        assertEquals(BigInteger.valueOf(3), key3.getPublicExponent());
+        assertEquals(BigInteger.valueOf(65537), key65537.getPublicExponent());
+        assertEquals(key65537.getModulus(), key3.getModulus());
+        // the entry for the modulus now holds exponent 3, so 65537 is a miss
+        assertSame(key3, cache.get(modulus, EXPONENT_3));
+        assertNull(cache.get(modulus, EXPONENT_65537));
+        assertEquals(BigInteger.valueOf(65537), TpmUtils.makePubKey(modulus, EXPONENT_65537).getPublicExponent());
+    }
+
+    @Test
+    public void testHighBitModulusIsUnsigned() throws Exception {
+        byte[] modulus = unsignedModulus();
+        RSAPublicKey key = TpmUtils.makePubKey(modulus, EXPONENT_65537);
+        assertEquals(1, key.getModulus().signum());
+        assertEquals(rsa.getModulus(), key.getModulus());
+        assertEquals(1024, key.getModulus().bitLength());
+        byte[] ones = new byte[128];
+        Arrays.fill(ones, (byte)0xff);
+        assertEquals(BigInteger.ONE.shiftLeft(1024).subtract(BigInteger.ONE), TpmUtils.makePubKey(ones, EXPONENT_65537).getModulus());
+        // the exponent is read the same way
+        assertEquals(BigInteger.valueOf(0x80000001L), TpmUtils.makePubKey(modulus, new byte[] { (byte)0x80, 0, 0, 1 }).getPublicExponent());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        RsaPublicKeyCache cache = new RsaPublicKeyCache(1);
+        byte[] modulus = unsignedModulus();
+        cache.put(modulus, EXPONENT_65537, rsa);
+        byte[] other = modulus.clone();
+        other[other.length - 1] ^= 2;
+        cache.put(other, EXPONENT_65537, rsa);
+        assertEquals(1, cache.size());
+        assertNull(cache.get(modulus, EXPONENT_65537));
+        assertSame(rsa, cache.get(other, EXPONENT_65537));
+        cache.invalidate(other);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testTpmPubKeyMemoizesDefaultExponentOnly() throws Exception {
+        TpmPubKey fromKey = new TpmPubKey(rsa, 1, 2);
+        assertSame(rsa, fromKey.getKey());
+        TpmPubKey fromModulus = new TpmPubKey(unsignedModulus());
+        RSAPublicKey key = fromModulus.getKey();
+        assertEquals(rsa, key);
+        assertSame(key, fromModulus.getKey());
+        // getKey always uses 65537, so a key with another exponent is not returned as is
+        RSAPublicKey rsa3 = (RSAPublicKey)KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(rsa.getModulus(), BigInteger.valueOf(3)));
+        TpmPubKey fromKey3 = new TpmPubKey(rsa3, 1, 2);
+        RSAPublicKey memoized = fromKey3.getKey();
+        assertNotSame(rsa3, memoized);
+        assertEquals(BigInteger.valueOf(65537), memoized.getPublicExponent());
+        assertEquals(rsa.getModulus(), memoized.getModulus());
+        assertSame(memoized, fromKey3.getKey());
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Builds TPMS_ATTEST structures as TPM2_Certify returns them and checks
+ * the parsed fields and {@link Tpm2Attest#certifies(Tpm2Public)}.
+ */
+public class Tpm2AttestTest {
+    private static final long CLOCK = 0x0000012345678901L;
+    private static final long FIRMWARE_VERSION = 0x2015061800000000L;
+
+    /**
+     * TPMS_ATTEST: magic, type, qualifiedSigner, extraData,
+     * TPMS_CLOCK_INFO, firmwareVersion and, for a certify structure,
+     * TPMS_CERTIFY_INFO with the certified name and qualified name.
+     */
+    private static byte[] attest(int type, byte[] certifiedName) {
+        byte[] qualifiedSigner = new byte[34];
+        qualifiedSigner[1] = 0x0b;
+        byte[] extraData = new byte[20];
+        Arrays.fill(extraData, (byte)0x4e);
+        ByteBuffer attest = ByteBuffer.allocate(4 + 2 + 2 + qualifiedSigner.length + 2 + extraData.length + 17 + 8 + 2 + certifiedName.length + 2 + 34);
+        attest.putInt(Tpm2Attest.TPM_GENERATED_VALUE);
+        attest.putShort((short)type);
+        attest.putShort((short)qualifiedSigner.length);
+        attest.put(qualifiedSigner);
+        attest.putShort((short)extraData.length);
+        attest.put(extraData);
+        attest.putLong(CLOCK);
+        attest.putInt(7);
+        attest.putInt(3);
+        attest.put((byte)1);
+        attest.putLong(FIRMWARE_VERSION);
+        attest.putShort((short)certifiedName.length);
+        attest.put(certifiedName);
+        attest.putShort((short)34);
+        attest.put(new byte[34]);
+        return attest.array();
+    }
+
+    private static byte[] rsaName() throws Exception {
+        return TpmUtils.hexStringToByteArray(Tpm2PublicTest.RSA_NAME);
+    }
+
+    @Test
+    public void testCertifyStructure() throws Exception {
+        Tpm2Attest attest = Tpm2Attest.parse(attest(Tpm2Attest.TPM_ST_ATTEST_CERTIFY, rsaName()));
+        assertEquals(Tpm2Attest.TPM_ST_ATTEST_CERTIFY, attest.getType());
+        assertEquals(34, attest.getQualifiedSigner().remaining());
+        assertEquals(20, attest.getExtraData().remaining());
+        assertEquals(0x4e, attest.getExtraData().get(0));
+        assertEquals(CLOCK, attest.getClock());
+        assertEquals(7, attest.getResetCount());
+        assertEquals(3, attest.getRestartCount());
+        assertTrue(attest.isSafe());
+        assertEquals(FIRMWARE_VERSION, attest.getFirmwareVersion());
+        assertEquals(34, attest.getCertifiedName().remaining());
+        assertEquals(34, attest.getCertifiedQualifiedName().remaining());
+        assertEquals(2 + 34 + 2 + 34, attest.getAttested().remaining());
+        assertTrue(attest.certifies(Tpm2Public.parse(Tpm2PublicTest.rsaPublic())));
+        assertFalse(attest.certifies(Tpm2Public.parse(Tpm2PublicTest.eccPublic())));
+    }
+
+    @Test
+    public void testCertifiesOnlyCertifyStructures() throws Exception {
+        Tpm2Attest quote = Tpm2Attest.parse(attest(Tpm2Attest.TPM_ST_ATTEST_QUOTE, rsaName()));
+        assertEquals(0, quote.getCertifiedName().remaining());
+        assertFalse(quote.certifies(Tpm2Public.parse(Tpm2PublicTest.rsaPublic())));
+    }
+
+    @Test
+    public void testCertifiedNameMismatch() throws Exception {
+        byte[] name = rsaName();
+        name[name.length - 1] ^= 1;
+        assertFalse(Tpm2Attest.parse(attest(Tpm2Attest.TPM_ST_ATTEST_CERTIFY, name)).certifies(Tpm2Public.parse(Tpm2PublicTest.rsaPublic())));
+        byte[] shortName = Arrays.copyOf(rsaName(), 22);
+        assertFalse(Tpm2Attest.parse(attest(Tpm2Attest.TPM_ST_ATTEST_CERTIFY, shortName)).certifies(Tpm2Public.parse(Tpm2PublicTest.rsaPublic())));
+    }
+
+    @Test
+    public void testParseAdvancesPastCertifyStructure() throws Exception {
+        byte[] attest = attest(Tpm2Attest.TPM_ST_ATTEST_CERTIFY, rsaName());
+        ByteBuffer in = ByteBuffer.wrap(Arrays.copyOf(attest, attest.length + 3));
+        Tpm2Attest parsed = Tpm2Attest.parse(in);
+        assertEquals(attest.length, in.position());
+        assertEquals(attest.length, parsed.getEncoded().remaining());
+    }
+
+    @Test
+    public void testTruncationAtEachField() throws Exception {
+        byte[] attest = attest(Tpm2Attest.TPM_ST_ATTEST_CERTIFY, rsaName());
+        for(int length = 0; length < attest.length; length++) {
+            try {
+                Tpm2Attest.parse(Arrays.copyOf(attest, length));
+                fail("Expected an attest structure truncated to " + length + " bytes to be rejected");
+            }
+            catch(PrivacyCaException e) {
+            }
+        }
+    }
+
+    @Test(expected = PrivacyCaException.class)
+    public void testMagic() throws Exception {
+        byte[] attest = attest(Tpm2Attest.TPM_ST_ATTEST_CERTIFY, rsaName());
+        attest[0] = 0;
+        Tpm2Attest.parse(attest);
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Parses fixed RSA and ECC public areas whose names were computed
+ * independently, and checks that every truncation and TPM2B size mismatch
+ * is reported as a PrivacyCaException.
+ */
+public class Tpm2PublicTest {
+    static final int AIK_ATTRIBUTES = 0x00050072;
+    static final String RSA_NAME = "000b72999ef7faa5fef9736be545c9fd0557c0561b39133e1d74fc2b35f3849c9133";
+    static final String ECC_NAME = "000b09fdacf180572258014c5ee0bb9e0a9c6c50e0bf4ae43d2b36731864b8c9b86a";
+    private static final int TPM_ALG_AES = 0x0006;
+    private static final int TPM_ALG_CFB = 0x0043;
+    private static final int TPM_ALG_RSASSA = 0x0014;
+    private static final int TPM_ALG_ECDSA = 0x0018;
+    private static final int TPM_ECC_NIST_P256 = 0x0003;
+
+    static byte[] modulus() {
+        byte[] modulus = new byte[256];
+        modulus[0] = (byte)0xc5;
+        for(int i = 1; i < modulus.length; i++) {
+            modulus[i] = (byte)(i * 13 + 0x80);
+        }
+        return modulus;
+    }
+
+    /**
+     * A restricted RSA 2048 signing key with the default exponent.
+     */
+    static byte[] rsaPublic() {
+        ByteBuffer area = ByteBuffer.allocate(280);
+        area.putShort((short)Tpm2Public.TPM_ALG_RSA);
+        area.putShort((short)Tpm2Public.TPM_ALG_SHA256);
+        area.putInt(AIK_ATTRIBUTES);
+        area.putShort((short)0);
+        area.putShort((short)Tpm2Public.TPM_ALG_NULL);
+        area.putShort((short)TPM_ALG_RSASSA);
+        area.putShort((short)Tpm2Public.TPM_ALG_SHA256);
+        area.putShort((short)2048);
+        area.putInt(0);
+        area.putShort((short)256);
+        area.put(modulus());
+        return area.array();
+    }
+
+    /**
+     * A restricted ECC P-256 signing key with a policy digest.
+     */
+    static byte[] eccPublic() {
+        ByteBuffer area = ByteBuffer.allocate(120);
+        area.putShort((short)Tpm2Public.TPM_ALG_ECC);
+        area.putShort((short)Tpm2Public.TPM_ALG_SHA256);
+        area.putInt(AIK_ATTRIBUTES);
+        area.putShort((short)32);
+        for(int i = 0; i < 32; i++) {
+            area.put((byte)i);
+        }
+        area.putShort((short)Tpm2Public.TPM_ALG_NULL);
+        area.putShort((short)TPM_ALG_ECDSA);
+        area.putShort((short)Tpm2Public.TPM_ALG_SHA256);
+        area.putShort((short)TPM_ECC_NIST_P256);
+        area.putShort((short)Tpm2Public.TPM_ALG_NULL); // kdf
+        area.putShort((short)32);
+        for(int i = 0; i < 32; i++) {
+            area.put((byte)(i + 1));
+        }
+        area.putShort((short)32);
+        for(int i = 0; i < 32; i++) {
+            area.put((byte)(0xff - i));
+        }
+        return area.array();
+    }
+
+    /**
+     * An RSA storage key, with a symmetric definition and a NULL scheme,
+     * to cover the optional symmetric fields.
+     */
+    private static byte[] rsaStoragePublic() {
+        ByteBuffer area = ByteBuffer.allocate(282);
+        area.putShort((short)Tpm2Public.TPM_ALG_RSA);
+        area.putShort((short)Tpm2Public.TPM_ALG_SHA256);
+        area.putInt(Tpm2Public.FIXED_TPM | Tpm2Public.FIXED_PARENT | Tpm2Public.RESTRICTED | Tpm2Public.DECRYPT);
+        area.putShort((short)0);
+        area.putShort((short)TPM_ALG_AES);
+        area.putShort((short)128);
+        area.putShort((short)TPM_ALG_CFB);
+        area.putShort((short)Tpm2Public.TPM_ALG_NULL);
+        area.putShort((short)2048);
+        area.putInt(3);
+        area.putShort((short)256);
+        area.put(modulus());
+        return area.array();
+    }
+
+    private static byte[] sized(byte[] tpmtPublic, int size) {
+        ByteBuffer sized = ByteBuffer.allocate(2 + tpmtPublic.length);
+        sized.putShort((short)size);
+        sized.put(tpmtPublic);
+        return sized.array();
+    }
+
+    private static void assertTruncationRejected(byte[] tpmtPublic) {
+        for(int length = 0; length < tpmtPublic.length; length++) {
+            try {
+                Tpm2Public.parse(Arrays.copyOf(tpmtPublic, length));
+                fail("Expected a public area truncated to " + length + " bytes to be rejected");
+            }
+            catch(PrivacyCaException e) {
+            }
+        }
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testRsaPublic() throws Exception {
+        Tpm2Public publicArea = Tpm2Public.parse(rsaPublic());
+        assertEquals(Tpm2Public.TPM_ALG_RSA, publicArea.getType());
+        assertEquals(Tpm2Public.TPM_ALG_SHA256, publicArea.getNameAlg());
+        assertTrue(publicArea.hasAttributes(Tpm2Public.FIXED_TPM | Tpm2Public.RESTRICTED | Tpm2Public.SIGN));
+        assertFalse(publicArea.hasAttributes(Tpm2Public.DECRYPT));
+        assertEquals(TPM_ALG_RSASSA, publicArea.getSchemeAlg());
+        assertEquals(Tpm2Public.TPM_ALG_SHA256, publicArea.getSchemeHashAlg());
+        assertEquals(2048, publicArea.getKeyBits());
+        assertEquals(65537, publicArea.getExponent());
+        assertArrayEquals(modulus(), bytes(publicArea.getUnique()));
+        assertEquals(0, publicArea.getUniqueY().remaining());
+        RSAPublicKey key = publicArea.getRsaPublicKey();
+        assertEquals(new BigInteger(1, modulus()), key.getModulus());
+        assertEquals(BigInteger.valueOf(65537), key.getPublicExponent());
+        assertEquals(RSA_NAME, TpmUtils.byteArrayToHexString(publicArea.getName()));
+        assertTrue(publicArea.hasName(TpmUtils.hexStringToByteArray(RSA_NAME)));
+        assertTrue(publicArea.hasName(ByteBuffer.wrap(TpmUtils.hexStringToByteArray(RSA_NAME))));
+        assertFalse(publicArea.hasName(TpmUtils.hexStringToByteArray(ECC_NAME)));
+    }
+
+    @Test
+    public void testEccPublic() throws Exception {
+        Tpm2Public publicArea = Tpm2Public.parse(eccPublic());
+        assertEquals(Tpm2Public.TPM_ALG_ECC, publicArea.getType());
+        assertEquals(TPM_ECC_NIST_P256, publicArea.getCurveId());
+        assertEquals(TPM_ALG_ECDSA, publicArea.getSchemeAlg());
+        assertEquals(0, publicArea.getKeyBits());
+        assertEquals(32, publicArea.getAuthPolicy().remaining());
+        assertEquals(1, publicArea.getUnique().get(0));
+        assertEquals((byte)0xff, publicArea.getUniqueY().get(0));
+        assertEquals(32, publicArea.getUniqueY().remaining());
+        assertEquals(ECC_NAME, TpmUtils.byteArrayToHexString(publicArea.getName()));
+        try {
+            publicArea.getRsaPublicKey();
+            fail("Expected an ECC key to have no RSA public key");
+        }
+        catch(java.security.spec.InvalidKeySpecException e) {
+        }
+    }
+
+    @Test
+    public void testSymmetricDefinition() throws Exception {
+        Tpm2Public publicArea = Tpm2Public.parse(rsaStoragePublic());
+        assertEquals(TPM_ALG_AES, publicArea.getSymmetricAlg());
+        assertEquals(Tpm2Public.TPM_ALG_NULL, publicArea.getSchemeAlg());
+        assertEquals(Tpm2Public.TPM_ALG_NULL, publicArea.getSchemeHashAlg());
+        assertEquals(3, publicArea.getExponent());
+        assertEquals(rsaStoragePublic().length, publicArea.getEncoded().remaining());
+    }
+
+    @Test
+    public void testTruncationAtEachField() {
+        assertTruncationRejected(rsaPublic());
+        assertTruncationRejected(eccPublic());
+        assertTruncationRejected(rsaStoragePublic());
+    }
+
+    @Test
+    public void testParseAdvancesBuffer() throws Exception {
+        byte[] rsa = rsaPublic();
+        byte[] ecc = eccPublic();
+        ByteBuffer both = ByteBuffer.allocate(rsa.length + ecc.length + 1);
+        both.put(rsa).put(ecc).put((byte)0x5a).flip();
+        assertEquals(RSA_NAME, TpmUtils.byteArrayToHexString(Tpm2Public.parse(both).getName()));
+        assertEquals(rsa.length, both.position());
+        Tpm2Public second = Tpm2Public.parse(both);
+        assertEquals(ECC_NAME, TpmUtils.byteArrayToHexString(second.getName()));
+        assertEquals(ecc.length, second.getEncoded().remaining());
+        assertEquals(1, both.remaining());
+    }
+
+    @Test
+    public void testSizedPublic() throws Exception {
+        byte[] rsa = rsaPublic();
+        ByteBuffer in = ByteBuffer.wrap(sized(rsa, rsa.length));
+        assertEquals(RSA_NAME, TpmUtils.byteArrayToHexString(Tpm2Public.parseSized(in).getName()));
+        assertFalse(in.hasRemaining());
+    }
+
+    @Test
+    public void testSizedPublicSizeMismatch() {
+        byte[] rsa = rsaPublic();
+        // size larger than the bytes that follow
+        byte[] tooLarge = sized(rsa, rsa.length + 1);
+        // size smaller than the structure, which then runs past it
+        byte[] tooSmall = sized(rsa, rsa.length - 1);
+        // size larger than the structure, with trailing bytes inside it
+        byte[] trailing = Arrays.copyOf(sized(rsa, rsa.length + 2), 2 + rsa.length + 2);
+        for(byte[] blob : new byte[][] { tooLarge, tooSmall, trailing, new byte[] { 0x01 } }) {
+            try {
+                Tpm2Public.parseSized(ByteBuffer.wrap(blob));
+                fail("Expected a TPM2B_PUBLIC size mismatch to be rejected");
+            }
+            catch(PrivacyCaException e) {
+            }
+        }
+    }
+
+    @Test(expected = PrivacyCaException.class)
+    public void testUnsupportedType() throws Exception {
+        byte[] area = rsaPublic();
+        area[1] = 0x25; // TPM_ALG_SYMCIPHER
+        Tpm2Public.parse(area);
+    }
+}
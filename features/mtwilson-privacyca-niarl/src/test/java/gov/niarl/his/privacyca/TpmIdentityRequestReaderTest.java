@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that reading an identity request from a stream gives the same
+ * identity proof as parsing the whole request, and that each size limit
+ * is enforced before the data it covers is read.
+ */
+public class TpmIdentityRequestReaderTest {
+    /** offset of the first TPM_KEY_PARMS parmSize: asymSize, symSize, algorithmID, encScheme, sigScheme */
+    private static final int ASYM_PARM_SIZE_OFFSET = 4 + 4 + 4 + 2 + 2;
+    private static final SecureRandom random = new SecureRandom();
+    private static KeyPair caKey;
+    private static TpmPubKey aik;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        caKey = generator.generateKeyPair();
+        aik = new TpmPubKey((RSAPublicKey)generator.generateKeyPair().getPublic(), 3, 1);
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * @param trousers whether the request puts the IV at the head of the symmetric blob, as TrouSerS does
+     * @param credentialSize size of each of the three credentials
+     */
+    private static byte[] request(boolean trousers, int credentialSize) throws Exception {
+        byte[] credential = randomBytes(credentialSize);
+        TpmIdentityProof proof = new TpmIdentityProof("label".getBytes("UTF-8"), randomBytes(256), aik, credential, credential, credential, trousers, trousers, trousers);
+        return new TpmIdentityRequest(proof, (RSAPublicKey)caKey.getPublic()).toByteArray();
+    }
+
+    private static TpmIdentityProof read(TpmIdentityRequestReader reader, InputStream in) throws Exception {
+        TpmIdentityRequest header = reader.readHeader(in);
+        return reader.decrypt(header, in, (RSAPrivateKey)caKey.getPrivate());
+    }
+
+    /**
+     * Returns at most one byte per read, like a slow network connection.
+     */
+    private static InputStream trickle(byte[] bytes) {
+        return new FilterInputStream(new ByteArrayInputStream(bytes)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+    }
+
+    private static void assertSameProof(TpmIdentityProof expected, TpmIdentityProof actual) throws Exception {
+        assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+        assertArrayEquals(expected.getEkCredBytes(), actual.getEkCredBytes());
+        assertArrayEquals(expected.getPlatformCredBytes(), actual.getPlatformCredBytes());
+        assertArrayEquals(expected.getConformCredBytes(), actual.getConformCredBytes());
+        assertEquals(expected.getIVmode(), actual.getIVmode());
+        assertEquals(expected.getSymkeyEncscheme(), actual.getSymkeyEncscheme());
+        assertEquals(expected.getOeapMode(), actual.getOeapMode());
+    }
+
+    private static void assertRejected(TpmIdentityRequestReader reader, byte[] request) throws Exception {
+        try {
+            reader.readHeader(new ByteArrayInputStream(request));
+            fail("Expected the request to be rejected");
+        }
+        catch(PrivacyCaException e) {
+        }
+    }
+
+    private static byte[] withUint32(byte[] request, int offset, int value) {
+        byte[] copy = Arrays.copyOf(request, request.length);
+        ByteBuffer.wrap(copy).putInt(offset, value);
+        return copy;
+    }
+
+    @Test
+    public void testStreamMatchesByteArray() throws Exception {
+        TpmIdentityRequestReader reader = new TpmIdentityRequestReader();
+        for(boolean trousers : new boolean[] { true, false }) {
+            // credentials large enough that the symmetric blob spans several read chunks
+            byte[] request = request(trousers, 5000);
+            TpmIdentityProof expected = new TpmIdentityRequest(request).decrypt((RSAPrivateKey)caKey.getPrivate());
+            assertEquals(trousers, expected.getIVmode());
+            assertSameProof(expected, read(reader, new ByteArrayInputStream(request)));
+            assertSameProof(expected, read(reader, trickle(request)));
+        }
+    }
+
+    @Test
+    public void testStreamLeftAfterRequest() throws Exception {
+        byte[] request = request(true, 100);
+        byte[] trailing = Arrays.copyOf(request, request.length + 3);
+        ByteArrayInputStream in = new ByteArrayInputStream(trailing);
+        read(new TpmIdentityRequestReader(), in);
+        assertEquals(3, in.available());
+    }
+
+    @Test
+    public void testAsymSizeLimit() throws Exception {
+        byte[] request = request(false, 100);
+        int asymSize = TpmUtils.getUINT32(new ByteArrayInputStream(request));
+        assertEquals(256, asymSize);
+        read(new TpmIdentityRequestReader(asymSize, TpmIdentityRequestReader.DEFAULT_MAX_SYM_SIZE), new ByteArrayInputStream(request));
+        assertRejected(new TpmIdentityRequestReader(asymSize - 1, TpmIdentityRequestReader.DEFAULT_MAX_SYM_SIZE), request);
+        assertRejected(new TpmIdentityRequestReader(), withUint32(request, 0, 0));
+        assertRejected(new TpmIdentityRequestReader(), withUint32(request, 0, -1));
+    }
+
+    @Test
+    public void testSymSizeLimit() throws Exception {
+        byte[] request = request(false, 100);
+        ByteArrayInputStream sizes = new ByteArrayInputStream(request, 4, 4);
+        int symSize = TpmUtils.getUINT32(sizes);
+        read(new TpmIdentityRequestReader(TpmIdentityRequestReader.DEFAULT_MAX_ASYM_SIZE, symSize), new ByteArrayInputStream(request));
+        assertRejected(new TpmIdentityRequestReader(TpmIdentityRequestReader.DEFAULT_MAX_ASYM_SIZE, symSize - 1), request);
+        assertRejected(new TpmIdentityRequestReader(), withUint32(request, 4, 0));
+        assertRejected(new TpmIdentityRequestReader(), withUint32(request, 4, TpmIdentityRequestReader.DEFAULT_MAX_SYM_SIZE + 1));
+        assertRejected(new TpmIdentityRequestReader(), withUint32(request, 4, Integer.MIN_VALUE));
+    }
+
+    @Test
+    public void testKeyParamsSizeLimit() throws Exception {
+        byte[] request = request(false, 100);
+        // the limit is checked before the parameters are read, so the rest of the request does not matter
+        assertRejected(new TpmIdentityRequestReader(), withUint32(request, ASYM_PARM_SIZE_OFFSET, TpmIdentityRequestReader.MAX_KEY_PARAMS_SIZE + 1));
+        assertRejected(new TpmIdentityRequestReader(), withUint32(request, ASYM_PARM_SIZE_OFFSET, -1));
+    }
+
+    @Test
+    public void testTruncatedRequest() throws Exception {
+        byte[] request = request(true, 100);
+        TpmIdentityRequestReader reader = new TpmIdentityRequestReader();
+        for(int length : new int[] { 0, 7, ASYM_PARM_SIZE_OFFSET + 2, 100, 400, request.length - 1 }) {
+            try {
+                read(reader, new ByteArrayInputStream(request, 0, length));
+                fail("Expected a truncated request of " + length + " bytes to fail");
+            }
+            catch(EOFException e) {
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLimits() {
+        new TpmIdentityRequestReader(0, 1);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package gov.niarl.his.privacyca;
+
+import gov.niarl.his.privacyca.TpmIdentityRequestValidator.Reason;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Alters single header fields of real identity requests and checks the
+ * reason the validator gives, and that requests it accepts also parse and
+ * decrypt.
+ */
+public class TpmIdentityRequestValidatorTest {
+    private static final int ASYM_PARMS = 8;
+    private static final int KEY_PARMS_HEADER_SIZE = 12;
+    private static final SecureRandom random = new SecureRandom();
+    private static final TpmIdentityRequestValidator validator = new TpmIdentityRequestValidator();
+    private static KeyPair caKey;
+    private static TpmPubKey aik;
+    private static byte[] trousers;
+    private static byte[] specification;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        caKey = generator.generateKeyPair();
+        aik = new TpmPubKey((RSAPublicKey)generator.generateKeyPair().getPublic(), 3, 1);
+        trousers = request(true);
+        specification = request(false);
+    }
+
+    private static byte[] request(boolean trousers) throws Exception {
+        byte[] credential = new byte[300];
+        random.nextBytes(credential);
+        byte[] binding = new byte[256];
+        random.nextBytes(binding);
+        TpmIdentityProof proof = new TpmIdentityProof("label".getBytes("UTF-8"), binding, aik, credential, credential, credential, trousers, trousers, trousers);
+        return new TpmIdentityRequest(proof, (RSAPublicKey)caKey.getPublic()).toByteArray();
+    }
+
+    private static int uint32(byte[] blob, int offset) {
+        return ByteBuffer.wrap(blob).getInt(offset);
+    }
+
+    private static byte[] withUint32(byte[] blob, int offset, int value) {
+        byte[] copy = Arrays.copyOf(blob, blob.length);
+        ByteBuffer.wrap(copy).putInt(offset, value);
+        return copy;
+    }
+
+    private static byte[] withUint16(byte[] blob, int offset, int value) {
+        byte[] copy = Arrays.copyOf(blob, blob.length);
+        ByteBuffer.wrap(copy).putShort(offset, (short)value);
+        return copy;
+    }
+
+    private static int symParms(byte[] blob) {
+        return ASYM_PARMS + KEY_PARMS_HEADER_SIZE + uint32(blob, ASYM_PARMS + 8);
+    }
+
+    /**
+     * Sets the symmetric blob size and cuts or pads the request to match.
+     */
+    private static byte[] withSymSize(byte[] blob, int symSize) {
+        byte[] resized = Arrays.copyOf(blob, blob.length - uint32(blob, 4) + symSize);
+        ByteBuffer.wrap(resized).putInt(4, symSize);
+        return resized;
+    }
+
+    @Test
+    public void testValidRequests() throws Exception {
+        assertEquals(Reason.VALID, validator.check(trousers));
+        assertEquals(Reason.VALID, validator.check(specification));
+        assertEquals(Reason.VALID, validator.check(trousers, 256));
+        assertEquals(Reason.ASYM_SIZE, validator.check(trousers, 128));
+        // the validator must not accept anything the parser rejects
+        assertTrue(new TpmIdentityRequest(trousers).decrypt((RSAPrivateKey)caKey.getPrivate()).getIVmode());
+        assertFalse(new TpmIdentityRequest(specification).decrypt((RSAPrivateKey)caKey.getPrivate()).getIVmode());
+    }
+
+    @Test
+    public void testTrousersIvInBlob() throws Exception {
+        int symParms = symParms(trousers);
+        // TrouSerS leaves the symmetric parameters empty and sends the IV as the first block of the blob
+        assertEquals(0, uint32(trousers, symParms + 8));
+        assertEquals(0, (uint32(trousers, 4) - 16) % 16);
+        assertEquals(Reason.SYM_SIZE, validator.check(withSymSize(trousers, 16)));
+        assertEquals(Reason.VALID, validator.check(withSymSize(trousers, 32)));
+        assertEquals(Reason.SYM_BLOCK_ALIGNMENT, validator.check(withSymSize(trousers, 33)));
+        // the same blob sizes with the IV in the parameters
+        assertEquals(Reason.VALID, validator.check(withSymSize(specification, 16)));
+        assertEquals(Reason.SYM_BLOCK_ALIGNMENT, validator.check(withSymSize(specification, 17)));
+    }
+
+    @Test
+    public void testIvSize() {
+        int symParms = symParms(specification);
+        assertEquals(16, uint32(specification, symParms + KEY_PARMS_HEADER_SIZE + 8));
+        assertEquals(Reason.IV_SIZE, validator.check(withUint32(specification, symParms + KEY_PARMS_HEADER_SIZE + 8, 8)));
+    }
+
+    @Test
+    public void testLengthMismatch() {
+        assertEquals(Reason.LENGTH_MISMATCH, validator.check(Arrays.copyOf(trousers, trousers.length + 1)));
+        assertEquals(Reason.LENGTH_MISMATCH, validator.check(Arrays.copyOf(trousers, trousers.length - 1)));
+        assertEquals(Reason.LENGTH_MISMATCH, validator.check(withUint32(specification, 4, uint32(specification, 4) - 16)));
+        assertEquals(Reason.LENGTH_MISMATCH, validator.check(withUint32(specification, 0, 128)));
+    }
+
+    @Test
+    public void testSizeLimits() {
+        assertEquals(Reason.ASYM_SIZE, validator.check(withUint32(trousers, 0, 0)));
+        assertEquals(Reason.ASYM_SIZE, validator.check(withUint32(trousers, 0, TpmIdentityRequestReader.DEFAULT_MAX_ASYM_SIZE + 1)));
+        assertEquals(Reason.SYM_SIZE, validator.check(withUint32(trousers, 4, 0)));
+        assertEquals(Reason.SYM_SIZE, validator.check(withUint32(trousers, 4, -1)));
+        assertEquals(Reason.KEY_PARMS_SIZE, validator.check(withUint32(trousers, ASYM_PARMS + 8, TpmIdentityRequestReader.MAX_KEY_PARAMS_SIZE + 1)));
+        assertEquals(Reason.KEY_PARMS_SIZE, validator.check(withUint32(trousers, symParms(trousers) + 8, -1)));
+        assertEquals(Reason.TRUNCATED, validator.check(Arrays.copyOf(trousers, 31)));
+        assertEquals(Reason.TRUNCATED, validator.check(null));
+        // asymmetric parameters that run past the end of the request
+        TpmIdentityRequestValidator largeParms = new TpmIdentityRequestValidator(TpmIdentityRequestReader.DEFAULT_MAX_ASYM_SIZE, TpmIdentityRequestReader.DEFAULT_MAX_SYM_SIZE, trousers.length);
+        assertEquals(Reason.TRUNCATED, largeParms.check(withUint32(trousers, ASYM_PARMS + 8, trousers.length - 30)));
+    }
+
+    @Test
+    public void testAlgorithms() {
+        assertEquals(Reason.ASYM_ALGORITHM, validator.check(withUint32(trousers, ASYM_PARMS, TpmKeyParams.TPM_ALG_AES)));
+        assertEquals(Reason.SYM_ALGORITHM, validator.check(withUint32(trousers, symParms(trousers), TpmKeyParams.TPM_ALG_RSA)));
+    }
+
+    @Test
+    public void testEncryptionSchemesNotChecked() {
+        // TpmIdentityRequest decrypts any asymmetric scheme other than OAEP with PKCS#1 v1.5
+        assertEquals(Reason.VALID, validator.check(withUint16(trousers, ASYM_PARMS + 4, TpmKeyParams.TPM_ES_RSAESPKCSv15)));
+        assertEquals(Reason.VALID, validator.check(withUint16(trousers, ASYM_PARMS + 4, 0x00ff)));
+        assertEquals(Reason.VALID, validator.check(withUint16(specification, symParms(specification) + 4, 0x00ff)));
+    }
+
+    @Test
+    public void testValidate() throws Exception {
+        validator.validate(trousers, 256);
+        try {
+            validator.validate(Arrays.copyOf(trousers, trousers.length + 1), 256);
+            fail("Expected the request to be rejected");
+        }
+        catch(TpmIdentityRequestValidator.InvalidRequestException e) {
+            assertEquals(Reason.LENGTH_MISMATCH, e.getReason());
+        }
+    }
+}
@@ -5,11 +5,14 @@
 package com.intel.mtwilson.tpm.endorsement.client.jaxrs;
 
 import com.intel.mtwilson.tpm.endorsement.client.jaxrs.*;
+import com.intel.mtwilson.jaxrs2.client.JaxrsClient;
 import com.intel.mtwilson.jaxrs2.client.MtWilsonClient;
 import com.intel.mtwilson.tpm.endorsement.model.TpmEndorsement;
+import com.intel.mtwilson.tpm.endorsement.model.TpmEndorsementChanges;
 import com.intel.mtwilson.tpm.endorsement.model.TpmEndorsementCollection;
 import com.intel.mtwilson.tpm.endorsement.model.TpmEndorsementFilterCriteria;
 import java.net.URL;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Properties;
 import javax.ws.rs.WebApplicationException;
@@ -22,6 +25,8 @@ import org.slf4j.LoggerFactory;
 public class TpmEndorsements extends MtWilsonClient {
     
     Logger log = LoggerFactory.getLogger(getClass().getName());
+    public static final long DEFAULT_CHANGE_WINDOW_MILLIS = 5 * 60 * 1000L;
+    private volatile long changeWindowMillis = DEFAULT_CHANGE_WINDOW_MILLIS;
 
     public TpmEndorsements(URL url) throws Exception{
         super(url);
@@ -30,6 +35,14 @@ public class TpmEndorsements extends MtWilsonClient {
     public TpmEndorsements(Properties properties) throws Exception {
         super(properties);
     }
+
+    /**
+     * Uses the connection pool of an existing client, such as one made by
+     * PrivacyCaClientFactory.
+     */
+    public TpmEndorsements(JaxrsClient jaxrsClient) {
+        super(jaxrsClient);
+    }
     
      /**
      * Creates an new TpmEndorsement in the system that could be during white listing or host registration for establishing trusted communication channel with the host.
@@ -191,7 +204,7 @@ public class TpmEndorsements extends MtWilsonClient {
     /**
      * Searches for the TLS policies with the specified set of criteria.
      * @param criteria TpmEndorsementFilterCriteria object specifying the filter criteria. The search options include
-     * id, hardwareUuid, issuerEqualTo, issuerContains, revokedEqualTo, commentEqualTo and commentContains. 
+     * id, hardwareUuid, publicKeySha256EqualTo, issuerEqualTo, issuerContains, revokedEqualTo, commentEqualTo, commentContains and modifiedSince. 
      * Also, if the caller wants to retrieve the list of all the registered
      * roles, the filter option can be disabled by setting the filter criteria to false. By default
      * the filter criteria is true. [Ex: /v2/tpm-endorsements?filter=false retrieves the list of all the TpmEndorsements]
@@ -217,4 +230,82 @@ public class TpmEndorsements extends MtWilsonClient {
         TpmEndorsementCollection objList = getTargetPathWithQueryParams("tpm-endorsements", criteria).request(MediaType.APPLICATION_JSON).get(TpmEndorsementCollection.class);
         return objList;
     }
+    
+    /**
+     * Retrieves the TpmEndorsements that were created, changed, or revoked since the
+     * given cursor. Pass 0 on the first call to retrieve every endorsement, then pass
+     * the cursor from the previous result, or better the previous result itself with
+     * {@link #searchTpmEndorsementChanges(TpmEndorsementChanges)}.
+     * The cursor is the latest modifiedOn seen, which is not a server-assigned sequence:
+     * a row committed after the cursor was taken can carry an earlier or equal modifiedOn
+     * when writers run concurrently or server clocks differ. The request therefore asks
+     * for changes since the cursor minus {@link #getChangeWindowMillis()}, so such a row
+     * is still delivered if it becomes visible within the window. A row that becomes
+     * visible later than that is never delivered, and deletions are never reported;
+     * a verifier that must see them should also reload everything periodically.
+     * Entries inside the window are returned again by this method; applying them twice
+     * is harmless.
+     * If the server does not set modifiedOn the cursor does not advance and each call
+     * returns the full set, which is the same as the previous behavior.
+     * @param cursor the cursor from the previous TpmEndorsementChanges, or 0 for all endorsements
+     * @return TpmEndorsementChanges with the changed endorsements and the next cursor
+     * @since Mt.Wilson 2.0
+     * @mtwRequiresPermissions tpm_endorsements:search
+     * @mtwContentTypeReturned JSON/XML/YAML
+     * @mtwMethodType GET
+     * @mtwSampleRestCall
+     * <pre>
+     * https://server.com:8181/mtwilson/v2/tpm-endorsements?modifiedSince=1420070100000
+     * Output: 
+     * </pre>
+     * @mtwSampleApiCall
+     * <pre>
+     *  TpmEndorsementIndex index = new TpmEndorsementIndex();
+     *  TpmEndorsementChanges changes = client.searchTpmEndorsementChanges(0);
+     *  index.load(changes.getTpmEndorsements());
+     *  // later
+     *  changes = client.searchTpmEndorsementChanges(changes);
+     *  index.update(changes.getTpmEndorsements());
+     * </pre>
+     */
+    public TpmEndorsementChanges searchTpmEndorsementChanges(long cursor) {
+        return searchTpmEndorsementChanges(new TpmEndorsementChanges(Collections.<TpmEndorsement>emptyList(), cursor));
+    }
+
+    /**
+     * Same as {@link #searchTpmEndorsementChanges(long)}, but leaves out the
+     * entries in the window that were already delivered in the previous result.
+     * @param previous the result of the previous call
+     * @return TpmEndorsementChanges with the changed endorsements and the next cursor
+     */
+    public TpmEndorsementChanges searchTpmEndorsementChanges(TpmEndorsementChanges previous) {
+        long window = changeWindowMillis;
+        TpmEndorsementFilterCriteria criteria = new TpmEndorsementFilterCriteria();
+        criteria.modifiedSince = previous.getSince(window);
+        TpmEndorsementCollection objList = searchTpmEndorsements(criteria);
+        TpmEndorsementChanges changes = previous.next(objList.getTpmEndorsements(), window);
+        log.debug("Retrieved {} changed TpmEndorsements since {}, next cursor {}", changes.getTpmEndorsements().size(), criteria.modifiedSince, changes.getCursor());
+        return changes;
+    }
+
+    /**
+     * 
+     * @return how far before the cursor searchTpmEndorsementChanges looks for rows committed late
+     */
+    public long getChangeWindowMillis() {
+        return changeWindowMillis;
+    }
+
+    /**
+     * Sets the window subtracted from the cursor by searchTpmEndorsementChanges.
+     * It should exceed the longest write transaction plus the clock skew between
+     * server nodes.
+     * @param changeWindowMillis window in milliseconds, not negative
+     */
+    public void setChangeWindowMillis(long changeWindowMillis) {
+        if( changeWindowMillis < 0 ) {
+            throw new IllegalArgumentException("Change window must not be negative");
+        }
+        this.changeWindowMillis = changeWindowMillis;
+    }
 }
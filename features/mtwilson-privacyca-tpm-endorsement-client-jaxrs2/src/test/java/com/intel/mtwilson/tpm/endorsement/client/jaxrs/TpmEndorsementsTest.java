@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.tpm.endorsement.client.jaxrs;
+
+import com.intel.dcsg.cpg.io.UUID;
+import com.intel.mtwilson.tpm.endorsement.model.TpmEndorsement;
+import com.intel.mtwilson.tpm.endorsement.model.TpmEndorsementChanges;
+import com.intel.mtwilson.tpm.endorsement.model.TpmEndorsementCollection;
+import com.intel.mtwilson.tpm.endorsement.model.TpmEndorsementFilterCriteria;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Runs searchTpmEndorsementChanges against rows held in memory instead of
+ * a server, to check the modifiedSince it asks for and what it delivers.
+ */
+public class TpmEndorsementsTest {
+
+    /**
+     * Answers searchTpmEndorsements from a list, filtering on modifiedSince
+     * the way the server does.
+     */
+    private static class InMemoryTpmEndorsements extends TpmEndorsements {
+        private final ArrayList<TpmEndorsement> rows = new ArrayList<>();
+        private final ArrayList<Long> requests = new ArrayList<>();
+
+        InMemoryTpmEndorsements() throws Exception {
+            super(new URL("https://localhost:8443/mtwilson/v2"));
+        }
+
+        @Override
+        public TpmEndorsementCollection searchTpmEndorsements(TpmEndorsementFilterCriteria criteria) {
+            requests.add(criteria.modifiedSince);
+            TpmEndorsementCollection collection = new TpmEndorsementCollection();
+            for(TpmEndorsement row : rows) {
+                if( criteria.modifiedSince == null || row.getModifiedOn().getTime() >= criteria.modifiedSince ) {
+                    collection.getTpmEndorsements().add(row);
+                }
+            }
+            return collection;
+        }
+    }
+
+    private static TpmEndorsement row(UUID id, long modifiedOn) {
+        TpmEndorsement endorsement = new TpmEndorsement();
+        endorsement.setId(id);
+        endorsement.setModifiedOn(new Date(modifiedOn));
+        return endorsement;
+    }
+
+    @Test
+    public void testChangesAreDeliveredOnceAcrossTheWindow() throws Exception {
+        InMemoryTpmEndorsements client = new InMemoryTpmEndorsements();
+        client.setChangeWindowMillis(500);
+        TpmEndorsement first = row(new UUID(), 1000);
+        TpmEndorsement second = row(new UUID(), 2000);
+        client.rows.add(first);
+        client.rows.add(second);
+        TpmEndorsementChanges changes = client.searchTpmEndorsementChanges(0);
+        assertEquals(2, changes.getTpmEndorsements().size());
+        assertEquals(2000, changes.getCursor());
+        // a row that commits late with the cursor's timestamp
+        TpmEndorsement late = row(new UUID(), 2000);
+        client.rows.add(late);
+        changes = client.searchTpmEndorsementChanges(changes);
+        assertEquals(Collections.singletonList(late), changes.getTpmEndorsements());
+        changes = client.searchTpmEndorsementChanges(changes);
+        assertTrue(changes.isEmpty());
+        assertEquals(Long.valueOf(0), client.requests.get(0));
+        assertEquals(Long.valueOf(1500), client.requests.get(1));
+        assertEquals(Long.valueOf(1500), client.requests.get(2));
+    }
+
+    @Test
+    public void testCursorOnlyRepeatsTheWindow() throws Exception {
+        InMemoryTpmEndorsements client = new InMemoryTpmEndorsements();
+        client.setChangeWindowMillis(500);
+        TpmEndorsement row = row(new UUID(), 2000);
+        client.rows.add(row);
+        // without the previous result the entries in the window come back again
+        assertEquals(Collections.singletonList(row), client.searchTpmEndorsementChanges(2000).getTpmEndorsements());
+        client.setChangeWindowMillis(0);
+        assertEquals(Collections.singletonList(row), client.searchTpmEndorsementChanges(2000).getTpmEndorsements());
+        assertTrue(client.searchTpmEndorsementChanges(2001).isEmpty());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testNegativeWindowIsRejected() throws Exception {
+        new InMemoryTpmEndorsements().setChangeWindowMillis(-1);
+    }
+}
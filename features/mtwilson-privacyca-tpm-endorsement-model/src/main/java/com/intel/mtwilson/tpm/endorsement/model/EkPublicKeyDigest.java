@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.tpm.endorsement.model;
+
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Comparator;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * The SHA-256 digest of the DER-encoded SubjectPublicKeyInfo of an EK,
+ * which is the key used by {@link TpmEndorsementIndex},
+ * {@link TpmEndorsementRevocationSet} and the endorsement snapshot.
+ */
+final class EkPublicKeyDigest {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(EkPublicKeyDigest.class);
+    static final int LENGTH = 32;
+
+    private EkPublicKeyDigest() {
+    }
+
+    static byte[] sha256(PublicKey publicKey) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return md.digest(publicKey.getEncoded());
+        }
+        catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     *
+     * @param certificate DER-encoded EK certificate
+     * @return SHA-256 of the certificate's public key
+     * @throws CertificateException if the certificate cannot be decoded
+     */
+    static byte[] sha256(byte[] certificate) throws CertificateException {
+        CertificateFactory cf = CertificateFactory.getInstance("X.509");
+        X509Certificate ekCert = (X509Certificate)cf.generateCertificate(new ByteArrayInputStream(certificate));
+        return sha256(ekCert.getPublicKey());
+    }
+
+    /**
+     *
+     * @param endorsement a TPM endorsement
+     * @return SHA-256 of the public key in its certificate, or null if it has no valid certificate
+     */
+    static byte[] of(TpmEndorsement endorsement) {
+        if( endorsement.getCertificate() == null ) {
+            log.debug("Skipping TPM endorsement {} without certificate", endorsement.getId());
+            return null;
+        }
+        try {
+            return sha256(endorsement.getCertificate());
+        }
+        catch(CertificateException e) {
+            log.warn("Skipping TPM endorsement {} with invalid certificate: {}", endorsement.getId(), e.getMessage());
+            return null;
+        }
+    }
+
+    static String toHex(byte[] digest) {
+        return Hex.encodeHexString(digest);
+    }
+
+    /**
+     *
+     * @param hex hex-encoded SHA-256, either case
+     * @return the 32-byte digest
+     * @throws IllegalArgumentException if the value is not 64 hex characters
+     */
+    static byte[] fromHex(String hex) {
+        if( hex.length() != LENGTH * 2 ) {
+            throw new IllegalArgumentException("EK digest must be " + (LENGTH * 2) + " hex characters");
+        }
+        try {
+            return Hex.decodeHex(hex.toCharArray());
+        }
+        catch(DecoderException e) {
+            throw new IllegalArgumentException("EK digest is not hex", e);
+        }
+    }
+
+    /**
+     * Compares two digests as unsigned big-endian numbers.
+     */
+    static int compare(byte[] a, int aOffset, byte[] b, int bOffset) {
+        for(int i = 0; i < LENGTH; i++) {
+            int x = a[aOffset+i] & 0xff;
+            int y = b[bOffset+i] & 0xff;
+            if( x != y ) {
+                return x - y;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Ascending unsigned order of 32-byte digests, the order of the
+     * revocation set and of the snapshot index.
+     */
+    static final Comparator<byte[]> ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            return EkPublicKeyDigest.compare(a, 0, b, 0);
+        }
+    };
+}
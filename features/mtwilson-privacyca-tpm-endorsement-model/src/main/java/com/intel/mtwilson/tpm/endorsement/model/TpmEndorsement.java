@@ -9,6 +9,7 @@ import com.intel.dcsg.cpg.io.UUID;
 import com.intel.dcsg.cpg.validation.Regex;
 import com.intel.dcsg.cpg.validation.RegexPatterns;
 import com.intel.mtwilson.jaxrs2.Document;
+import java.util.Date;
 
 /**
  * Represents a single row in the mw_tpm_endorsement table.
@@ -24,6 +25,7 @@ public class TpmEndorsement extends Document {
    private boolean revoked;
    private byte[] certificate;
    private String comment;
+   private Date modifiedOn;
 
     public TpmEndorsement() {
     }
@@ -78,6 +80,21 @@ public class TpmEndorsement extends Document {
     public void setComment(String comment) {
         this.comment = comment;
     }
+
+    /**
+     * Set by the server whenever the row is created or changed, including
+     * when it is revoked. Used as the cursor for
+     * {@link TpmEndorsementFilterCriteria#modifiedSince}.
+     * 
+     * @return time of the last change, or null if the server does not track it
+     */
+    public Date getModifiedOn() {
+        return modifiedOn;
+    }
+
+    public void setModifiedOn(Date modifiedOn) {
+        this.modifiedOn = modifiedOn;
+    }
    
    
 }
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.tpm.endorsement.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The endorsements that changed since a cursor, and the cursor to use for
+ * the next request. Revoked endorsements are included with
+ * {@link TpmEndorsement#isRevoked()} set, so applying the changes to a
+ * {@link TpmEndorsementIndex} with {@code update} also applies revocations.
+ *
+ * The cursor is the latest modifiedOn seen, not a server-assigned
+ * sequence, so a row can be committed with a modifiedOn at or before a
+ * cursor the client already holds: a concurrent writer whose transaction
+ * commits late, or a server node whose clock is behind. To pick up such
+ * rows the next request asks for changes since the cursor minus a window,
+ * and {@link #next(List, long)} drops the entries in the window that were
+ * already delivered, identified by id and modifiedOn. A row that becomes
+ * visible more than the window after its modifiedOn is still missed.
+ *
+ * Deleted endorsements are not reported because the server does not keep
+ * tombstones. Clients that need to observe deletions, or that cannot rule
+ * out writers delayed by more than the window, should still do an
+ * occasional full load.
+ */
+public class TpmEndorsementChanges {
+    private final List<TpmEndorsement> tpmEndorsements;
+    private final long cursor;
+    private final Map<String,Long> delivered;
+
+    public TpmEndorsementChanges(List<TpmEndorsement> tpmEndorsements, long cursor) {
+        this(tpmEndorsements, cursor, Collections.<String,Long>emptyMap());
+    }
+
+    private TpmEndorsementChanges(List<TpmEndorsement> tpmEndorsements, long cursor, Map<String,Long> delivered) {
+        this.tpmEndorsements = Collections.unmodifiableList(new ArrayList<>(tpmEndorsements));
+        this.cursor = cursor;
+        this.delivered = delivered;
+    }
+
+    /**
+     * Computes the changes that follow these from the endorsements the
+     * server returned for modifiedSince {@link #getSince(long)}. Entries
+     * with the same id and modifiedOn as one delivered in this or an
+     * earlier result within the window are left out.
+     *
+     * @param fetched endorsements returned by the server
+     * @param windowMillis the window that was subtracted from the cursor for the request
+     * @return the new changes and the next cursor
+     */
+    public TpmEndorsementChanges next(List<TpmEndorsement> fetched, long windowMillis) {
+        long next = cursor;
+        ArrayList<TpmEndorsement> changed = new ArrayList<>();
+        HashMap<String,Long> seen = new HashMap<>(delivered);
+        for(TpmEndorsement endorsement : fetched) {
+            Long modifiedOn = endorsement.getModifiedOn() == null ? null : endorsement.getModifiedOn().getTime();
+            String id = endorsement.getId() == null ? null : endorsement.getId().toString();
+            if( id != null && modifiedOn != null && modifiedOn.equals(seen.get(id)) ) {
+                continue;
+            }
+            changed.add(endorsement);
+            if( modifiedOn != null ) {
+                if( id != null ) {
+                    seen.put(id, modifiedOn);
+                }
+                if( modifiedOn > next ) {
+                    next = modifiedOn;
+                }
+            }
+        }
+        Iterator<Long> it = seen.values().iterator();
+        while( it.hasNext() ) {
+            if( it.next() < next - windowMillis ) {
+                it.remove();
+            }
+        }
+        return new TpmEndorsementChanges(changed, next, seen);
+    }
+
+    /**
+     *
+     * @param windowMillis how far before the cursor to look for late rows
+     * @return the modifiedSince value for the next request: 0 for the first request, otherwise the cursor minus the window
+     */
+    public long getSince(long windowMillis) {
+        return cursor == 0 ? 0 : Math.max(0, cursor - windowMillis);
+    }
+
+    /**
+     * 
+     * @return new, changed, and revoked endorsements
+     */
+    public List<TpmEndorsement> getTpmEndorsements() {
+        return tpmEndorsements;
+    }
+
+    /**
+     * 
+     * @return only the revoked endorsements among the changes
+     */
+    public List<TpmEndorsement> getRevoked() {
+        ArrayList<TpmEndorsement> revoked = new ArrayList<>();
+        for(TpmEndorsement endorsement : tpmEndorsements) {
+            if( endorsement.isRevoked() ) {
+                revoked.add(endorsement);
+            }
+        }
+        return revoked;
+    }
+
+    /**
+     * 
+     * @return the latest modifiedOn seen, to continue from with searchTpmEndorsementChanges
+     */
+    public long getCursor() {
+        return cursor;
+    }
+
+    public boolean isEmpty() {
+        return tpmEndorsements.isEmpty();
+    }
+}
@@ -20,8 +20,12 @@ public class TpmEndorsementFilterCriteria extends DefaultFilterCriteria implemen
     @QueryParam("hardwareUuidEqualTo")
     public String hardwareUuidEqualTo;
     
-//    @QueryParam("publicKeySha256EqualTo")
-//    public String publicKeySha256EqualTo;
+    /**
+     * Hex-encoded SHA-256 digest of the EK public key (the DER-encoded
+     * SubjectPublicKeyInfo), see {@link TpmEndorsementIndex#publicKeySha256(java.security.PublicKey)}
+     */
+    @QueryParam("publicKeySha256EqualTo")
+    public String publicKeySha256EqualTo;
     
     @QueryParam("issuerEqualTo")
     public String issuerEqualTo;
@@ -37,4 +41,13 @@ public class TpmEndorsementFilterCriteria extends DefaultFilterCriteria implemen
     
     @QueryParam("commentContains")
     public String commentContains;
+    
+    /**
+     * Milliseconds since the epoch; only endorsements with a modifiedOn
+     * at or after this time are returned. The comparison is inclusive so
+     * that a change recorded in the same millisecond as the previous
+     * cursor is not missed; clients must tolerate seeing it twice.
+     */
+    @QueryParam("modifiedSince")
+    public Long modifiedSince;
 }
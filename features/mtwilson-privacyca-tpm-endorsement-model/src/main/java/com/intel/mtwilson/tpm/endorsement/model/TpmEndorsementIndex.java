@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.tpm.endorsement.model;
+
+import java.security.PublicKey;
+import java.security.cert.CertificateException;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index of TPM endorsements keyed by the SHA-256 digest of the
+ * EK public key, so a verifier can look up the endorsement for an EK
+ * without a network call.
+ *
+ * The index is loaded from a search snapshot with {@link #load(Collection)}
+ * and then kept current with {@link #update(TpmEndorsement)} and
+ * {@link #remove(String)}. Lookups do not lock and may run concurrently
+ * with updates.
+ *
+ * The key is the lowercase hex SHA-256 of the DER-encoded
+ * SubjectPublicKeyInfo of the EK, which is the same value accepted by
+ * {@link TpmEndorsementFilterCriteria#publicKeySha256EqualTo}.
+ */
+public class TpmEndorsementIndex {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TpmEndorsementIndex.class);
+
+    /**
+     * Both maps of the index, published together so a lookup never sees
+     * the endorsements of one load with the ids of another.
+     */
+    private static class Entries {
+        private final ConcurrentHashMap<String,TpmEndorsement> endorsementByPublicKeySha256 = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String,String> publicKeySha256ById = new ConcurrentHashMap<>();
+
+        private void put(String id, String digest, TpmEndorsement endorsement) {
+            String previous = publicKeySha256ById.put(id, digest);
+            if( previous != null && !previous.equals(digest) ) {
+                removeDigest(previous, id);
+            }
+            TpmEndorsement displaced = endorsementByPublicKeySha256.put(digest, endorsement);
+            if( displaced != null && !id.equals(displaced.getId().toString()) ) {
+                // another endorsement had the same EK; it is no longer in the index
+                publicKeySha256ById.remove(displaced.getId().toString(), digest);
+            }
+        }
+
+        private void remove(String id) {
+            String digest = publicKeySha256ById.remove(id);
+            if( digest != null ) {
+                removeDigest(digest, id);
+            }
+        }
+
+        /**
+         * Removes the entry for the digest only if it is still the
+         * endorsement with the given id.
+         */
+        private void removeDigest(String digest, String id) {
+            TpmEndorsement indexed = endorsementByPublicKeySha256.get(digest);
+            if( indexed != null && id.equals(indexed.getId().toString()) ) {
+                endorsementByPublicKeySha256.remove(digest, indexed);
+            }
+        }
+    }
+
+    private volatile Entries entries = new Entries();
+
+    public TpmEndorsementIndex() {
+    }
+
+    /**
+     * Replaces the entire contents of the index with the given endorsements.
+     * Lookups running during the load see either the old or the new
+     * contents, never a partially loaded index. Endorsements without an id
+     * or without a valid certificate are skipped.
+     *
+     * @param snapshot all endorsements, for example from searchTpmEndorsements with filter=false
+     */
+    public synchronized void load(Collection<TpmEndorsement> snapshot) {
+        Entries newEntries = new Entries();
+        for(TpmEndorsement endorsement : snapshot) {
+            String id = idOf(endorsement);
+            String digest = digestOf(endorsement);
+            if( id == null || digest == null ) { continue; }
+            newEntries.put(id, digest, endorsement);
+        }
+        entries = newEntries;
+        log.debug("Loaded {} TPM endorsements into index", newEntries.endorsementByPublicKeySha256.size());
+    }
+
+    public void load(TpmEndorsementCollection snapshot) {
+        load(snapshot.getTpmEndorsements());
+    }
+
+    /**
+     * Adds or replaces a single endorsement. The entry previously indexed
+     * for the same id is removed first, so an endorsement whose
+     * certificate changed, was removed or cannot be decoded no longer
+     * answers lookups for its old EK.
+     *
+     * @param endorsement new or changed endorsement
+     */
+    public synchronized void update(TpmEndorsement endorsement) {
+        String id = idOf(endorsement);
+        if( id == null ) { return; }
+        String digest = digestOf(endorsement);
+        if( digest == null ) {
+            entries.remove(id);
+        }
+        else {
+            entries.put(id, digest, endorsement);
+        }
+    }
+
+    public void update(Collection<TpmEndorsement> changes) {
+        for(TpmEndorsement endorsement : changes) {
+            update(endorsement);
+        }
+    }
+
+    /**
+     * Removes the endorsement with the given id, if present.
+     *
+     * @param id the endorsement id
+     */
+    public synchronized void remove(String id) {
+        entries.remove(id);
+    }
+
+    /**
+     *
+     * @param publicKeySha256 hex-encoded SHA-256 of the EK public key, either case
+     * @return the endorsement for the EK, or null if it is not in the index
+     */
+    public TpmEndorsement get(String publicKeySha256) {
+        return entries.endorsementByPublicKeySha256.get(publicKeySha256.toLowerCase());
+    }
+
+    public TpmEndorsement get(PublicKey ekPublicKey) {
+        return entries.endorsementByPublicKeySha256.get(publicKeySha256(ekPublicKey));
+    }
+
+    /**
+     *
+     * @param ekPublicKey the EK public key, for example from the EK certificate in an identity request
+     * @return true if the EK has an endorsement in the index and it is not revoked
+     */
+    public boolean isEndorsed(PublicKey ekPublicKey) {
+        TpmEndorsement endorsement = get(ekPublicKey);
+        return endorsement != null && !endorsement.isRevoked();
+    }
+
+    public int size() {
+        return entries.endorsementByPublicKeySha256.size();
+    }
+
+    /**
+     *
+     * @param publicKey an EK public key
+     * @return lowercase hex SHA-256 of the DER-encoded SubjectPublicKeyInfo
+     */
+    public static String publicKeySha256(PublicKey publicKey) {
+        return EkPublicKeyDigest.toHex(EkPublicKeyDigest.sha256(publicKey));
+    }
+
+    /**
+     *
+     * @param certificate DER-encoded EK certificate
+     * @return lowercase hex SHA-256 of the certificate's public key
+     * @throws CertificateException if the certificate cannot be decoded
+     */
+    public static String publicKeySha256(byte[] certificate) throws CertificateException {
+        return EkPublicKeyDigest.toHex(EkPublicKeyDigest.sha256(certificate));
+    }
+
+    /**
+     * Endorsements are tracked by id so they can be replaced and removed;
+     * one without an id could never be, so it is not indexed.
+     */
+    private static String idOf(TpmEndorsement endorsement) {
+        if( endorsement.getId() == null ) {
+            log.debug("Skipping TPM endorsement without id");
+            return null;
+        }
+        return endorsement.getId().toString();
+    }
+
+    private static String digestOf(TpmEndorsement endorsement) {
+        byte[] digest = EkPublicKeyDigest.of(endorsement);
+        return digest == null ? null : EkPublicKeyDigest.toHex(digest);
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.tpm.endorsement.model;
+
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * Compact in-memory set of revoked EK public keys, for checking revocation
+ * while processing an identity request without a call to the endorsement
+ * service.
+ *
+ * Members are the SHA-256 digests of the EK SubjectPublicKeyInfo, the same
+ * value as {@link TpmEndorsementIndex#publicKeySha256(PublicKey)}. They are
+ * kept as one sorted byte array of 32-byte entries which is searched with a
+ * binary search. A small Bloom filter in front of the array answers most
+ * lookups for keys that are not revoked without touching the array; since
+ * the members are already uniformly distributed digests, the filter uses
+ * slices of the digest itself as its hash functions.
+ *
+ * Lookups do not lock. Every update, including a single {@link #add(byte[])}
+ * or {@link #remove(byte[])}, merges the changes into a new array, rebuilds
+ * the whole filter and publishes both together, so a lookup always sees a
+ * consistent snapshot. That costs O(n) per call regardless of how many
+ * digests change, so changes should be applied in batches with
+ * {@link #update(Collection)} or {@link #update(Collection, Collection)},
+ * for example the result of TpmEndorsements.searchTpmEndorsementChanges.
+ *
+ * The sorted array is also available with {@link #toByteArray()} so the
+ * set can be saved or transferred and restored with {@link #valueOf(byte[])}.
+ */
+public class TpmEndorsementRevocationSet {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TpmEndorsementRevocationSet.class);
+    public static final int DIGEST_LENGTH = EkPublicKeyDigest.LENGTH;
+    private static final int BLOOM_BITS_PER_ENTRY = 16;
+    private static final int BLOOM_HASHES = 6;
+
+    private volatile Snapshot snapshot = new Snapshot(new byte[0]);
+
+    public TpmEndorsementRevocationSet() {
+    }
+
+    /**
+     *
+     * @param sorted concatenated 32-byte digests in ascending unsigned order, as returned by {@link #toByteArray()}
+     * @return a revocation set with those members
+     * @throws IllegalArgumentException if the array length is not a multiple of 32 or the digests are not sorted
+     */
+    public static TpmEndorsementRevocationSet valueOf(byte[] sorted) {
+        if( sorted.length % DIGEST_LENGTH != 0 ) {
+            throw new IllegalArgumentException("Revocation set length must be a multiple of " + DIGEST_LENGTH);
+        }
+        for(int offset = DIGEST_LENGTH; offset < sorted.length; offset += DIGEST_LENGTH) {
+            if( EkPublicKeyDigest.compare(sorted, offset - DIGEST_LENGTH, sorted, offset) >= 0 ) {
+                throw new IllegalArgumentException("Revocation set entries must be sorted and unique");
+            }
+        }
+        TpmEndorsementRevocationSet set = new TpmEndorsementRevocationSet();
+        set.snapshot = new Snapshot(Arrays.copyOf(sorted, sorted.length));
+        return set;
+    }
+
+    /**
+     * Replaces the contents of the set with the revoked endorsements in
+     * the snapshot. Endorsements that are not revoked are ignored.
+     *
+     * @param endorsements all endorsements, for example from searchTpmEndorsements with filter=false
+     */
+    public synchronized void load(Collection<TpmEndorsement> endorsements) {
+        TreeSet<byte[]> members = new TreeSet<>(EkPublicKeyDigest.ORDER);
+        for(TpmEndorsement endorsement : endorsements) {
+            if( !endorsement.isRevoked() ) { continue; }
+            byte[] digest = EkPublicKeyDigest.of(endorsement);
+            if( digest != null ) {
+                members.add(digest);
+            }
+        }
+        snapshot = new Snapshot(toSortedArray(members));
+        log.debug("Loaded {} revoked EK digests", members.size());
+    }
+
+    /**
+     * Applies changed endorsements: revoked ones are added and the rest are
+     * removed, so an endorsement that was un-revoked leaves the set.
+     *
+     * @param changes changed endorsements, for example TpmEndorsementChanges.getTpmEndorsements()
+     */
+    public synchronized void update(Collection<TpmEndorsement> changes) {
+        TreeSet<byte[]> added = new TreeSet<>(EkPublicKeyDigest.ORDER);
+        TreeSet<byte[]> removed = new TreeSet<>(EkPublicKeyDigest.ORDER);
+        for(TpmEndorsement endorsement : changes) {
+            byte[] digest = EkPublicKeyDigest.of(endorsement);
+            if( digest == null ) { continue; }
+            // a later change to the same EK replaces an earlier one
+            if( endorsement.isRevoked() ) {
+                removed.remove(digest);
+                added.add(digest);
+            }
+            else {
+                added.remove(digest);
+                removed.add(digest);
+            }
+        }
+        apply(added, removed);
+    }
+
+    /**
+     * Adds and removes digests in one rebuild.
+     *
+     * @param added 32-byte digests of EKs that are now revoked
+     * @param removed 32-byte digests of EKs that are no longer revoked; a digest in both collections is removed
+     * @throws IllegalArgumentException if a digest is not 32 bytes
+     */
+    public synchronized void update(Collection<byte[]> added, Collection<byte[]> removed) {
+        apply(toTreeSet(added), toTreeSet(removed));
+    }
+
+    /**
+     * Adds one digest. Each call rebuilds the whole set; use
+     * {@link #update(Collection, Collection)} for more than one.
+     */
+    public synchronized void add(byte[] publicKeySha256) {
+        checkLength(publicKeySha256);
+        if( snapshot.contains(publicKeySha256) ) { return; }
+        update(Collections.singleton(publicKeySha256), Collections.<byte[]>emptySet());
+    }
+
+    /**
+     * Removes one digest. Each call rebuilds the whole set; use
+     * {@link #update(Collection, Collection)} for more than one.
+     */
+    public synchronized void remove(byte[] publicKeySha256) {
+        checkLength(publicKeySha256);
+        if( !snapshot.contains(publicKeySha256) ) { return; }
+        update(Collections.<byte[]>emptySet(), Collections.singleton(publicKeySha256));
+    }
+
+    private void apply(TreeSet<byte[]> added, TreeSet<byte[]> removed) {
+        if( added.isEmpty() && removed.isEmpty() ) { return; }
+        snapshot = new Snapshot(merge(snapshot.digests, added, removed));
+    }
+
+    /**
+     *
+     * @param publicKeySha256 the 32-byte SHA-256 of the EK SubjectPublicKeyInfo
+     * @return true if the EK is revoked
+     */
+    public boolean isRevoked(byte[] publicKeySha256) {
+        checkLength(publicKeySha256);
+        return snapshot.contains(publicKeySha256);
+    }
+
+    public boolean isRevoked(PublicKey ekPublicKey) {
+        return snapshot.contains(EkPublicKeyDigest.sha256(ekPublicKey));
+    }
+
+    /**
+     *
+     * @param publicKeySha256 hex-encoded SHA-256 of the EK public key, either case
+     * @return true if the EK is revoked
+     */
+    public boolean isRevoked(String publicKeySha256) {
+        return isRevoked(EkPublicKeyDigest.fromHex(publicKeySha256));
+    }
+
+    public int size() {
+        return snapshot.digests.length / DIGEST_LENGTH;
+    }
+
+    /**
+     *
+     * @return a copy of the members as concatenated 32-byte digests in ascending order
+     */
+    public byte[] toByteArray() {
+        byte[] digests = snapshot.digests;
+        return Arrays.copyOf(digests, digests.length);
+    }
+
+    private static class Snapshot {
+        private final byte[] digests;
+        private final long[] bloom;
+        private final int bloomMask;
+
+        Snapshot(byte[] digests) {
+            this.digests = digests;
+            int count = digests.length / DIGEST_LENGTH;
+            int bits = 64;
+            while( bits < count * BLOOM_BITS_PER_ENTRY ) { bits <<= 1; }
+            this.bloom = new long[bits / 64];
+            this.bloomMask = bits - 1;
+            for(int offset = 0; offset < digests.length; offset += DIGEST_LENGTH) {
+                for(int i = 0; i < BLOOM_HASHES; i++) {
+                    int bit = slice(digests, offset, i) & bloomMask;
+                    bloom[bit >>> 6] |= 1L << bit;
+                }
+            }
+        }
+
+        boolean contains(byte[] digest) {
+            for(int i = 0; i < BLOOM_HASHES; i++) {
+                int bit = slice(digest, 0, i) & bloomMask;
+                if( (bloom[bit >>> 6] & (1L << bit)) == 0 ) {
+                    return false;
+                }
+            }
+            int low = 0;
+            int high = digests.length / DIGEST_LENGTH - 1;
+            while( low <= high ) {
+                int mid = (low + high) >>> 1;
+                int cmp = EkPublicKeyDigest.compare(digests, mid * DIGEST_LENGTH, digest, 0);
+                if( cmp < 0 ) { low = mid + 1; }
+                else if( cmp > 0 ) { high = mid - 1; }
+                else { return true; }
+            }
+            return false;
+        }
+
+        private static int slice(byte[] digest, int offset, int index) {
+            int p = offset + index * 4;
+            return ((digest[p] & 0xff) << 24) | ((digest[p+1] & 0xff) << 16) | ((digest[p+2] & 0xff) << 8) | (digest[p+3] & 0xff);
+        }
+    }
+
+    private static TreeSet<byte[]> toTreeSet(Collection<byte[]> digests) {
+        TreeSet<byte[]> members = new TreeSet<>(EkPublicKeyDigest.ORDER);
+        for(byte[] digest : digests) {
+            checkLength(digest);
+            members.add(Arrays.copyOf(digest, DIGEST_LENGTH));
+        }
+        return members;
+    }
+
+    /**
+     * Merges the sorted digests with the sorted additions in one pass,
+     * leaving out the removals.
+     */
+    private static byte[] merge(byte[] digests, TreeSet<byte[]> added, TreeSet<byte[]> removed) {
+        byte[] merged = new byte[digests.length + added.size() * DIGEST_LENGTH];
+        int length = 0;
+        int offset = 0;
+        Iterator<byte[]> addedIterator = added.iterator();
+        byte[] nextAdded = addedIterator.hasNext() ? addedIterator.next() : null;
+        Iterator<byte[]> removedIterator = removed.iterator();
+        byte[] nextRemoved = removedIterator.hasNext() ? removedIterator.next() : null;
+        while( offset < digests.length || nextAdded != null ) {
+            byte[] source;
+            int sourceOffset;
+            int cmp = nextAdded == null ? -1 : offset == digests.length ? 1 : EkPublicKeyDigest.compare(digests, offset, nextAdded, 0);
+            if( cmp <= 0 ) {
+                source = digests;
+                sourceOffset = offset;
+                offset += DIGEST_LENGTH;
+                if( cmp == 0 ) {
+                    nextAdded = addedIterator.hasNext() ? addedIterator.next() : null;
+                }
+            }
+            else {
+                source = nextAdded;
+                sourceOffset = 0;
+                nextAdded = addedIterator.hasNext() ? addedIterator.next() : null;
+            }
+            while( nextRemoved != null && EkPublicKeyDigest.compare(nextRemoved, 0, source, sourceOffset) < 0 ) {
+                nextRemoved = removedIterator.hasNext() ? removedIterator.next() : null;
+            }
+            if( nextRemoved != null && EkPublicKeyDigest.compare(nextRemoved, 0, source, sourceOffset) == 0 ) {
+                continue;
+            }
+            System.arraycopy(source, sourceOffset, merged, length, DIGEST_LENGTH);
+            length += DIGEST_LENGTH;
+        }
+        return length == merged.length ? merged : Arrays.copyOf(merged, length);
+    }
+
+    private static byte[] toSortedArray(TreeSet<byte[]> members) {
+        byte[] digests = new byte[members.size() * DIGEST_LENGTH];
+        int offset = 0;
+        for(byte[] digest : members) {
+            System.arraycopy(digest, 0, digests, offset, DIGEST_LENGTH);
+            offset += DIGEST_LENGTH;
+        }
+        return digests;
+    }
+
+    private static void checkLength(byte[] digest) {
+        if( digest.length != DIGEST_LENGTH ) {
+            throw new IllegalArgumentException("EK digest must be " + DIGEST_LENGTH + " bytes");
+        }
+    }
+}
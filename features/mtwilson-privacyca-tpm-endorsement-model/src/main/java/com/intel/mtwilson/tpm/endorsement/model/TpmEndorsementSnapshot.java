@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.tpm.endorsement.model;
+
+import com.intel.dcsg.cpg.io.UUID;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.PublicKey;
+
+/**
+ * Read-only view of a TPM endorsement snapshot file written by
+ * {@link TpmEndorsementSnapshotWriter}, mapped into memory with a
+ * {@link MappedByteBuffer}.
+ *
+ * A verifier can open the snapshot at startup instead of downloading and
+ * binding every endorsement, and look up EKs without creating a
+ * TpmEndorsement object for each entry. Opening only reads the header;
+ * the operating system pages in the parts of the file that lookups touch.
+ * Entries are addressed by their position in the sorted index, found with
+ * {@link #indexOf(byte[])}.
+ *
+ * File layout, all integers big-endian:
+ * <pre>
+ *  header        48 bytes: magic "TPME", version, count, reserved,
+ *                cursor (8 bytes), offsets of index, records, revoked
+ *                bitset and certificates, file length, reserved
+ *  index         count x 32-byte SHA-256 of the EK SubjectPublicKeyInfo, ascending unsigned order
+ *  records       count x 48 bytes: id (16), hardware UUID (16),
+ *                certificate offset (4), certificate length (4), flags (4), reserved (4)
+ *  revoked       (count + 63) / 64 longs, bit i of word i/64 set if entry i is revoked
+ *  certificates  DER-encoded EK certificates
+ * </pre>
+ *
+ * The cursor is the change cursor the snapshot is current to, so the
+ * verifier can continue with TpmEndorsements.searchTpmEndorsementChanges.
+ * Lookups do not lock and may run concurrently. The file is not locked
+ * and stays mapped until this object is garbage collected; the writer
+ * replaces the file by renaming, so an open snapshot is not affected.
+ */
+public class TpmEndorsementSnapshot {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TpmEndorsementSnapshot.class);
+    /** "TPME" */
+    static final int MAGIC = 0x54504d45;
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 48;
+    static final int DIGEST_LENGTH = 32;
+    static final int RECORD_LENGTH = 48;
+    static final int FLAG_ID = 1;
+    static final int FLAG_HARDWARE_UUID = 2;
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final long cursor;
+    private final int indexOffset;
+    private final int recordsOffset;
+    private final int revokedOffset;
+    private final int certificatesOffset;
+
+    private TpmEndorsementSnapshot(ByteBuffer buffer) throws IOException {
+        if( buffer.limit() < HEADER_LENGTH || buffer.getInt(0) != MAGIC ) {
+            throw new IOException("Not a TPM endorsement snapshot");
+        }
+        if( buffer.getInt(4) != VERSION ) {
+            throw new IOException("Unsupported TPM endorsement snapshot version " + buffer.getInt(4));
+        }
+        count = buffer.getInt(8);
+        cursor = buffer.getLong(16);
+        indexOffset = buffer.getInt(24);
+        recordsOffset = buffer.getInt(28);
+        revokedOffset = buffer.getInt(32);
+        certificatesOffset = buffer.getInt(36);
+        int length = buffer.getInt(40);
+        if( count < 0 || length != buffer.limit()
+                || indexOffset < HEADER_LENGTH
+                || (long)recordsOffset - indexOffset != (long)count * DIGEST_LENGTH
+                || (long)revokedOffset - recordsOffset != (long)count * RECORD_LENGTH
+                || (long)certificatesOffset - revokedOffset != ((count + 63L) / 64) * 8
+                || certificatesOffset > length ) {
+            throw new IOException("TPM endorsement snapshot is truncated or corrupt");
+        }
+        this.buffer = buffer;
+    }
+
+    /**
+     *
+     * @param file a snapshot written by {@link TpmEndorsementSnapshotWriter}
+     * @return the mapped snapshot
+     * @throws IOException if the file cannot be read or is not a valid snapshot
+     */
+    public static TpmEndorsementSnapshot open(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r"); FileChannel channel = in.getChannel()) {
+            if( channel.size() > Integer.MAX_VALUE ) {
+                throw new IOException("TPM endorsement snapshot is larger than 2 GB");
+            }
+            // the mapping stays valid after the channel is closed
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            TpmEndorsementSnapshot snapshot = new TpmEndorsementSnapshot(mapped);
+            log.debug("Opened TPM endorsement snapshot {} with {} entries", file, snapshot.count);
+            return snapshot;
+        }
+    }
+
+    /**
+     *
+     * @param snapshot the contents of a snapshot file
+     * @return a snapshot reading from the buffer, which must not be modified afterwards
+     * @throws IOException if the buffer is not a valid snapshot
+     */
+    public static TpmEndorsementSnapshot valueOf(ByteBuffer snapshot) throws IOException {
+        return new TpmEndorsementSnapshot(snapshot.slice());
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     *
+     * @return the change cursor the snapshot is current to, for searchTpmEndorsementChanges
+     */
+    public long getCursor() {
+        return cursor;
+    }
+
+    /**
+     *
+     * @param publicKeySha256 the 32-byte SHA-256 of the EK SubjectPublicKeyInfo
+     * @return the position of the entry for that EK, or -1 if there is none
+     */
+    public int indexOf(byte[] publicKeySha256) {
+        if( publicKeySha256.length != DIGEST_LENGTH ) {
+            throw new IllegalArgumentException("EK digest must be " + DIGEST_LENGTH + " bytes");
+        }
+        ByteBuffer key = ByteBuffer.wrap(publicKeySha256);
+        long k0 = key.getLong(0), k1 = key.getLong(8), k2 = key.getLong(16), k3 = key.getLong(24);
+        int low = 0;
+        int high = count - 1;
+        while( low <= high ) {
+            int mid = (low + high) >>> 1;
+            int offset = indexOffset + mid * DIGEST_LENGTH;
+            int cmp = compareUnsigned(buffer.getLong(offset), k0);
+            if( cmp == 0 ) { cmp = compareUnsigned(buffer.getLong(offset + 8), k1); }
+            if( cmp == 0 ) { cmp = compareUnsigned(buffer.getLong(offset + 16), k2); }
+            if( cmp == 0 ) { cmp = compareUnsigned(buffer.getLong(offset + 24), k3); }
+            if( cmp < 0 ) { low = mid + 1; }
+            else if( cmp > 0 ) { high = mid - 1; }
+            else { return mid; }
+        }
+        return -1;
+    }
+
+    public int indexOf(PublicKey ekPublicKey) {
+        return indexOf(EkPublicKeyDigest.sha256(ekPublicKey));
+    }
+
+    /**
+     *
+     * @param ekPublicKey the EK public key, for example from the EK certificate in an identity request
+     * @return true if the EK has an endorsement in the snapshot and it is not revoked
+     */
+    public boolean isEndorsed(PublicKey ekPublicKey) {
+        int index = indexOf(ekPublicKey);
+        return index >= 0 && !isRevoked(index);
+    }
+
+    /**
+     *
+     * @param ekPublicKey the EK public key
+     * @return the endorsement for the EK, or null if there is none
+     */
+    public TpmEndorsement get(PublicKey ekPublicKey) {
+        int index = indexOf(ekPublicKey);
+        return index < 0 ? null : get(index);
+    }
+
+    /**
+     *
+     * @param index position of an entry
+     * @return a new TpmEndorsement with the id, hardware UUID, revoked flag and certificate of the entry
+     */
+    public TpmEndorsement get(int index) {
+        TpmEndorsement endorsement = new TpmEndorsement();
+        endorsement.setId(getId(index));
+        endorsement.setHardwareUuid(getHardwareUuid(index));
+        endorsement.setRevoked(isRevoked(index));
+        ByteBuffer der = getCertificate(index);
+        byte[] certificate = new byte[der.remaining()];
+        der.get(certificate);
+        endorsement.setCertificate(certificate);
+        return endorsement;
+    }
+
+    public boolean isRevoked(int index) {
+        checkIndex(index);
+        return (buffer.getLong(revokedOffset + (index >>> 6) * 8) & (1L << index)) != 0;
+    }
+
+    /**
+     *
+     * @return a copy of the SHA-256 of the EK SubjectPublicKeyInfo of the entry
+     */
+    public byte[] getPublicKeySha256(int index) {
+        checkIndex(index);
+        byte[] digest = new byte[DIGEST_LENGTH];
+        ByteBuffer view = buffer.duplicate();
+        view.position(indexOffset + index * DIGEST_LENGTH);
+        view.get(digest);
+        return digest;
+    }
+
+    /**
+     *
+     * @return the endorsement id, or null if it had none
+     */
+    public UUID getId(int index) {
+        int record = record(index);
+        if( (buffer.getInt(record + 40) & FLAG_ID) == 0 ) {
+            return null;
+        }
+        return UUID.valueOf(new java.util.UUID(buffer.getLong(record), buffer.getLong(record + 8)));
+    }
+
+    /**
+     *
+     * @return the hardware UUID in lowercase, or null if it had none
+     */
+    public String getHardwareUuid(int index) {
+        int record = record(index);
+        if( (buffer.getInt(record + 40) & FLAG_HARDWARE_UUID) == 0 ) {
+            return null;
+        }
+        return new java.util.UUID(buffer.getLong(record + 16), buffer.getLong(record + 24)).toString();
+    }
+
+    /**
+     *
+     * @return a read-only view of the DER-encoded EK certificate in the mapped file
+     */
+    public ByteBuffer getCertificate(int index) {
+        int record = record(index);
+        int offset = buffer.getInt(record + 32);
+        int length = buffer.getInt(record + 36);
+        if( offset < certificatesOffset || length < 0 || offset > buffer.limit() - length ) {
+            throw new IllegalStateException("TPM endorsement snapshot is corrupt at entry " + index);
+        }
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice();
+    }
+
+    private int record(int index) {
+        checkIndex(index);
+        return recordsOffset + index * RECORD_LENGTH;
+    }
+
+    private void checkIndex(int index) {
+        if( index < 0 || index >= count ) {
+            throw new IndexOutOfBoundsException("Entry " + index + " of " + count);
+        }
+    }
+
+    private static int compareUnsigned(long a, long b) {
+        return Long.compare(a + Long.MIN_VALUE, b + Long.MIN_VALUE);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.tpm.endorsement.model;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.TreeMap;
+
+/**
+ * Writes TPM endorsements to a binary snapshot file that
+ * {@link TpmEndorsementSnapshot} maps into memory.
+ *
+ * Entries are sorted by the SHA-256 digest of the EK SubjectPublicKeyInfo,
+ * the same key as {@link TpmEndorsementIndex}. Endorsements without a
+ * valid certificate are skipped, and if two endorsements have the same EK
+ * the later one is kept. Only the id, hardware UUID, revoked flag and
+ * certificate are written; issuer and comment are left out.
+ *
+ * The file is written next to the target and then renamed over it, so a
+ * verifier that opens the target at the same time sees either the old or
+ * the new snapshot.
+ *
+ * <pre>
+ *  TpmEndorsementChanges changes = client.searchTpmEndorsementChanges(0);
+ *  new TpmEndorsementSnapshotWriter().write(changes, file);
+ * </pre>
+ */
+public class TpmEndorsementSnapshotWriter {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TpmEndorsementSnapshotWriter.class);
+
+    public TpmEndorsementSnapshotWriter() {
+    }
+
+    /**
+     *
+     * @param changes all endorsements and the cursor to continue from, from searchTpmEndorsementChanges(0)
+     * @param file the snapshot file to create or replace
+     * @return number of endorsements written
+     */
+    public int write(TpmEndorsementChanges changes, File file) throws IOException {
+        return write(changes.getTpmEndorsements(), changes.getCursor(), file);
+    }
+
+    /**
+     *
+     * @param endorsements all endorsements, for example from searchTpmEndorsements with filter=false
+     * @param cursor the change cursor the endorsements are current to, or 0 if not known
+     * @param file the snapshot file to create or replace
+     * @return number of endorsements written
+     */
+    public int write(Collection<TpmEndorsement> endorsements, long cursor, File file) throws IOException {
+        TreeMap<byte[],TpmEndorsement> sorted = new TreeMap<>(EkPublicKeyDigest.ORDER);
+        for(TpmEndorsement endorsement : endorsements) {
+            byte[] digest = EkPublicKeyDigest.of(endorsement);
+            if( digest != null ) {
+                sorted.put(digest, endorsement);
+            }
+        }
+        int count = sorted.size();
+        long certificatesLength = 0;
+        for(TpmEndorsement endorsement : sorted.values()) {
+            certificatesLength += endorsement.getCertificate().length;
+        }
+        long length = TpmEndorsementSnapshot.HEADER_LENGTH
+                + (long)count * (TpmEndorsementSnapshot.DIGEST_LENGTH + TpmEndorsementSnapshot.RECORD_LENGTH)
+                + ((count + 63L) / 64) * 8 + certificatesLength;
+        if( length > Integer.MAX_VALUE ) {
+            throw new IOException("TPM endorsement snapshot would exceed 2 GB");
+        }
+        int indexOffset = TpmEndorsementSnapshot.HEADER_LENGTH;
+        int recordsOffset = indexOffset + count * TpmEndorsementSnapshot.DIGEST_LENGTH;
+        int revokedOffset = recordsOffset + count * TpmEndorsementSnapshot.RECORD_LENGTH;
+        int certificatesOffset = revokedOffset + ((count + 63) / 64) * 8;
+
+        File directory = file.getAbsoluteFile().getParentFile();
+        File temporary = File.createTempFile(file.getName(), ".tmp", directory);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+                out.writeInt(TpmEndorsementSnapshot.MAGIC);
+                out.writeInt(TpmEndorsementSnapshot.VERSION);
+                out.writeInt(count);
+                out.writeInt(0);
+                out.writeLong(cursor);
+                out.writeInt(indexOffset);
+                out.writeInt(recordsOffset);
+                out.writeInt(revokedOffset);
+                out.writeInt(certificatesOffset);
+                out.writeInt((int)length);
+                out.writeInt(0);
+                for(byte[] digest : sorted.keySet()) {
+                    out.write(digest);
+                }
+                ArrayList<TpmEndorsement> list = new ArrayList<>(sorted.values());
+                int certificateOffset = certificatesOffset;
+                for(TpmEndorsement endorsement : list) {
+                    writeRecord(out, endorsement, certificateOffset);
+                    certificateOffset += endorsement.getCertificate().length;
+                }
+                long[] revoked = new long[(count + 63) / 64];
+                for(int i = 0; i < count; i++) {
+                    if( list.get(i).isRevoked() ) {
+                        revoked[i >>> 6] |= 1L << i;
+                    }
+                }
+                for(long word : revoked) {
+                    out.writeLong(word);
+                }
+                for(TpmEndorsement endorsement : list) {
+                    out.write(endorsement.getCertificate());
+                }
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(temporary.toPath());
+        }
+        log.debug("Wrote {} TPM endorsements to snapshot {}, {} bytes", count, file, length);
+        return count;
+    }
+
+    private static void writeRecord(DataOutputStream out, TpmEndorsement endorsement, int certificateOffset) throws IOException {
+        int flags = 0;
+        java.util.UUID id = null;
+        if( endorsement.getId() != null ) {
+            id = endorsement.getId().uuidValue();
+            flags |= TpmEndorsementSnapshot.FLAG_ID;
+        }
+        java.util.UUID hardwareUuid = null;
+        if( endorsement.getHardwareUuid() != null ) {
+            try {
+                hardwareUuid = java.util.UUID.fromString(endorsement.getHardwareUuid());
+                flags |= TpmEndorsementSnapshot.FLAG_HARDWARE_UUID;
+            }
+            catch(IllegalArgumentException e) {
+                log.warn("Omitting invalid hardware UUID of TPM endorsement {}: {}", endorsement.getId(), endorsement.getHardwareUuid());
+            }
+        }
+        out.writeLong(id == null ? 0 : id.getMostSignificantBits());
+        out.writeLong(id == null ? 0 : id.getLeastSignificantBits());
+        out.writeLong(hardwareUuid == null ? 0 : hardwareUuid.getMostSignificantBits());
+        out.writeLong(hardwareUuid == null ? 0 : hardwareUuid.getLeastSignificantBits());
+        out.writeInt(certificateOffset);
+        out.writeInt(endorsement.getCertificate().length);
+        out.writeInt(flags);
+        out.writeInt(0);
+    }
+}
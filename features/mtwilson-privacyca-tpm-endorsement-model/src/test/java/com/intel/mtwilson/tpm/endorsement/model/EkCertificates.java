@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.tpm.endorsement.model;
+
+import com.intel.dcsg.cpg.io.UUID;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Self-signed EC certificates encoded by hand, so the model tests can make
+ * as many distinct EK certificates as they need without a certificate
+ * builder on the test classpath.
+ */
+class EkCertificates {
+    /** ecdsa-with-SHA256 1.2.840.10045.4.3.2 */
+    private static final byte[] ECDSA_WITH_SHA256 = { 0x30, 0x0a, 0x06, 0x08, 0x2a, (byte)0x86, 0x48, (byte)0xce, 0x3d, 0x04, 0x03, 0x02 };
+    /** commonName 2.5.4.3 */
+    private static final byte[] COMMON_NAME = { 0x06, 0x03, 0x55, 0x04, 0x03 };
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private EkCertificates() {
+    }
+
+    static KeyPair newKeyPair() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(256);
+        return generator.generateKeyPair();
+    }
+
+    /**
+     *
+     * @return a DER-encoded certificate for the key pair's public key, signed with its private key
+     */
+    static byte[] create(KeyPair keyPair, String commonName) throws GeneralSecurityException {
+        Date now = new Date();
+        byte[] name = tlv(0x30, tlv(0x31, tlv(0x30, COMMON_NAME, tlv(0x0c, commonName.getBytes(UTF8)))));
+        byte[] tbs = tlv(0x30,
+                tlv(0xa0, tlv(0x02, new byte[] { 0x02 })),
+                tlv(0x02, BigInteger.valueOf(now.getTime()).toByteArray()),
+                ECDSA_WITH_SHA256,
+                name,
+                tlv(0x30, utcTime(now), utcTime(new Date(now.getTime() + 86400000L))),
+                name,
+                keyPair.getPublic().getEncoded());
+        Signature signature = Signature.getInstance("SHA256withECDSA");
+        signature.initSign(keyPair.getPrivate());
+        signature.update(tbs);
+        byte[] signatureValue = signature.sign();
+        byte[] bitString = new byte[signatureValue.length + 1];
+        System.arraycopy(signatureValue, 0, bitString, 1, signatureValue.length);
+        return tlv(0x30, tbs, ECDSA_WITH_SHA256, tlv(0x03, bitString));
+    }
+
+    /**
+     *
+     * @return an endorsement with a new id, a new EK certificate and the given revocation status
+     */
+    static TpmEndorsement endorsement(KeyPair ek, boolean revoked) throws GeneralSecurityException {
+        TpmEndorsement endorsement = new TpmEndorsement();
+        endorsement.setId(new UUID());
+        endorsement.setHardwareUuid(java.util.UUID.randomUUID().toString());
+        endorsement.setRevoked(revoked);
+        endorsement.setCertificate(create(ek, "ek"));
+        return endorsement;
+    }
+
+    private static byte[] utcTime(Date date) {
+        SimpleDateFormat format = new SimpleDateFormat("yyMMddHHmmss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return tlv(0x17, format.format(date).getBytes(UTF8));
+    }
+
+    private static byte[] tlv(int tag, byte[]... contents) {
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+        for(byte[] content : contents) {
+            value.write(content, 0, content.length);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(tag);
+        int length = value.size();
+        if( length < 0x80 ) {
+            out.write(length);
+        }
+        else if( length < 0x100 ) {
+            out.write(0x81);
+            out.write(length);
+        }
+        else {
+            out.write(0x82);
+            out.write(length >> 8);
+            out.write(length);
+        }
+        byte[] bytes = value.toByteArray();
+        out.write(bytes, 0, bytes.length);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.tpm.endorsement.model;
+
+import com.intel.dcsg.cpg.io.UUID;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Follows the change cursor through the look-back window against an
+ * in-memory list of rows that answers modifiedSince like the server does.
+ */
+public class TpmEndorsementChangesTest {
+    private static final long WINDOW = 500;
+
+    private static TpmEndorsement row(UUID id, long modifiedOn) {
+        TpmEndorsement endorsement = new TpmEndorsement();
+        endorsement.setId(id);
+        endorsement.setModifiedOn(new Date(modifiedOn));
+        return endorsement;
+    }
+
+    /**
+     * The rows visible to the server with a modifiedOn at or after since.
+     */
+    private static List<TpmEndorsement> fetch(List<TpmEndorsement> visible, long since) {
+        ArrayList<TpmEndorsement> fetched = new ArrayList<>();
+        for(TpmEndorsement endorsement : visible) {
+            if( endorsement.getModifiedOn().getTime() >= since ) {
+                fetched.add(endorsement);
+            }
+        }
+        return fetched;
+    }
+
+    private static TpmEndorsementChanges poll(TpmEndorsementChanges previous, List<TpmEndorsement> visible) {
+        return previous.next(fetch(visible, previous.getSince(WINDOW)), WINDOW);
+    }
+
+    @Test
+    public void testGetSince() {
+        assertEquals(0, new TpmEndorsementChanges(Collections.<TpmEndorsement>emptyList(), 0).getSince(WINDOW));
+        assertEquals(0, new TpmEndorsementChanges(Collections.<TpmEndorsement>emptyList(), 300).getSince(WINDOW));
+        assertEquals(1500, new TpmEndorsementChanges(Collections.<TpmEndorsement>emptyList(), 2000).getSince(WINDOW));
+    }
+
+    @Test
+    public void testEntryRepeatedInsideWindowIsDeliveredOnce() {
+        TpmEndorsement first = row(new UUID(), 1000);
+        TpmEndorsement second = row(new UUID(), 2000);
+        ArrayList<TpmEndorsement> visible = new ArrayList<>(Arrays.asList(first, second));
+        TpmEndorsementChanges changes = poll(new TpmEndorsementChanges(Collections.<TpmEndorsement>emptyList(), 0), visible);
+        assertEquals(Arrays.asList(first, second), changes.getTpmEndorsements());
+        assertEquals(2000, changes.getCursor());
+        // the server returns the second row again because it is inside the window
+        changes = poll(changes, visible);
+        assertTrue(changes.isEmpty());
+        assertEquals(2000, changes.getCursor());
+        changes = poll(changes, visible);
+        assertTrue(changes.isEmpty());
+        // a later change to the same row has a new modifiedOn and is delivered
+        TpmEndorsement revoked = row(second.getId(), 2100);
+        revoked.setRevoked(true);
+        visible.set(1, revoked);
+        changes = poll(changes, visible);
+        assertEquals(Collections.singletonList(revoked), changes.getTpmEndorsements());
+        assertEquals(Collections.singletonList(revoked), changes.getRevoked());
+        assertEquals(2100, changes.getCursor());
+    }
+
+    @Test
+    public void testChangesSharingTimestampAtBoundary() {
+        TpmEndorsement early = row(new UUID(), 2000);
+        TpmEndorsement late = row(new UUID(), 2000);
+        ArrayList<TpmEndorsement> visible = new ArrayList<>();
+        visible.add(early);
+        TpmEndorsementChanges changes = poll(new TpmEndorsementChanges(Collections.<TpmEndorsement>emptyList(), 0), visible);
+        assertEquals(Collections.singletonList(early), changes.getTpmEndorsements());
+        assertEquals(2000, changes.getCursor());
+        // the second row commits after the first poll with the same modifiedOn as the cursor
+        visible.add(late);
+        changes = poll(changes, visible);
+        assertEquals(Collections.singletonList(late), changes.getTpmEndorsements());
+        assertEquals(2000, changes.getCursor());
+        // a row committed late with a modifiedOn before the cursor is still inside the window
+        TpmEndorsement behind = row(new UUID(), 1600);
+        visible.add(behind);
+        changes = poll(changes, visible);
+        assertEquals(Collections.singletonList(behind), changes.getTpmEndorsements());
+        assertEquals(2000, changes.getCursor());
+        assertTrue(poll(changes, visible).isEmpty());
+    }
+
+    @Test
+    public void testDeliveredEntriesArePrunedOnceOutsideWindow() {
+        TpmEndorsement old = row(new UUID(), 1000);
+        TpmEndorsementChanges changes = new TpmEndorsementChanges(Collections.<TpmEndorsement>emptyList(), 0).next(Collections.singletonList(old), WINDOW);
+        // while the cursor is within the window of the row it is recognized
+        changes = changes.next(Arrays.asList(old, row(new UUID(), 1400)), WINDOW);
+        assertEquals(1, changes.getTpmEndorsements().size());
+        assertEquals(1400, changes.getCursor());
+        // moving the cursor more than the window past the row forgets it,
+        // so the same row handed back again is no longer recognized
+        TpmEndorsement current = row(new UUID(), 1600);
+        changes = changes.next(Collections.singletonList(current), WINDOW);
+        assertEquals(1600, changes.getCursor());
+        changes = changes.next(Arrays.asList(old, current), WINDOW);
+        assertEquals(Collections.singletonList(old), changes.getTpmEndorsements());
+    }
+
+    @Test
+    public void testEntriesWithoutModifiedOn() {
+        TpmEndorsement untracked = new TpmEndorsement();
+        untracked.setId(new UUID());
+        TpmEndorsementChanges changes = new TpmEndorsementChanges(Collections.<TpmEndorsement>emptyList(), 0).next(Collections.singletonList(untracked), WINDOW);
+        assertEquals(0, changes.getCursor());
+        assertEquals(0, changes.getSince(WINDOW));
+        // without a modifiedOn the entry cannot be recognized and is delivered every time
+        changes = changes.next(Collections.singletonList(untracked), WINDOW);
+        assertEquals(Collections.singletonList(untracked), changes.getTpmEndorsements());
+    }
+}
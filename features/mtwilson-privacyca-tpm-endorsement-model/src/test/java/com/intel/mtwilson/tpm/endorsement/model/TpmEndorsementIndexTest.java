@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.tpm.endorsement.model;
+
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Loads and updates the index and checks which EKs it answers for.
+ */
+public class TpmEndorsementIndexTest {
+
+    @Test
+    public void testLoadAndLookup() throws Exception {
+        KeyPair ek1 = EkCertificates.newKeyPair();
+        KeyPair ek2 = EkCertificates.newKeyPair();
+        TpmEndorsement endorsed = EkCertificates.endorsement(ek1, false);
+        TpmEndorsement revoked = EkCertificates.endorsement(ek2, true);
+        TpmEndorsement invalid = EkCertificates.endorsement(EkCertificates.newKeyPair(), false);
+        invalid.setCertificate(new byte[] { 0x30, 0x00 });
+        TpmEndorsementIndex index = new TpmEndorsementIndex();
+        index.load(Arrays.asList(endorsed, revoked, invalid));
+        assertEquals(2, index.size());
+        assertSame(endorsed, index.get(ek1.getPublic()));
+        assertTrue(index.isEndorsed(ek1.getPublic()));
+        assertSame(revoked, index.get(ek2.getPublic()));
+        assertFalse(index.isEndorsed(ek2.getPublic()));
+        String digest = TpmEndorsementIndex.publicKeySha256(ek1.getPublic());
+        assertEquals(digest, TpmEndorsementIndex.publicKeySha256(endorsed.getCertificate()));
+        assertSame(endorsed, index.get(digest.toUpperCase()));
+        assertNull(index.get(EkCertificates.newKeyPair().getPublic()));
+    }
+
+    @Test
+    public void testLoadReplacesContents() throws Exception {
+        KeyPair ek1 = EkCertificates.newKeyPair();
+        KeyPair ek2 = EkCertificates.newKeyPair();
+        TpmEndorsementIndex index = new TpmEndorsementIndex();
+        index.load(Collections.singletonList(EkCertificates.endorsement(ek1, false)));
+        TpmEndorsement second = EkCertificates.endorsement(ek2, false);
+        index.load(Collections.singletonList(second));
+        assertEquals(1, index.size());
+        assertNull(index.get(ek1.getPublic()));
+        assertSame(second, index.get(ek2.getPublic()));
+        // the ids of the first load are gone too
+        index.remove(second.getId().toString());
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testUpdateWithChangedCertificate() throws Exception {
+        KeyPair oldEk = EkCertificates.newKeyPair();
+        KeyPair newEk = EkCertificates.newKeyPair();
+        TpmEndorsement endorsement = EkCertificates.endorsement(oldEk, false);
+        TpmEndorsementIndex index = new TpmEndorsementIndex();
+        index.load(Collections.singletonList(endorsement));
+        TpmEndorsement changed = EkCertificates.endorsement(newEk, false);
+        changed.setId(endorsement.getId());
+        index.update(changed);
+        assertEquals(1, index.size());
+        assertNull(index.get(oldEk.getPublic()));
+        assertSame(changed, index.get(newEk.getPublic()));
+    }
+
+    @Test
+    public void testUpdateWithRemovedOrInvalidCertificate() throws Exception {
+        for(byte[] certificate : new byte[][] { null, { 0x30, 0x03, 0x02, 0x01, 0x00 } }) {
+            KeyPair ek = EkCertificates.newKeyPair();
+            TpmEndorsement endorsement = EkCertificates.endorsement(ek, false);
+            TpmEndorsementIndex index = new TpmEndorsementIndex();
+            index.load(Collections.singletonList(endorsement));
+            TpmEndorsement changed = new TpmEndorsement();
+            changed.setId(endorsement.getId());
+            changed.setCertificate(certificate);
+            index.update(changed);
+            assertEquals(0, index.size());
+            assertNull(index.get(ek.getPublic()));
+        }
+    }
+
+    @Test
+    public void testUpdateRevocation() throws Exception {
+        KeyPair ek = EkCertificates.newKeyPair();
+        TpmEndorsement endorsement = EkCertificates.endorsement(ek, false);
+        TpmEndorsementIndex index = new TpmEndorsementIndex();
+        index.update(endorsement);
+        assertTrue(index.isEndorsed(ek.getPublic()));
+        TpmEndorsement revoked = EkCertificates.endorsement(ek, true);
+        revoked.setId(endorsement.getId());
+        index.update(Collections.singletonList(revoked));
+        assertEquals(1, index.size());
+        assertFalse(index.isEndorsed(ek.getPublic()));
+    }
+
+    @Test
+    public void testSameEkUnderAnotherId() throws Exception {
+        KeyPair ek = EkCertificates.newKeyPair();
+        TpmEndorsement first = EkCertificates.endorsement(ek, false);
+        TpmEndorsement second = EkCertificates.endorsement(ek, true);
+        TpmEndorsementIndex index = new TpmEndorsementIndex();
+        index.load(Arrays.asList(first, second));
+        assertSame(second, index.get(ek.getPublic()));
+        // the displaced id no longer removes the entry of the other one
+        index.remove(first.getId().toString());
+        assertSame(second, index.get(ek.getPublic()));
+        index.remove(second.getId().toString());
+        assertNull(index.get(ek.getPublic()));
+    }
+
+    @Test
+    public void testEndorsementWithoutIdIsNotIndexed() throws Exception {
+        KeyPair ek = EkCertificates.newKeyPair();
+        TpmEndorsement endorsement = EkCertificates.endorsement(ek, false);
+        endorsement.setId(null);
+        TpmEndorsementIndex index = new TpmEndorsementIndex();
+        index.load(Collections.singletonList(endorsement));
+        index.update(endorsement);
+        assertEquals(0, index.size());
+        assertNull(index.get(ek.getPublic()));
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        KeyPair ek = EkCertificates.newKeyPair();
+        TpmEndorsement endorsement = EkCertificates.endorsement(ek, false);
+        TpmEndorsementIndex index = new TpmEndorsementIndex();
+        index.load(Collections.singletonList(endorsement));
+        index.remove(new com.intel.dcsg.cpg.io.UUID().toString());
+        assertEquals(1, index.size());
+        index.remove(endorsement.getId().toString());
+        assertEquals(0, index.size());
+        assertNull(index.get(ek.getPublic()));
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.tpm.endorsement.model;
+
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks lookups through the Bloom filter and the binary search, and that
+ * every kind of update leaves the same members as a plain sorted set.
+ */
+public class TpmEndorsementRevocationSetTest {
+    private static final SecureRandom random = new SecureRandom();
+    private static final byte[] NONE = new byte[0];
+
+    private static byte[] randomDigest() {
+        byte[] digest = new byte[TpmEndorsementRevocationSet.DIGEST_LENGTH];
+        random.nextBytes(digest);
+        return digest;
+    }
+
+    private static TreeSet<byte[]> randomDigests(int count) {
+        TreeSet<byte[]> digests = new TreeSet<>(EkPublicKeyDigest.ORDER);
+        while( digests.size() < count ) {
+            digests.add(randomDigest());
+        }
+        return digests;
+    }
+
+    private static byte[] concat(TreeSet<byte[]> digests) {
+        byte[] sorted = new byte[digests.size() * TpmEndorsementRevocationSet.DIGEST_LENGTH];
+        int offset = 0;
+        for(byte[] digest : digests) {
+            System.arraycopy(digest, 0, sorted, offset, digest.length);
+            offset += digest.length;
+        }
+        return sorted;
+    }
+
+    /**
+     * The filter only looks at the first 24 bytes, so a digest that differs
+     * from a member in the last byte always passes it and is rejected by the
+     * binary search.
+     */
+    private static byte[] filterCollision(byte[] member, int delta) {
+        byte[] digest = Arrays.copyOf(member, member.length);
+        digest[digest.length - 1] += delta;
+        return digest;
+    }
+
+    @Test
+    public void testEmptySet() {
+        TpmEndorsementRevocationSet set = new TpmEndorsementRevocationSet();
+        assertEquals(0, set.size());
+        assertFalse(set.isRevoked(randomDigest()));
+        assertArrayEquals(NONE, set.toByteArray());
+        assertEquals(0, TpmEndorsementRevocationSet.valueOf(NONE).size());
+    }
+
+    @Test
+    public void testMembersAndNonMembers() {
+        TreeSet<byte[]> members = randomDigests(1000);
+        TpmEndorsementRevocationSet set = TpmEndorsementRevocationSet.valueOf(concat(members));
+        assertEquals(1000, set.size());
+        for(byte[] member : members) {
+            assertTrue(set.isRevoked(member));
+            assertTrue(set.isRevoked(EkPublicKeyDigest.toHex(member).toUpperCase()));
+        }
+        for(int i = 0; i < 10000; i++) {
+            byte[] other = randomDigest();
+            assertEquals(members.contains(other), set.isRevoked(other));
+        }
+    }
+
+    @Test
+    public void testFilterFalsePositivesAreRejectedBySearch() {
+        TreeSet<byte[]> members = randomDigests(257);
+        TpmEndorsementRevocationSet set = TpmEndorsementRevocationSet.valueOf(concat(members));
+        for(byte[] member : members) {
+            for(int delta : new int[] { -1, 1 }) {
+                byte[] collision = filterCollision(member, delta);
+                assertEquals(members.contains(collision), set.isRevoked(collision));
+            }
+        }
+    }
+
+    @Test
+    public void testSearchAtTheEnds() {
+        byte[] low = new byte[TpmEndorsementRevocationSet.DIGEST_LENGTH];
+        byte[] high = new byte[TpmEndorsementRevocationSet.DIGEST_LENGTH];
+        Arrays.fill(high, (byte)0xff);
+        byte[] middle = new byte[TpmEndorsementRevocationSet.DIGEST_LENGTH];
+        middle[0] = (byte)0x80; // sorts after 0x7f when compared unsigned
+        byte[] below = Arrays.copyOf(middle, middle.length);
+        below[0] = 0x7f;
+        TreeSet<byte[]> members = new TreeSet<>(EkPublicKeyDigest.ORDER);
+        members.addAll(Arrays.asList(high, middle, low));
+        TpmEndorsementRevocationSet set = TpmEndorsementRevocationSet.valueOf(concat(members));
+        assertArrayEquals(concat(members), set.toByteArray());
+        assertTrue(set.isRevoked(low));
+        assertTrue(set.isRevoked(middle));
+        assertTrue(set.isRevoked(high));
+        assertFalse(set.isRevoked(below));
+        assertFalse(set.isRevoked(filterCollision(low, 1)));
+        assertFalse(set.isRevoked(filterCollision(high, -1)));
+    }
+
+    @Test
+    public void testValueOfRoundTripCopiesInput() {
+        byte[] sorted = concat(randomDigests(10));
+        TpmEndorsementRevocationSet set = TpmEndorsementRevocationSet.valueOf(sorted);
+        byte[] copy = set.toByteArray();
+        assertArrayEquals(sorted, copy);
+        byte[] first = Arrays.copyOf(sorted, TpmEndorsementRevocationSet.DIGEST_LENGTH);
+        sorted[0] ^= 1;
+        copy[0] ^= 1;
+        assertTrue(set.isRevoked(first));
+    }
+
+    @Test
+    public void testValueOfRejectsUnsortedDuplicateAndPartialEntries() {
+        byte[] sorted = concat(randomDigests(3));
+        int length = TpmEndorsementRevocationSet.DIGEST_LENGTH;
+        byte[] unsorted = new byte[sorted.length];
+        System.arraycopy(sorted, length, unsorted, 0, length);
+        System.arraycopy(sorted, 0, unsorted, length, length);
+        System.arraycopy(sorted, 2 * length, unsorted, 2 * length, length);
+        byte[] duplicate = Arrays.copyOf(sorted, sorted.length);
+        System.arraycopy(sorted, length, duplicate, 2 * length, length);
+        for(byte[] invalid : new byte[][] { unsorted, duplicate, Arrays.copyOf(sorted, sorted.length - 1) }) {
+            try {
+                TpmEndorsementRevocationSet.valueOf(invalid);
+                fail("Expected the revocation set to be rejected");
+            }
+            catch(IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testWrongDigestLengthIsRejected() {
+        TpmEndorsementRevocationSet set = new TpmEndorsementRevocationSet();
+        for(byte[] digest : new byte[][] { new byte[20], new byte[33] }) {
+            try {
+                set.isRevoked(digest);
+                fail("Expected the digest to be rejected");
+            }
+            catch(IllegalArgumentException e) {
+                // expected
+            }
+            try {
+                set.update(Collections.singleton(digest), Collections.<byte[]>emptySet());
+                fail("Expected the digest to be rejected");
+            }
+            catch(IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testBatchUpdateMatchesSortedSet() {
+        TreeSet<byte[]> expected = randomDigests(200);
+        TpmEndorsementRevocationSet set = TpmEndorsementRevocationSet.valueOf(concat(expected));
+        for(int round = 0; round < 20; round++) {
+            ArrayList<byte[]> members = new ArrayList<>(expected);
+            ArrayList<byte[]> added = new ArrayList<>(randomDigests(random.nextInt(20)));
+            ArrayList<byte[]> removed = new ArrayList<>(randomDigests(random.nextInt(5)));
+            for(int i = 0; i < 10; i++) {
+                removed.add(members.get(random.nextInt(members.size())));
+                added.add(members.get(random.nextInt(members.size())));
+            }
+            // present in both: removal wins
+            byte[] both = randomDigest();
+            added.add(both);
+            removed.add(both);
+            expected.addAll(added);
+            expected.removeAll(removed);
+            set.update(added, removed);
+            assertArrayEquals(concat(expected), set.toByteArray());
+            assertFalse(set.isRevoked(both));
+        }
+    }
+
+    @Test
+    public void testAddAndRemove() {
+        TpmEndorsementRevocationSet set = new TpmEndorsementRevocationSet();
+        byte[] digest = randomDigest();
+        set.add(digest);
+        set.add(digest);
+        assertEquals(1, set.size());
+        assertTrue(set.isRevoked(digest));
+        // the set keeps its own copy
+        byte[] original = Arrays.copyOf(digest, digest.length);
+        digest[0] ^= 1;
+        assertTrue(set.isRevoked(original));
+        set.remove(randomDigest());
+        assertEquals(1, set.size());
+        set.remove(original);
+        assertEquals(0, set.size());
+        assertFalse(set.isRevoked(original));
+    }
+
+    @Test
+    public void testLoadAndUpdateWithEndorsements() throws Exception {
+        KeyPair ek1 = EkCertificates.newKeyPair();
+        KeyPair ek2 = EkCertificates.newKeyPair();
+        KeyPair ek3 = EkCertificates.newKeyPair();
+        TpmEndorsement invalid = EkCertificates.endorsement(EkCertificates.newKeyPair(), true);
+        invalid.setCertificate(new byte[] { 0x30, 0x00 });
+        TpmEndorsementRevocationSet set = new TpmEndorsementRevocationSet();
+        set.load(Arrays.asList(EkCertificates.endorsement(ek1, true), EkCertificates.endorsement(ek2, false), invalid));
+        assertEquals(1, set.size());
+        assertTrue(set.isRevoked(ek1.getPublic()));
+        assertFalse(set.isRevoked(ek2.getPublic()));
+        // ek1 is un-revoked, ek2 is revoked, and ek3 is revoked and then un-revoked in the same batch
+        List<TpmEndorsement> changes = Arrays.asList(
+                EkCertificates.endorsement(ek1, false),
+                EkCertificates.endorsement(ek2, true),
+                EkCertificates.endorsement(ek3, true),
+                EkCertificates.endorsement(ek3, false),
+                invalid);
+        set.update(changes);
+        assertEquals(1, set.size());
+        assertFalse(set.isRevoked(ek1.getPublic()));
+        assertTrue(set.isRevoked(ek2.getPublic()));
+        assertFalse(set.isRevoked(ek3.getPublic()));
+        set.update(Arrays.asList(EkCertificates.endorsement(ek3, false), EkCertificates.endorsement(ek3, true)));
+        assertTrue(set.isRevoked(ek3.getPublic()));
+        // load replaces the contents
+        set.load(Collections.<TpmEndorsement>emptyList());
+        assertEquals(0, set.size());
+    }
+}
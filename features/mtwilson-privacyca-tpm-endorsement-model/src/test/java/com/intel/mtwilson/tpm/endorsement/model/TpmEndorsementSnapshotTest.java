@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2014 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.tpm.endorsement.model;
+
+import com.intel.dcsg.cpg.io.UUID;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Writes snapshots with TpmEndorsementSnapshotWriter and reads them back,
+ * including an empty one, one whose revoked bitset spans several words, and
+ * files with a damaged header.
+ */
+public class TpmEndorsementSnapshotTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("TpmEndorsementSnapshotTest", ".bin");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file.toPath());
+    }
+
+    private TpmEndorsementSnapshot writeAndOpen(Collection<TpmEndorsement> endorsements, long cursor) throws IOException {
+        new TpmEndorsementSnapshotWriter().write(endorsements, cursor, file);
+        return TpmEndorsementSnapshot.open(file);
+    }
+
+    private static byte[] certificate(TpmEndorsementSnapshot snapshot, int index) {
+        ByteBuffer der = snapshot.getCertificate(index);
+        byte[] certificate = new byte[der.remaining()];
+        der.get(certificate);
+        return certificate;
+    }
+
+    @Test
+    public void testLookupByDigestAndIndex() throws Exception {
+        ArrayList<KeyPair> eks = new ArrayList<>();
+        ArrayList<TpmEndorsement> endorsements = new ArrayList<>();
+        for(int i = 0; i < 10; i++) {
+            KeyPair ek = EkCertificates.newKeyPair();
+            eks.add(ek);
+            endorsements.add(EkCertificates.endorsement(ek, i % 2 == 0));
+        }
+        // an endorsement without a certificate is skipped
+        TpmEndorsement invalid = new TpmEndorsement();
+        invalid.setId(new UUID());
+        endorsements.add(invalid);
+        // a later endorsement for the same EK replaces the earlier one
+        TpmEndorsement replacement = EkCertificates.endorsement(eks.get(0), false);
+        endorsements.add(replacement);
+        TpmEndorsementSnapshot snapshot = writeAndOpen(endorsements, 1234);
+        assertEquals(10, snapshot.size());
+        assertEquals(1234, snapshot.getCursor());
+        HashSet<Integer> positions = new HashSet<>();
+        for(int i = 0; i < 10; i++) {
+            TpmEndorsement expected = i == 0 ? replacement : endorsements.get(i);
+            byte[] digest = EkPublicKeyDigest.of(expected);
+            int index = snapshot.indexOf(digest);
+            assertTrue(index >= 0);
+            assertTrue(positions.add(index));
+            assertEquals(index, snapshot.indexOf(eks.get(i).getPublic()));
+            assertArrayEquals(digest, snapshot.getPublicKeySha256(index));
+            TpmEndorsement actual = snapshot.get(index);
+            assertEquals(expected.getId(), actual.getId());
+            assertEquals(expected.getId(), snapshot.getId(index));
+            assertEquals(expected.getHardwareUuid(), actual.getHardwareUuid());
+            assertEquals(expected.isRevoked(), actual.isRevoked());
+            assertEquals(!expected.isRevoked(), snapshot.isEndorsed(eks.get(i).getPublic()));
+            assertArrayEquals(expected.getCertificate(), actual.getCertificate());
+            assertArrayEquals(expected.getCertificate(), certificate(snapshot, index));
+            assertEquals(expected.getId(), snapshot.get(eks.get(i).getPublic()).getId());
+        }
+        KeyPair unknown = EkCertificates.newKeyPair();
+        assertEquals(-1, snapshot.indexOf(unknown.getPublic()));
+        assertNull(snapshot.get(unknown.getPublic()));
+        assertFalse(snapshot.isEndorsed(unknown.getPublic()));
+    }
+
+    @Test
+    public void testRevokedBitsAcrossWordBoundary() throws Exception {
+        TreeMap<byte[],TpmEndorsement> sorted = new TreeMap<>(EkPublicKeyDigest.ORDER);
+        while( sorted.size() < 130 ) {
+            TpmEndorsement endorsement = EkCertificates.endorsement(EkCertificates.newKeyPair(), false);
+            sorted.put(EkPublicKeyDigest.of(endorsement), endorsement);
+        }
+        // the entries on either side of the 64 and 128 entry word boundaries, and the last one
+        List<Integer> revoked = Arrays.asList(0, 62, 63, 64, 127, 128, 129);
+        int position = 0;
+        for(TpmEndorsement endorsement : sorted.values()) {
+            endorsement.setRevoked(revoked.contains(position++));
+        }
+        ArrayList<TpmEndorsement> endorsements = new ArrayList<>(sorted.values());
+        Collections.shuffle(endorsements);
+        TpmEndorsementSnapshot snapshot = writeAndOpen(endorsements, 0);
+        assertEquals(130, snapshot.size());
+        position = 0;
+        for(Map.Entry<byte[],TpmEndorsement> entry : sorted.entrySet()) {
+            assertEquals(position, snapshot.indexOf(entry.getKey()));
+            assertEquals("entry " + position, revoked.contains(position), snapshot.isRevoked(position));
+            assertEquals(entry.getValue().getId(), snapshot.getId(position));
+            position++;
+        }
+    }
+
+    @Test
+    public void testEmptySnapshot() throws Exception {
+        TpmEndorsementSnapshot snapshot = writeAndOpen(Collections.<TpmEndorsement>emptyList(), 42);
+        assertEquals(TpmEndorsementSnapshot.HEADER_LENGTH, file.length());
+        assertEquals(0, snapshot.size());
+        assertEquals(42, snapshot.getCursor());
+        assertEquals(-1, snapshot.indexOf(new byte[TpmEndorsementSnapshot.DIGEST_LENGTH]));
+        assertFalse(snapshot.isEndorsed(EkCertificates.newKeyPair().getPublic()));
+        try {
+            snapshot.get(0);
+            fail("Expected the empty snapshot to have no entry 0");
+        }
+        catch(IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testTruncatedOrCorruptHeaderIsRejected() throws Exception {
+        ArrayList<TpmEndorsement> endorsements = new ArrayList<>();
+        for(int i = 0; i < 3; i++) {
+            endorsements.add(EkCertificates.endorsement(EkCertificates.newKeyPair(), false));
+        }
+        new TpmEndorsementSnapshotWriter().write(endorsements, 7, file);
+        byte[] valid = Files.readAllBytes(file.toPath());
+        assertEquals(3, TpmEndorsementSnapshot.valueOf(ByteBuffer.wrap(valid)).size());
+        ArrayList<byte[]> invalid = new ArrayList<>();
+        invalid.add(new byte[0]);
+        invalid.add(Arrays.copyOf(valid, TpmEndorsementSnapshot.HEADER_LENGTH - 1));
+        invalid.add(Arrays.copyOf(valid, valid.length - 1));
+        // magic, version, count and each offset in turn
+        for(int offset : new int[] { 0, 4, 8, 24, 28, 32, 36, 40 }) {
+            byte[] corrupt = valid.clone();
+            corrupt[offset + 3] ^= 1;
+            invalid.add(corrupt);
+        }
+        byte[] negativeCount = valid.clone();
+        ByteBuffer.wrap(negativeCount).putInt(8, -1);
+        invalid.add(negativeCount);
+        for(byte[] bytes : invalid) {
+            try {
+                TpmEndorsementSnapshot.valueOf(ByteBuffer.wrap(bytes));
+                fail("Expected the damaged snapshot to be rejected");
+            }
+            catch(IOException e) {
+                // expected
+            }
+        }
+        Files.write(file.toPath(), Arrays.copyOf(valid, valid.length / 2));
+        try {
+            TpmEndorsementSnapshot.open(file);
+            fail("Expected the truncated file to be rejected");
+        }
+        catch(IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testUuidRoundTrip() throws Exception {
+        String[] ids = { "00000000-0000-0000-0000-000000000001", "ffffffff-ffff-ffff-ffff-fffffffffffe", "80000000-0000-4000-8000-000000000000" };
+        ArrayList<TpmEndorsement> endorsements = new ArrayList<>();
+        for(String id : ids) {
+            TpmEndorsement endorsement = EkCertificates.endorsement(EkCertificates.newKeyPair(), false);
+            endorsement.setId(UUID.valueOf(id));
+            endorsement.setHardwareUuid(java.util.UUID.randomUUID().toString().toUpperCase());
+            endorsements.add(endorsement);
+        }
+        TpmEndorsement withoutIds = EkCertificates.endorsement(EkCertificates.newKeyPair(), false);
+        withoutIds.setId(null);
+        withoutIds.setHardwareUuid("not a uuid");
+        endorsements.add(withoutIds);
+        TpmEndorsementSnapshot snapshot = writeAndOpen(endorsements, 0);
+        for(TpmEndorsement expected : endorsements) {
+            int index = snapshot.indexOf(EkPublicKeyDigest.of(expected));
+            if( expected == withoutIds ) {
+                assertNull(snapshot.getId(index));
+                assertNull(snapshot.getHardwareUuid(index));
+                continue;
+            }
+            UUID id = snapshot.getId(index);
+            assertEquals(expected.getId(), id);
+            assertEquals(expected.getId().uuidValue(), id.uuidValue());
+            assertEquals(expected.getId().toString(), id.toString());
+            assertEquals(expected.getHardwareUuid().toLowerCase(), snapshot.getHardwareUuid(index));
+        }
+    }
+}